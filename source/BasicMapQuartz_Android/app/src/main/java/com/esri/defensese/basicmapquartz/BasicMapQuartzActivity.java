@@ -15,8 +15,14 @@
  ******************************************************************************/
 package com.esri.defensese.basicmapquartz;
 
+import android.app.SearchManager;
+import android.database.MatrixCursor;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v4.widget.CursorAdapter;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -26,34 +32,44 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.esri.arcgisruntime.ArcGISRuntimeEnvironment;
 import com.esri.arcgisruntime.concurrent.ListenableFuture;
 import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeature;
-import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.GeodatabaseFeatureTable;
 import com.esri.arcgisruntime.geometry.Envelope;
-import com.esri.arcgisruntime.geometry.EnvelopeBuilder;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.Polygon;
 import com.esri.arcgisruntime.layers.FeatureLayer;
 import com.esri.arcgisruntime.loadable.LoadStatus;
-import com.esri.arcgisruntime.loadable.LoadStatusChangedEvent;
-import com.esri.arcgisruntime.loadable.LoadStatusChangedListener;
-import com.esri.arcgisruntime.mapping.Basemap;
 import com.esri.arcgisruntime.mapping.GeoElement;
 import com.esri.arcgisruntime.mapping.Map;
+import com.esri.arcgisruntime.mapping.Viewpoint;
 import com.esri.arcgisruntime.mapping.view.Callout;
 import com.esri.arcgisruntime.mapping.view.DefaultMapViewOnTouchListener;
 import com.esri.arcgisruntime.mapping.view.IdentifyLayerResult;
 import com.esri.arcgisruntime.mapping.view.MapView;
+import com.esri.arcgisruntime.mapping.view.ViewpointChangedEvent;
+import com.esri.arcgisruntime.mapping.view.ViewpointChangedListener;
+import com.esri.arcgisruntime.security.AuthenticationChallengeHandler;
 import com.esri.arcgisruntime.security.AuthenticationManager;
 import com.esri.arcgisruntime.security.DefaultAuthenticationChallengeHandler;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * An app that displays a map with a feature service, demonstrating they key themes
@@ -63,14 +79,47 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
 
     private static final String TAG = BasicMapQuartzActivity.class.getSimpleName();
 
+    /**
+     * The identify tolerance, in device-independent pixels.
+     */
+    private static final double IDENTIFY_TOLERANCE = 11.0;
+
+    /**
+     * The number of attributes above which the callout's attribute list scrolls.
+     */
+    private static final int MAX_CALLOUT_ROWS = 10;
+
+    private RetainedMapFragment retainedState = null;
     private MapView mapView = null;
     private Map map = null;
-    private ServiceFeatureTable featureTable;
     private TextView layerStatusLabel = null;
     private TextView srLabel = null;
+    private final GeoElementLabeler geoElementLabeler = new GeoElementLabeler();
+    private IdentifyResultsAdapter identifyResultsAdapter = null;
+    private final Executor uiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            runOnUiThread(command);
+        }
+    };
+    private MultiLayerIdentifier<IdentifyTap, LabeledGeoElements> layerIdentifier = null;
+    private IdentifyDispatcher<IdentifyTap, MultiLayerIdentifier.Result<LabeledGeoElements>>
+            identifyDispatcher = null;
+    private boolean identifyCalloutShown = false;
+    private View featureCallout = null;
+    private TextView featureCalloutTitle = null;
+    private ListView featureCalloutList = null;
+    private FeatureCalloutAdapter featureCalloutAdapter = null;
+    private StoredCredentialChallengeHandler storedCredentialHandler = null;
+    private MapDefinitionApplier mapDefinitionApplier = null;
+    private FrameTimeRecorder frameTimeRecorder = null;
+    private SimpleCursorAdapter searchSuggestionsAdapter = null;
+    private List<FeatureSearchIndex.Hit> searchHits = Collections.emptyList();
 
     /**
-     * Creates the UI and creates and displays the map.
+     * Creates the UI and displays the map. The map is created the first time only;
+     * after a configuration change such as rotation, the map, its layers and their
+     * caches are taken from the RetainedMapFragment instead of being loaded again.
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -84,13 +133,39 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
         layerStatusLabel = (TextView) findViewById(R.id.textView_layerStatus);
         srLabel = (TextView) findViewById(R.id.textView_spatialReference);
 
+        retainedState = (RetainedMapFragment) getSupportFragmentManager().findFragmentByTag(RetainedMapFragment.TAG);
+        if (null == retainedState) {
+            retainedState = new RetainedMapFragment();
+            getSupportFragmentManager().beginTransaction().add(retainedState, RetainedMapFragment.TAG).commit();
+            getSupportFragmentManager().executePendingTransactions();
+        }
+        boolean restored = retainedState.hasMap();
+
         /**
          * *********************************************************************
          * New in Beta 1: Centralized handling of authentication
          */
-        String featureServiceUrl = "https://services1.arcgis.com/63cSRCcqLtJKDSR2/arcgis/rest/services/nhsvc_sites/FeatureServer/0";
-        String definitionExpression = "Name LIKE '%Sa%'";
-        AuthenticationManager.setAuthenticationChallengeHandler(new DefaultAuthenticationChallengeHandler(this));
+        AuthenticationChallengeHandler challengeHandler = new DefaultAuthenticationChallengeHandler(this);
+        if (!restored) {
+            try {
+                // Remember credentials and tokens across launches
+                retainedState.credentialStore = new EncryptedCredentialStore(
+                        new File(getFilesDir(), "credentials"), new File(getFilesDir(), "credentials.key"));
+                retainedState.tokenGenerator = new ArcGISTokenGenerator();
+                retainedState.tokenRefresher = new TokenRefresher(retainedState.credentialStore,
+                        retainedState.tokenGenerator);
+                retainedState.tokenRefresher.start();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open credential store", e);
+            }
+        }
+        if (null != retainedState.tokenRefresher) {
+            // The challenge handler shows dialogs, so it belongs to this activity
+            storedCredentialHandler = new StoredCredentialChallengeHandler(retainedState.credentialStore,
+                    retainedState.tokenRefresher, retainedState.tokenGenerator.getReferer(), challengeHandler);
+            challengeHandler = storedCredentialHandler;
+        }
+        AuthenticationManager.setAuthenticationChallengeHandler(challengeHandler);
 
         /**
          * *********************************************************************
@@ -99,192 +174,467 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
          */
         mapView = (MapView) findViewById(R.id.mapView);
 
-        this.map = new Map();
-        map.setBasemap(Basemap.createTopographic());
-
-        featureTable = new ServiceFeatureTable(featureServiceUrl);
-        final FeatureLayer featureLayer = new FeatureLayer(featureTable);
-        featureLayer.setDefinitionExpression(definitionExpression);
-        map.getOperationalLayers().add(featureLayer);
+        /**
+         * *********************************************************************
+         * New in Beta 2: Take layers offline
+         * The map comes from a map definition file; see the README.
+         *
+         * New in Beta 2: Load the map, basemap and layers concurrently
+         */
+        if (!restored) {
+            retainedState.createMap(this);
+        }
+        this.map = retainedState.getMap();
+        mapDefinitionApplier = retainedState.getMapDefinitionApplier();
 
         Callout.Style calloutStyle = new Callout.Style(this);
         calloutStyle.setBackgroundColor(R.color.colorPrimary);
         calloutStyle.setBorderColor(R.color.colorPrimary);
         mapView.getCallout().setStyle(calloutStyle);
 
-        /**
-         * *********************************************************************
-         * New in Beta 1: Loadable pattern
-         */
-        layerStatusLabel.setText("Layer: " + LoadStatus.NOT_LOADED);
-        featureLayer.addLoadStatusChangedListener(new LoadStatusChangedListener() {
+        identifyResultsAdapter = new IdentifyResultsAdapter(this);
+        ListView identifyResultsList = (ListView) findViewById(R.id.listView_identifyResults);
+        identifyResultsList.setAdapter(identifyResultsAdapter);
+        identifyResultsList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void loadStatusChanged(LoadStatusChangedEvent evt) {
-                LoadStatus newLoadStatus = evt.getNewLoadStatus();
-                layerStatusLabel.setText("Layer: " + newLoadStatus.toString());
-                switch (newLoadStatus) {
-                case LOADED:
-                    Envelope fullExtent = featureLayer.getFullExtent();
-
+            public void onItemClick(final AdapterView<?> parent, View view, final int position, long id) {
+                final LabeledGeoElements results = identifyResultsAdapter.getResults();
+                GeoElement geoElement = results.getGeoElement(position);
+                FeaturePrefetcher featurePrefetcher = retainedState.featurePrefetcher;
+                if (geoElement instanceof ArcGISFeature && null != featurePrefetcher) {
                     /**
-                     * *********************************************************
-                     * New in Beta 1: Geometry objects
+                     * *********************************************************************
+                     * New in Beta 2: Loadable features
                      */
-                    EnvelopeBuilder envBuilder = new EnvelopeBuilder(fullExtent);
-                    double halfWidth = envBuilder.getWidth() / 2.0;
-                    double halfHeight = envBuilder.getHeight() / 2.0;
-                    envBuilder.setXMin(envBuilder.getXMin() - halfWidth);
-                    envBuilder.setXMax(envBuilder.getXMax() + halfWidth);
-                    envBuilder.setYMin(envBuilder.getYMin() - halfHeight);
-                    envBuilder.setYMax(envBuilder.getYMax() + halfHeight);
-                    fullExtent = envBuilder.toGeometry();
-                    Log.i(getClass().getSimpleName(),
-                            "By the way, the spatial reference of this geometry is "
-                                    + fullExtent.getSpatialReference().getWKText()
-                                    + ". Try doing THAT with ArcGIS Runtime 10.2.x!");
-
-                    mapView.setViewpointGeometryAsync(fullExtent);
-
-                    mapView.setOnTouchListener(new DefaultMapViewOnTouchListener(getApplicationContext(), mapView) {
-
-                        @Override
-                        public boolean onSingleTapConfirmed(MotionEvent event) {
-                            /**
-                             * *********************************************************************
-                             * New in Beta 2: Identify layers
-                             */
-                            final ListenableFuture<IdentifyLayerResult> future = mapView.identifyLayerAsync(
-                                    featureLayer,
-                                    new android.graphics.Point(Math.round(event.getX()), Math.round(event.getY())),
-                                    11.0, Integer.MAX_VALUE);
-                            future.addDoneListener(new Runnable() {
+                    featurePrefetcher.getFeatureAsync((ArcGISFeature) geoElement,
+                            new FeaturePrefetcher.FeatureCallback() {
                                 @Override
-                                public void run() {
-                                    try {
-                                        final IdentifyLayerResult result = future.get();
-                                        final List<GeoElement> geoElementList = result.getIdentifiedElements();
-                                        if (0 < geoElementList.size()) {
-                                            ArrayAdapter<GeoElement> arrayAdapter = new ArrayAdapter<GeoElement>(getApplicationContext(), android.R.layout.simple_list_item_1, geoElementList) {
-                                                @Override
-                                                public View getView(int position, View convertView, ViewGroup parent) {
-                                                    GeoElement geoElement = geoElementList.get(position);
-                                                    if (null == convertView) {
-                                                        convertView = LayoutInflater.from(getContext()).inflate(R.layout.item_geo_element, parent, false);
-                                                    }
-                                                    String listText = null;
-                                                    if (geoElement instanceof ArcGISFeature) {
-                                                        ArcGISFeature feature = (ArcGISFeature) geoElement;
-                                                        String displayFieldName = feature.getFeatureTable().getLayerInfo().getDisplayFieldName();
-                                                        Object displayFieldValue = feature.getAttributes().get(displayFieldName);
-                                                        if (null != displayFieldValue) {
-                                                            listText = displayFieldValue.toString();
-                                                        }
-                                                    }
-                                                    if (null == listText) {
-                                                        listText = result.getLayerContent().getName() + " " + geoElement.hashCode();
-                                                    }
-                                                    ((TextView) convertView.findViewById(R.id.textView_title)).setText(listText);
-                                                    return convertView;
-                                                }
-                                            };
-                                            ListView listView = (ListView) findViewById(R.id.listView_identifyResults);
-                                            listView.setAdapter(arrayAdapter);
-                                            listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                                                @Override
-                                                public void onItemClick(final AdapterView<?> parent, View view, int position, long id) {
-                                                    GeoElement geoElement = geoElementList.get(position);
-                                                    if (geoElement instanceof ArcGISFeature) {
-                                                        final ArcGISFeature feature = (ArcGISFeature) geoElement;
-                                                        /**
-                                                         * *********************************************************************
-                                                         * New in Beta 2: Loadable features
-                                                         */
-                                                        feature.addDoneLoadingListener(new Runnable() {
-                                                            @Override
-                                                            public void run() {
-                                                                feature.removeDoneLoadingListener(this);
-                                                                String displayFieldName = feature.getFeatureTable().getLayerInfo().getDisplayFieldName();
-                                                                Object displayFieldValue = feature.getAttributes().get(displayFieldName);
-                                                                String titleText;
-                                                                if (null != displayFieldValue) {
-                                                                    titleText = displayFieldValue.toString();
-                                                                } else {
-                                                                    titleText = result.getLayerContent().getName() + " " + feature.hashCode();
-                                                                }
-                                                                showGeoElementCallout(feature, titleText, parent);
-                                                            }
-                                                        });
-                                                        feature.loadAsync();
-                                                    } else {
-                                                        String titleText = result.getLayerContent().getName() + " " + geoElement.hashCode();
-                                                        showGeoElementCallout(geoElement, titleText, parent);
-                                                    }
-                                                }
-                                            });
-                                            findViewById(R.id.listView_identifyResults).setVisibility(View.VISIBLE);
-                                            listView.performItemClick(null, 0, 0);
+                                public void featureReady(final ArcGISFeature feature) {
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            String titleText = geoElementLabeler.getLabel(
+                                                    feature, results.getLayerName(position));
+                                            showGeoElementCallout(feature, titleText, parent);
                                         }
-                                    } catch (InterruptedException | ExecutionException e) {
-                                        Log.d(TAG, "Could not get identify result", e);
-                                    }
+                                    });
                                 }
                             });
-                            return true;
-                        }
-                    });
-
-                    break;
-
-                case FAILED_TO_LOAD:
-                    if (null != featureLayer.getLoadError() && null != featureLayer.getLoadError().getMessage()
-                            && featureLayer.getLoadError().getMessage().toLowerCase().contains("token")) {
-                        AuthenticationManager.CredentialCache.clear();
-                    }
-                    break;
+                } else {
+                    showGeoElementCallout(geoElement, results.getLabel(position), parent);
                 }
             }
         });
-        srLabel.setText("SR: " + getSpatialReferenceString(map));
-        map.addDoneLoadingListener(new Runnable() {
-            public void run() {
-                srLabel.setText("SR: " + getSpatialReferenceString(map));
+
+        mapView.getGraphicsOverlays().add(retainedState.getClusterOverlay());
+        mapView.addViewpointChangedListener(new ViewpointChangedListener() {
+            @Override
+            public void viewpointChanged(ViewpointChangedEvent event) {
+                if (null != frameTimeRecorder) {
+                    frameTimeRecorder.mapActive();
+                }
+                // Load the visible tiles of layers whose cache policy is viewport and update clusters
+                Polygon visibleArea = mapView.getVisibleArea();
+                if (null != visibleArea && 0 < mapView.getWidth()) {
+                    Envelope visibleExtent = visibleArea.getExtent();
+                    mapDefinitionApplier.viewpointChanged(visibleExtent, visibleExtent.getWidth() / mapView.getWidth());
+                }
             }
         });
 
+        showSpatialReference();
+
         mapView.setMap(map);
+        if (restored) {
+            if (null != retainedState.viewpoint) {
+                mapView.setViewpoint(retainedState.viewpoint);
+            }
+            // Show the status of the layers added for an earlier activity and identify them
+            MapDefinition mapDefinition = mapDefinitionApplier.getMapDefinition();
+            if (null != mapDefinition) {
+                for (MapDefinition.LayerDefinition layerDefinition : mapDefinition.getLayers()) {
+                    FeatureLayer featureLayer = mapDefinitionApplier.getFeatureLayer(layerDefinition.getId());
+                    if (null != featureLayer) {
+                        layerLoadStatusChanged(layerDefinition, featureLayer, featureLayer.getLoadStatus());
+                    }
+                }
+            }
+        }
     }
 
-    private void showGeoElementCallout(GeoElement geoElement, String titleText, ViewGroup parent) {
-        ViewGroup featureCallout = (ViewGroup) LayoutInflater.from(getApplicationContext()).inflate(R.layout.feature_callout, parent, false);
-        for (String key : geoElement.getAttributes().keySet()) {
-            View featureCalloutRow = LayoutInflater.from(getApplicationContext()).inflate(R.layout.feature_callout_row, parent, false);
-            ((TextView) featureCalloutRow.findViewById(R.id.textView_key)).setText(key);
-            Object value = geoElement.getAttributes().get(key);
-            if (null != value) {
-                String valueString;
-                if (value instanceof Calendar) {
-                    valueString = SimpleDateFormat.getDateInstance().format(((Calendar) value).getTime());
-                } else {
-                    valueString = value.toString();
+    /**
+     * Shows the map's spatial reference.
+     */
+    void showSpatialReference() {
+        srLabel.setText(StatusText.spatialReference(getWkid(map)));
+    }
+
+    /**
+     * Shows the load status of a layer that has been added to the map, and when the
+     * primary layer has loaded, enables identify.
+     * @param layerDefinition the layer's definition.
+     * @param featureLayer the FeatureLayer.
+     * @param newLoadStatus the layer's load status.
+     */
+    void layerLoadStatusChanged(MapDefinition.LayerDefinition layerDefinition, final FeatureLayer featureLayer,
+                                LoadStatus newLoadStatus) {
+        final String layerId = layerDefinition.getId();
+        final String definitionExpression = layerDefinition.getDefinitionExpression();
+        final boolean primary = layerId.equals(retainedState.getPrimaryLayerId());
+        final String realm = StoredCredentialChallengeHandler.getRealm(layerDefinition.getUrl());
+
+        /**
+         * *********************************************************************
+         * New in Beta 1: Loadable pattern
+         */
+        if (!primary) {
+            if (LoadStatus.FAILED_TO_LOAD == newLoadStatus) {
+                handleLoadError(featureLayer, realm);
+            }
+            return;
+        }
+        layerStatusLabel.setText(StatusText.layerStatus(newLoadStatus));
+        switch (newLoadStatus) {
+        case LOADED:
+            /**
+             * *********************************************************************
+             * New in Beta 2: Identify layers
+             */
+            final RetainedMapFragment state = retainedState;
+            if (featureLayer != state.localIdentifyLayer) {
+                // A layer restored after a configuration change keeps its engine and prefetcher
+                state.localIdentifyLayer = featureLayer;
+                state.localIdentifyEngine = null;
+                state.featurePrefetcher = featureLayer.getFeatureTable() instanceof ArcGISFeatureTable
+                        ? new FeaturePrefetcher((ArcGISFeatureTable) featureLayer.getFeatureTable())
+                        : null;
+            }
+            if (null == state.localIdentifyEngine && featureLayer.getFeatureTable() instanceof GeodatabaseFeatureTable) {
+                // The features are local, so identify them without a round trip
+                state.buildLocalIdentifyEngine(featureLayer, definitionExpression);
+            }
+            if (null == identifyDispatcher) {
+                createIdentifyDispatcher();
+            }
+            identifyDispatcher.setMetrics(state.metrics, layerId);
+
+            mapView.setOnTouchListener(new DefaultMapViewOnTouchListener(getApplicationContext(), mapView) {
+
+                @Override
+                public boolean onSingleTapConfirmed(MotionEvent event) {
+                    if (null != frameTimeRecorder) {
+                        frameTimeRecorder.mapActive();
+                    }
+                    identifyCalloutShown = false;
+                    android.graphics.Point screenPoint =
+                            new android.graphics.Point(Math.round(event.getX()), Math.round(event.getY()));
+                    identifyDispatcher.tap(new IdentifyTap(
+                            screenPoint, getIdentifySearchArea(screenPoint, IDENTIFY_TOLERANCE)));
+                    return true;
+                }
+            });
+
+            break;
+
+        case FAILED_TO_LOAD:
+            handleLoadError(featureLayer, realm);
+            break;
+        }
+    }
+
+    /**
+     * Creates the identify dispatcher, which identifies every loaded, visible layer
+     * in parallel and shows the results of the fastest layers while the others are
+     * still being identified.
+     */
+    private void createIdentifyDispatcher() {
+        layerIdentifier = new MultiLayerIdentifier<>(
+                new MultiLayerIdentifier.LayerProvider<IdentifyTap, LabeledGeoElements>() {
+                    @Override
+                    public List<FeatureLayerIdentifier> getLayers() {
+                        List<FeatureLayerIdentifier> layers = new ArrayList<>();
+                        for (java.util.Map.Entry<String, FeatureLayer> entry
+                                : mapDefinitionApplier.getFeatureLayers().entrySet()) {
+                            FeatureLayer featureLayer = entry.getValue();
+                            if (LoadStatus.LOADED == featureLayer.getLoadStatus() && featureLayer.isVisible()) {
+                                layers.add(new FeatureLayerIdentifier(entry.getKey(), featureLayer));
+                            }
+                        }
+                        return layers;
+                    }
+                });
+        layerIdentifier.setTolerance(IDENTIFY_TOLERANCE);
+        identifyDispatcher = new IdentifyDispatcher<>(layerIdentifier, uiExecutor,
+                new IdentifyDispatcher.PartialResultListener<MultiLayerIdentifier.Result<LabeledGeoElements>>() {
+                    @Override
+                    public void identifyPartialResult(MultiLayerIdentifier.Result<LabeledGeoElements> partialResult) {
+                        showIdentifyResult(merge(partialResult));
+                    }
+
+                    @Override
+                    public void identifyResult(MultiLayerIdentifier.Result<LabeledGeoElements> result) {
+                        showIdentifyResult(merge(result));
+                    }
+
+                    @Override
+                    public void identifyFailed(Throwable error) {
+                        Log.w(TAG, "Could not get identify result", error);
+                    }
+                });
+    }
+
+    /**
+     * A tap to identify: its screen point, and its search area in map coordinates,
+     * which is computed on the UI thread when the map is tapped.
+     */
+    private static class IdentifyTap {
+
+        final android.graphics.Point screenPoint;
+        final Envelope searchArea;
+
+        IdentifyTap(android.graphics.Point screenPoint, Envelope searchArea) {
+            this.screenPoint = screenPoint;
+            this.searchArea = searchArea;
+        }
+
+    }
+
+    /**
+     * Identifies one FeatureLayer: a tap on a cluster lists the features in the
+     * cluster, the primary layer is identified locally once its features are
+     * indexed, and other layers are identified by the MapView. Runs on the
+     * identifier's pool, except that the MapView identify is started on the UI thread.
+     */
+    private class FeatureLayerIdentifier
+            implements MultiLayerIdentifier.LayerIdentifier<IdentifyTap, LabeledGeoElements> {
+
+        private final String layerId;
+        private final FeatureLayer featureLayer;
+
+        FeatureLayerIdentifier(String layerId, FeatureLayer featureLayer) {
+            this.layerId = layerId;
+            this.featureLayer = featureLayer;
+        }
+
+        @Override
+        public String getLayerId() {
+            return layerId;
+        }
+
+        @Override
+        public Future<?> identify(final IdentifyTap tap, final double tolerance, final int maxResults,
+                                  final IdentifyDispatcher.IdentifyCallback<LabeledGeoElements> callback) {
+            final List<GeoElement> clusterElements = mapDefinitionApplier.identifyClusters(
+                    layerId, tap.searchArea, maxResults);
+            if (null != clusterElements) {
+                FutureTask<Void> clusterIdentify = new FutureTask<>(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.identifyCompleted(labelAndPrefetch(clusterElements, featureLayer));
+                    }
+                }, null);
+                clusterIdentify.run();
+                return clusterIdentify;
+            }
+
+            final LocalIdentifyEngine localEngine = featureLayer == retainedState.localIdentifyLayer
+                    ? retainedState.localIdentifyEngine : null;
+            if (null != localEngine) {
+                FutureTask<Void> localIdentify = new FutureTask<>(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.identifyCompleted(labelAndPrefetch(
+                                localEngine.identify(tap.searchArea, maxResults, mapDefinitionApplier.getFilter(layerId)),
+                                featureLayer));
+                    }
+                }, null);
+                localIdentify.run();
+                return localIdentify;
+            }
+            if (featureLayer == retainedState.localIdentifyLayer) {
+                // Identified by the MapView until the engine dropped by trimMemory is rebuilt
+                retainedState.rebuildTrimmedLocalIdentifyEngine();
+            }
+
+            // The MapView may only be used on the UI thread
+            return DeferredFuture.start(uiExecutor, new DeferredFuture.Operation() {
+                @Override
+                public Future<?> start() {
+                    final ListenableFuture<IdentifyLayerResult> future;
+                    try {
+                        future = mapView.identifyLayerAsync(featureLayer, tap.screenPoint, tolerance, maxResults);
+                    } catch (RuntimeException e) {
+                        callback.identifyFailed(e);
+                        throw e;
+                    }
+                    future.addDoneListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                callback.identifyCompleted(labelAndPrefetch(
+                                        future.get().getIdentifiedElements(), featureLayer));
+                            } catch (CancellationException e) {
+                                // Superseded by a newer tap
+                            } catch (InterruptedException | ExecutionException e) {
+                                callback.identifyFailed(e);
+                            }
+                        }
+                    });
+                    return future;
                 }
-                ((TextView) featureCalloutRow.findViewById(R.id.textView_value)).setText(valueString);
+            });
+        }
+
+    }
+
+    /**
+     * Joins the identified elements of the layers that have answered, in layer order.
+     * @param result the layers' results.
+     * @return the identified elements of all the layers and their labels.
+     */
+    private static LabeledGeoElements merge(MultiLayerIdentifier.Result<LabeledGeoElements> result) {
+        List<LabeledGeoElements> lists = new ArrayList<>();
+        for (MultiLayerIdentifier.LayerResult<LabeledGeoElements> layerResult : result.getLayerResults()) {
+            if (null != layerResult.getResult()) {
+                lists.add(layerResult.getResult());
             }
-            featureCallout.addView(featureCalloutRow);
         }
-        ((TextView) featureCallout.findViewById(R.id.textView_title)).setText(titleText);
+        return lists.isEmpty() ? LabeledGeoElements.EMPTY : LabeledGeoElements.concat(lists);
+    }
+
+    /**
+     * Forgets the credential for a layer's server if the layer could not load
+     * because its token was rejected.
+     * @param featureLayer the layer that failed to load.
+     * @param realm the layer's server.
+     */
+    private void handleLoadError(FeatureLayer featureLayer, String realm) {
+        if (StatusText.isTokenError(featureLayer.getLoadError())) {
+            if (null != storedCredentialHandler) {
+                // Only forget the credential for the server that rejected it
+                storedCredentialHandler.evict(realm);
+            } else {
+                AuthenticationManager.CredentialCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the square around a screen point whose size is the identify tolerance.
+     * Must be called on the UI thread.
+     * @param screenPoint the screen point.
+     * @param tolerance the identify tolerance, in device-independent pixels.
+     * @return the search area, in map coordinates.
+     */
+    private Envelope getIdentifySearchArea(android.graphics.Point screenPoint, double tolerance) {
+        int tolerancePixels = Math.round((float) tolerance * getResources().getDisplayMetrics().density);
+        Point lowerLeft = mapView.screenToLocation(
+                new android.graphics.Point(screenPoint.x - tolerancePixels, screenPoint.y + tolerancePixels));
+        Point upperRight = mapView.screenToLocation(
+                new android.graphics.Point(screenPoint.x + tolerancePixels, screenPoint.y - tolerancePixels));
+        return new Envelope(lowerLeft, upperRight);
+    }
+
+    /**
+     * Zooms to a loaded layer's full extent, expanded so that the layer fills the
+     * middle of the map.
+     * @param featureLayer the loaded FeatureLayer.
+     */
+    void zoomToLayer(FeatureLayer featureLayer) {
+        Envelope fullExtent = featureLayer.getFullExtent();
+
+        /**
+         * *********************************************************
+         * New in Beta 1: Geometry objects
+         */
+        fullExtent = Envelopes.expand(fullExtent, ExtentMath.ZOOM_MARGIN);
+        Log.i(getClass().getSimpleName(),
+                "By the way, the spatial reference of this geometry is "
+                        + fullExtent.getSpatialReference().getWKText()
+                        + ". Try doing THAT with ArcGIS Runtime 10.2.x!");
+
+        mapView.setViewpointGeometryAsync(fullExtent);
+    }
+
+    /**
+     * Labels identified elements for the identify results list and starts loading
+     * their attributes, so that the callout can be shown without waiting when the
+     * user selects one. Call this method on the thread that completes the identify.
+     * Only the primary layer's features are prefetched; those of other layers are
+     * loaded when selected.
+     * @param geoElements the identified elements.
+     * @param featureLayer the layer that was identified.
+     * @return the identified elements and their labels.
+     */
+    private LabeledGeoElements labelAndPrefetch(List<GeoElement> geoElements, FeatureLayer featureLayer) {
+        FeaturePrefetcher prefetcher = retainedState.featurePrefetcher;
+        if (null != prefetcher && featureLayer == retainedState.localIdentifyLayer) {
+            prefetcher.prefetch(geoElements);
+        }
+        return geoElementLabeler.label(geoElements, featureLayer.getName());
+    }
+
+    /**
+     * Shows identified elements in the identify results list and, the first time a
+     * tap identifies anything, shows a callout for the first identified element.
+     * Called again as more layers answer, so rows are added without moving the
+     * callout.
+     * @param results the identified elements and their labels.
+     */
+    private void showIdentifyResult(LabeledGeoElements results) {
+        if (0 < results.size()) {
+            identifyResultsAdapter.setResults(results);
+            ListView listView = (ListView) findViewById(R.id.listView_identifyResults);
+            listView.setVisibility(View.VISIBLE);
+            if (!identifyCalloutShown) {
+                identifyCalloutShown = true;
+                listView.performItemClick(null, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Shows a callout with a GeoElement's attributes. The callout view and its row
+     * views are created once and reused for every GeoElement.
+     * @param geoElement the GeoElement.
+     * @param titleText the callout title.
+     * @param parent the parent used to inflate the callout view the first time.
+     */
+    private void showGeoElementCallout(GeoElement geoElement, String titleText, ViewGroup parent) {
+        if (null == featureCallout) {
+            featureCallout = LayoutInflater.from(getApplicationContext()).inflate(R.layout.feature_callout, parent, false);
+            featureCalloutTitle = (TextView) featureCallout.findViewById(R.id.textView_title);
+            featureCalloutList = (ListView) featureCallout.findViewById(R.id.listView_callout);
+            featureCalloutAdapter = new FeatureCalloutAdapter(getApplicationContext(), DateFormat.getDateInstance());
+            featureCalloutList.setAdapter(featureCalloutAdapter);
+        }
+        featureCalloutTitle.setText(titleText);
+        featureCalloutAdapter.setAttributes(geoElement.getAttributes());
+        featureCalloutList.setSelectionAfterHeaderView();
+
+        // A wide schema scrolls within a fixed height, so only the visible rows are created
+        ViewGroup.LayoutParams listParams = featureCalloutList.getLayoutParams();
+        listParams.height = MAX_CALLOUT_ROWS < featureCalloutAdapter.getCount()
+                ? getResources().getDimensionPixelSize(R.dimen.callout_list_max_height)
+                : ViewGroup.LayoutParams.WRAP_CONTENT;
+        featureCalloutList.setLayoutParams(listParams);
 
         mapView.getCallout().show(featureCallout, geoElement.getGeometry().getExtent().getCenter());
     }
 
-    private static String getSpatialReferenceString(Map map) {
-        return (null == map.getSpatialReference() ? "null" : Integer.toString(map.getSpatialReference().getWKID()));
+    private static Integer getWkid(Map map) {
+        return null == map.getSpatialReference() ? null : map.getSpatialReference().getWKID();
     }
 
     /**
-     * Pauses the MapView and then calls super.onPause().
+     * Stops recording frame times, pauses the MapView and then calls
+     * super.onPause().
      */
     @Override
     protected void onPause(){
+        if (null != frameTimeRecorder) {
+            frameTimeRecorder.stop();
+        }
         if (null != mapView) {
             mapView.pause();
         }
@@ -292,7 +642,7 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
     }
 
     /**
-     * Calls super.onResume() and then resumes the MapView.
+     * Calls super.onResume(), resumes the MapView and starts recording frame times.
      */
     @Override
     protected void onResume(){
@@ -300,6 +650,59 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
         if (null != mapView) {
             mapView.resume();
         }
+        if (null == frameTimeRecorder) {
+            frameTimeRecorder = new FrameTimeRecorder(retainedState.metrics.histogram("bmq_frame_seconds",
+                    "Time between frames drawn by the UI thread."));
+        }
+        frameTimeRecorder.start();
+    }
+
+    /**
+     * Stops identifying and then calls super.onDestroy(). On a configuration change,
+     * keeps the viewpoint for the next activity and detaches the retained map from
+     * this activity's MapView; otherwise the RetainedMapFragment releases the map's
+     * resources as it is destroyed.
+     */
+    @Override
+    protected void onDestroy() {
+        if (null != identifyDispatcher) {
+            identifyDispatcher.shutdown();
+            layerIdentifier.shutdown();
+        }
+        if (isChangingConfigurations() && null != mapView && null != retainedState) {
+            retainedState.viewpoint = mapView.getCurrentViewpoint(Viewpoint.Type.CENTER_AND_SCALE);
+            mapView.getGraphicsOverlays().remove(retainedState.getClusterOverlay());
+            mapView.setMap(null);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Drops caches when the system is low on memory, from the cheapest to rebuild
+     * up, and the callout views once the UI is hidden.
+     * @param level the memory trim level.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (null != retainedState) {
+            retainedState.trimMemory(level);
+        }
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Inflated again the next time a callout is shown
+            featureCallout = null;
+            featureCalloutTitle = null;
+            featureCalloutList = null;
+            featureCalloutAdapter = null;
+        }
+    }
+
+    /**
+     * Shows the progress or outcome of an export.
+     * @param message the message.
+     */
+    void showExportResult(String message) {
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 
     /**
@@ -311,9 +714,74 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_basic_map_quartz, menu);
+        final MenuItem searchItem = menu.findItem(R.id.action_search);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchSuggestionsAdapter = new SimpleCursorAdapter(this, android.R.layout.simple_list_item_1, null,
+                new String[] { SearchManager.SUGGEST_COLUMN_TEXT_1 }, new int[] { android.R.id.text1 },
+                CursorAdapter.FLAG_REGISTER_CONTENT_OBSERVER);
+        searchView.setSuggestionsAdapter(searchSuggestionsAdapter);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                if (!searchHits.isEmpty()) {
+                    zoomToSearchHit(searchHits.get(0));
+                    MenuItemCompat.collapseActionView(searchItem);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                showSearchSuggestions(newText);
+                return true;
+            }
+        });
+        searchView.setOnSuggestionListener(new SearchView.OnSuggestionListener() {
+            @Override
+            public boolean onSuggestionSelect(int position) {
+                return false;
+            }
+
+            @Override
+            public boolean onSuggestionClick(int position) {
+                if (position < searchHits.size()) {
+                    zoomToSearchHit(searchHits.get(position));
+                    MenuItemCompat.collapseActionView(searchItem);
+                }
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Searches the features indexed on the device as the user types and lists the
+     * hits under the search view. No request is sent to the services, so this
+     * runs on the UI thread.
+     * @param query the text typed so far.
+     */
+    private void showSearchSuggestions(String query) {
+        searchHits = retainedState.getFeatureSearch().search(query);
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", SearchManager.SUGGEST_COLUMN_TEXT_1 });
+        for (int i = 0; i < searchHits.size(); i++) {
+            cursor.addRow(new Object[] { i, searchHits.get(i).getLabel() });
+        }
+        searchSuggestionsAdapter.changeCursor(cursor);
+    }
+
+    /**
+     * Zooms to a feature found by searching.
+     * @param hit the hit.
+     */
+    private void zoomToSearchHit(FeatureSearchIndex.Hit hit) {
+        Envelope envelope = retainedState.getFeatureSearch().getZoomEnvelope(hit);
+        if (null == envelope) {
+            Toast.makeText(this, hit.getLabel() + " has no location", Toast.LENGTH_SHORT).show();
+        } else {
+            mapView.setViewpointGeometryAsync(envelope);
+        }
+    }
+
     /**
      * Handles the selection of an options menu item.
      * @param item the selected MenuItem.
@@ -331,6 +799,24 @@ public class BasicMapQuartzActivity extends AppCompatActivity {
             return true;
         }
 
+        FeatureExportWriter.Format exportFormat = null;
+        if (id == R.id.action_export_geojson) {
+            exportFormat = FeatureExportWriter.Format.GEOJSON;
+        } else if (id == R.id.action_export_csv) {
+            exportFormat = FeatureExportWriter.Format.CSV;
+        } else if (id == R.id.action_export_binary) {
+            exportFormat = FeatureExportWriter.Format.BINARY;
+        }
+        if (null != exportFormat) {
+            File exportDirectory = getExternalFilesDir("exports");
+            if (null == exportDirectory) {
+                exportDirectory = new File(getFilesDir(), "exports");
+            }
+            showExportResult(retainedState.exportPrimaryLayer(exportFormat, exportDirectory)
+                    ? "Exporting " + exportFormat.getExtension() + "..." : "The layer has not loaded yet");
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 }
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A list adapter for the attributes of one GeoElement, shown in the feature
+ * callout. The callout's ListView only creates rows for the attributes that are
+ * visible and recycles them as the user scrolls, so a feature with hundreds of
+ * fields costs no more to show than one with a few. Attribute values are
+ * formatted the first time their row is shown.
+ */
+public class FeatureCalloutAdapter extends BaseAdapter {
+
+    /**
+     * Holds the views of one callout row.
+     */
+    static class ViewHolder {
+
+        final TextView keyView;
+        final TextView valueView;
+
+        ViewHolder(TextView keyView, TextView valueView) {
+            this.keyView = keyView;
+            this.valueView = valueView;
+        }
+
+    }
+
+    private final LayoutInflater inflater;
+    private final AttributeFormatter attributeFormatter;
+    private String[] keys = new String[0];
+    private Object[] values = new Object[0];
+    private String[] valueStrings = new String[0];
+    private int count = 0;
+
+    /**
+     * Creates an empty adapter.
+     * @param context the context used to inflate callout rows.
+     * @param dateFormat the format for date values. It is only used on the UI
+     *                   thread, so it can be shared with no synchronization.
+     */
+    public FeatureCalloutAdapter(Context context, DateFormat dateFormat) {
+        this.inflater = LayoutInflater.from(context);
+        this.attributeFormatter = new AttributeFormatter(dateFormat);
+    }
+
+    /**
+     * Replaces the adapter's contents with a GeoElement's attributes. The
+     * attributes are read in one pass into arrays that are reused from one
+     * feature to the next. Call this method on the UI thread.
+     * @param attributes the GeoElement's attributes.
+     */
+    public void setAttributes(Map<String, Object> attributes) {
+        int size = attributes.size();
+        if (keys.length < size) {
+            keys = new String[size];
+            values = new Object[size];
+            valueStrings = new String[size];
+        } else {
+            Arrays.fill(keys, size, count, null);
+            Arrays.fill(values, size, count, null);
+        }
+        int i = 0;
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i++;
+        }
+        Arrays.fill(valueStrings, 0, Math.max(size, count), null);
+        count = size;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return keys[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (null == convertView) {
+            convertView = inflater.inflate(R.layout.feature_callout_row, parent, false);
+            holder = new ViewHolder(
+                    (TextView) convertView.findViewById(R.id.textView_key),
+                    (TextView) convertView.findViewById(R.id.textView_value));
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.keyView.setText(keys[position]);
+        holder.valueView.setText(getValueString(position));
+        return convertView;
+    }
+
+    /**
+     * Returns the display string of the attribute value at a position, formatting
+     * it the first time it is needed.
+     * @param position the position of the attribute.
+     * @return the display string, or an empty string for a null value.
+     */
+    String getValueString(int position) {
+        String valueString = valueStrings[position];
+        if (null == valueString) {
+            valueString = attributeFormatter.format(values[position]);
+            valueStrings[position] = valueString;
+        }
+        return valueString;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the time between frames of the UI thread in a LatencyHistogram, from
+ * Choreographer's frame callbacks. At 60 frames per second most intervals are
+ * about 16.7 ms; longer ones are frames that the UI thread dropped, e.g. while it
+ * was busy laying out identify results.
+ *
+ * <p>Frames are recorded only while the map is in use, i.e. from a call to
+ * mapActive until IDLE_FRAMES frames have passed without another, so that an
+ * idle app does not wake up for every frame.</p>
+ */
+class FrameTimeRecorder implements Choreographer.FrameCallback {
+
+    /**
+     * The number of frames, about half a second at 60 frames per second, after
+     * which recording stops if the map has not been active.
+     */
+    static final int IDLE_FRAMES = 30;
+
+    private final LatencyHistogram histogram;
+    private boolean running = false;
+    private boolean sampling = false;
+    private int idleFrames = 0;
+    private long lastFrameNanos = 0;
+
+    /**
+     * Creates a recorder.
+     * @param histogram the histogram in which to record frame times.
+     */
+    FrameTimeRecorder(LatencyHistogram histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * Starts recording the frames in which the map is active. Must be called on
+     * the UI thread.
+     */
+    void start() {
+        running = true;
+    }
+
+    /**
+     * Stops recording, e.g. while the activity is paused. Must be called on the UI
+     * thread.
+     */
+    void stop() {
+        running = false;
+        stopSampling();
+    }
+
+    /**
+     * Records frames until the map has been idle for IDLE_FRAMES frames, e.g. when
+     * the map is panned, zoomed or animated or a tap is identified. Must be called
+     * on the UI thread.
+     */
+    void mapActive() {
+        if (!running) {
+            return;
+        }
+        idleFrames = 0;
+        if (!sampling) {
+            sampling = true;
+            lastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void stopSampling() {
+        sampling = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!sampling) {
+            return;
+        }
+        if (0 != lastFrameNanos) {
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(frameTimeNanos - lastFrameNanos));
+        }
+        lastFrameNanos = frameTimeNanos;
+        if (++idleFrames > IDLE_FRAMES) {
+            stopSampling();
+        } else {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+}
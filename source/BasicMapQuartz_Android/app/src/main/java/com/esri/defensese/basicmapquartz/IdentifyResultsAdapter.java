@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+/**
+ * A list adapter for identify results. One adapter is reused for every tap, and
+ * each tap replaces its contents with setResults. Row labels are computed before
+ * the results reach the adapter, so binding a row only sets the text of a recycled
+ * view.
+ */
+public class IdentifyResultsAdapter extends BaseAdapter {
+
+    /**
+     * Holds the views of one list row.
+     */
+    static class ViewHolder {
+
+        final TextView titleView;
+
+        ViewHolder(TextView titleView) {
+            this.titleView = titleView;
+        }
+
+    }
+
+    private final LayoutInflater inflater;
+    private LabeledGeoElements results = LabeledGeoElements.EMPTY;
+
+    /**
+     * Creates an empty adapter.
+     * @param context the context used to inflate list rows.
+     */
+    public IdentifyResultsAdapter(Context context) {
+        this.inflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Replaces the adapter's contents. Call this method on the UI thread.
+     * @param results the identified GeoElements and their labels.
+     */
+    public void setResults(LabeledGeoElements results) {
+        this.results = results;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return the identified GeoElements and their labels.
+     */
+    public LabeledGeoElements getResults() {
+        return results;
+    }
+
+    @Override
+    public int getCount() {
+        return results.size();
+    }
+
+    @Override
+    public GeoElement getItem(int position) {
+        return results.getGeoElement(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (null == convertView) {
+            convertView = inflater.inflate(R.layout.item_geo_element, parent, false);
+            holder = new ViewHolder((TextView) convertView.findViewById(R.id.textView_title));
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        bindView(holder, position);
+        return convertView;
+    }
+
+    /**
+     * Shows the result at a position in a row's views.
+     * @param holder the row's views.
+     * @param position the position of the result.
+     */
+    void bindView(ViewHolder holder, int position) {
+        holder.titleView.setText(results.getLabel(position));
+    }
+
+}
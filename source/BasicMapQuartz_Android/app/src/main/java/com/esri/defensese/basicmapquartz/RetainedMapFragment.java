@@ -0,0 +1,634 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.Fragment;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.esri.arcgisruntime.datasource.arcgis.GeodatabaseFeatureTable;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.loadable.LoadStatusChangedEvent;
+import com.esri.arcgisruntime.loadable.LoadStatusChangedListener;
+import com.esri.arcgisruntime.mapping.Basemap;
+import com.esri.arcgisruntime.mapping.Map;
+import com.esri.arcgisruntime.mapping.Viewpoint;
+import com.esri.arcgisruntime.mapping.view.GraphicsOverlay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fragment without a view that is retained across configuration changes, such
+ * as rotating the device, so that the Map, its layers and everything behind them
+ * (the map definition, feature and tile caches, identify engine and token
+ * refresher) outlive the activity that displays them. A new activity only creates
+ * its views and attaches them to the retained map, so rotating does not download
+ * or load anything again.
+ *
+ * <p>The fragment, not the activity, listens to the map definition and the layers,
+ * so that no listener keeps a destroyed activity. Work that needs the activity is
+ * posted as a HostTask, which runs on the UI thread with the current activity, or
+ * waits for the next activity if there is none at the moment. Status updates are
+ * coalesced so that only the latest one for each target runs, once per frame.</p>
+ *
+ * <p>While the activity is paused, the map definition is not watched and tokens
+ * are not refreshed. When the system is low on memory, trimMemory drops caches in
+ * the order in which they are cheapest to rebuild.</p>
+ */
+public class RetainedMapFragment extends Fragment implements MapDefinitionApplier.Listener,
+        MapDefinitionWatcher.Listener, LoadOrchestrator.Listener {
+
+    /**
+     * Work that needs the activity that currently displays the map.
+     */
+    interface HostTask {
+
+        /**
+         * Called on the UI thread.
+         * @param activity the activity.
+         */
+        void run(BasicMapQuartzActivity activity);
+
+    }
+
+    /**
+     * The tag with which the fragment is added to the activity.
+     */
+    static final String TAG = RetainedMapFragment.class.getSimpleName();
+
+    private static final String BASEMAP_TASK = "basemap";
+    private static final String MAP_TASK = "map";
+    private static final String VIEWPOINT_TASK = "viewpoint";
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<HostTask> pendingTasks = new ArrayList<>();
+    private final UiUpdateDispatcher uiUpdates = new UiUpdateDispatcher(new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            command.run();
+                        }
+                    });
+                }
+            });
+        }
+    });
+    private BasicMapQuartzActivity host = null;
+
+    private Map map = null;
+    private GraphicsOverlay clusterOverlay = null;
+    private MapDefinitionApplier mapDefinitionApplier = null;
+    private MapDefinitionWatcher mapDefinitionWatcher = null;
+    private final LoadOrchestrator loadOrchestrator = new LoadOrchestrator();
+    private final FeatureExporter featureExporter = new FeatureExporter();
+    private EditJournal editJournal = null;
+    private EditSyncWorker editSyncWorker = null;
+    private FeatureEditor featureEditor = null;
+    private final FeatureSearch featureSearch = new FeatureSearch();
+    final Metrics metrics = new Metrics();
+    private final MetricsServer metricsServer = new MetricsServer(metrics);
+    private int layerTaskCount = 0;
+    private boolean zoomedToLayer = false;
+    private volatile String primaryLayerId = null;
+
+    EncryptedCredentialStore credentialStore = null;
+    ArcGISTokenGenerator tokenGenerator = null;
+    TokenRefresher tokenRefresher = null;
+    volatile LocalIdentifyEngine localIdentifyEngine = null;
+    volatile FeatureLayer localIdentifyLayer = null;
+    private volatile String localIdentifyDefinitionExpression = null;
+    private volatile boolean localIdentifyEngineTrimmed = false;
+    volatile FeaturePrefetcher featurePrefetcher = null;
+    Viewpoint viewpoint = null;
+
+    /**
+     * Keeps this fragment across configuration changes.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    /**
+     * Makes the activity the host of posted tasks and runs the tasks that were
+     * posted while there was no host.
+     */
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        host = (BasicMapQuartzActivity) context;
+        final List<HostTask> tasks = new ArrayList<>(pendingTasks);
+        pendingTasks.clear();
+        for (HostTask task : tasks) {
+            post(task);
+        }
+    }
+
+    /**
+     * Forgets the activity, which is being destroyed.
+     */
+    @Override
+    public void onDetach() {
+        host = null;
+        super.onDetach();
+    }
+
+    /**
+     * Resumes watching the map definition, refreshing tokens and polling layers
+     * for edits.
+     */
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (null != mapDefinitionWatcher) {
+            mapDefinitionWatcher.start(MapDefinitionWatcher.DEFAULT_POLL_MILLIS);
+        }
+        if (null != tokenRefresher) {
+            tokenRefresher.resume();
+        }
+        if (null != mapDefinitionApplier) {
+            mapDefinitionApplier.resumeRefresh();
+        }
+    }
+
+    /**
+     * Stops watching the map definition, refreshing tokens and polling layers for
+     * edits until the activity resumes.
+     */
+    @Override
+    public void onPause() {
+        if (null != mapDefinitionWatcher) {
+            mapDefinitionWatcher.stop();
+        }
+        if (null != tokenRefresher) {
+            tokenRefresher.pause();
+        }
+        if (null != mapDefinitionApplier) {
+            mapDefinitionApplier.pauseRefresh();
+        }
+        super.onPause();
+    }
+
+    /**
+     * Stops serving package tiles, refreshing layers, refreshing tokens and syncing
+     * edits when the activity finishes for good. Edits not yet synced stay in the
+     * journal and are synced the next time the app starts.
+     */
+    @Override
+    public void onDestroy() {
+        if (null != mapDefinitionWatcher) {
+            mapDefinitionWatcher.stop();
+        }
+        if (null != mapDefinitionApplier) {
+            mapDefinitionApplier.close();
+        }
+        if (null != tokenRefresher) {
+            tokenRefresher.shutdown();
+        }
+        if (null != editSyncWorker) {
+            editSyncWorker.shutdown();
+        }
+        if (null != editJournal) {
+            try {
+                editJournal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close edit journal", e);
+            }
+        }
+        featureExporter.shutdown();
+        metricsServer.stop();
+        super.onDestroy();
+    }
+
+    /**
+     * Runs a task with the current activity on the UI thread, or with the next
+     * activity if there is none.
+     * @param task the task.
+     */
+    void post(final HostTask task) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == host) {
+                    pendingTasks.add(task);
+                } else {
+                    task.run(host);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task with the current activity at the start of the next frame, or with
+     * the next activity if there is none, unless another task with the same key is
+     * posted first, in which case only that task runs. Use this for updates where
+     * only the latest value matters, such as a layer's load status.
+     * @param key the task's target.
+     * @param task the task.
+     */
+    void postLatest(Object key, final HostTask task) {
+        uiUpdates.post(key, new Runnable() {
+            @Override
+            public void run() {
+                if (null == host) {
+                    pendingTasks.add(task);
+                } else {
+                    task.run(host);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the map has been created, i.e. this fragment was retained
+     *         from an earlier activity.
+     */
+    boolean hasMap() {
+        return null != map;
+    }
+
+    /**
+     * Creates the map and starts applying the map definition, the first time the
+     * activity is created.
+     * @param context the activity.
+     */
+    void createMap(Context context) {
+        clusterOverlay = new GraphicsOverlay();
+        mapDefinitionApplier = new MapDefinitionApplier(new File(context.getFilesDir(), "featureCache"),
+                new File(context.getCacheDir(), "tileCache"), this, clusterOverlay);
+        mapDefinitionApplier.setCredentialStore(credentialStore);
+        mapDefinitionApplier.setMetrics(metrics);
+        mapDefinitionApplier.setFeatureSearch(featureSearch);
+        try {
+            editJournal = new EditJournal(new File(context.getFilesDir(), "edits.journal"));
+            editSyncWorker = new EditSyncWorker(editJournal);
+            editSyncWorker.setMetrics(metrics);
+            mapDefinitionApplier.setEditSyncWorker(editSyncWorker);
+            featureEditor = new FeatureEditor(editSyncWorker);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open edit journal", e);
+        }
+        try {
+            metricsServer.start(MetricsServer.DEFAULT_PORT);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not serve metrics on port " + MetricsServer.DEFAULT_PORT, e);
+        }
+        File mapDefinitionDirectory = context.getExternalFilesDir(null);
+        mapDefinitionWatcher = new MapDefinitionWatcher(new File(
+                null == mapDefinitionDirectory ? context.getFilesDir() : mapDefinitionDirectory, "map_definition.json"),
+                this);
+        try {
+            MapDefinitionWatcher.createIfMissing(mapDefinitionWatcher.getFile());
+            applyMapDefinition(mapDefinitionWatcher.load());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read map definition " + mapDefinitionWatcher.getFile(), e);
+        }
+
+        // Create the map with the map definition's basemap, not one that is replaced at once
+        Basemap basemap = mapDefinitionApplier.getBasemap();
+        if (null == basemap) {
+            basemap = MapDefinitionApplier.createBasemap(MapDefinition.DEFAULT_BASEMAP);
+        }
+        map = new Map(basemap);
+        map.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                postLatest("spatialReference", new HostTask() {
+                    @Override
+                    public void run(BasicMapQuartzActivity activity) {
+                        activity.showSpatialReference();
+                    }
+                });
+            }
+        });
+
+        loadOrchestrator.setListener(this);
+        loadOrchestrator.add(BASEMAP_TASK, true, new LoadableLoadTask(basemap));
+        loadOrchestrator.add(MAP_TASK, true, new LoadableLoadTask(map));
+    }
+
+    /**
+     * @return the map.
+     */
+    Map getMap() {
+        return map;
+    }
+
+    /**
+     * @return the graphics overlay in which clustered layers are drawn.
+     */
+    GraphicsOverlay getClusterOverlay() {
+        return clusterOverlay;
+    }
+
+    /**
+     * @return the applier of the map definition.
+     */
+    MapDefinitionApplier getMapDefinitionApplier() {
+        return mapDefinitionApplier;
+    }
+
+    /**
+     * @return the editor that journals feature edits and syncs them in the
+     *         background, or null if the edit journal could not be opened.
+     */
+    FeatureEditor getFeatureEditor() {
+        return featureEditor;
+    }
+
+    /**
+     * @return the search of the features indexed on the device.
+     */
+    FeatureSearch getFeatureSearch() {
+        return featureSearch;
+    }
+
+    /**
+     * @return the ID of the layer that is identified and shown in the layer status
+     *         label, or null.
+     */
+    String getPrimaryLayerId() {
+        return primaryLayerId;
+    }
+
+    /**
+     * Exports the primary layer's features in the background, to a file named after
+     * the layer in a directory, and tells the activity the outcome. The export
+     * continues if the activity is recreated meanwhile.
+     * @param format the format.
+     * @param directory the directory.
+     * @return false if there is no loaded primary layer to export.
+     */
+    boolean exportPrimaryLayer(FeatureExportWriter.Format format, File directory) {
+        String layerId = primaryLayerId;
+        final FeatureLayer featureLayer = null == layerId || null == mapDefinitionApplier
+                ? null : mapDefinitionApplier.getFeatureLayer(layerId);
+        if (null == featureLayer || LoadStatus.LOADED != featureLayer.getLoadStatus()
+                || (!directory.isDirectory() && !directory.mkdirs())) {
+            return false;
+        }
+        featureExporter.exportAsync(featureLayer, format, new File(directory, layerId + "." + format.getExtension()),
+                new FeatureExporter.Listener() {
+                    @Override
+                    public void exportProgress(long featureCount) {
+                    }
+
+                    @Override
+                    public void exportCompleted(final File file, final long featureCount) {
+                        post(new HostTask() {
+                            @Override
+                            public void run(BasicMapQuartzActivity activity) {
+                                activity.showExportResult(featureCount + " features exported to " + file);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void exportFailed(final Throwable error) {
+                        Log.w(TAG, "Could not export " + featureLayer.getName(), error);
+                        post(new HostTask() {
+                            @Override
+                            public void run(BasicMapQuartzActivity activity) {
+                                activity.showExportResult("Export failed: " + error.getMessage());
+                            }
+                        });
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * Applies a map definition. The first layer in the map definition is the
+     * primary layer, which is identified and shown in the layer status label.
+     * @param mapDefinition the map definition.
+     */
+    private void applyMapDefinition(MapDefinition mapDefinition) {
+        List<MapDefinition.LayerDefinition> layers = mapDefinition.getLayers();
+        primaryLayerId = layers.isEmpty() ? null : layers.get(0).getId();
+        mapDefinitionApplier.apply(mapDefinition);
+    }
+
+    /**
+     * Drops caches when the system is low on memory, starting with those that are
+     * cheapest to rebuild: tiles in memory, which are still on disk, then
+     * prefetched feature attributes, then the local identify engine, which is
+     * rebuilt on the next tap. Until it is rebuilt, taps are identified by the
+     * MapView.
+     * @param level the level passed to onTrimMemory.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE && null != mapDefinitionApplier) {
+            mapDefinitionApplier.trimMemory();
+        }
+        FeaturePrefetcher prefetcher = featurePrefetcher;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && null != prefetcher) {
+            prefetcher.clear();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            if (null != localIdentifyEngine) {
+                localIdentifyEngine = null;
+                localIdentifyEngineTrimmed = true;
+            }
+        }
+    }
+
+    @Override
+    public void mapDefinitionChanged(MapDefinition mapDefinition) {
+        Log.i(TAG, "Map definition changed; applying it");
+        applyMapDefinition(mapDefinition);
+    }
+
+    @Override
+    public void mapDefinitionFailed(IOException error) {
+        Log.w(TAG, "Could not read map definition; keeping the current map", error);
+    }
+
+    @Override
+    public void basemapChanged(final Basemap basemap) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (map.getBasemap() != basemap) {
+                    map.setBasemap(basemap);
+                }
+                mapDefinitionApplier.basemapShown(basemap);
+            }
+        });
+    }
+
+    @Override
+    public void layerAdded(final MapDefinition.LayerDefinition layerDefinition, final FeatureLayer featureLayer,
+                           boolean fromCache) {
+        Log.i(TAG, "Feature layer " + layerDefinition.getId() + " created from "
+                + (fromCache ? "local cache" : "feature service"));
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                addFeatureLayer(layerDefinition, featureLayer);
+            }
+        });
+    }
+
+    @Override
+    public void layerRemoved(MapDefinition.LayerDefinition layerDefinition, final FeatureLayer featureLayer) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                map.getOperationalLayers().remove(featureLayer);
+            }
+        });
+    }
+
+    @Override
+    public void featuresChanged(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer) {
+        if (featureLayer == localIdentifyLayer) {
+            Log.i(TAG, "Features of " + layerDefinition.getId() + " changed; rebuilding local identify engine");
+            FeaturePrefetcher prefetcher = featurePrefetcher;
+            if (null != prefetcher) {
+                prefetcher.clear();
+            }
+            buildLocalIdentifyEngine(featureLayer, layerDefinition.getDefinitionExpression());
+        }
+    }
+
+    /**
+     * Builds the local identify engine of the primary layer, whose features are in
+     * a geodatabase. The engine in use, if any, is kept until the new one is built,
+     * which is then used if the layer is still the one identified locally.
+     * @param featureLayer the primary layer.
+     * @param definitionExpression the layer's definition expression.
+     */
+    void buildLocalIdentifyEngine(final FeatureLayer featureLayer, String definitionExpression) {
+        localIdentifyDefinitionExpression = definitionExpression;
+        localIdentifyEngineTrimmed = false;
+        // The layer's filter can change, so it is applied when identifying
+        LocalIdentifyEngine.buildAsync(featureLayer.getFeatureTable(), definitionExpression,
+                new LocalIdentifyEngine.BuildListener() {
+                    @Override
+                    public void engineBuilt(LocalIdentifyEngine engine) {
+                        Log.i(TAG, "Identifying " + engine.size() + " features locally");
+                        if (featureLayer == localIdentifyLayer) {
+                            localIdentifyEngine = engine;
+                        }
+                    }
+
+                    @Override
+                    public void buildFailed(Throwable error) {
+                        Log.w(TAG, "Could not build local identify engine", error);
+                    }
+                });
+    }
+
+    /**
+     * Rebuilds the local identify engine of the primary layer if trimMemory
+     * dropped it.
+     */
+    void rebuildTrimmedLocalIdentifyEngine() {
+        FeatureLayer featureLayer = localIdentifyLayer;
+        if (localIdentifyEngineTrimmed && null != featureLayer
+                && featureLayer.getFeatureTable() instanceof GeodatabaseFeatureTable) {
+            Log.i(TAG, "Rebuilding the local identify engine dropped to save memory");
+            buildLocalIdentifyEngine(featureLayer, localIdentifyDefinitionExpression);
+        }
+    }
+
+    @Override
+    public void taskFinished(String name, Throwable error, LoadOrchestrator.Timing timing) {
+        if (BASEMAP_TASK.equals(name) || MAP_TASK.equals(name)) {
+            metrics.histogram("bmq_startup_task_seconds", "Time taken by the map and basemap to load.", "task", name)
+                    .record(TimeUnit.MILLISECONDS.toMicros(timing.getLoadMillis()));
+        }
+        if (null == error) {
+            Log.i(TAG, "Loaded " + name + " in " + timing.getLoadMillis() + " ms, "
+                    + timing.getFinishMillis() + " ms after startup");
+        } else {
+            Log.w(TAG, "Could not load " + name, error);
+        }
+    }
+
+    @Override
+    public void criticalTasksFinished(long elapsedMillis) {
+        Log.i(TAG, "Map ready " + elapsedMillis + " ms after startup");
+    }
+
+    /**
+     * Adds a feature layer to the map and loads it, passing its load status to the
+     * activity. When the primary layer and the map have loaded, zooms to the
+     * primary layer, whichever layer is created first.
+     * @param layerDefinition the layer's definition.
+     * @param featureLayer the FeatureLayer to add.
+     */
+    private void addFeatureLayer(final MapDefinition.LayerDefinition layerDefinition,
+                                 final FeatureLayer featureLayer) {
+        map.getOperationalLayers().add(featureLayer);
+        postLoadStatus(layerDefinition, featureLayer, featureLayer.getLoadStatus());
+        featureLayer.addLoadStatusChangedListener(new LoadStatusChangedListener() {
+            @Override
+            public void loadStatusChanged(LoadStatusChangedEvent evt) {
+                postLoadStatus(layerDefinition, featureLayer, evt.getNewLoadStatus());
+            }
+        });
+
+        // A layer can be added again when the map definition changes, so name each load
+        String layerTask = "layer " + layerDefinition.getId() + " #" + (++layerTaskCount);
+        loadOrchestrator.add(layerTask, false, new LoadableLoadTask(featureLayer));
+        if (!zoomedToLayer && layerDefinition.getId().equals(primaryLayerId)) {
+            zoomedToLayer = true;
+            loadOrchestrator.add(VIEWPOINT_TASK, false, new LoadOrchestrator.LoadTask() {
+                @Override
+                public void start(final LoadOrchestrator.LoadCallback callback) {
+                    post(new HostTask() {
+                        @Override
+                        public void run(BasicMapQuartzActivity activity) {
+                            activity.zoomToLayer(featureLayer);
+                            callback.loaded();
+                        }
+                    });
+                }
+            }, layerTask, MAP_TASK);
+        }
+    }
+
+    private void postLoadStatus(final MapDefinition.LayerDefinition layerDefinition,
+                                final FeatureLayer featureLayer, final LoadStatus loadStatus) {
+        metrics.recordLoadStatus(layerDefinition.getId(), loadStatus.name());
+        // When many layers load at once, the activity sees each layer's latest status once per frame
+        postLatest("loadStatus " + layerDefinition.getId(), new HostTask() {
+            @Override
+            public void run(BasicMapQuartzActivity activity) {
+                activity.layerLoadStatusChanged(layerDefinition, featureLayer, loadStatus);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests FeatureCalloutAdapter's attribute snapshot and value formatting.
+ */
+public class FeatureCalloutAdapterTest {
+
+    private static FeatureCalloutAdapter createAdapter() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return new FeatureCalloutAdapter(null, dateFormat);
+    }
+
+    @Test
+    public void attributesAreShownInOrder() {
+        Calendar date = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        date.clear();
+        date.set(2016, Calendar.MARCH, 14);
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("Name", "Salem");
+        attributes.put("Visitors", 42);
+        attributes.put("Established", date);
+        attributes.put("Notes", null);
+
+        FeatureCalloutAdapter adapter = createAdapter();
+        adapter.setAttributes(attributes);
+
+        assertEquals(4, adapter.getCount());
+        assertEquals("Name", adapter.getItem(0));
+        assertEquals("Salem", adapter.getValueString(0));
+        assertEquals("42", adapter.getValueString(1));
+        assertEquals("2016-03-14", adapter.getValueString(2));
+        assertEquals("", adapter.getValueString(3));
+    }
+
+    @Test
+    public void wideSchemaThenNarrowSchema() {
+        Map<String, Object> wide = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            wide.put("FIELD_" + i, i);
+        }
+        Map<String, Object> narrow = new LinkedHashMap<>();
+        narrow.put("FIELD_0", "changed");
+
+        FeatureCalloutAdapter adapter = createAdapter();
+        adapter.setAttributes(wide);
+        assertEquals(200, adapter.getCount());
+        assertEquals("199", adapter.getValueString(199));
+
+        adapter.setAttributes(narrow);
+        assertEquals(1, adapter.getCount());
+        assertEquals("changed", adapter.getValueString(0));
+    }
+
+}
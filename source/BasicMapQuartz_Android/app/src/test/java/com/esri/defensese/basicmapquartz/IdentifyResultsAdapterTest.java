@@ -0,0 +1,95 @@
+package com.esri.defensese.basicmapquartz;
+
+import android.widget.TextView;
+
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that IdentifyResultsAdapter binds rows without allocating.
+ */
+public class IdentifyResultsAdapterTest {
+
+    private static final int RESULT_COUNT = 500;
+
+    private static Object threadMXBean;
+    private static Method getThreadAllocatedBytes;
+
+    /**
+     * Returns the number of bytes allocated by the current thread, using the
+     * HotSpot ThreadMXBean through reflection because unit tests compile against
+     * android.jar, which does not include java.lang.management.
+     */
+    private static long allocatedBytes() throws Exception {
+        return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+    }
+
+    private static boolean canCountAllocations() {
+        try {
+            threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return 0 <= allocatedBytes();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static IdentifyResultsAdapter createAdapter() {
+        String[] labels = new String[RESULT_COUNT];
+        for (int i = 0; i < RESULT_COUNT; i++) {
+            labels[i] = "Site " + i;
+        }
+        IdentifyResultsAdapter adapter = new IdentifyResultsAdapter(null);
+        adapter.setResults(new LabeledGeoElements(
+                Collections.<GeoElement>nCopies(RESULT_COUNT, null), labels, "Sites"));
+        return adapter;
+    }
+
+    private static void bindAll(IdentifyResultsAdapter adapter, IdentifyResultsAdapter.ViewHolder holder) {
+        for (int position = 0; position < adapter.getCount(); position++) {
+            adapter.bindView(holder, position);
+        }
+    }
+
+    @Test
+    public void adapterReportsResults() {
+        IdentifyResultsAdapter adapter = createAdapter();
+        assertEquals(RESULT_COUNT, adapter.getCount());
+        assertEquals(42, adapter.getItemId(42));
+        assertEquals("Site 42", adapter.getResults().getLabel(42));
+        assertEquals("Sites", adapter.getResults().getLayerName());
+    }
+
+    @Test
+    public void bindingRowsDoesNotAllocate() throws Exception {
+        Assume.assumeTrue(canCountAllocations());
+        IdentifyResultsAdapter adapter = createAdapter();
+        IdentifyResultsAdapter.ViewHolder holder = new IdentifyResultsAdapter.ViewHolder(new TextView(null));
+
+        // Warm up so that the measurement does not count class loading or compilation
+        for (int pass = 0; pass < 1000; pass++) {
+            bindAll(adapter, holder);
+        }
+
+        final int passes = 200;
+        long measurementOverhead = -allocatedBytes() + allocatedBytes();
+        long before = allocatedBytes();
+        for (int pass = 0; pass < passes; pass++) {
+            bindAll(adapter, holder);
+        }
+        long allocated = allocatedBytes() - before - measurementOverhead;
+
+        assertTrue("Binding " + passes * RESULT_COUNT + " rows allocated " + allocated + " bytes",
+                allocated < 1024);
+    }
+
+}
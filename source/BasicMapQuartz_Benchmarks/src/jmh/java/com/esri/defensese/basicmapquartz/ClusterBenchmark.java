@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to build a PointClusterIndex and the per-frame cost of
+ * updating a ClusterView while panning, with the zoom range and radius that
+ * FeatureClusterer uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class ClusterBenchmark {
+
+    /**
+     * Points are spread over a square about the size of a large country, in meters.
+     */
+    private static final double WORLD_SIZE = 2000000;
+
+    /**
+     * The same as FeatureClusterer.DEFAULT_MIN_ZOOM and DEFAULT_MAX_ZOOM, which
+     * are not on the benchmarks' classpath.
+     */
+    private static final int MIN_ZOOM = 4;
+    private static final int MAX_ZOOM = 17;
+
+    /**
+     * The viewport, in pixels, and the distance panned per frame.
+     */
+    private static final int VIEW_WIDTH = 1920;
+    private static final int VIEW_HEIGHT = 1080;
+    private static final int PAN_PIXELS = 16;
+
+    /**
+     * Counts the changes so that the JIT cannot discard them.
+     */
+    private static class Counter implements ClusterView.Listener {
+
+        int changes;
+
+        @Override
+        public void clusterAdded(int level, int itemIndex) {
+            changes++;
+        }
+
+        @Override
+        public void clusterRemoved(int level, int itemIndex) {
+            changes++;
+        }
+
+    }
+
+    @Param({ "1000000" })
+    public int pointCount;
+
+    /**
+     * The scale, in meters per pixel.
+     */
+    @Param({ "64", "1024" })
+    public double unitsPerPixel;
+
+    private double[] x;
+    private double[] y;
+    private ClusterView view;
+    private final double[] extent = new double[4];
+    private final Counter counter = new Counter();
+    private int frame;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        x = new double[pointCount];
+        y = new double[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            // Cluster the points around a few hundred towns, as real features are
+            int town = random.nextInt(300);
+            Random townRandom = new Random(town);
+            x[i] = townRandom.nextDouble() * WORLD_SIZE + random.nextGaussian() * 5000;
+            y[i] = townRandom.nextDouble() * WORLD_SIZE + random.nextGaussian() * 5000;
+        }
+        view = new ClusterView(buildIndex());
+    }
+
+    private PointClusterIndex buildIndex() {
+        return new PointClusterIndex(x, y, MIN_ZOOM, MAX_ZOOM,
+                PointClusterIndex.DEFAULT_RADIUS_PIXELS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public PointClusterIndex build() {
+        return buildIndex();
+    }
+
+    @Benchmark
+    public int panFrame() {
+        // Pan east across the middle of the points, wrapping around
+        double width = VIEW_WIDTH * unitsPerPixel;
+        double step = PAN_PIXELS * unitsPerPixel;
+        double minX = (frame++ * step) % (WORLD_SIZE - width);
+        extent[0] = minX;
+        extent[1] = WORLD_SIZE / 2;
+        extent[2] = minX + width;
+        extent[3] = WORLD_SIZE / 2 + VIEW_HEIGHT * unitsPerPixel;
+        view.update(extent, unitsPerPixel, counter);
+        return counter.changes;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the type-ahead search of the features kept on the device: one search
+ * as the user types, and indexing all of a layer's features.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureSearchIndexBenchmark {
+
+    private static final String[] PREFIXES = { "San", "Santa", "Mount", "Lake", "Fort", "Port", "North", "South",
+            "East", "West" };
+    private static final String[] NAMES = { "Rosa", "Maria", "Clara", "Pine", "Oak", "Cedar", "River", "Hill",
+            "Bay", "Creek", "Springs", "Valley", "Ridge", "Harbor", "Falls", "Grove", "Meadow", "Point", "Rock",
+            "Wood" };
+    private static final String[] KINDS = { "Site", "Station", "Depot", "Camp", "Field", "Park", "Tower", "Bridge" };
+
+    /**
+     * Queries as typed, from a single letter that matches many features to a full
+     * name that matches a few.
+     */
+    private static final String[] QUERIES = { "s", "sa", "san", "santa r", "mount cedar", "fort o",
+            "west ridge tower 12", "4", "lake c", "po", "nomatch", "east valley depot 9" };
+
+    private static final Collection<String> NO_VALUES = Collections.emptyList();
+
+    @Param({ "50000", "500000" })
+    public int featureCount;
+
+    private String[] labels;
+    private double[][] extents;
+    private FeatureSearchIndex index;
+    private int queryIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        labels = new String[featureCount];
+        extents = new double[featureCount][];
+        for (int i = 0; i < featureCount; i++) {
+            labels[i] = PREFIXES[random.nextInt(PREFIXES.length)] + " " + NAMES[random.nextInt(NAMES.length)]
+                    + " " + KINDS[random.nextInt(KINDS.length)] + " " + random.nextInt(100000);
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            extents[i] = new double[] { x, y, x, y };
+        }
+        index = build();
+    }
+
+    @Benchmark
+    public List<FeatureSearchIndex.Hit> search() {
+        queryIndex = (queryIndex + 1) % QUERIES.length;
+        return index.search(QUERIES[queryIndex]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public FeatureSearchIndex build() {
+        FeatureSearchIndex newIndex = new FeatureSearchIndex();
+        for (int i = 0; i < featureCount; i++) {
+            newIndex.put("sites", i, labels[i], NO_VALUES, extents[i]);
+        }
+        return newIndex;
+    }
+
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work the apps do between an identify and the results on screen:
+ * formatting attribute values for the callout, labelling identified features,
+ * finding and labelling the features under a tap, and the extent math used to
+ * zoom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifyResultsBenchmark {
+
+    private static final double WORLD_SIZE = 1000000;
+    private static final double TAP_SIZE = WORLD_SIZE / 100;
+    private static final String DISPLAY_FIELD = "Name";
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({ "10", "100" })
+    public int attributeCount;
+
+    @Param({ "10000" })
+    public int featureCount;
+
+    private List<Map<String, Object>> features;
+    private AttributeFormatter attributeFormatter;
+    private PackedHilbertRTree index;
+    private double[] queries;
+    private int queryIndex;
+    private double[] extent = new double[4];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US);
+        features = new ArrayList<>(featureCount);
+        double[] boxes = new double[featureCount * 4];
+        for (int i = 0; i < featureCount; i++) {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("OBJECTID", i);
+            attributes.put(DISPLAY_FIELD, 0 == i % 10 ? null : "Site " + i);
+            for (int j = 2; j < attributeCount; j++) {
+                switch (j % 4) {
+                case 0:
+                    attributes.put("text" + j, "Value " + random.nextInt(1000));
+                    break;
+                case 1:
+                    attributes.put("number" + j, random.nextDouble() * 1000);
+                    break;
+                case 2:
+                    calendar.setTimeInMillis(random.nextInt() * 1000L);
+                    attributes.put("date" + j, calendar.clone());
+                    break;
+                default:
+                    attributes.put("empty" + j, null);
+                }
+            }
+            features.add(attributes);
+            double x = random.nextDouble() * WORLD_SIZE;
+            double y = random.nextDouble() * WORLD_SIZE;
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x;
+            boxes[4 * i + 3] = y;
+        }
+        attributeFormatter = new AttributeFormatter(DateFormat.getDateInstance(DateFormat.MEDIUM, Locale.US));
+        index = new PackedHilbertRTree(boxes);
+        queries = new double[QUERY_COUNT * 2];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = random.nextDouble() * WORLD_SIZE;
+        }
+    }
+
+    private int nextQuery() {
+        queryIndex = (queryIndex + 2) % queries.length;
+        return queryIndex;
+    }
+
+    /**
+     * Formats every attribute value of one feature, as the callout does when all
+     * of its rows are visible.
+     */
+    @Benchmark
+    public void formatAttributes(Blackhole blackhole) {
+        Map<String, Object> attributes = features.get(queryIndex = (queryIndex + 1) % featureCount);
+        for (Object value : attributes.values()) {
+            blackhole.consume(attributeFormatter.format(value));
+        }
+    }
+
+    /**
+     * Labels one identified feature.
+     */
+    @Benchmark
+    public String labelResult() {
+        int i = queryIndex = (queryIndex + 1) % featureCount;
+        return AttributeFormatter.getLabel(features.get(i), DISPLAY_FIELD, "Sites", i);
+    }
+
+    /**
+     * Finds the features under a tap and labels them, as the local identify does.
+     */
+    @Benchmark
+    public String[] identifyAndLabel() {
+        int q = nextQuery();
+        final List<String> labels = new ArrayList<>();
+        index.search(queries[q], queries[q + 1], queries[q] + TAP_SIZE, queries[q + 1] + TAP_SIZE,
+                new PackedHilbertRTree.Visitor() {
+                    @Override
+                    public boolean visit(int itemIndex) {
+                        labels.add(AttributeFormatter.getLabel(features.get(itemIndex), DISPLAY_FIELD, "Sites", itemIndex));
+                        return true;
+                    }
+                });
+        return labels.toArray(new String[labels.size()]);
+    }
+
+    /**
+     * Expands a layer's extent for zooming.
+     */
+    @Benchmark
+    public double[] expandExtent() {
+        int q = nextQuery();
+        extent[0] = queries[q];
+        extent[1] = queries[q + 1];
+        extent[2] = queries[q] + TAP_SIZE;
+        extent[3] = queries[q + 1] + TAP_SIZE;
+        return ExtentMath.expand(extent, ExtentMath.ZOOM_MARGIN);
+    }
+
+}
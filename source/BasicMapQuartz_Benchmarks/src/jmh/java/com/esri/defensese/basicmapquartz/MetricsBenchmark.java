@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recording a latency in a LatencyHistogram, alone and with
+ * four threads recording into the same histogram, as frame times and identify
+ * latencies are recorded, and of writing the metrics for a Prometheus scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private Metrics metrics;
+    private LatencyHistogram histogram;
+
+    @Setup
+    public void setUp() {
+        metrics = new Metrics();
+        histogram = metrics.histogram("bmq_frame_seconds", "Frame times.");
+        for (int i = 0; i < 10; i++) {
+            LatencyHistogram layerHistogram = metrics.histogram("bmq_identify_seconds", "Identify.",
+                    "layer", "layer" + i);
+            for (int j = 0; j < 1000; j++) {
+                layerHistogram.record(j * 37);
+            }
+        }
+    }
+
+    /**
+     * Records values spread over five orders of magnitude.
+     */
+    @State(Scope.Thread)
+    public static class Values {
+
+        long next = 1;
+
+        long next() {
+            next = next * 31 % 1000003;
+            return next;
+        }
+
+    }
+
+    @Benchmark
+    public void record(Values values) {
+        histogram.record(values.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Values values) {
+        histogram.record(values.next());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String writePrometheus() {
+        return metrics.toPrometheus();
+    }
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time to answer an identify hit test with a PackedHilbertRTree and
+ * with a linear scan over the same feature envelopes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackedHilbertRTreeBenchmark {
+
+    private static final double WORLD_SIZE = 1000000;
+
+    /**
+     * The size of the square searched for each tap, like an 11-pixel tolerance on
+     * a map that shows about one tenth of the features' extent.
+     */
+    private static final double TAP_SIZE = WORLD_SIZE / 1000;
+
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int featureCount;
+
+    private double[] boxes;
+    private double[] queries;
+    private int queryIndex;
+    private PackedHilbertRTree index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        boxes = new double[featureCount * 4];
+        for (int i = 0; i < featureCount; i++) {
+            double x = random.nextDouble() * WORLD_SIZE;
+            double y = random.nextDouble() * WORLD_SIZE;
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x;
+            boxes[4 * i + 3] = y;
+        }
+        queries = new double[QUERY_COUNT * 2];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = random.nextDouble() * WORLD_SIZE;
+        }
+        index = new PackedHilbertRTree(boxes);
+    }
+
+    private int nextQuery() {
+        queryIndex = (queryIndex + 2) % queries.length;
+        return queryIndex;
+    }
+
+    @Benchmark
+    public int indexSearch(final Blackhole blackhole) {
+        int q = nextQuery();
+        return index.search(queries[q], queries[q + 1], queries[q] + TAP_SIZE, queries[q + 1] + TAP_SIZE,
+                new PackedHilbertRTree.Visitor() {
+                    @Override
+                    public boolean visit(int itemIndex) {
+                        blackhole.consume(itemIndex);
+                        return true;
+                    }
+                });
+    }
+
+    @Benchmark
+    public int linearScan(Blackhole blackhole) {
+        int q = nextQuery();
+        double minX = queries[q];
+        double minY = queries[q + 1];
+        double maxX = minX + TAP_SIZE;
+        double maxY = minY + TAP_SIZE;
+        int found = 0;
+        for (int pos = 0; pos < boxes.length; pos += 4) {
+            if (!(maxX < boxes[pos] || maxY < boxes[pos + 1] || minX > boxes[pos + 2] || minY > boxes[pos + 3])) {
+                blackhole.consume(pos / 4);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public PackedHilbertRTree build() {
+        return new PackedHilbertRTree(boxes);
+    }
+
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the startup time of a map with a basemap and many operational layers
+ * when each is loaded after the previous one and when LoadOrchestrator loads them
+ * concurrently. The loadables are stubs that finish after a fixed latency, like a
+ * service request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final String BASEMAP = "basemap";
+    private static final String MAP = "map";
+    private static final String VIEWPOINT = "viewpoint";
+
+    @Param({ "1", "20" })
+    public int layerCount;
+
+    @Param({ "10" })
+    public long latencyMillis;
+
+    private ScheduledExecutorService network;
+
+    /**
+     * A loadable that finishes after a fixed latency.
+     */
+    private class StubLoadable implements LoadOrchestrator.LoadTask {
+
+        @Override
+        public void start(final LoadOrchestrator.LoadCallback callback) {
+            network.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.loaded();
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    @Setup
+    public void setUp() {
+        network = Executors.newScheduledThreadPool(4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        network.shutdownNow();
+    }
+
+    /**
+     * Loads the basemap, the map and each layer in turn, then sets the viewpoint,
+     * as when each load is started from the previous one's listener.
+     */
+    @Benchmark
+    public void serialStartup() throws InterruptedException {
+        int taskCount = 2 + layerCount;
+        for (int i = 0; i < taskCount; i++) {
+            final CountDownLatch loaded = new CountDownLatch(1);
+            new StubLoadable().start(new LoadOrchestrator.LoadCallback() {
+                @Override
+                public void loaded() {
+                    loaded.countDown();
+                }
+
+                @Override
+                public void failed(Throwable error) {
+                    loaded.countDown();
+                }
+            });
+            loaded.await();
+        }
+    }
+
+    /**
+     * Loads everything with LoadOrchestrator and waits for all tasks to finish.
+     */
+    @Benchmark
+    public LoadOrchestrator orchestratedStartup() throws InterruptedException {
+        return orchestrate(false);
+    }
+
+    /**
+     * Loads everything with LoadOrchestrator and waits only for the critical
+     * tasks, i.e. the time until the first frame can be drawn.
+     */
+    @Benchmark
+    public LoadOrchestrator orchestratedTimeToFirstFrame() throws InterruptedException {
+        return orchestrate(true);
+    }
+
+    private LoadOrchestrator orchestrate(boolean criticalOnly) throws InterruptedException {
+        final CountDownLatch critical = new CountDownLatch(1);
+        final CountDownLatch all = new CountDownLatch(layerCount + 3);
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        orchestrator.setListener(new LoadOrchestrator.Listener() {
+            @Override
+            public void taskFinished(String name, Throwable error, LoadOrchestrator.Timing timing) {
+                all.countDown();
+            }
+
+            @Override
+            public void criticalTasksFinished(long elapsedMillis) {
+                critical.countDown();
+            }
+        });
+        orchestrator.add(BASEMAP, true, new StubLoadable());
+        orchestrator.add(MAP, true, new StubLoadable());
+        for (int i = 0; i < layerCount; i++) {
+            orchestrator.add("layer" + i, false, new StubLoadable());
+        }
+        orchestrator.add(VIEWPOINT, false, new LoadOrchestrator.LoadTask() {
+            @Override
+            public void start(LoadOrchestrator.LoadCallback callback) {
+                callback.loaded();
+            }
+        }, "layer0", MAP);
+        (criticalOnly ? critical : all).await();
+        return orchestrator;
+    }
+
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends feature edits to a feature service layer with its applyEdits operation,
+ * so that any number of adds, updates and deletes cost one request. Edits are
+ * sent with rollbackOnFailure=false, so an edit that the service rejects, e.g.
+ * because the feature has been deleted by someone else, does not prevent the
+ * others from being applied, and its result reports why.
+ */
+public class ApplyEditsClient {
+
+    /**
+     * The outcome of one edit.
+     */
+    public static class EditResult {
+
+        private final boolean success;
+        private final long objectId;
+        private final int errorCode;
+        private final String errorDescription;
+
+        EditResult(boolean success, long objectId, int errorCode, String errorDescription) {
+            this.success = success;
+            this.objectId = objectId;
+            this.errorCode = errorCode;
+            this.errorDescription = errorDescription;
+        }
+
+        /**
+         * @return true if the service applied the edit.
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return the object ID of the feature, which for an add is the one the
+         *         service assigned, or -1 if the service did not report it.
+         */
+        public long getObjectId() {
+            return objectId;
+        }
+
+        /**
+         * @return the service's error code, or 0 if the edit succeeded.
+         */
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        /**
+         * @return the service's description of the error, or null if the edit
+         *         succeeded.
+         */
+        public String getErrorDescription() {
+            return errorDescription;
+        }
+
+    }
+
+    private static final Pattern OBJECT_ID_FIELD = Pattern.compile("\"objectIdField\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern ERROR = Pattern.compile("^\\s*\\{\\s*\"error\"");
+    private static final Pattern ERROR_MESSAGE = Pattern.compile("\"message\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final String layerUrl;
+    private volatile String token = null;
+    private String objectIdField = null;
+
+    /**
+     * Creates a client.
+     * @param layerUrl the URL of the feature service layer.
+     */
+    public ApplyEditsClient(String layerUrl) {
+        this.layerUrl = layerUrl;
+    }
+
+    /**
+     * @return the URL of the feature service layer.
+     */
+    public String getLayerUrl() {
+        return layerUrl;
+    }
+
+    /**
+     * Sets the token to send with each request, for a secured service.
+     * @param token the token, or null to send none.
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Sends edits to the layer in one request. This method blocks. The first call
+     * also reads the layer's object ID field.
+     * @param edits the edits, none of which may be an update or delete of a
+     *              feature with a local ID.
+     * @return the result of each edit, in the same order.
+     * @throws IOException if the request failed or the service returned an error
+     *                     for the whole request, in which case none of the edits
+     *                     were applied.
+     */
+    public synchronized List<EditResult> applyEdits(List<FeatureEdit> edits) throws IOException {
+        List<EditResult> results = new ArrayList<>(edits.size());
+        if (edits.isEmpty()) {
+            return results;
+        }
+        String idField = getObjectIdField();
+        StringBuilder adds = new StringBuilder();
+        StringBuilder updates = new StringBuilder();
+        StringBuilder deletes = new StringBuilder();
+        for (FeatureEdit edit : edits) {
+            switch (edit.getType()) {
+            case ADD:
+                appendFeature(adds, edit, null);
+                break;
+            case UPDATE:
+                checkObjectId(edit);
+                appendFeature(updates, edit, idField);
+                break;
+            case DELETE:
+                checkObjectId(edit);
+                deletes.append(0 == deletes.length() ? "" : ",").append(edit.getObjectId());
+                break;
+            }
+        }
+        StringBuilder form = new StringBuilder("f=json&rollbackOnFailure=false");
+        if (0 < adds.length()) {
+            form.append("&adds=").append(encode("[" + adds + "]"));
+        }
+        if (0 < updates.length()) {
+            form.append("&updates=").append(encode("[" + updates + "]"));
+        }
+        if (0 < deletes.length()) {
+            form.append("&deletes=").append(deletes);
+        }
+        String currentToken = token;
+        if (null != currentToken) {
+            form.append("&token=").append(encode(currentToken));
+        }
+        String response = post(layerUrl + "/applyEdits", form.toString());
+
+        List<EditResult> addResults = new ArrayList<>();
+        List<EditResult> updateResults = new ArrayList<>();
+        List<EditResult> deleteResults = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(response));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("addResults".equals(name)) {
+                readResults(reader, addResults);
+            } else if ("updateResults".equals(name)) {
+                readResults(reader, updateResults);
+            } else if ("deleteResults".equals(name)) {
+                readResults(reader, deleteResults);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        int addIndex = 0;
+        int updateIndex = 0;
+        int deleteIndex = 0;
+        for (FeatureEdit edit : edits) {
+            List<EditResult> typeResults = FeatureEdit.Type.ADD == edit.getType() ? addResults
+                    : FeatureEdit.Type.UPDATE == edit.getType() ? updateResults : deleteResults;
+            int index = FeatureEdit.Type.ADD == edit.getType() ? addIndex++
+                    : FeatureEdit.Type.UPDATE == edit.getType() ? updateIndex++ : deleteIndex++;
+            if (index >= typeResults.size()) {
+                throw new IOException("Missing " + edit.getType() + " result from " + layerUrl);
+            }
+            results.add(typeResults.get(index));
+        }
+        return results;
+    }
+
+    /**
+     * Reads the layer's object ID field the first time it is needed.
+     */
+    private String getObjectIdField() throws IOException {
+        if (null == objectIdField) {
+            String currentToken = token;
+            String info = get(layerUrl + "?f=json" + (null == currentToken ? "" : "&token=" + encode(currentToken)));
+            Matcher matcher = OBJECT_ID_FIELD.matcher(info);
+            if (!matcher.find()) {
+                throw new IOException("No object ID field in " + layerUrl);
+            }
+            objectIdField = matcher.group(1);
+        }
+        return objectIdField;
+    }
+
+    private static void checkObjectId(FeatureEdit edit) {
+        if (edit.isLocalId()) {
+            throw new IllegalArgumentException("Cannot send " + edit + " before the feature is added");
+        }
+    }
+
+    private static void appendFeature(StringBuilder out, FeatureEdit edit, String idField) {
+        out.append(0 == out.length() ? "" : ",").append('{');
+        if (null != edit.getGeometryJson()) {
+            out.append("\"geometry\":").append(edit.getGeometryJson()).append(',');
+        }
+        out.append("\"attributes\":{");
+        boolean first = true;
+        if (null != idField) {
+            FeatureExportWriter.appendJsonString(out, idField);
+            out.append(':').append(edit.getObjectId());
+            first = false;
+        }
+        for (Map.Entry<String, Object> attribute : edit.getAttributes().entrySet()) {
+            if (attribute.getKey().equalsIgnoreCase(idField)) {
+                continue;
+            }
+            out.append(first ? "" : ",");
+            first = false;
+            FeatureExportWriter.appendJsonString(out, attribute.getKey());
+            out.append(':');
+            appendValue(out, attribute.getValue());
+        }
+        out.append("}}");
+    }
+
+    private static void appendValue(StringBuilder out, Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            out.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : Double.toString(number));
+        } else if (value instanceof String) {
+            FeatureExportWriter.appendJsonString(out, (String) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static void readResults(JsonReader reader, List<EditResult> results) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            boolean success = false;
+            long objectId = -1;
+            int errorCode = 0;
+            String errorDescription = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("success".equals(name)) {
+                    success = reader.nextBoolean();
+                } else if ("objectId".equals(name) && JsonReader.Token.NUMBER == reader.peek()) {
+                    objectId = reader.nextLong();
+                } else if ("error".equals(name) && JsonReader.Token.BEGIN_OBJECT == reader.peek()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String errorName = reader.nextName();
+                        if ("code".equals(errorName)) {
+                            errorCode = (int) reader.nextLong();
+                        } else if ("description".equals(errorName)) {
+                            errorDescription = reader.nextStringOrNull();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            results.add(new EditResult(success, objectId, errorCode, errorDescription));
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads a URL. Overridden by tests.
+     * @param url the URL.
+     * @return the response body.
+     * @throws IOException if the request fails or the service returns an error.
+     */
+    String get(String url) throws IOException {
+        return checkError(url, ArcGISTokenGenerator.get(url));
+    }
+
+    /**
+     * Sends a form to a URL. Overridden by tests.
+     * @param url the URL.
+     * @param form the URL-encoded form.
+     * @return the response body.
+     * @throws IOException if the request fails or the service returns an error.
+     */
+    String post(String url, String form) throws IOException {
+        return checkError(url, ArcGISTokenGenerator.post(url, form));
+    }
+
+    private static String checkError(String url, String response) throws IOException {
+        if (ERROR.matcher(response).find()) {
+            Matcher message = ERROR_MESSAGE.matcher(response);
+            throw new IOException(message.find() ? message.group(1) : "Error from " + url);
+        }
+        return response;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+}
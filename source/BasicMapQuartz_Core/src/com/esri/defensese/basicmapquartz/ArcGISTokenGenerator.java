@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates tokens with the generateToken operation of an ArcGIS Server or
+ * portal token service. The token service URL is read from the server's
+ * rest/info resource the first time it is needed and then remembered.
+ */
+public class ArcGISTokenGenerator implements TokenRefresher.TokenGenerator {
+
+    /**
+     * The default referer for which tokens are generated.
+     */
+    public static final String DEFAULT_REFERER = "basicmapquartz";
+
+    /**
+     * The default token lifetime requested, in minutes.
+     */
+    public static final int DEFAULT_EXPIRATION_MINUTES = 60 * 24;
+
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final Pattern TOKEN_SERVICES_URL = Pattern.compile("\"tokenServicesUrl\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern TOKEN = Pattern.compile("\"token\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern EXPIRES = Pattern.compile("\"expires\"\\s*:\\s*(\\d+)");
+    private static final Pattern ERROR_MESSAGE = Pattern.compile("\"message\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final String referer;
+    private final int expirationMinutes;
+    private final Map<String, String> tokenServiceUrls = new HashMap<>();
+
+    /**
+     * Creates a generator with the default referer and expiration.
+     */
+    public ArcGISTokenGenerator() {
+        this(DEFAULT_REFERER, DEFAULT_EXPIRATION_MINUTES);
+    }
+
+    /**
+     * Creates a generator.
+     * @param referer the referer for which tokens are generated. Requests that use
+     *                the tokens must send the same referer.
+     * @param expirationMinutes the token lifetime to request, in minutes.
+     */
+    public ArcGISTokenGenerator(String referer, int expirationMinutes) {
+        this.referer = referer;
+        this.expirationMinutes = expirationMinutes;
+    }
+
+    /**
+     * @return the referer for which tokens are generated.
+     */
+    public String getReferer() {
+        return referer;
+    }
+
+    @Override
+    public TokenRefresher.Token generateToken(String resourceUrl, String username, String password) throws IOException {
+        String response = post(getTokenServiceUrl(resourceUrl) + "/generateToken",
+                "username=" + encode(username)
+                + "&password=" + encode(password)
+                + "&client=referer&referer=" + encode(referer)
+                + "&expiration=" + expirationMinutes
+                + "&f=json");
+        Matcher token = TOKEN.matcher(response);
+        if (!token.find()) {
+            Matcher message = ERROR_MESSAGE.matcher(response);
+            throw new IOException(message.find() ? message.group(1) : "No token in generateToken response");
+        }
+        Matcher expires = EXPIRES.matcher(response);
+        long expiration = expires.find() ? Long.parseLong(expires.group(1))
+                : System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(expirationMinutes);
+        return new TokenRefresher.Token(token.group(1), expiration);
+    }
+
+    /**
+     * Returns the token service URL of the server that hosts a resource.
+     * @param resourceUrl the resource URL, which must contain "/rest/".
+     * @return the token service URL.
+     * @throws IOException if the server's rest/info resource cannot be read or does
+     *                     not name a token service.
+     */
+    String getTokenServiceUrl(String resourceUrl) throws IOException {
+        int restIndex = resourceUrl.indexOf("/rest/");
+        if (0 > restIndex) {
+            throw new IOException("Not an ArcGIS REST URL: " + resourceUrl);
+        }
+        String infoUrl = resourceUrl.substring(0, restIndex) + "/rest/info?f=json";
+        synchronized (tokenServiceUrls) {
+            String tokenServiceUrl = tokenServiceUrls.get(infoUrl);
+            if (null != tokenServiceUrl) {
+                return tokenServiceUrl;
+            }
+        }
+        Matcher matcher = TOKEN_SERVICES_URL.matcher(get(infoUrl));
+        if (!matcher.find()) {
+            throw new IOException("No token service found at " + infoUrl);
+        }
+        String tokenServiceUrl = matcher.group(1).replace("\\/", "/");
+        synchronized (tokenServiceUrls) {
+            tokenServiceUrls.put(infoUrl, tokenServiceUrl);
+        }
+        return tokenServiceUrl;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    /**
+     * Reads a URL with an HTTP GET request.
+     * @param url the URL.
+     * @return the response body, decoded as UTF-8.
+     * @throws IOException if the request fails or the status is not 200.
+     */
+    static String get(String url) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            return read(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends a form to a URL with an HTTP POST request.
+     * @param url the URL.
+     * @param form the URL-encoded form.
+     * @return the response body, decoded as UTF-8.
+     * @throws IOException if the request fails or the status is not 200.
+     */
+    static String post(String url, String form) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(form.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            return read(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        if (HttpURLConnection.HTTP_OK != connection.getResponseCode()) {
+            throw new IOException("HTTP " + connection.getResponseCode() + " from " + connection.getURL());
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while (-1 != (count = in.read(buffer))) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Formats attribute values for display and computes the labels of identified
+ * features from their attributes. An instance uses one DateFormat and is not
+ * thread-safe; the static methods are.
+ */
+public class AttributeFormatter {
+
+    private final DateFormat dateFormat;
+
+    /**
+     * Creates a formatter.
+     * @param dateFormat the format for date values.
+     */
+    public AttributeFormatter(DateFormat dateFormat) {
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Formats an attribute value.
+     * @param value the value, which may be a Calendar, a Date, another object or null.
+     * @return the display string, or an empty string for a null value.
+     */
+    public String format(Object value) {
+        if (null == value) {
+            return "";
+        } else if (value instanceof Calendar) {
+            return dateFormat.format(((Calendar) value).getTime());
+        } else if (value instanceof Date) {
+            return dateFormat.format((Date) value);
+        } else {
+            return value.toString();
+        }
+    }
+
+    /**
+     * Returns the label of an identified feature: the value of its display field,
+     * or the layer name and an ID if there is none.
+     * @param attributes the feature's attributes.
+     * @param displayFieldName the display field name of the feature's table, or null.
+     * @param layerName the name of the layer that contains the feature.
+     * @param id an ID that distinguishes features without a display field value.
+     * @return the label.
+     */
+    public static String getLabel(Map<String, ?> attributes, String displayFieldName, String layerName, int id) {
+        if (null != displayFieldName) {
+            Object displayFieldValue = attributes.get(displayFieldName);
+            if (null != displayFieldValue) {
+                return displayFieldValue.toString();
+            }
+        }
+        return layerName + " " + id;
+    }
+
+}
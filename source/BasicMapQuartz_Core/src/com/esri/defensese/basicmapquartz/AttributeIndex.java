@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Secondary indexes over the attributes of features held locally, used by
+ * WhereClause to select features without evaluating the clause for every one.
+ * For each field that a where clause uses, the index builds on first use a
+ * sorted column, which answers comparisons, BETWEEN and IN by binary search, and
+ * a trigram index, which answers LIKE '%text%' by intersecting the rows whose
+ * values contain each three-letter sequence of the text.
+ *
+ * <p>Rows are identified by their index in the list given to the constructor.
+ * Field names are matched without regard to case, as they are in definition
+ * expressions. Values are compared if they are both numbers or both strings;
+ * other values, such as dates, are not indexed. The index is thread-safe.</p>
+ */
+public class AttributeIndex {
+
+    /**
+     * The numeric and text values of one field, each sorted with the rows they
+     * came from.
+     */
+    static class SortedColumn {
+
+        final double[] numbers;
+        final int[] numberRows;
+        final String[] strings;
+        final int[] stringRows;
+
+        SortedColumn(double[] numbers, int[] numberRows, String[] strings, int[] stringRows) {
+            this.numbers = numbers;
+            this.numberRows = numberRows;
+            this.strings = strings;
+            this.stringRows = stringRows;
+        }
+
+        /**
+         * Adds the rows whose numeric value is in a range.
+         */
+        void selectNumbers(double min, boolean minInclusive, double max, boolean maxInclusive, BitSet rows) {
+            int from = minInclusive ? lowerBound(min) : upperBound(min);
+            int to = maxInclusive ? upperBound(max) : lowerBound(max);
+            for (int i = from; i < to; i++) {
+                rows.set(numberRows[i]);
+            }
+        }
+
+        /**
+         * Adds the rows whose text value is in a range. A null bound is unbounded.
+         */
+        void selectStrings(String min, boolean minInclusive, String max, boolean maxInclusive, BitSet rows) {
+            int from = null == min ? 0 : minInclusive ? lowerBound(min) : upperBound(min);
+            int to = null == max ? strings.length : maxInclusive ? upperBound(max) : lowerBound(max);
+            for (int i = from; i < to; i++) {
+                rows.set(stringRows[i]);
+            }
+        }
+
+        private int lowerBound(double value) {
+            int low = 0;
+            int high = numbers.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (numbers[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int upperBound(double value) {
+            int low = 0;
+            int high = numbers.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (numbers[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int lowerBound(String value) {
+            int low = 0;
+            int high = strings.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (strings[mid].compareTo(value) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int upperBound(String value) {
+            int low = 0;
+            int high = strings.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (strings[mid].compareTo(value) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+    }
+
+    /**
+     * The rows whose values contain each trigram, in lower case.
+     */
+    static class TrigramIndex {
+
+        private static final int[] NO_ROWS = new int[0];
+
+        final Map<Long, int[]> postings;
+
+        TrigramIndex(Map<Long, int[]> postings) {
+            this.postings = postings;
+        }
+
+        /**
+         * Returns the rows that may contain a text, i.e. that contain each of its
+         * trigrams, in ascending order. The text must be at least three characters
+         * long and in lower case.
+         */
+        int[] candidates(String text) {
+            int[] result = null;
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                int[] rows = postings.get(trigram(text, i));
+                if (null == rows) {
+                    return NO_ROWS;
+                }
+                result = null == result ? rows : intersect(result, rows);
+                if (0 == result.length) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] result = new int[Math.min(a.length, b.length)];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[size++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+
+    }
+
+    /**
+     * A growable list of row numbers.
+     */
+    private static class RowList {
+
+        int[] rows = new int[4];
+        int size = 0;
+
+        void add(int row) {
+            // Rows are added in ascending order, so a repeated trigram in one value
+            // only needs to be compared with the last row
+            if (0 < size && rows[size - 1] == row) {
+                return;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+    }
+
+    private final List<? extends Map<String, ?>> rows;
+    private final Map<String, SortedColumn> sortedColumns = new HashMap<>();
+    private final Map<String, TrigramIndex> trigramIndexes = new HashMap<>();
+
+    /**
+     * Creates an index. Columns are indexed when a where clause first uses them.
+     * @param rows the attributes of each feature. The list must not be changed
+     *             afterward.
+     */
+    public AttributeIndex(List<? extends Map<String, ?>> rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int size() {
+        return rows.size();
+    }
+
+    /**
+     * @param row a row number.
+     * @return the row's attributes.
+     */
+    public Map<String, ?> getRow(int row) {
+        return rows.get(row);
+    }
+
+    /**
+     * Returns the value of a field, matching the field name without regard to case.
+     * @param attributes a feature's attributes.
+     * @param field the field name.
+     * @return the value, or null.
+     */
+    public static Object getValue(Map<String, ?> attributes, String field) {
+        Object value = attributes.get(field);
+        if (null == value && !attributes.containsKey(field)) {
+            for (Map.Entry<String, ?> entry : attributes.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(field)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    synchronized SortedColumn getSortedColumn(String field) {
+        String key = field.toLowerCase(Locale.US);
+        SortedColumn column = sortedColumns.get(key);
+        if (null == column) {
+            column = buildSortedColumn(field);
+            sortedColumns.put(key, column);
+        }
+        return column;
+    }
+
+    synchronized TrigramIndex getTrigramIndex(String field) {
+        String key = field.toLowerCase(Locale.US);
+        TrigramIndex index = trigramIndexes.get(key);
+        if (null == index) {
+            index = buildTrigramIndex(field);
+            trigramIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    private SortedColumn buildSortedColumn(String field) {
+        int numberCount = 0;
+        int stringCount = 0;
+        for (Map<String, ?> row : rows) {
+            Object value = getValue(row, field);
+            if (value instanceof Number) {
+                numberCount++;
+            } else if (value instanceof String) {
+                stringCount++;
+            }
+        }
+
+        // Sort the row numbers by value; boxing is limited to the sort itself
+        Integer[] numberOrder = new Integer[numberCount];
+        Integer[] stringOrder = new Integer[stringCount];
+        final double[] numberValues = new double[rows.size()];
+        final String[] stringValues = new String[rows.size()];
+        numberCount = 0;
+        stringCount = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            Object value = getValue(rows.get(i), field);
+            if (value instanceof Number) {
+                numberValues[i] = ((Number) value).doubleValue();
+                numberOrder[numberCount++] = i;
+            } else if (value instanceof String) {
+                stringValues[i] = (String) value;
+                stringOrder[stringCount++] = i;
+            }
+        }
+        Arrays.sort(numberOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(numberValues[a], numberValues[b]);
+            }
+        });
+        Arrays.sort(stringOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return stringValues[a].compareTo(stringValues[b]);
+            }
+        });
+
+        double[] numbers = new double[numberCount];
+        int[] numberRows = new int[numberCount];
+        for (int i = 0; i < numberCount; i++) {
+            numberRows[i] = numberOrder[i];
+            numbers[i] = numberValues[numberRows[i]];
+        }
+        String[] strings = new String[stringCount];
+        int[] stringRows = new int[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            stringRows[i] = stringOrder[i];
+            strings[i] = stringValues[stringRows[i]];
+        }
+        return new SortedColumn(numbers, numberRows, strings, stringRows);
+    }
+
+    private TrigramIndex buildTrigramIndex(String field) {
+        Map<Long, RowList> lists = new HashMap<>();
+        for (int row = 0; row < rows.size(); row++) {
+            // LIKE compares numbers as text, so they are indexed as text too
+            Object value = getValue(rows.get(row), field);
+            if (!(value instanceof String || value instanceof Number)) {
+                continue;
+            }
+            String text = value.toString().toLowerCase(Locale.US);
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                Long trigram = trigram(text, i);
+                RowList list = lists.get(trigram);
+                if (null == list) {
+                    list = new RowList();
+                    lists.put(trigram, list);
+                }
+                list.add(row);
+            }
+        }
+        Map<Long, int[]> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, RowList> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), Arrays.copyOf(entry.getValue().rows, entry.getValue().size));
+        }
+        return new TrigramIndex(postings);
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+}
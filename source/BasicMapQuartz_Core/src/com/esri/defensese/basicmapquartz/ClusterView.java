@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which clusters of a PointClusterIndex are on screen, so that a pan or
+ * zoom only adds the clusters that came into view and removes those that left
+ * it, instead of redrawing every cluster. Clusters are identified by a key that
+ * combines their level and index, and the keys on screen are kept in sorted
+ * primitive arrays that are reused from one update to the next. This class is
+ * not thread-safe.
+ */
+public class ClusterView {
+
+    /**
+     * Receives the changes made by an update.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each cluster that came into view.
+         * @param level the cluster's level.
+         * @param itemIndex the cluster's index in its level.
+         */
+        void clusterAdded(int level, int itemIndex);
+
+        /**
+         * Called for each cluster that is no longer in view.
+         * @param level the cluster's level.
+         * @param itemIndex the cluster's index in its level.
+         */
+        void clusterRemoved(int level, int itemIndex);
+
+    }
+
+    private final PointClusterIndex index;
+    private long[] shownKeys = new long[64];
+    private int shownSize = 0;
+    private long[] nextKeys = new long[64];
+    private int nextSize = 0;
+    private int level = 0;
+    private final PackedHilbertRTree.Visitor collector = new PackedHilbertRTree.Visitor() {
+        @Override
+        public boolean visit(int itemIndex) {
+            if (nextSize == nextKeys.length) {
+                nextKeys = Arrays.copyOf(nextKeys, nextSize * 2);
+            }
+            nextKeys[nextSize++] = key(level, itemIndex);
+            return true;
+        }
+    };
+
+    /**
+     * Creates a view with no clusters on screen.
+     * @param index the cluster index.
+     */
+    public ClusterView(PointClusterIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the cluster index.
+     */
+    public PointClusterIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the level shown by the last update, or 0 if the points are not
+     *         clustered at that scale.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the number of clusters on screen.
+     */
+    public int size() {
+        return shownSize;
+    }
+
+    /**
+     * Updates the clusters on screen for a new viewport. At scales where the points
+     * are not clustered, all clusters are removed.
+     * @param visibleExtent the visible extent, as xmin, ymin, xmax, ymax.
+     * @param unitsPerPixel the size of one pixel in map units.
+     * @param listener the listener that receives the changes.
+     * @return the level now shown.
+     */
+    public int update(double[] visibleExtent, double unitsPerPixel, Listener listener) {
+        level = index.getLevel(unitsPerPixel);
+        nextSize = 0;
+        if (0 < level) {
+            index.search(level, visibleExtent[0], visibleExtent[1], visibleExtent[2], visibleExtent[3], collector);
+            Arrays.sort(nextKeys, 0, nextSize);
+        }
+
+        // Merge the sorted key lists
+        int i = 0;
+        int j = 0;
+        while (i < shownSize || j < nextSize) {
+            if (j == nextSize || (i < shownSize && shownKeys[i] < nextKeys[j])) {
+                listener.clusterRemoved(getLevel(shownKeys[i]), getItemIndex(shownKeys[i]));
+                i++;
+            } else if (i == shownSize || nextKeys[j] < shownKeys[i]) {
+                listener.clusterAdded(getLevel(nextKeys[j]), getItemIndex(nextKeys[j]));
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        long[] keys = shownKeys;
+        shownKeys = nextKeys;
+        shownSize = nextSize;
+        nextKeys = keys;
+        return level;
+    }
+
+    /**
+     * Removes all clusters from the screen.
+     * @param listener the listener that receives the changes.
+     */
+    public void clear(Listener listener) {
+        for (int i = 0; i < shownSize; i++) {
+            listener.clusterRemoved(getLevel(shownKeys[i]), getItemIndex(shownKeys[i]));
+        }
+        shownSize = 0;
+    }
+
+    /**
+     * Returns the key of a cluster.
+     * @param level the cluster's level.
+     * @param itemIndex the cluster's index in its level.
+     * @return the key.
+     */
+    public static long key(int level, int itemIndex) {
+        return ((long) level << 32) | itemIndex;
+    }
+
+    /**
+     * @param key a cluster's key.
+     * @return the cluster's level.
+     */
+    public static int getLevel(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @param key a cluster's key.
+     * @return the cluster's index in its level.
+     */
+    public static int getItemIndex(long key) {
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,634 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The attributes of many features stored by column instead of as a Map per
+ * feature. Each field's values are held in a direct ByteBuffer, outside the Java
+ * heap: numbers and dates as primitives, and strings as codes into a dictionary
+ * of distinct values, which is itself stored as UTF-8. A feature's attributes
+ * are read through a lazy Map view that decodes a value only when it is asked
+ * for, so holding the attributes of a large layer costs a few bytes per value
+ * and creates no garbage until a feature is identified.
+ *
+ * <p>Rows are numbered in the order they were added and can also be found by
+ * object ID. Fields are found without regard to case. Values of types other than
+ * numbers, strings, Calendars and Dates, and fields whose values have mixed
+ * types, are kept on the heap as they are. A store cannot be modified after it
+ * is built, and it is thread-safe.</p>
+ */
+public class ColumnarAttributeStore {
+
+    /**
+     * How a column's values are stored and decoded.
+     */
+    private enum Kind {
+
+        SHORT(4), INTEGER(4), LONG(8), FLOAT(4), DOUBLE(8), CALENDAR(8), DATE(8), STRING(4), OBJECT(0);
+
+        final int width;
+
+        Kind(int width) {
+            this.width = width;
+        }
+
+        boolean isInteger() {
+            return SHORT == this || INTEGER == this || LONG == this;
+        }
+
+        boolean isFloatingPoint() {
+            return FLOAT == this || DOUBLE == this;
+        }
+
+        static Kind of(Object value) {
+            if (value instanceof Short || value instanceof Byte) {
+                return SHORT;
+            } else if (value instanceof Integer) {
+                return INTEGER;
+            } else if (value instanceof Long) {
+                return LONG;
+            } else if (value instanceof Float) {
+                return FLOAT;
+            } else if (value instanceof Double) {
+                return DOUBLE;
+            } else if (value instanceof Calendar) {
+                return CALENDAR;
+            } else if (value instanceof Date) {
+                return DATE;
+            } else if (value instanceof String) {
+                return STRING;
+            }
+            return OBJECT;
+        }
+
+        /**
+         * Returns the kind that can hold the values of two kinds.
+         */
+        static Kind widen(Kind a, Kind b) {
+            if (a == b) {
+                return a;
+            } else if (a.isInteger() && b.isInteger()) {
+                return LONG == a || LONG == b ? LONG : INTEGER;
+            } else if ((a.isInteger() || a.isFloatingPoint()) && (b.isInteger() || b.isFloatingPoint())) {
+                return DOUBLE;
+            }
+            return OBJECT;
+        }
+
+    }
+
+    /**
+     * One column's values while the store is being built, as 64 bits per row.
+     */
+    private static class ColumnBuilder {
+
+        final String name;
+        Kind kind = null;
+        long[] bits;
+        Object[] objects = null;
+        final BitSet present = new BitSet();
+        final Map<String, Integer> dictionary = new HashMap<>();
+
+        ColumnBuilder(String name, int capacity) {
+            this.name = name;
+            this.bits = new long[Math.max(16, capacity)];
+        }
+
+        void set(int row, Object value) {
+            if (null == value) {
+                return;
+            }
+            Kind valueKind = Kind.of(value);
+            if (null == kind) {
+                kind = Kind.OBJECT == valueKind ? null : valueKind;
+            }
+            if (kind != valueKind) {
+                Kind widened = null == kind ? Kind.OBJECT : Kind.widen(kind, valueKind);
+                if (widened != kind) {
+                    convert(widened, row);
+                }
+            }
+            if (Kind.OBJECT == kind) {
+                if (row >= objects.length) {
+                    objects = Arrays.copyOf(objects, Math.max(row + 1, objects.length * 2));
+                }
+                objects[row] = value;
+            } else {
+                if (row >= bits.length) {
+                    bits = Arrays.copyOf(bits, Math.max(row + 1, bits.length * 2));
+                }
+                bits[row] = encode(value);
+            }
+            present.set(row);
+        }
+
+        private long encode(Object value) {
+            switch (kind) {
+            case SHORT:
+            case INTEGER:
+            case LONG:
+                return ((Number) value).longValue();
+            case FLOAT:
+            case DOUBLE:
+                return Double.doubleToRawLongBits(((Number) value).doubleValue());
+            case CALENDAR:
+                return ((Calendar) value).getTimeInMillis();
+            case DATE:
+                return ((Date) value).getTime();
+            default:
+                String text = (String) value;
+                Integer code = dictionary.get(text);
+                if (null == code) {
+                    code = dictionary.size();
+                    dictionary.put(text, code);
+                }
+                return code;
+            }
+        }
+
+        /**
+         * Converts the values of the rows before a row to a wider kind.
+         */
+        private void convert(Kind widened, int rowCount) {
+            if (Kind.OBJECT == widened) {
+                String[] strings = Kind.STRING == kind ? dictionaryArray() : null;
+                objects = new Object[Math.max(bits.length, rowCount + 1)];
+                for (int row = 0; row < rowCount; row++) {
+                    if (present.get(row)) {
+                        objects[row] = decode(kind, bits[row], strings);
+                    }
+                }
+                bits = null;
+                dictionary.clear();
+            } else if (Kind.DOUBLE == widened && kind.isInteger()) {
+                for (int row = 0; row < rowCount; row++) {
+                    bits[row] = Double.doubleToRawLongBits(bits[row]);
+                }
+            }
+            // Integers widen to LONG and FLOAT to DOUBLE without changing their bits
+            kind = widened;
+        }
+
+        String[] dictionaryArray() {
+            String[] strings = new String[dictionary.size()];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                strings[entry.getValue()] = entry.getKey();
+            }
+            return strings;
+        }
+
+    }
+
+    /**
+     * Builds a store one feature at a time, so that the features themselves need
+     * not be kept until the store is built.
+     */
+    public static class Builder {
+
+        private final String objectIdField;
+        private final Map<String, ColumnBuilder> columns = new LinkedHashMap<>();
+        private long[] objectIds = new long[16];
+        private int size = 0;
+
+        /**
+         * Creates a builder.
+         * @param objectIdField the name of the object ID field, or null to use the
+         *                      row numbers as object IDs.
+         */
+        public Builder(String objectIdField) {
+            this.objectIdField = objectIdField;
+        }
+
+        /**
+         * Adds a feature's attributes.
+         * @param attributes the attributes.
+         * @return the feature's row number.
+         */
+        public int add(Map<String, ?> attributes) {
+            int row = size++;
+            if (row == objectIds.length) {
+                objectIds = Arrays.copyOf(objectIds, row * 2);
+            }
+            Object objectId = null == objectIdField ? null : AttributeIndex.getValue(attributes, objectIdField);
+            objectIds[row] = objectId instanceof Number ? ((Number) objectId).longValue() : row;
+            for (Map.Entry<String, ?> entry : attributes.entrySet()) {
+                ColumnBuilder column = columns.get(entry.getKey());
+                if (null == column) {
+                    column = new ColumnBuilder(entry.getKey(), row + 1);
+                    columns.put(entry.getKey(), column);
+                }
+                column.set(row, entry.getValue());
+            }
+            return row;
+        }
+
+        /**
+         * @return the number of rows added.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Builds the store. The builder should not be used afterward.
+         * @return the store.
+         */
+        public ColumnarAttributeStore build() {
+            return new ColumnarAttributeStore(this);
+        }
+
+    }
+
+    /**
+     * One column's values, stored off the heap except for OBJECT columns.
+     */
+    private static class Column {
+
+        final String name;
+        final Kind kind;
+        final ByteBuffer values;
+        final Object[] objects;
+        final BitSet present;
+        final ByteBuffer dictionary;
+        final int[] dictionaryOffsets;
+
+        Column(ColumnBuilder builder, int rowCount) {
+            this.name = builder.name;
+            this.kind = null == builder.kind ? Kind.OBJECT : builder.kind;
+            this.present = builder.present;
+            if (Kind.OBJECT == kind) {
+                // A column that is always null needs no values
+                this.values = null;
+                this.objects = null == builder.objects ? null : Arrays.copyOf(builder.objects, rowCount);
+                this.dictionary = null;
+                this.dictionaryOffsets = null;
+                return;
+            }
+            this.objects = null;
+            this.values = ByteBuffer.allocateDirect(rowCount * kind.width).order(ByteOrder.nativeOrder());
+            for (int row = 0; row < rowCount; row++) {
+                long bits = row < builder.bits.length ? builder.bits[row] : 0;
+                switch (kind) {
+                case SHORT:
+                case INTEGER:
+                case STRING:
+                    values.putInt(row * 4, (int) bits);
+                    break;
+                case FLOAT:
+                    values.putFloat(row * 4, (float) Double.longBitsToDouble(bits));
+                    break;
+                default:
+                    values.putLong(row * 8, bits);
+                }
+            }
+            if (Kind.STRING == kind) {
+                String[] strings = builder.dictionaryArray();
+                byte[][] encoded = new byte[strings.length][];
+                int length = 0;
+                for (int i = 0; i < strings.length; i++) {
+                    encoded[i] = strings[i].getBytes(UTF_8);
+                    length += encoded[i].length;
+                }
+                this.dictionary = ByteBuffer.allocateDirect(length);
+                this.dictionaryOffsets = new int[strings.length + 1];
+                for (int i = 0; i < strings.length; i++) {
+                    dictionary.put(encoded[i]);
+                    dictionaryOffsets[i + 1] = dictionary.position();
+                }
+            } else {
+                this.dictionary = null;
+                this.dictionaryOffsets = null;
+            }
+        }
+
+        Object get(int row) {
+            if (!present.get(row)) {
+                return null;
+            }
+            switch (kind) {
+            case SHORT:
+                return (short) values.getInt(row * 4);
+            case INTEGER:
+                return values.getInt(row * 4);
+            case LONG:
+                return values.getLong(row * 8);
+            case FLOAT:
+                return values.getFloat(row * 4);
+            case DOUBLE:
+                return Double.longBitsToDouble(values.getLong(row * 8));
+            case CALENDAR:
+            case DATE:
+                return decode(kind, values.getLong(row * 8), null);
+            case STRING:
+                return getString(values.getInt(row * 4));
+            default:
+                return objects[row];
+            }
+        }
+
+        private String getString(int code) {
+            int start = dictionaryOffsets[code];
+            byte[] bytes = new byte[dictionaryOffsets[code + 1] - start];
+            // Absolute reads keep the buffer's position unchanged, so reads may be concurrent
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = dictionary.get(start + i);
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        long getOffHeapBytes() {
+            return (null == values ? 0 : values.capacity()) + (null == dictionary ? 0 : dictionary.capacity());
+        }
+
+    }
+
+    /**
+     * A feature's attributes, decoded when they are read.
+     */
+    private class RowView extends AbstractMap<String, Object> {
+
+        private final int row;
+
+        RowView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int column = key instanceof String ? getColumn((String) key) : -1;
+            return -1 == column ? null : columns[column].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && -1 != getColumn((String) key);
+        }
+
+        @Override
+        public int size() {
+            return columns.length;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int column = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return column < columns.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Column next = columns[column++];
+                            return new SimpleImmutableEntry<>(next.name, next.get(row));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return columns.length;
+                }
+            };
+        }
+
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Column[] columns;
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    private final int size;
+    private final ByteBuffer objectIds;
+
+    /**
+     * The rows in order of object ID, or null if the rows are already in that order.
+     */
+    private final int[] rowsByObjectId;
+
+    private ColumnarAttributeStore(Builder builder) {
+        this.size = builder.size;
+        this.columns = new Column[builder.columns.size()];
+        int i = 0;
+        for (ColumnBuilder columnBuilder : builder.columns.values()) {
+            columns[i] = new Column(columnBuilder, size);
+            columnIndexes.put(columnBuilder.name, i);
+            i++;
+        }
+        this.objectIds = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder());
+        boolean sorted = true;
+        for (int row = 0; row < size; row++) {
+            objectIds.putLong(row * 8, builder.objectIds[row]);
+            sorted &= 0 == row || builder.objectIds[row - 1] < builder.objectIds[row];
+        }
+        if (sorted) {
+            this.rowsByObjectId = null;
+        } else {
+            final long[] ids = builder.objectIds;
+            Integer[] order = new Integer[size];
+            for (int row = 0; row < size; row++) {
+                order[row] = row;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(ids[a], ids[b]);
+                }
+            });
+            this.rowsByObjectId = new int[size];
+            for (int row = 0; row < size; row++) {
+                rowsByObjectId[row] = order[row];
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the field names, in the order they were first seen.
+     */
+    public List<String> getFieldNames() {
+        List<String> names = new ArrayList<>(columns.length);
+        for (Column column : columns) {
+            names.add(column.name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the column of a field.
+     * @param field the field name, in any case.
+     * @return the column, or -1 if there is no such field.
+     */
+    public int getColumn(String field) {
+        Integer column = columnIndexes.get(field);
+        if (null != column) {
+            return column;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].name.equalsIgnoreCase(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a value.
+     * @param row the row.
+     * @param column the column.
+     * @return the value, or null.
+     */
+    public Object getValue(int row, int column) {
+        return columns[column].get(row);
+    }
+
+    /**
+     * @param row a row.
+     * @return the row's object ID.
+     */
+    public long getObjectId(int row) {
+        return objectIds.getLong(row * 8);
+    }
+
+    /**
+     * Finds a row by object ID.
+     * @param objectId the object ID.
+     * @return the row, or -1 if there is none with the object ID.
+     */
+    public int getRow(long objectId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int row = null == rowsByObjectId ? mid : rowsByObjectId[mid];
+            long id = getObjectId(row);
+            if (id < objectId) {
+                low = mid + 1;
+            } else if (id > objectId) {
+                high = mid - 1;
+            } else {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a row's attributes as a read-only Map that decodes values when they
+     * are read. Every field of the store is a key, with a null value if the
+     * feature did not have it.
+     * @param row the row.
+     * @return the attributes.
+     */
+    public Map<String, Object> getAttributes(int row) {
+        if (0 > row || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return new RowView(row);
+    }
+
+    /**
+     * @return every row's attributes, as views like those of getAttributes, e.g.
+     *         for an AttributeIndex.
+     */
+    public List<Map<String, Object>> asRows() {
+        return new AbstractList<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> get(int row) {
+                return getAttributes(row);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes stored outside the heap.
+     */
+    public long getOffHeapBytes() {
+        long bytes = objectIds.capacity();
+        for (Column column : columns) {
+            bytes += column.getOffHeapBytes();
+        }
+        return bytes;
+    }
+
+    private static Object decode(Kind kind, long bits, String[] strings) {
+        switch (kind) {
+        case SHORT:
+            return (short) bits;
+        case INTEGER:
+            return (int) bits;
+        case LONG:
+            return bits;
+        case FLOAT:
+            return (float) Double.longBitsToDouble(bits);
+        case DOUBLE:
+            return Double.longBitsToDouble(bits);
+        case CALENDAR:
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(bits);
+            return calendar;
+        case DATE:
+            return new Date(bits);
+        default:
+            return strings[(int) bits];
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future for an asynchronous operation that has to be started on a particular
+ * thread, such as an identify by a MapView, which may only be started on the UI
+ * thread. The operation is started by an executor. Cancelling the Future before
+ * then keeps the operation from starting, and cancelling it afterward cancels the
+ * operation's own Future.
+ */
+public class DeferredFuture implements Future<Object> {
+
+    /**
+     * Starts an asynchronous operation.
+     */
+    public interface Operation {
+
+        /**
+         * Starts the operation. Called on the executor's thread.
+         * @return the operation's Future.
+         */
+        Future<?> start();
+
+    }
+
+    private final Operation operation;
+
+    // Guarded by this
+    private boolean started = false;
+    private boolean cancelled = false;
+    private Future<?> future = null;
+    private RuntimeException error = null;
+
+    private DeferredFuture(Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Starts an operation on an executor's thread.
+     * @param executor the executor, e.g. one that runs commands on the UI thread.
+     * @param operation the operation.
+     * @return the Future of the operation.
+     */
+    public static DeferredFuture start(Executor executor, Operation operation) {
+        final DeferredFuture deferred = new DeferredFuture(operation);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deferred.run();
+            }
+        });
+        return deferred;
+    }
+
+    private void run() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+        }
+        Future<?> operationFuture = null;
+        RuntimeException failure = null;
+        try {
+            operationFuture = operation.start();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        boolean cancel;
+        synchronized (this) {
+            started = true;
+            future = operationFuture;
+            error = failure;
+            cancel = cancelled;
+            notifyAll();
+        }
+        if (cancel && null != operationFuture) {
+            operationFuture.cancel(true);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Future<?> operationFuture;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            operationFuture = future;
+            notifyAll();
+        }
+        if (null != operationFuture) {
+            operationFuture.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return cancelled || (started && (null == future || future.isDone()));
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+        return awaitStart().get();
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Future<?> operationFuture;
+        synchronized (this) {
+            while (!started && !cancelled) {
+                long remaining = deadline - System.nanoTime();
+                if (0 >= remaining) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            operationFuture = getStarted();
+        }
+        return operationFuture.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized Future<?> awaitStart() throws InterruptedException, ExecutionException {
+        while (!started && !cancelled) {
+            wait();
+        }
+        return getStarted();
+    }
+
+    private Future<?> getStarted() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (null != error) {
+            throw new ExecutionException(error);
+        }
+        if (null == future) {
+            throw new ExecutionException(new NullPointerException("The operation returned no Future"));
+        }
+        return future;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses journaled edits so that each feature is sent to its service at most
+ * once: an add followed by updates becomes one add with the final attributes,
+ * several updates become one update, updates followed by a delete become the
+ * delete, and a feature that is added and then deleted before it is synced is
+ * not sent at all. Edits made to a feature after it was deleted are dropped.
+ */
+public class EditCompactor {
+
+    /**
+     * The edit that replaces one or more journaled edits to a feature.
+     */
+    public static class CompactedEdit {
+
+        private FeatureEdit edit;
+        private final List<Long> sequences = new ArrayList<>();
+
+        CompactedEdit(FeatureEdit edit) {
+            this.edit = edit;
+        }
+
+        /**
+         * @return the edit to send, or null if the journaled edits cancel out.
+         */
+        public FeatureEdit getEdit() {
+            return edit;
+        }
+
+        /**
+         * @return the sequence numbers of the journaled edits that this edit
+         *         replaces, to acknowledge once it has been sent.
+         */
+        public List<Long> getSequences() {
+            return Collections.unmodifiableList(sequences);
+        }
+
+    }
+
+    private EditCompactor() {
+    }
+
+    /**
+     * Compacts journaled edits.
+     * @param entries the edits, in the order in which they were made.
+     * @return one edit per feature, in the order in which each feature was first
+     *         edited.
+     */
+    public static List<CompactedEdit> compact(List<EditJournal.Entry> entries) {
+        Map<String, CompactedEdit> compacted = new LinkedHashMap<>();
+        for (EditJournal.Entry entry : entries) {
+            FeatureEdit edit = entry.getEdit();
+            String key = edit.getLayerId() + "/" + edit.getObjectId();
+            CompactedEdit existing = compacted.get(key);
+            if (null == existing) {
+                existing = new CompactedEdit(edit);
+                compacted.put(key, existing);
+            } else {
+                existing.edit = merge(existing.edit, edit);
+            }
+            existing.sequences.add(entry.getSequence());
+        }
+        return new ArrayList<>(compacted.values());
+    }
+
+    /**
+     * Merges an edit into the edit that replaces the earlier edits to a feature.
+     * @param earlier the edit that replaces the earlier edits, or null if they
+     *                cancelled out.
+     * @param later the later edit.
+     * @return the edit that replaces both, or null if they cancel out.
+     */
+    static FeatureEdit merge(FeatureEdit earlier, FeatureEdit later) {
+        if (null == earlier || FeatureEdit.Type.DELETE == earlier.getType()) {
+            // The feature no longer exists
+            return earlier;
+        }
+        if (FeatureEdit.Type.DELETE == later.getType()) {
+            return FeatureEdit.Type.ADD == earlier.getType() ? null : later;
+        }
+        Map<String, Object> attributes = new LinkedHashMap<>(earlier.getAttributes());
+        attributes.putAll(later.getAttributes());
+        String geometryJson = null == later.getGeometryJson() ? earlier.getGeometryJson() : later.getGeometryJson();
+        return new FeatureEdit(earlier.getLayerId(), earlier.getType(), earlier.getObjectId(), attributes, geometryJson);
+    }
+
+}
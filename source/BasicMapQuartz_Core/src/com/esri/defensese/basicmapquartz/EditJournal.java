@@ -0,0 +1,542 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only journal of feature edits that have not yet been synced
+ * to their feature services. Every edit is appended to the journal file and
+ * forced to the storage device before append returns, so an edit survives the
+ * app being killed or the device losing power. Synced edits are acknowledged by
+ * appending a record that lists their sequence numbers and the object IDs that
+ * the service assigned to added features.
+ *
+ * <p>Each record is preceded by its length and a CRC32 checksum. When the journal
+ * is opened, the records are replayed, and a record that was only partly written
+ * when the app stopped, which can only be the last, is discarded. Once at least
+ * half of the journaled edits have been acknowledged, the journal is rewritten
+ * with only the pending edits, so the file does not grow without bound. The
+ * rewritten journal is forced to the device in a temporary file, which is then
+ * renamed over the journal, so that one of the two complete files exists at
+ * every moment; if the app stops after the journal is gone but before the
+ * temporary file takes its place, the temporary file is used when the journal is
+ * next opened.</p>
+ */
+public class EditJournal {
+
+    /**
+     * A journaled edit.
+     */
+    public static class Entry {
+
+        private final long sequence;
+        private final FeatureEdit edit;
+
+        Entry(long sequence, FeatureEdit edit) {
+            this.sequence = sequence;
+            this.edit = edit;
+        }
+
+        /**
+         * @return the edit's sequence number, which increases with each edit.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the edit.
+         */
+        public FeatureEdit getEdit() {
+            return edit;
+        }
+
+    }
+
+    private static final Logger logger = Logger.getLogger(EditJournal.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = { 'B', 'M', 'Q', 'E' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte RECORD_EDIT = 1;
+    private static final byte RECORD_ACK = 2;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_LONG = 2;
+    private static final byte VALUE_DOUBLE = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+
+    private final File file;
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+    private final Map<String, Long> assignedObjectIds = new HashMap<>();
+    private FileOutputStream out;
+    private long nextSequence = 1;
+    private long lowestLocalId = 0;
+    private int acknowledgedCount = 0;
+
+    /**
+     * Opens a journal, creating the file if it does not exist and replaying the
+     * edits in it if it does.
+     * @param file the journal file.
+     * @throws IOException if the file cannot be created or read, or is not a
+     *                     journal.
+     */
+    public EditJournal(File file) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (null != parent && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        File tempFile = getTempFile();
+        if (tempFile.exists()) {
+            if (!file.exists() && HEADER_LENGTH <= tempFile.length()) {
+                // The app stopped while the checkpoint was replacing the journal
+                logger.log(Level.WARNING, "Recovering edit journal {0} from {1}", new Object[] { file, tempFile });
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile + " to " + file);
+                }
+            } else if (!tempFile.delete()) {
+                // An unfinished checkpoint; the journal itself is complete
+                logger.log(Level.WARNING, "Could not delete {0}", tempFile);
+            }
+        }
+        if (file.exists() && HEADER_LENGTH <= file.length()) {
+            replay();
+        } else {
+            writeHeader(file);
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * @return the journal file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a new local ID for a feature that is about to be added.
+     * @return a negative ID that no other feature in the journal has had.
+     */
+    public synchronized long nextLocalId() {
+        return --lowestLocalId;
+    }
+
+    /**
+     * Appends an edit and waits until it has been written to the storage device.
+     * An edit to a feature with a local ID whose object ID is already known is
+     * journaled with the object ID.
+     * @param edit the edit.
+     * @return the journaled edit.
+     * @throws IOException if the edit could not be written.
+     */
+    public synchronized Entry append(FeatureEdit edit) throws IOException {
+        if (edit.isLocalId()) {
+            long objectId = getObjectId(edit.getLayerId(), edit.getObjectId());
+            if (objectId != edit.getObjectId()) {
+                edit = edit.withObjectId(objectId);
+            }
+        }
+        Entry entry = new Entry(nextSequence, edit);
+        writeRecord(out, encodeEdit(entry));
+        out.getChannel().force(false);
+        nextSequence++;
+        pending.put(entry.getSequence(), entry);
+        noteLocalId(edit.getObjectId());
+        return entry;
+    }
+
+    /**
+     * Returns the edits that have not been acknowledged, in the order in which
+     * they were appended. Edits to added features whose object IDs are now known
+     * are returned with those object IDs.
+     * @return the pending edits.
+     */
+    public synchronized List<Entry> getPending() {
+        List<Entry> entries = new ArrayList<>(pending.size());
+        for (Entry entry : pending.values()) {
+            FeatureEdit edit = entry.getEdit();
+            if (edit.isLocalId() && FeatureEdit.Type.ADD != edit.getType()) {
+                long objectId = getObjectId(edit.getLayerId(), edit.getObjectId());
+                if (objectId != edit.getObjectId()) {
+                    entry = new Entry(entry.getSequence(), edit.withObjectId(objectId));
+                }
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of edits that have not been acknowledged.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the object ID that the service assigned to an added feature.
+     * @param layerId the layer ID.
+     * @param localId the local ID with which the feature was added.
+     * @return the object ID, or localId if the feature has not been synced.
+     */
+    public synchronized long getObjectId(String layerId, long localId) {
+        Long objectId = assignedObjectIds.get(key(layerId, localId));
+        return null == objectId ? localId : objectId;
+    }
+
+    /**
+     * Records that edits have been synced, or need not be, so that they are no
+     * longer pending, and waits until the record has been written.
+     * @param sequences the sequence numbers of the edits.
+     * @param assignedObjectIds the object IDs assigned by the service to added
+     *                          features, keyed by the edits' sequence numbers.
+     * @throws IOException if the record could not be written.
+     */
+    public synchronized void acknowledge(Collection<Long> sequences, Map<Long, Long> assignedObjectIds)
+            throws IOException {
+        Map<String, Long> assignments = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> assignment : assignedObjectIds.entrySet()) {
+            Entry entry = pending.get(assignment.getKey());
+            if (null != entry && entry.getEdit().isLocalId()) {
+                assignments.put(key(entry.getEdit().getLayerId(), entry.getEdit().getObjectId()), assignment.getValue());
+            }
+        }
+        List<Long> acknowledged = new ArrayList<>();
+        for (Long sequence : sequences) {
+            if (pending.containsKey(sequence)) {
+                acknowledged.add(sequence);
+            }
+        }
+        if (acknowledged.isEmpty() && assignments.isEmpty()) {
+            return;
+        }
+        writeRecord(out, encodeAck(acknowledged, assignments));
+        out.getChannel().force(false);
+        applyAck(acknowledged, assignments);
+        if (acknowledgedCount >= pending.size()) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // The journal is still valid, just longer than it needs to be
+                logger.log(Level.WARNING, "Could not compact edit journal " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the journal file. The journal cannot be used afterward.
+     * @throws IOException if the file could not be closed.
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void applyAck(Collection<Long> sequences, Map<String, Long> assignments) {
+        for (Long sequence : sequences) {
+            if (null != pending.remove(sequence)) {
+                acknowledgedCount++;
+            }
+        }
+        assignedObjectIds.putAll(assignments);
+    }
+
+    /**
+     * Rewrites the journal with only the pending edits and the assigned object IDs.
+     */
+    private void checkpoint() throws IOException {
+        File tempFile = getTempFile();
+        writeHeader(tempFile);
+        FileOutputStream tempOut = new FileOutputStream(tempFile, true);
+        try {
+            for (Entry entry : pending.values()) {
+                writeRecord(tempOut, encodeEdit(entry));
+            }
+            if (!assignedObjectIds.isEmpty()) {
+                writeRecord(tempOut, encodeAck(new ArrayList<Long>(), assignedObjectIds));
+            }
+            tempOut.getChannel().force(true);
+        } finally {
+            tempOut.close();
+        }
+        out.close();
+        // Renaming over the journal replaces it atomically on POSIX file systems,
+        // including Android's. Where the rename cannot replace a file, as on
+        // Windows, the journal is deleted first, and the constructor recovers it
+        // from the temporary file if the app stops in between.
+        boolean replaced = tempFile.renameTo(file) || (file.delete() && tempFile.renameTo(file));
+        out = new FileOutputStream(file, true);
+        if (!replaced) {
+            if (!tempFile.delete()) {
+                logger.log(Level.WARNING, "Could not delete {0}", tempFile);
+            }
+            throw new IOException("Could not replace " + file);
+        }
+        acknowledgedCount = 0;
+    }
+
+    private File getTempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private void replay() throws IOException {
+        long validLength = HEADER_LENGTH;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic) || VERSION != in.readByte()) {
+                throw new IOException(file + " is not an edit journal");
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum;
+                byte[] payload;
+                try {
+                    checksum = in.readInt();
+                    if (0 >= length || MAX_RECORD_LENGTH < length) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                    decode(payload);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Discarding incomplete edit journal record at byte " + validLength
+                            + " of " + file, e);
+                    break;
+                }
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is not an edit journal", e);
+        } finally {
+            in.close();
+        }
+        if (validLength < file.length()) {
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(validLength);
+            } finally {
+                truncated.close();
+            }
+        }
+    }
+
+    private void decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte recordType = in.readByte();
+        if (RECORD_EDIT == recordType) {
+            long sequence = in.readLong();
+            String layerId = in.readUTF();
+            FeatureEdit.Type type = FeatureEdit.Type.values()[in.readByte()];
+            long objectId = in.readLong();
+            String geometryJson = readString(in);
+            int attributeCount = in.readInt();
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < attributeCount; i++) {
+                attributes.put(in.readUTF(), readValue(in));
+            }
+            pending.put(sequence, new Entry(sequence, new FeatureEdit(layerId, type, objectId, attributes, geometryJson)));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            noteLocalId(objectId);
+        } else if (RECORD_ACK == recordType) {
+            int sequenceCount = in.readInt();
+            List<Long> sequences = new ArrayList<>(sequenceCount);
+            for (int i = 0; i < sequenceCount; i++) {
+                sequences.add(in.readLong());
+            }
+            int assignmentCount = in.readInt();
+            Map<String, Long> assignments = new LinkedHashMap<>();
+            for (int i = 0; i < assignmentCount; i++) {
+                String layerId = in.readUTF();
+                long localId = in.readLong();
+                assignments.put(key(layerId, localId), in.readLong());
+                noteLocalId(localId);
+            }
+            applyAck(sequences, assignments);
+        } else {
+            throw new IOException("Unknown record type " + recordType);
+        }
+    }
+
+    private static byte[] encodeEdit(Entry entry) throws IOException {
+        FeatureEdit edit = entry.getEdit();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(RECORD_EDIT);
+        data.writeLong(entry.getSequence());
+        data.writeUTF(edit.getLayerId());
+        data.writeByte(edit.getType().ordinal());
+        data.writeLong(edit.getObjectId());
+        writeString(data, edit.getGeometryJson());
+        data.writeInt(edit.getAttributes().size());
+        for (Map.Entry<String, Object> attribute : edit.getAttributes().entrySet()) {
+            data.writeUTF(attribute.getKey());
+            writeValue(data, attribute.getValue());
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeAck(Collection<Long> sequences, Map<String, Long> assignments) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(RECORD_ACK);
+        data.writeInt(sequences.size());
+        for (Long sequence : sequences) {
+            data.writeLong(sequence);
+        }
+        data.writeInt(assignments.size());
+        for (Map.Entry<String, Long> assignment : assignments.entrySet()) {
+            int separator = assignment.getKey().lastIndexOf('/');
+            data.writeUTF(assignment.getKey().substring(0, separator));
+            data.writeLong(Long.parseLong(assignment.getKey().substring(separator + 1)));
+            data.writeLong(assignment.getValue());
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(FileOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeInt(payload.length);
+        data.writeInt((int) crc.getValue());
+        data.write(payload);
+        data.flush();
+        // One write, so that a record is torn only if the app stops during it
+        out.write(record.toByteArray());
+    }
+
+    private static void writeHeader(File file) throws IOException {
+        FileOutputStream headerOut = new FileOutputStream(file);
+        try {
+            headerOut.write(MAGIC);
+            headerOut.write(VERSION);
+            headerOut.getChannel().force(true);
+        } finally {
+            headerOut.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        // writeUTF is limited to 64 KB, which a polygon's JSON can exceed
+        if (null == value) {
+            data.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (0 > length) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value instanceof String) {
+            data.writeByte(VALUE_STRING);
+            writeString(data, (String) value);
+        } else if (value instanceof Long) {
+            data.writeByte(VALUE_LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            data.writeByte(VALUE_DOUBLE);
+            data.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            data.writeByte(VALUE_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else {
+            data.writeByte(VALUE_NULL);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case VALUE_NULL:
+            return null;
+        case VALUE_STRING:
+            return readString(in);
+        case VALUE_LONG:
+            return in.readLong();
+        case VALUE_DOUBLE:
+            return in.readDouble();
+        case VALUE_BOOLEAN:
+            return in.readBoolean();
+        default:
+            throw new IOException("Unknown value type " + tag);
+        }
+    }
+
+    private void noteLocalId(long id) {
+        if (id < lowestLocalId) {
+            lowestLocalId = id;
+        }
+    }
+
+    private static String key(String layerId, long localId) {
+        return layerId + "/" + localId;
+    }
+
+}
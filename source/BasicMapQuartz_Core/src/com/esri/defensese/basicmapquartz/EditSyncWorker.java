@@ -0,0 +1,554 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues feature edits in an EditJournal and syncs them to their feature services
+ * on a background thread, so that edits can be made without a connection and are
+ * never lost.
+ *
+ * <p>An edit is synced a short batch delay after it is made, so that edits made
+ * in quick succession are sent together. Each sync compacts the pending edits
+ * with EditCompactor and sends each layer's edits in applyEdits requests of up to
+ * maxBatchSize edits, so that many edits to a few features cost a few small
+ * requests. When a request fails, e.g. because there is no connection, the sync
+ * is retried after a delay that doubles with each failure, with jitter, up to
+ * LayerRefreshScheduler.MAX_BACKOFF_MILLIS. An edit that the service rejects,
+ * e.g. an update of a feature that someone else has deleted, is a conflict: it is
+ * reported to the listeners and not sent again.</p>
+ *
+ * <p>Edits are made with the layer ID of a layer whose URL is given to
+ * setLayerUrl; a layer's edits wait in the journal until its URL is known.</p>
+ */
+public class EditSyncWorker {
+
+    /**
+     * Receives the outcome of syncs. Methods are called on the worker's thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a layer's service has applied edits.
+         * @param layerId the layer ID.
+         * @param editCount the number of edits applied, after compaction.
+         */
+        void editsSynced(String layerId, int editCount);
+
+        /**
+         * Called when the service rejected an edit. The edit is not sent again.
+         * @param edit the edit, after compaction.
+         * @param errorCode the service's error code.
+         * @param description the service's description of the error, or null.
+         */
+        void editRejected(FeatureEdit edit, int errorCode, String description);
+
+        /**
+         * Called when a sync failed and will be retried.
+         * @param error the reason for the failure.
+         * @param retryMillis the time until the next attempt.
+         */
+        void syncFailed(Throwable error, long retryMillis);
+
+    }
+
+    /**
+     * Provides the token for a layer's requests.
+     */
+    public interface TokenProvider {
+
+        /**
+         * @param layerUrl the layer's URL.
+         * @return the token, or null to send none.
+         */
+        String getToken(String layerUrl);
+
+    }
+
+    /**
+     * The default time between an edit and the sync that sends it.
+     */
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 2000;
+
+    /**
+     * The default delay before the first retry of a failed sync.
+     */
+    public static final long DEFAULT_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * The default maximum number of edits in one applyEdits request.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * The error code reported for an edit to an added feature that the service
+     * rejected, which therefore cannot be sent.
+     */
+    public static final int ERROR_FEATURE_NOT_ADDED = -1;
+
+    private static final Logger logger = Logger.getLogger(EditSyncWorker.class.getName());
+
+    private final EditJournal journal;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EditSyncWorker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, String> layerUrls = new HashMap<>();
+    private final Map<String, ApplyEditsClient> clients = new HashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong journaledCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile TokenProvider tokenProvider = null;
+    private volatile LatencyHistogram syncHistogram = null;
+    private volatile long batchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+    private volatile long retryMillis = DEFAULT_RETRY_MILLIS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private ScheduledFuture<?> scheduledSync = null;
+    private int failures = 0;
+    private boolean paused = false;
+
+    /**
+     * Creates a worker. Edits already pending in the journal are synced once their
+     * layers' URLs are set.
+     * @param journal the journal.
+     */
+    public EditSyncWorker(EditJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets or removes the URL of a layer whose edits are synced.
+     * @param layerId the layer ID.
+     * @param layerUrl the URL of the feature service layer, or null to stop syncing
+     *                 the layer's edits.
+     */
+    public void setLayerUrl(String layerId, String layerUrl) {
+        synchronized (this) {
+            String oldUrl = null == layerUrl ? layerUrls.remove(layerId) : layerUrls.put(layerId, layerUrl);
+            if (null == layerUrl ? null == oldUrl : layerUrl.equals(oldUrl)) {
+                return;
+            }
+        }
+        if (0 < journal.getPendingCount()) {
+            scheduleSync(batchDelayMillis);
+        }
+    }
+
+    /**
+     * Sets the provider of the tokens sent with requests to secured services.
+     * @param tokenProvider the provider, or null to send no tokens.
+     */
+    public void setTokenProvider(TokenProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
+    /**
+     * @param listener a listener to add.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener a listener to remove.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sets the time between an edit and the sync that sends it.
+     * @param batchDelayMillis the delay in milliseconds.
+     */
+    public void setBatchDelayMillis(long batchDelayMillis) {
+        this.batchDelayMillis = batchDelayMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry of a failed sync, which doubles with
+     * each failure.
+     * @param retryMillis the delay in milliseconds.
+     */
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Sets the maximum number of edits in one applyEdits request.
+     * @param maxBatchSize the maximum number of edits.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Records the number of edits made, sent and rejected, the number of requests,
+     * the number of pending edits and the duration of each sync.
+     * @param metrics the metrics, or null to record only the counts returned by
+     *                this worker's getters.
+     */
+    public void setMetrics(Metrics metrics) {
+        if (null == metrics) {
+            syncHistogram = null;
+            return;
+        }
+        registerCounter(metrics, "bmq_edits_journaled_total", "Number of feature edits made.", journaledCount);
+        registerCounter(metrics, "bmq_edits_sent_total",
+                "Number of feature edits sent to services, after compaction.", sentCount);
+        registerCounter(metrics, "bmq_edits_rejected_total",
+                "Number of feature edits rejected by services.", rejectedCount);
+        registerCounter(metrics, "bmq_edit_requests_total", "Number of applyEdits requests.", requestCount);
+        metrics.registerGauge("bmq_edits_pending", "Number of feature edits waiting to be synced.",
+                new Metrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return journal.getPendingCount();
+                    }
+                });
+        syncHistogram = metrics.histogram("bmq_edit_sync_seconds", "Time taken to sync pending feature edits.");
+    }
+
+    private static void registerCounter(Metrics metrics, String name, String help, final AtomicLong count) {
+        metrics.registerCounter(name, help, new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return count.get();
+            }
+        });
+    }
+
+    /**
+     * Adds a feature. This method blocks until the edit has been journaled, so on
+     * Android it should not be called on the UI thread.
+     * @param layerId the layer ID.
+     * @param attributes the feature's attributes.
+     * @param geometryJson the feature's geometry as Esri JSON, or null.
+     * @return the feature's local ID, with which it can be edited until it is
+     *         synced.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public long add(String layerId, Map<String, ?> attributes, String geometryJson) throws IOException {
+        long localId = journal.nextLocalId();
+        journal(FeatureEdit.add(layerId, localId, attributes, geometryJson));
+        return localId;
+    }
+
+    /**
+     * Updates a feature. This method blocks until the edit has been journaled.
+     * @param layerId the layer ID.
+     * @param objectId the feature's object ID, or its local ID if it was added
+     *                 with add.
+     * @param attributes the attributes to change.
+     * @param geometryJson the new geometry as Esri JSON, or null to keep the
+     *                     geometry.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public void update(String layerId, long objectId, Map<String, ?> attributes, String geometryJson)
+            throws IOException {
+        journal(FeatureEdit.update(layerId, objectId, attributes, geometryJson));
+    }
+
+    /**
+     * Deletes a feature. This method blocks until the edit has been journaled.
+     * @param layerId the layer ID.
+     * @param objectId the feature's object ID, or its local ID if it was added
+     *                 with add.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public void delete(String layerId, long objectId) throws IOException {
+        journal(FeatureEdit.delete(layerId, objectId));
+    }
+
+    private void journal(FeatureEdit edit) throws IOException {
+        journal.append(edit);
+        journaledCount.incrementAndGet();
+        scheduleSync(batchDelayMillis);
+    }
+
+    /**
+     * Returns the object ID of a feature added with add.
+     * @param layerId the layer ID.
+     * @param localId the local ID returned by add.
+     * @return the object ID, or localId if the feature has not been synced.
+     */
+    public long getObjectId(String layerId, long localId) {
+        return journal.getObjectId(layerId, localId);
+    }
+
+    /**
+     * @return the number of edits waiting to be synced.
+     */
+    public int getPendingCount() {
+        return journal.getPendingCount();
+    }
+
+    /**
+     * @return the number of edits made since the worker was created.
+     */
+    public long getJournaledCount() {
+        return journaledCount.get();
+    }
+
+    /**
+     * @return the number of edits sent to services, after compaction.
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of applyEdits requests sent.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of edits that services rejected.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Syncs pending edits now, without waiting for the batch delay or for the
+     * backoff delay after a failure, e.g. when the user asks to sync.
+     */
+    public synchronized void syncNow() {
+        if (null != scheduledSync) {
+            scheduledSync.cancel(false);
+            scheduledSync = null;
+        }
+        scheduleSync(0);
+    }
+
+    /**
+     * Stops syncing until resume is called, e.g. while the app is in the
+     * background. Edits are still journaled. A sync in progress finishes.
+     */
+    public synchronized void pause() {
+        paused = true;
+        if (null != scheduledSync) {
+            scheduledSync.cancel(false);
+            scheduledSync = null;
+        }
+    }
+
+    /**
+     * Syncs again after pause, starting with any pending edits.
+     */
+    public void resume() {
+        synchronized (this) {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+        }
+        if (0 < journal.getPendingCount()) {
+            scheduleSync(batchDelayMillis);
+        }
+    }
+
+    /**
+     * Stops syncing and the background thread. The journal is not closed.
+     */
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates the client for a layer. Overridden by tests.
+     * @param layerUrl the layer's URL.
+     * @return the client.
+     */
+    ApplyEditsClient createClient(String layerUrl) {
+        return new ApplyEditsClient(layerUrl);
+    }
+
+    /**
+     * Schedules a sync, unless one is already scheduled.
+     */
+    private synchronized void scheduleSync(long delayMillis) {
+        if (paused || executor.isShutdown() || null != scheduledSync) {
+            return;
+        }
+        scheduledSync = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EditSyncWorker.this) {
+                    scheduledSync = null;
+                }
+                sync();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sync() {
+        long startNanos = System.nanoTime();
+        List<EditJournal.Entry> pending = journal.getPending();
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, List<EditCompactor.CompactedEdit>> layerEdits = new LinkedHashMap<>();
+        List<Long> cancelled = new ArrayList<>();
+        for (EditCompactor.CompactedEdit compacted : EditCompactor.compact(pending)) {
+            FeatureEdit edit = compacted.getEdit();
+            if (null == edit) {
+                cancelled.addAll(compacted.getSequences());
+                continue;
+            }
+            List<EditCompactor.CompactedEdit> edits = layerEdits.get(edit.getLayerId());
+            if (null == edits) {
+                edits = new ArrayList<>();
+                layerEdits.put(edit.getLayerId(), edits);
+            }
+            edits.add(compacted);
+        }
+        try {
+            if (!cancelled.isEmpty()) {
+                journal.acknowledge(cancelled, new HashMap<Long, Long>());
+            }
+            for (Map.Entry<String, List<EditCompactor.CompactedEdit>> entry : layerEdits.entrySet()) {
+                String layerUrl;
+                ApplyEditsClient client;
+                synchronized (this) {
+                    layerUrl = layerUrls.get(entry.getKey());
+                    if (null == layerUrl) {
+                        continue;
+                    }
+                    client = clients.get(layerUrl);
+                    if (null == client) {
+                        client = createClient(layerUrl);
+                        clients.put(layerUrl, client);
+                    }
+                }
+                TokenProvider provider = tokenProvider;
+                client.setToken(null == provider ? null : provider.getToken(layerUrl));
+                syncLayer(entry.getKey(), client, entry.getValue());
+            }
+        } catch (IOException | RuntimeException e) {
+            long delay;
+            synchronized (this) {
+                failures++;
+                delay = LayerRefreshScheduler.getDelayMillis(retryMillis, failures - 1,
+                        LayerRefreshScheduler.DEFAULT_JITTER, random.nextDouble());
+            }
+            logger.log(Level.WARNING, "Could not sync " + pending.size() + " edits; retrying in "
+                    + TimeUnit.MILLISECONDS.toSeconds(delay) + " s", e);
+            for (Listener listener : listeners) {
+                listener.syncFailed(e, delay);
+            }
+            scheduleSync(delay);
+            return;
+        }
+        synchronized (this) {
+            failures = 0;
+        }
+        LatencyHistogram histogram = syncHistogram;
+        if (null != histogram) {
+            histogram.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Sends a layer's compacted edits in batches, acknowledging each batch as soon
+     * as the service has answered, so that a later failure does not send it again.
+     */
+    private void syncLayer(String layerId, ApplyEditsClient client, List<EditCompactor.CompactedEdit> compactedEdits)
+            throws IOException {
+        List<EditCompactor.CompactedEdit> sendable = new ArrayList<>();
+        List<Long> orphans = new ArrayList<>();
+        for (EditCompactor.CompactedEdit compacted : compactedEdits) {
+            FeatureEdit edit = compacted.getEdit();
+            if (edit.isLocalId() && FeatureEdit.Type.ADD != edit.getType()) {
+                // The add was rejected, so the feature does not exist
+                orphans.addAll(compacted.getSequences());
+                rejected(edit, ERROR_FEATURE_NOT_ADDED, "The feature was not added");
+            } else {
+                sendable.add(compacted);
+            }
+        }
+        if (!orphans.isEmpty()) {
+            journal.acknowledge(orphans, new HashMap<Long, Long>());
+        }
+        int syncedCount = 0;
+        int batchSize = Math.max(1, maxBatchSize);
+        for (int start = 0; start < sendable.size(); start += batchSize) {
+            List<EditCompactor.CompactedEdit> batch = sendable.subList(start, Math.min(sendable.size(), start + batchSize));
+            List<FeatureEdit> edits = new ArrayList<>(batch.size());
+            for (EditCompactor.CompactedEdit compacted : batch) {
+                edits.add(compacted.getEdit());
+            }
+            requestCount.incrementAndGet();
+            List<ApplyEditsClient.EditResult> results = client.applyEdits(edits);
+            sentCount.addAndGet(edits.size());
+            List<Long> acknowledged = new ArrayList<>();
+            Map<Long, Long> assignedObjectIds = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                EditCompactor.CompactedEdit compacted = batch.get(i);
+                ApplyEditsClient.EditResult result = results.get(i);
+                acknowledged.addAll(compacted.getSequences());
+                if (result.isSuccess()) {
+                    syncedCount++;
+                    if (FeatureEdit.Type.ADD == compacted.getEdit().getType() && 0 <= result.getObjectId()) {
+                        // The first journaled edit of a compacted add is the add
+                        assignedObjectIds.put(compacted.getSequences().get(0), result.getObjectId());
+                    }
+                } else {
+                    rejected(compacted.getEdit(), result.getErrorCode(), result.getErrorDescription());
+                }
+            }
+            journal.acknowledge(acknowledged, assignedObjectIds);
+        }
+        if (0 < syncedCount) {
+            for (Listener listener : listeners) {
+                listener.editsSynced(layerId, syncedCount);
+            }
+        }
+    }
+
+    private void rejected(FeatureEdit edit, int errorCode, String description) {
+        rejectedCount.incrementAndGet();
+        logger.log(Level.WARNING, "{0} rejected: {1} {2}", new Object[] { edit, errorCode, description });
+        for (Listener listener : listeners) {
+            listener.editRejected(edit, errorCode, description);
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A persistent store of credentials and tokens, keyed by realm, e.g. the scheme
+ * and authority of a server. The store is encrypted with AES-CBC and authenticated
+ * with HMAC-SHA256, using a random key kept in a separate file that only the
+ * current user can read. This keeps credentials out of plain-text files and
+ * backups; it does not protect them from code running as the same user.
+ *
+ * <p>Every change is written to disk immediately. If the store file cannot be
+ * read or fails authentication, the store starts empty.</p>
+ */
+public class EncryptedCredentialStore {
+
+    /**
+     * A stored credential and the last token generated with it. Entries are
+     * immutable.
+     */
+    public static class Entry {
+
+        private final String username;
+        private final String password;
+        private final String resourceUrl;
+        private final String token;
+        private final long tokenExpiration;
+
+        /**
+         * Creates an entry.
+         * @param username the username.
+         * @param password the password.
+         * @param resourceUrl the URL of a secured resource on the server, used to
+         *                    find the server's token service.
+         * @param token the last token generated, or null.
+         * @param tokenExpiration the token's expiration time, in milliseconds since
+         *                        the epoch, or 0 if there is no token.
+         */
+        public Entry(String username, String password, String resourceUrl, String token, long tokenExpiration) {
+            this.username = username;
+            this.password = password;
+            this.resourceUrl = resourceUrl;
+            this.token = token;
+            this.tokenExpiration = tokenExpiration;
+        }
+
+        /**
+         * @return the username.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return the password.
+         */
+        public String getPassword() {
+            return password;
+        }
+
+        /**
+         * @return the URL of a secured resource on the server.
+         */
+        public String getResourceUrl() {
+            return resourceUrl;
+        }
+
+        /**
+         * @return the last token generated, or null.
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return the token's expiration time, in milliseconds since the epoch, or 0.
+         */
+        public long getTokenExpiration() {
+            return tokenExpiration;
+        }
+
+        /**
+         * Returns a copy of this entry with a new token.
+         * @param token the new token.
+         * @param tokenExpiration the new token's expiration time, in milliseconds
+         *                        since the epoch.
+         * @return the new entry.
+         */
+        public Entry withToken(String token, long tokenExpiration) {
+            return new Entry(username, password, resourceUrl, token, tokenExpiration);
+        }
+
+        /**
+         * Returns true if this entry has a token that is still valid.
+         * @param now the current time, in milliseconds since the epoch.
+         * @param marginMillis how long before its expiration to treat the token as
+         *                     expired.
+         * @return true if the token is valid for at least marginMillis.
+         */
+        public boolean hasValidToken(long now, long marginMillis) {
+            return null != token && now + marginMillis < tokenExpiration;
+        }
+
+    }
+
+    private static final Logger logger = Logger.getLogger(EncryptedCredentialStore.class.getName());
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int ENCRYPTION_KEY_LENGTH = 16;
+    private static final int MAC_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+
+    private static final String FIELD_USERNAME = "username";
+    private static final String FIELD_PASSWORD = "password";
+    private static final String FIELD_RESOURCE_URL = "resourceUrl";
+    private static final String FIELD_TOKEN = "token";
+    private static final String FIELD_TOKEN_EXPIRATION = "tokenExpiration";
+
+    private final File storeFile;
+    private final SecretKeySpec encryptionKey;
+    private final SecretKeySpec macKey;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Opens a store, creating its key file if it does not exist.
+     * @param storeFile the file that holds the encrypted entries.
+     * @param keyFile the file that holds the store's key.
+     * @throws IOException if the key file cannot be read or created.
+     */
+    public EncryptedCredentialStore(File storeFile, File keyFile) throws IOException {
+        this.storeFile = storeFile;
+        byte[] key = loadOrCreateKey(keyFile);
+        encryptionKey = new SecretKeySpec(key, 0, ENCRYPTION_KEY_LENGTH, "AES");
+        macKey = new SecretKeySpec(key, ENCRYPTION_KEY_LENGTH, MAC_KEY_LENGTH, "HmacSHA256");
+        load();
+    }
+
+    /**
+     * Returns the entry for a realm.
+     * @param realm the realm.
+     * @return the entry, or null if there is none.
+     */
+    public synchronized Entry get(String realm) {
+        return entries.get(realm);
+    }
+
+    /**
+     * @return the realms that have entries.
+     */
+    public synchronized Set<String> getRealms() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Adds or replaces the entry for a realm and saves the store.
+     * @param realm the realm.
+     * @param entry the entry.
+     */
+    public synchronized void put(String realm, Entry entry) {
+        entries.put(realm, entry);
+        save();
+    }
+
+    /**
+     * Removes the entry for one realm, e.g. because its server rejected the
+     * credential, and saves the store. Other realms' entries are kept.
+     * @param realm the realm.
+     * @return true if there was an entry for the realm.
+     */
+    public synchronized boolean remove(String realm) {
+        if (null == entries.remove(realm)) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    private static byte[] loadOrCreateKey(File keyFile) throws IOException {
+        int keyLength = ENCRYPTION_KEY_LENGTH + MAC_KEY_LENGTH;
+        if (keyFile.exists()) {
+            byte[] key = new byte[keyLength];
+            DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+            try {
+                in.readFully(key);
+            } finally {
+                in.close();
+            }
+            return key;
+        }
+        byte[] key = new byte[keyLength];
+        new SecureRandom().nextBytes(key);
+        File parent = keyFile.getParentFile();
+        if (null != parent && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        writeOwnerOnly(keyFile, key);
+        return key;
+    }
+
+    /**
+     * Writes a new file that only its owner can read. The file is created empty and
+     * restricted before any bytes are written, so the secret is never readable by
+     * others, even briefly. A file left at the path, e.g. by an interrupted save,
+     * is deleted first rather than reused with its own permissions.
+     */
+    private static void writeOwnerOnly(File file, byte[] bytes) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete stale file " + file);
+        }
+        if (!file.createNewFile()) {
+            throw new IOException("Could not create " + file);
+        }
+        if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true))) {
+            logger.log(Level.WARNING, "Could not restrict permissions of {0}", file);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void load() {
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        if (!storeFile.exists() && tempFile.exists() && !tempFile.renameTo(storeFile)) {
+            // A save stopped between deleting the store and renaming the new one over it
+            logger.log(Level.WARNING, "Could not recover credential store from {0}", tempFile);
+        }
+        if (!storeFile.exists()) {
+            return;
+        }
+        try {
+            byte[] bytes = new byte[(int) storeFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(storeFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            Properties properties = new Properties();
+            InputStream propertiesIn = new ByteArrayInputStream(decrypt(bytes));
+            properties.load(propertiesIn);
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.endsWith("." + FIELD_USERNAME)) {
+                    continue;
+                }
+                String prefix = name.substring(0, name.length() - FIELD_USERNAME.length());
+                String tokenExpiration = properties.getProperty(prefix + FIELD_TOKEN_EXPIRATION);
+                entries.put(prefix.substring(0, prefix.length() - 1), new Entry(
+                        properties.getProperty(name),
+                        properties.getProperty(prefix + FIELD_PASSWORD),
+                        properties.getProperty(prefix + FIELD_RESOURCE_URL),
+                        properties.getProperty(prefix + FIELD_TOKEN),
+                        null == tokenExpiration ? 0 : Long.parseLong(tokenExpiration)));
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read credential store; starting with an empty store", e);
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            String prefix = mapEntry.getKey() + ".";
+            Entry entry = mapEntry.getValue();
+            setProperty(properties, prefix + FIELD_USERNAME, entry.getUsername());
+            setProperty(properties, prefix + FIELD_PASSWORD, entry.getPassword());
+            setProperty(properties, prefix + FIELD_RESOURCE_URL, entry.getResourceUrl());
+            setProperty(properties, prefix + FIELD_TOKEN, entry.getToken());
+            properties.setProperty(prefix + FIELD_TOKEN_EXPIRATION, Long.toString(entry.getTokenExpiration()));
+        }
+        try {
+            ByteArrayOutputStream propertiesOut = new ByteArrayOutputStream();
+            properties.store(propertiesOut, null);
+            File tempFile = new File(storeFile.getPath() + ".tmp");
+            writeOwnerOnly(tempFile, encrypt(propertiesOut.toByteArray()));
+            // Renaming over the store replaces it atomically, so a crash leaves either
+            // the old store or the new one, never neither. Where the rename cannot
+            // replace a file, as on Windows, the store is deleted first, and load
+            // recovers the new one from the temporary file.
+            if (!tempFile.renameTo(storeFile) && !(storeFile.delete() && tempFile.renameTo(storeFile))) {
+                if (!tempFile.delete()) {
+                    logger.log(Level.WARNING, "Could not delete {0}", tempFile);
+                }
+                throw new IOException("Could not replace " + storeFile);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            logger.log(Level.WARNING, "Could not save credential store", e);
+        }
+    }
+
+    private static void setProperty(Properties properties, String name, String value) {
+        if (null != value) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Encrypts bytes into the format version, IV, ciphertext and MAC.
+     */
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        byte[] out = new byte[1 + IV_LENGTH + ciphertext.length + MAC_LENGTH];
+        out[0] = FORMAT_VERSION;
+        System.arraycopy(iv, 0, out, 1, IV_LENGTH);
+        System.arraycopy(ciphertext, 0, out, 1 + IV_LENGTH, ciphertext.length);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(out, 0, out.length - MAC_LENGTH);
+        System.arraycopy(mac.doFinal(), 0, out, out.length - MAC_LENGTH, MAC_LENGTH);
+        return out;
+    }
+
+    /**
+     * Verifies and decrypts bytes written by encrypt.
+     */
+    byte[] decrypt(byte[] bytes) throws GeneralSecurityException {
+        if (bytes.length < 1 + IV_LENGTH + MAC_LENGTH || FORMAT_VERSION != bytes[0]) {
+            throw new GeneralSecurityException("Unrecognized credential store format");
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(bytes, 0, bytes.length - MAC_LENGTH);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(bytes, bytes.length - MAC_LENGTH, bytes.length))) {
+            throw new GeneralSecurityException("Credential store failed authentication");
+        }
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(bytes, 1, IV_LENGTH));
+        return cipher.doFinal(bytes, 1 + IV_LENGTH, bytes.length - 1 - IV_LENGTH - MAC_LENGTH);
+    }
+
+}
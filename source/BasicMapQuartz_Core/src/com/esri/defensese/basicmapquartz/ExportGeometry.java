@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A feature's geometry for export, read from the Esri JSON that
+ * Geometry.toJson returns and written as GeoJSON or WKT. Only x and y are kept,
+ * and each part is held as an array of interleaved x and y coordinates.
+ *
+ * <p>Esri JSON polygons are lists of rings in which outer rings are clockwise
+ * and holes are counterclockwise. When written, each hole is given to the outer
+ * ring before it and the ring order is reversed, as GeoJSON requires.</p>
+ */
+public class ExportGeometry {
+
+    /**
+     * The kinds of geometry, with the codes used in the binary export format.
+     */
+    public enum Type {
+        POINT(1), MULTIPOINT(2), POLYLINE(3), POLYGON(4);
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        /**
+         * @return the code of the type in the binary export format.
+         */
+        public int getCode() {
+            return code;
+        }
+    }
+
+    private final Type type;
+    private final double[][] parts;
+
+    /**
+     * Creates a geometry.
+     * @param type the type.
+     * @param parts the parts, each an array of interleaved x and y coordinates. A
+     *              point or multipoint has one part.
+     */
+    public ExportGeometry(Type type, double[][] parts) {
+        this.type = type;
+        this.parts = parts;
+    }
+
+    /**
+     * Reads a geometry from Esri JSON. Envelopes are read as polygons.
+     * @param json the Esri JSON of a point, multipoint, polyline, polygon or
+     *             envelope.
+     * @return the geometry, or null if the JSON is empty or null or describes an
+     *         empty geometry.
+     * @throws IOException if the JSON is malformed.
+     */
+    public static ExportGeometry fromEsriJson(String json) throws IOException {
+        if (null == json || json.isEmpty()) {
+            return null;
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        if (JsonReader.Token.NULL == reader.peek()) {
+            return null;
+        }
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double[] envelope = { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+        Type type = null;
+        double[][] parts = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+            case "x":
+            case "y":
+            case "xmin":
+            case "ymin":
+            case "xmax":
+            case "ymax":
+                double value = readCoordinate(reader);
+                if ("x".equals(name)) {
+                    x = value;
+                } else if ("y".equals(name)) {
+                    y = value;
+                } else {
+                    envelope["xmin".equals(name) ? 0 : "ymin".equals(name) ? 1 : "xmax".equals(name) ? 2 : 3] = value;
+                }
+                break;
+            case "points":
+                type = Type.MULTIPOINT;
+                parts = new double[][] { readPoints(reader) };
+                break;
+            case "paths":
+            case "rings":
+                type = "paths".equals(name) ? Type.POLYLINE : Type.POLYGON;
+                List<double[]> partList = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    partList.add(readPoints(reader));
+                }
+                reader.endArray();
+                parts = partList.toArray(new double[partList.size()][]);
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (null == type && !Double.isNaN(x) && !Double.isNaN(y)) {
+            return new ExportGeometry(Type.POINT, new double[][] { { x, y } });
+        }
+        if (null == type && !Double.isNaN(envelope[0]) && !Double.isNaN(envelope[1])) {
+            return new ExportGeometry(Type.POLYGON, new double[][] { {
+                envelope[0], envelope[1], envelope[0], envelope[3], envelope[2], envelope[3],
+                envelope[2], envelope[1], envelope[0], envelope[1] } });
+        }
+        return null == parts || 0 == parts.length || (1 == parts.length && 0 == parts[0].length)
+                ? null : new ExportGeometry(type, parts);
+    }
+
+    private static double readCoordinate(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+        case NUMBER:
+            return reader.nextDouble();
+        case NULL:
+            reader.nextNull();
+            return Double.NaN;
+        default:
+            // Empty points are written as "NaN" by some servers
+            reader.skipValue();
+            return Double.NaN;
+        }
+    }
+
+    private static double[] readPoints(JsonReader reader) throws IOException {
+        double[] coordinates = new double[16];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            if (size + 2 > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+            }
+            coordinates[size++] = readCoordinate(reader);
+            coordinates[size++] = readCoordinate(reader);
+            // Skip z and m
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+        }
+        reader.endArray();
+        return Arrays.copyOf(coordinates, size);
+    }
+
+    /**
+     * @return the type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the parts, each an array of interleaved x and y coordinates.
+     */
+    public double[][] getParts() {
+        return parts;
+    }
+
+    /**
+     * Appends the geometry as a GeoJSON geometry object.
+     * @param out the StringBuilder to which to append.
+     */
+    public void appendGeoJson(StringBuilder out) {
+        switch (type) {
+        case POINT:
+            out.append("{\"type\":\"Point\",\"coordinates\":");
+            appendPosition(out, parts[0], 0, '[', ',', ']');
+            break;
+        case MULTIPOINT:
+            out.append("{\"type\":\"MultiPoint\",\"coordinates\":");
+            appendPositions(out, parts[0], false, '[', ',', ']');
+            break;
+        case POLYLINE:
+            out.append(1 == parts.length ? "{\"type\":\"LineString\",\"coordinates\":"
+                    : "{\"type\":\"MultiLineString\",\"coordinates\":[");
+            for (int i = 0; i < parts.length; i++) {
+                out.append(0 == i ? "" : ",");
+                appendPositions(out, parts[i], false, '[', ',', ']');
+            }
+            out.append(1 == parts.length ? "" : "]");
+            break;
+        default:
+            List<List<double[]>> polygons = groupRings();
+            out.append(1 == polygons.size() ? "{\"type\":\"Polygon\",\"coordinates\":"
+                    : "{\"type\":\"MultiPolygon\",\"coordinates\":[");
+            for (int i = 0; i < polygons.size(); i++) {
+                out.append(0 == i ? "[" : ",[");
+                List<double[]> rings = polygons.get(i);
+                for (int j = 0; j < rings.size(); j++) {
+                    out.append(0 == j ? "" : ",");
+                    appendPositions(out, rings.get(j), true, '[', ',', ']');
+                }
+                out.append(']');
+            }
+            out.append(1 == polygons.size() ? "" : "]");
+        }
+        out.append('}');
+    }
+
+    /**
+     * Appends the geometry as well-known text.
+     * @param out the StringBuilder to which to append.
+     */
+    public void appendWkt(StringBuilder out) {
+        switch (type) {
+        case POINT:
+            out.append("POINT ");
+            appendPosition(out, parts[0], 0, '(', ' ', ')');
+            break;
+        case MULTIPOINT:
+            out.append("MULTIPOINT (");
+            for (int i = 0; i < parts[0].length; i += 2) {
+                out.append(0 == i ? "" : ", ");
+                appendPosition(out, parts[0], i, '(', ' ', ')');
+            }
+            out.append(')');
+            break;
+        case POLYLINE:
+            out.append(1 == parts.length ? "LINESTRING " : "MULTILINESTRING (");
+            for (int i = 0; i < parts.length; i++) {
+                out.append(0 == i ? "" : ", ");
+                appendWktPositions(out, parts[i], false);
+            }
+            out.append(1 == parts.length ? "" : ")");
+            break;
+        default:
+            List<List<double[]>> polygons = groupRings();
+            out.append(1 == polygons.size() ? "POLYGON " : "MULTIPOLYGON (");
+            for (int i = 0; i < polygons.size(); i++) {
+                out.append(0 == i ? "(" : ", (");
+                List<double[]> rings = polygons.get(i);
+                for (int j = 0; j < rings.size(); j++) {
+                    out.append(0 == j ? "" : ", ");
+                    appendWktPositions(out, rings.get(j), true);
+                }
+                out.append(')');
+            }
+            out.append(1 == polygons.size() ? "" : ")");
+        }
+    }
+
+    /**
+     * Groups a polygon's rings into polygons, each an outer ring followed by its
+     * holes. A hole that comes before any outer ring is treated as an outer ring.
+     */
+    private List<List<double[]>> groupRings() {
+        List<List<double[]>> polygons = new ArrayList<>();
+        for (double[] ring : parts) {
+            if (0 == ring.length) {
+                continue;
+            }
+            if (0 > signedArea(ring) && !polygons.isEmpty()) {
+                polygons.get(polygons.size() - 1).add(ring);
+            } else {
+                List<double[]> polygon = new ArrayList<>();
+                polygon.add(ring);
+                polygons.add(polygon);
+            }
+        }
+        return polygons;
+    }
+
+    /**
+     * Returns twice the signed area of a ring, which is negative for a
+     * counterclockwise ring, as in Esri JSON holes.
+     */
+    static double signedArea(double[] ring) {
+        double area = 0;
+        for (int i = 0; i + 3 < ring.length; i += 2) {
+            area += (ring[i + 2] - ring[i]) * (ring[i + 3] + ring[i + 1]);
+        }
+        return area;
+    }
+
+    private static void appendPositions(StringBuilder out, double[] coordinates, boolean reverse,
+                                        char open, char separator, char close) {
+        out.append('[');
+        int count = coordinates.length / 2;
+        for (int i = 0; i < count; i++) {
+            out.append(0 == i ? "" : ",");
+            appendPosition(out, coordinates, 2 * (reverse ? count - 1 - i : i), open, separator, close);
+        }
+        out.append(']');
+    }
+
+    private static void appendWktPositions(StringBuilder out, double[] coordinates, boolean reverse) {
+        out.append('(');
+        int count = coordinates.length / 2;
+        for (int i = 0; i < count; i++) {
+            out.append(0 == i ? "" : ", ");
+            int index = 2 * (reverse ? count - 1 - i : i);
+            appendNumber(out, coordinates[index]);
+            out.append(' ');
+            appendNumber(out, coordinates[index + 1]);
+        }
+        out.append(')');
+    }
+
+    private static void appendPosition(StringBuilder out, double[] coordinates, int index,
+                                       char open, char separator, char close) {
+        out.append(open);
+        appendNumber(out, coordinates[index]);
+        out.append(separator);
+        appendNumber(out, coordinates[index + 1]);
+        out.append(close);
+    }
+
+    /**
+     * Appends a number without an exponent, which not every WKT reader accepts.
+     * NaN and infinite values are written as 0.
+     */
+    static void appendNumber(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append('0');
+            return;
+        }
+        String text = Double.toString(value);
+        if (0 <= text.indexOf('E')) {
+            text = new BigDecimal(text).stripTrailingZeros().toPlainString();
+        }
+        if (text.endsWith(".0")) {
+            out.append(text, 0, text.length() - 2);
+        } else {
+            out.append(text);
+        }
+    }
+
+}
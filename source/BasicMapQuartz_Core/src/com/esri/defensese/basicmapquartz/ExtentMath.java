@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+/**
+ * Extent arithmetic on arrays of xmin, ymin, xmax and ymax values, the layout that
+ * PackedHilbertRTree uses, so that it needs no geometry objects.
+ */
+public class ExtentMath {
+
+    /**
+     * The margin added on each side of a layer's extent when zooming to it, as a
+     * fraction of the extent's width and height, so that the layer fills the
+     * middle of the map.
+     */
+    public static final double ZOOM_MARGIN = 0.5;
+
+    private ExtentMath() {
+    }
+
+    /**
+     * Expands an extent in place by a fraction of its width and height on each side.
+     * @param extent the extent, as xmin, ymin, xmax, ymax.
+     * @param margin the fraction of the width and height to add on each side. A
+     *               negative margin shrinks the extent.
+     * @return the extent array, for chaining.
+     */
+    public static double[] expand(double[] extent, double margin) {
+        double dx = (extent[2] - extent[0]) * margin;
+        double dy = (extent[3] - extent[1]) * margin;
+        extent[0] -= dx;
+        extent[1] -= dy;
+        extent[2] += dx;
+        extent[3] += dy;
+        return extent;
+    }
+
+    /**
+     * Grows an extent in place about its center so that it is at least a given
+     * width and height, e.g. so that zooming to a point shows its surroundings.
+     * @param extent the extent, as xmin, ymin, xmax, ymax.
+     * @param minWidth the minimum width.
+     * @param minHeight the minimum height.
+     * @return the extent array, for chaining.
+     */
+    public static double[] expandToMinimum(double[] extent, double minWidth, double minHeight) {
+        double dx = (minWidth - (extent[2] - extent[0])) / 2;
+        double dy = (minHeight - (extent[3] - extent[1])) / 2;
+        if (0 < dx) {
+            extent[0] -= dx;
+            extent[2] += dx;
+        }
+        if (0 < dy) {
+            extent[1] -= dy;
+            extent[3] += dy;
+        }
+        return extent;
+    }
+
+    /**
+     * Tells whether two extents intersect. Extents that only touch intersect.
+     * @param a the first extent, as xmin, ymin, xmax, ymax.
+     * @param b the second extent, as xmin, ymin, xmax, ymax.
+     * @return true if the extents intersect.
+     */
+    public static boolean intersects(double[] a, double[] b) {
+        return !(a[2] < b[0] || a[3] < b[1] || a[0] > b[2] || a[1] > b[3]);
+    }
+
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files of the on-disk cache of one feature service layer: a geodatabase and
+ * a properties file that records when it was last synced, both named by a key
+ * derived from the layer URL and definition expression. A new geodatabase is
+ * generated into a separate file and renamed into place when complete, so that
+ * an interrupted download never leaves a partial cache behind.
+ *
+ * <p>This class does not depend on ArcGIS Runtime; OfflineFeatureCache uses it to
+ * manage the geodatabase that Runtime generates and syncs.</p>
+ */
+public class FeatureCacheFiles {
+
+    private static final Logger logger = Logger.getLogger(FeatureCacheFiles.class.getName());
+
+    private static final String PROPERTY_LAST_SYNC = "lastSync";
+    private static final String PROPERTY_SERVICE_URL = "serviceUrl";
+    private static final String PROPERTY_DEFINITION_EXPRESSION = "definitionExpression";
+
+    private final String featureLayerUrl;
+    private final String definitionExpression;
+    private final File geodatabaseFile;
+    private final File newGeodatabaseFile;
+    private final File syncInfoFile;
+
+    /**
+     * Creates the files of a layer's cache. Nothing is written until a
+     * geodatabase is generated.
+     * @param featureLayerUrl the URL of the feature service layer.
+     * @param definitionExpression the definition expression for the layer, or null.
+     * @param cacheDirectory the directory in which to store the cache. It is
+     *                       created if it does not exist.
+     */
+    public FeatureCacheFiles(String featureLayerUrl, String definitionExpression, File cacheDirectory) {
+        this.featureLayerUrl = featureLayerUrl;
+        this.definitionExpression = definitionExpression;
+        if (!cacheDirectory.exists() && !cacheDirectory.mkdirs()) {
+            logger.log(Level.WARNING, "Could not create feature cache directory {0}", cacheDirectory);
+        }
+        String key = getCacheKey(featureLayerUrl, definitionExpression);
+        geodatabaseFile = new File(cacheDirectory, key + ".geodatabase");
+        newGeodatabaseFile = new File(cacheDirectory, "new-" + key + ".geodatabase");
+        syncInfoFile = new File(cacheDirectory, key + ".properties");
+    }
+
+    /**
+     * Returns the file name key for a layer URL and definition expression.
+     * @param featureLayerUrl the URL of the feature service layer.
+     * @param definitionExpression the definition expression, or null.
+     * @return a hex string that is unique to the URL and definition expression.
+     */
+    public static String getCacheKey(String featureLayerUrl, String definitionExpression) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(featureLayerUrl.getBytes("UTF-8"));
+            digest.update((byte) '\n');
+            if (null != definitionExpression) {
+                digest.update(definitionExpression.getBytes("UTF-8"));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Every Java platform is required to support SHA-1 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached geodatabase, which exists once one has been generated.
+     * @return the geodatabase file.
+     */
+    public File getGeodatabaseFile() {
+        return geodatabaseFile;
+    }
+
+    /**
+     * Returns true if a geodatabase has been generated.
+     * @return true if the geodatabase file exists.
+     */
+    public boolean exists() {
+        return geodatabaseFile.exists();
+    }
+
+    /**
+     * Returns the file into which to generate a new geodatabase, deleting what is
+     * left of an earlier, interrupted download.
+     * @return the file, or null if a stale file could not be deleted.
+     */
+    public File prepareNewGeodatabase() {
+        if (newGeodatabaseFile.exists() && !newGeodatabaseFile.delete()) {
+            logger.log(Level.WARNING, "Could not delete stale file {0}", newGeodatabaseFile);
+            return null;
+        }
+        return newGeodatabaseFile;
+    }
+
+    /**
+     * Moves a newly generated geodatabase into the cache and records the time of
+     * the sync.
+     * @param syncTime the time at which the geodatabase was generated, in
+     *                 milliseconds since the epoch.
+     * @return true if the geodatabase was moved into the cache.
+     */
+    public boolean commitNewGeodatabase(long syncTime) {
+        if (!newGeodatabaseFile.renameTo(geodatabaseFile)) {
+            logger.log(Level.WARNING, "Could not move {0} into the feature cache", newGeodatabaseFile);
+            return false;
+        }
+        recordSync(syncTime);
+        return true;
+    }
+
+    /**
+     * Returns the time of the last successful generate or sync, or 0 if the cache
+     * has never been filled.
+     * @return the time of the last sync, in milliseconds since the epoch.
+     */
+    public long getLastSyncTime() {
+        if (!geodatabaseFile.exists()) {
+            return 0;
+        }
+        Properties syncInfo = new Properties();
+        try {
+            InputStream in = new FileInputStream(syncInfoFile);
+            try {
+                syncInfo.load(in);
+            } finally {
+                in.close();
+            }
+            return Long.parseLong(syncInfo.getProperty(PROPERTY_LAST_SYNC, "0"));
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the time of a successful generate or sync. A failure to write it is
+     * logged, since the geodatabase itself is still usable.
+     * @param syncTime the time of the sync, in milliseconds since the epoch.
+     */
+    public void recordSync(long syncTime) {
+        Properties syncInfo = new Properties();
+        syncInfo.setProperty(PROPERTY_LAST_SYNC, Long.toString(syncTime));
+        syncInfo.setProperty(PROPERTY_SERVICE_URL, featureLayerUrl);
+        if (null != definitionExpression) {
+            syncInfo.setProperty(PROPERTY_DEFINITION_EXPRESSION, definitionExpression);
+        }
+        try {
+            OutputStream out = new FileOutputStream(syncInfoFile);
+            try {
+                syncInfo.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + syncInfoFile, e);
+        }
+    }
+
+    /**
+     * Deletes the geodatabase and its sync time, e.g. when the geodatabase cannot
+     * be read.
+     */
+    public void delete() {
+        if ((geodatabaseFile.exists() && !geodatabaseFile.delete())
+                || (syncInfoFile.exists() && !syncInfoFile.delete())) {
+            logger.log(Level.WARNING, "Could not delete feature cache {0}", geodatabaseFile);
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the on-disk cache of one feature service layer is opened,
+ * generated and synced. The first time, the layer is read from its service and
+ * a geodatabase is generated in the background for the next launch. After that,
+ * the layer is read from the geodatabase and only the edits made on the server
+ * since the last sync are downloaded. A geodatabase that cannot be read is
+ * discarded and generated again.
+ *
+ * <p>This class does not depend on ArcGIS Runtime. OfflineFeatureCache gives it a
+ * Backend that creates the layer and runs the generate and sync jobs.</p>
+ */
+public class FeatureCacheUpdater {
+
+    /**
+     * The outcome of an asynchronous step. Methods may be called on any thread.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the step succeeded.
+         */
+        void succeeded();
+
+        /**
+         * Called when the step failed.
+         * @param error the reason for the failure.
+         */
+        void failed(Throwable error);
+
+    }
+
+    /**
+     * Creates the layer and runs the generate and sync jobs against the feature
+     * service.
+     */
+    public interface Backend {
+
+        /**
+         * Creates the layer from its feature service.
+         * @param loaded called when the layer has loaded, after which its features
+         *               can be cached, or failed if it could not load.
+         */
+        void openServiceLayer(Callback loaded);
+
+        /**
+         * Opens a geodatabase and creates the layer from it. If the geodatabase
+         * cannot be read, it is closed before opened.failed is called.
+         * @param geodatabaseFile the geodatabase.
+         * @param opened called when the layer has been created.
+         */
+        void openGeodatabase(File geodatabaseFile, Callback opened);
+
+        /**
+         * Downloads the layer's features into a new geodatabase and closes it.
+         * @param newGeodatabaseFile the file to write.
+         * @param generated called when the geodatabase is complete.
+         */
+        void generateGeodatabase(File newGeodatabaseFile, Callback generated);
+
+        /**
+         * Downloads the edits made on the server since the open geodatabase was
+         * last generated or synced.
+         * @param synced called when the edits have been downloaded.
+         */
+        void syncGeodatabase(Callback synced);
+
+    }
+
+    /**
+     * Receives the layer's source and the outcome of cache updates. Methods may be
+     * called on any thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the Backend has created the layer.
+         * @param fromCache true if the layer reads from the geodatabase and false
+         *                  if it reads from the feature service.
+         */
+        void layerOpened(boolean fromCache);
+
+        /**
+         * Called when the geodatabase has been generated or synced.
+         * @param syncTime the time of the sync, in milliseconds since the epoch.
+         */
+        void cacheUpdated(long syncTime);
+
+        /**
+         * Called when the geodatabase could not be synced. The layer keeps
+         * reading the features it has.
+         * @param error the reason for the failure.
+         */
+        void cacheUpdateFailed(Throwable error);
+
+    }
+
+    private static final Logger logger = Logger.getLogger(FeatureCacheUpdater.class.getName());
+
+    private final FeatureCacheFiles files;
+    private final Backend backend;
+    private volatile boolean geodatabaseOpen = false;
+
+    /**
+     * Creates an updater. Nothing is read or downloaded until open is called.
+     * @param files the files of the layer's cache.
+     * @param backend the backend that creates the layer and runs the jobs.
+     */
+    public FeatureCacheUpdater(FeatureCacheFiles files, Backend backend) {
+        this.files = files;
+        this.backend = backend;
+    }
+
+    /**
+     * Opens the layer, from the geodatabase if there is one and from the feature
+     * service otherwise, and then starts updating the geodatabase in the
+     * background.
+     * @param listener the listener that is told where the layer reads from and
+     *                 receives cache updates.
+     */
+    public void open(final Listener listener) {
+        if (!files.exists()) {
+            openServiceLayer(listener);
+            return;
+        }
+        backend.openGeodatabase(files.getGeodatabaseFile(), new Callback() {
+            @Override
+            public void succeeded() {
+                geodatabaseOpen = true;
+                listener.layerOpened(true);
+                sync(listener);
+            }
+
+            @Override
+            public void failed(Throwable error) {
+                logger.log(Level.WARNING, "Discarding unreadable feature cache " + files.getGeodatabaseFile(), error);
+                files.delete();
+                openServiceLayer(listener);
+            }
+        });
+    }
+
+    /**
+     * Downloads the edits made on the server since the last sync, e.g. when the
+     * layer is refreshed. A layer read from the feature service is not refreshed
+     * here.
+     * @param listener the listener whose cacheUpdated or cacheUpdateFailed is
+     *                 called when the sync is done.
+     * @return true if a sync was started, or false if the layer does not read
+     *         from the geodatabase.
+     */
+    public boolean refresh(Listener listener) {
+        if (!geodatabaseOpen) {
+            return false;
+        }
+        sync(listener);
+        return true;
+    }
+
+    private void openServiceLayer(final Listener listener) {
+        backend.openServiceLayer(new Callback() {
+            @Override
+            public void succeeded() {
+                generate(listener);
+            }
+
+            @Override
+            public void failed(Throwable error) {
+                // The layer reports its own load error, and there is nothing to cache
+            }
+        });
+        listener.layerOpened(false);
+    }
+
+    private void generate(final Listener listener) {
+        File newFile = files.prepareNewGeodatabase();
+        if (null == newFile) {
+            return;
+        }
+        backend.generateGeodatabase(newFile, new Callback() {
+            @Override
+            public void succeeded() {
+                long syncTime = System.currentTimeMillis();
+                if (files.commitNewGeodatabase(syncTime)) {
+                    listener.cacheUpdated(syncTime);
+                }
+            }
+
+            @Override
+            public void failed(Throwable error) {
+                // Services that do not support sync are read online, as before
+                logger.log(Level.INFO, "Could not generate feature cache " + files.getGeodatabaseFile(), error);
+            }
+        });
+    }
+
+    private void sync(final Listener listener) {
+        backend.syncGeodatabase(new Callback() {
+            @Override
+            public void succeeded() {
+                long syncTime = System.currentTimeMillis();
+                files.recordSync(syncTime);
+                listener.cacheUpdated(syncTime);
+            }
+
+            @Override
+            public void failed(Throwable error) {
+                logger.log(Level.INFO, "Could not sync feature cache " + files.getGeodatabaseFile(), error);
+                listener.cacheUpdateFailed(error);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An edit to one feature of a feature service layer: an add, an update of some
+ * attributes and optionally the geometry, or a delete. Edits are immutable and
+ * hold only values that can be journaled and sent to the service: attribute
+ * values are strings, longs, doubles, booleans or null, dates are stored as
+ * milliseconds since the epoch, and the geometry is Esri JSON.
+ *
+ * <p>A feature that has been added but not yet synced has no object ID yet. It
+ * is identified by a negative local ID, which later edits to the feature use
+ * until the service assigns its object ID.</p>
+ */
+public class FeatureEdit {
+
+    /**
+     * The types of edits.
+     */
+    public enum Type {
+        ADD, UPDATE, DELETE
+    }
+
+    private final String layerId;
+    private final Type type;
+    private final long objectId;
+    private final Map<String, Object> attributes;
+    private final String geometryJson;
+
+    FeatureEdit(String layerId, Type type, long objectId, Map<String, ?> attributes, String geometryJson) {
+        if (null == layerId) {
+            throw new IllegalArgumentException("An edit needs a layer ID");
+        }
+        this.layerId = layerId;
+        this.type = type;
+        this.objectId = objectId;
+        Map<String, Object> values = new LinkedHashMap<>();
+        if (null != attributes) {
+            for (Map.Entry<String, ?> attribute : attributes.entrySet()) {
+                values.put(attribute.getKey(), normalize(attribute.getValue()));
+            }
+        }
+        this.attributes = Collections.unmodifiableMap(values);
+        this.geometryJson = geometryJson;
+    }
+
+    /**
+     * Creates an add.
+     * @param layerId the ID of the layer.
+     * @param localId the negative local ID of the new feature.
+     * @param attributes the feature's attributes.
+     * @param geometryJson the feature's geometry as Esri JSON, or null.
+     * @return the edit.
+     */
+    public static FeatureEdit add(String layerId, long localId, Map<String, ?> attributes, String geometryJson) {
+        if (0 <= localId) {
+            throw new IllegalArgumentException("A new feature needs a negative local ID");
+        }
+        return new FeatureEdit(layerId, Type.ADD, localId, attributes, geometryJson);
+    }
+
+    /**
+     * Creates an update.
+     * @param layerId the ID of the layer.
+     * @param objectId the object ID of the feature, or its local ID if it has not
+     *                 been synced yet.
+     * @param attributes the attributes to change. Other attributes keep their
+     *                   values.
+     * @param geometryJson the new geometry as Esri JSON, or null to keep the
+     *                     geometry.
+     * @return the edit.
+     */
+    public static FeatureEdit update(String layerId, long objectId, Map<String, ?> attributes, String geometryJson) {
+        return new FeatureEdit(layerId, Type.UPDATE, objectId, attributes, geometryJson);
+    }
+
+    /**
+     * Creates a delete.
+     * @param layerId the ID of the layer.
+     * @param objectId the object ID of the feature, or its local ID if it has not
+     *                 been synced yet.
+     * @return the edit.
+     */
+    public static FeatureEdit delete(String layerId, long objectId) {
+        return new FeatureEdit(layerId, Type.DELETE, objectId, null, null);
+    }
+
+    /**
+     * Converts an attribute value to a type that can be journaled and sent as JSON.
+     */
+    static Object normalize(Object value) {
+        Long time = FeatureExportWriter.getTime(value);
+        if (null != time) {
+            return time;
+        } else if (value instanceof Double || value instanceof Float) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (null == value || value instanceof Boolean || value instanceof String) {
+            return value;
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the ID of the layer.
+     */
+    public String getLayerId() {
+        return layerId;
+    }
+
+    /**
+     * @return the type of edit.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the object ID of the feature, or a negative local ID for a feature
+     *         that has not been synced.
+     */
+    public long getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * @return true if the feature has not been synced, so that it has a local ID.
+     */
+    public boolean isLocalId() {
+        return 0 > objectId;
+    }
+
+    /**
+     * @return the attributes to set, in the order in which they were given.
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the geometry as Esri JSON, or null if the geometry is not set.
+     */
+    public String getGeometryJson() {
+        return geometryJson;
+    }
+
+    /**
+     * Returns this edit for a feature with a different object ID, e.g. the one the
+     * service assigned to a feature added with a local ID.
+     * @param newObjectId the object ID.
+     * @return the edit.
+     */
+    FeatureEdit withObjectId(long newObjectId) {
+        return new FeatureEdit(layerId, type, newObjectId, attributes, geometryJson);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + layerId + "/" + objectId;
+    }
+
+}
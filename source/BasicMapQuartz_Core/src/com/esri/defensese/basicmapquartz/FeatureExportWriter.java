@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes features to a channel as GeoJSON, CSV or a compact binary format, one
+ * feature at a time through a fixed-size buffer, so that the memory used does not
+ * grow with the number of features exported.
+ *
+ * <p>GeoJSON is written as a FeatureCollection whose geometries should be in WGS
+ * 1984. CSV has a header row with the field names and a WKT column, and is
+ * quoted as in RFC 4180. Dates are written in ISO 8601 in UTC.</p>
+ *
+ * <p>The binary format is big-endian. It starts with the magic number "BMQF", a
+ * version byte of 1, the number of fields as an int, and each field name as a
+ * short length and UTF-8 bytes. Each feature follows as an int length and the
+ * feature's bytes: a type byte and value for each field (0 null, 1 long, 2
+ * double, 3 string as an int length and UTF-8 bytes, 4 date as milliseconds
+ * since the epoch, 5 boolean as a byte), then the geometry type code, or 0 for
+ * none, and for a geometry, the number of parts as an int, followed by each
+ * part's number of points as an int and its x and y coordinates as doubles.</p>
+ */
+public abstract class FeatureExportWriter implements Closeable {
+
+    /**
+     * The export formats.
+     */
+    public enum Format {
+        GEOJSON("geojson"), CSV("csv"), BINARY("bmqf");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return the file name extension for the format, without a dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * The size of the buffer through which features are written.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final List<String> fieldNames;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    private long featureCount = 0;
+    private boolean closed = false;
+
+    private FeatureExportWriter(WritableByteChannel channel, List<String> fieldNames) {
+        this.channel = channel;
+        this.fieldNames = Collections.unmodifiableList(new ArrayList<>(fieldNames));
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Creates a writer and writes the format's header.
+     * @param format the format.
+     * @param channel the channel to which to write. The writer closes it.
+     * @param fieldNames the names of the fields to write, in order.
+     * @return the writer.
+     * @throws IOException if the header could not be written.
+     */
+    public static FeatureExportWriter create(Format format, WritableByteChannel channel, List<String> fieldNames)
+            throws IOException {
+        FeatureExportWriter writer;
+        switch (format) {
+        case GEOJSON:
+            writer = new GeoJsonWriter(channel, fieldNames);
+            break;
+        case CSV:
+            writer = new CsvWriter(channel, fieldNames);
+            break;
+        default:
+            writer = new BinaryWriter(channel, fieldNames);
+        }
+        writer.writeHeader();
+        return writer;
+    }
+
+    /**
+     * Writes a feature.
+     * @param attributes the feature's attributes. Fields that are not among the
+     *                   writer's field names are ignored.
+     * @param geometry the feature's geometry, or null.
+     * @throws IOException if the feature could not be written.
+     */
+    public void write(Map<String, ?> attributes, ExportGeometry geometry) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        writeFeature(attributes, geometry);
+        featureCount++;
+    }
+
+    /**
+     * @return the number of features written.
+     */
+    public long getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Writes the format's trailer, flushes the buffer and closes the channel.
+     * @throws IOException if the trailer could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeTrailer();
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    abstract void writeHeader() throws IOException;
+
+    abstract void writeFeature(Map<String, ?> attributes, ExportGeometry geometry) throws IOException;
+
+    abstract void writeTrailer() throws IOException;
+
+    /**
+     * Encodes text as UTF-8 into the buffer, flushing it as it fills.
+     */
+    void writeText(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flush();
+            } else {
+                break;
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+    }
+
+    /**
+     * Makes room in the buffer for a number of bytes, flushing it if needed.
+     * @return the buffer.
+     */
+    ByteBuffer reserve(int byteCount) throws IOException {
+        if (buffer.remaining() < byteCount) {
+            flush();
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes bytes that may be larger than the buffer.
+     */
+    void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(buffer.remaining(), end - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns a date value as milliseconds since the epoch.
+     * @return the time, or null if the value is not a date.
+     */
+    static Long getTime(Object value) {
+        if (value instanceof Calendar) {
+            return ((Calendar) value).getTimeInMillis();
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return null;
+    }
+
+    String formatDate(long time) {
+        return dateFormat.format(new Date(time));
+    }
+
+    static byte[] toUtf8(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    /**
+     * Appends a string to JSON text as a quoted, escaped JSON string.
+     * @param out the JSON text.
+     * @param value the string.
+     */
+    static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Writes a GeoJSON FeatureCollection.
+     */
+    private static class GeoJsonWriter extends FeatureExportWriter {
+
+        private final StringBuilder feature = new StringBuilder();
+
+        GeoJsonWriter(WritableByteChannel channel, List<String> fieldNames) {
+            super(channel, fieldNames);
+        }
+
+        @Override
+        void writeHeader() throws IOException {
+            writeText("{\"type\":\"FeatureCollection\",\"features\":[");
+        }
+
+        @Override
+        void writeFeature(Map<String, ?> attributes, ExportGeometry geometry) throws IOException {
+            feature.setLength(0);
+            feature.append(0 == getFeatureCount() ? "\n" : ",\n").append("{\"type\":\"Feature\",\"geometry\":");
+            if (null == geometry) {
+                feature.append("null");
+            } else {
+                geometry.appendGeoJson(feature);
+            }
+            feature.append(",\"properties\":{");
+            for (int i = 0; i < fieldNames.size(); i++) {
+                String name = fieldNames.get(i);
+                feature.append(0 == i ? "" : ",");
+                appendJsonString(feature, name);
+                feature.append(':');
+                appendValue(attributes.get(name));
+            }
+            feature.append("}}");
+            writeText(feature);
+        }
+
+        private void appendValue(Object value) {
+            Long time = getTime(value);
+            if (null != time) {
+                appendJsonString(feature, formatDate(time));
+            } else if (value instanceof Double || value instanceof Float) {
+                double number = ((Number) value).doubleValue();
+                if (Double.isNaN(number) || Double.isInfinite(number)) {
+                    feature.append("null");
+                } else {
+                    feature.append(number);
+                }
+            } else if (value instanceof Number || value instanceof Boolean) {
+                feature.append(value);
+            } else if (null == value) {
+                feature.append("null");
+            } else {
+                appendJsonString(feature, value.toString());
+            }
+        }
+
+        @Override
+        void writeTrailer() throws IOException {
+            writeText("\n]}\n");
+        }
+
+    }
+
+    /**
+     * Writes CSV with a header row and a WKT column.
+     */
+    private static class CsvWriter extends FeatureExportWriter {
+
+        private final StringBuilder row = new StringBuilder();
+
+        CsvWriter(WritableByteChannel channel, List<String> fieldNames) {
+            super(channel, fieldNames);
+        }
+
+        @Override
+        void writeHeader() throws IOException {
+            row.setLength(0);
+            for (String name : fieldNames) {
+                appendField(name);
+                row.append(',');
+            }
+            row.append("WKT\r\n");
+            writeText(row);
+        }
+
+        @Override
+        void writeFeature(Map<String, ?> attributes, ExportGeometry geometry) throws IOException {
+            row.setLength(0);
+            for (String name : fieldNames) {
+                Object value = attributes.get(name);
+                Long time = getTime(value);
+                if (null != time) {
+                    row.append(formatDate(time));
+                } else if (null != value) {
+                    appendField(value.toString());
+                }
+                row.append(',');
+            }
+            if (null != geometry) {
+                row.append('"');
+                geometry.appendWkt(row);
+                row.append('"');
+            }
+            row.append("\r\n");
+            writeText(row);
+        }
+
+        private void appendField(String value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = ',' == c || '"' == c || '\n' == c || '\r' == c;
+            }
+            if (quote) {
+                row.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                row.append(value);
+            }
+        }
+
+        @Override
+        void writeTrailer() {
+        }
+
+    }
+
+    /**
+     * Writes the compact binary format described in the class comment.
+     */
+    private static class BinaryWriter extends FeatureExportWriter {
+
+        private static final byte[] MAGIC = { 'B', 'M', 'Q', 'F' };
+        private static final byte VERSION = 1;
+
+        private ByteBuffer record = ByteBuffer.allocate(1024);
+
+        BinaryWriter(WritableByteChannel channel, List<String> fieldNames) {
+            super(channel, fieldNames);
+        }
+
+        @Override
+        void writeHeader() throws IOException {
+            ByteBuffer out = reserve(MAGIC.length + 5);
+            out.put(MAGIC).put(VERSION).putInt(fieldNames.size());
+            for (String name : fieldNames) {
+                byte[] bytes = toUtf8(name);
+                reserve(2).putShort((short) bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            }
+        }
+
+        @Override
+        void writeFeature(Map<String, ?> attributes, ExportGeometry geometry) throws IOException {
+            // Each record is built whole so that its length can precede it
+            record.clear();
+            for (String name : fieldNames) {
+                Object value = attributes.get(name);
+                Long time = getTime(value);
+                if (null == value) {
+                    ensure(1).put((byte) 0);
+                } else if (null != time) {
+                    ensure(9).put((byte) 4).putLong(time);
+                } else if (value instanceof Double || value instanceof Float) {
+                    ensure(9).put((byte) 2).putDouble(((Number) value).doubleValue());
+                } else if (value instanceof Number) {
+                    ensure(9).put((byte) 1).putLong(((Number) value).longValue());
+                } else if (value instanceof Boolean) {
+                    ensure(2).put((byte) 5).put((byte) (((Boolean) value) ? 1 : 0));
+                } else {
+                    byte[] bytes = toUtf8(value.toString());
+                    ensure(5 + bytes.length).put((byte) 3).putInt(bytes.length).put(bytes);
+                }
+            }
+            if (null == geometry) {
+                ensure(1).put((byte) 0);
+            } else {
+                double[][] parts = geometry.getParts();
+                ensure(5).put((byte) geometry.getType().getCode()).putInt(parts.length);
+                for (double[] part : parts) {
+                    ByteBuffer out = ensure(4 + 8 * part.length);
+                    out.putInt(part.length / 2);
+                    for (double coordinate : part) {
+                        out.putDouble(coordinate);
+                    }
+                }
+            }
+            reserve(4).putInt(record.position());
+            writeBytes(record.array(), 0, record.position());
+        }
+
+        /**
+         * Makes room in the record for a number of bytes, growing it if needed.
+         */
+        private ByteBuffer ensure(int byteCount) {
+            if (record.remaining() < byteCount) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + byteCount));
+                record.flip();
+                larger.put(record);
+                record = larger;
+            }
+            return record;
+        }
+
+        @Override
+        void writeTrailer() {
+        }
+
+    }
+
+}
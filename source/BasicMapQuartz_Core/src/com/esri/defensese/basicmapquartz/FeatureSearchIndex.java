@@ -0,0 +1,711 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory full-text index of feature attributes that answers type-ahead
+ * searches on the device, so that finding a feature by name needs no request to
+ * the service and no definition expression.
+ *
+ * <p>Each feature's label, normally its display field value, and any other
+ * attribute values are split into words, which are lower-cased and stripped of
+ * accents. The words are kept in a radix trie whose word nodes hold the posting
+ * list of the features containing that word, so the trie is both the inverted
+ * index and its prefix lookup. A query matches the features that have, for every
+ * word in the query, a word starting with it: "san fr" matches "San Francisco
+ * Bay Trail". The query word that matches the fewest features is looked up in the
+ * trie and the others are checked against the words of each candidate, so a
+ * search takes time in proportion to the results, not to the size of the index.
+ * Hits are returned in the alphabetical order of their matching word.</p>
+ *
+ * <p>Features are added, replaced and removed one at a time as they load and
+ * change. Each feature keeps its extent as xmin, ymin, xmax and ymax, the layout
+ * that ExtentMath uses, so that a hit can be zoomed to without holding geometry
+ * objects for every feature. All methods are thread-safe.</p>
+ */
+public class FeatureSearchIndex {
+
+    /**
+     * The default maximum number of hits returned by a search.
+     */
+    public static final int DEFAULT_MAX_RESULTS = 20;
+
+    /**
+     * The minimum width and height of the extent to which a point or other small
+     * feature is zoomed, as a fraction of its layer's extent.
+     */
+    public static final double MIN_ZOOM_FRACTION = 0.01;
+
+    /**
+     * A feature that matches a search.
+     */
+    public static class Hit {
+
+        private final String layerId;
+        private final long objectId;
+        private final String label;
+        private final double[] extent;
+
+        Hit(String layerId, long objectId, String label, double[] extent) {
+            this.layerId = layerId;
+            this.objectId = objectId;
+            this.label = label;
+            this.extent = extent;
+        }
+
+        /**
+         * @return the ID of the feature's layer.
+         */
+        public String getLayerId() {
+            return layerId;
+        }
+
+        /**
+         * @return the feature's object ID.
+         */
+        public long getObjectId() {
+            return objectId;
+        }
+
+        /**
+         * @return the feature's label.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return a copy of the feature's extent, as xmin, ymin, xmax, ymax, or null
+         *         if the feature has no geometry.
+         */
+        public double[] getExtent() {
+            return null == extent ? null : extent.clone();
+        }
+
+        @Override
+        public String toString() {
+            return layerId + "/" + objectId + " " + label;
+        }
+
+    }
+
+    /**
+     * A node of the radix trie. The edge holds the characters between the node's
+     * parent and the node, and the node's word is set if some feature contains the
+     * word spelled from the root to the node.
+     */
+    private static final class Node {
+
+        char[] edge;
+        Node parent;
+        Node[] children = NO_CHILDREN;
+        int childCount = 0;
+        String word = null;
+        int[] postings = NO_POSTINGS;
+        int postingCount = 0;
+        // The number of postings in this node and its descendants
+        int count = 0;
+
+        Node(Node parent, char[] edge) {
+            this.parent = parent;
+            this.edge = edge;
+        }
+
+    }
+
+    /**
+     * Maps the object IDs of one layer's features to their document numbers with
+     * open addressing, which takes far less memory than a HashMap of boxed keys.
+     */
+    private static final class Layer {
+
+        long[] objectIds = new long[16];
+        // Document number + 1, or 0 for an empty slot
+        int[] documents = new int[16];
+        int size = 0;
+        final double[] extent = { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+
+        private int slot(long objectId) {
+            int hash = (int) (objectId ^ (objectId >>> 32)) * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (objectIds.length - 1);
+        }
+
+        int get(long objectId) {
+            int mask = objectIds.length - 1;
+            for (int i = slot(objectId); 0 != documents[i]; i = (i + 1) & mask) {
+                if (objectIds[i] == objectId) {
+                    return documents[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        void put(long objectId, int document) {
+            if (size * 2 >= objectIds.length) {
+                long[] oldObjectIds = objectIds;
+                int[] oldDocuments = documents;
+                objectIds = new long[oldObjectIds.length * 2];
+                documents = new int[oldObjectIds.length * 2];
+                size = 0;
+                for (int i = 0; i < oldObjectIds.length; i++) {
+                    if (0 != oldDocuments[i]) {
+                        put(oldObjectIds[i], oldDocuments[i] - 1);
+                    }
+                }
+            }
+            int mask = objectIds.length - 1;
+            int i = slot(objectId);
+            while (0 != documents[i] && objectIds[i] != objectId) {
+                i = (i + 1) & mask;
+            }
+            if (0 == documents[i]) {
+                size++;
+            }
+            objectIds[i] = objectId;
+            documents[i] = document + 1;
+        }
+
+        void remove(long objectId) {
+            int mask = objectIds.length - 1;
+            int i = slot(objectId);
+            while (objectIds[i] != objectId || 0 == documents[i]) {
+                if (0 == documents[i]) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            documents[i] = 0;
+            size--;
+            // Move later entries of the probe sequence back so that lookups find them
+            for (int j = (i + 1) & mask; 0 != documents[j]; j = (j + 1) & mask) {
+                int home = slot(objectIds[j]);
+                if (i < j ? (i < home && home <= j) : (i < home || home <= j)) {
+                    continue;
+                }
+                objectIds[i] = objectIds[j];
+                documents[i] = documents[j];
+                documents[j] = 0;
+                i = j;
+            }
+        }
+
+        void include(double[] featureExtent) {
+            if (Double.isNaN(extent[0])) {
+                System.arraycopy(featureExtent, 0, extent, 0, 4);
+            } else {
+                extent[0] = Math.min(extent[0], featureExtent[0]);
+                extent[1] = Math.min(extent[1], featureExtent[1]);
+                extent[2] = Math.max(extent[2], featureExtent[2]);
+                extent[3] = Math.max(extent[3], featureExtent[3]);
+            }
+        }
+
+    }
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final int[] NO_POSTINGS = new int[0];
+    private static final Node[] NO_WORDS = new Node[0];
+
+    private final Node root = new Node(null, new char[0]);
+    private final Map<String, Layer> layers = new HashMap<>();
+
+    // Documents, i.e. indexed features, are numbered and stored in parallel arrays
+    private String[] documentLayerIds = new String[1024];
+    private long[] documentObjectIds = new long[1024];
+    private String[] documentLabels = new String[1024];
+    private Node[][] documentWords = new Node[1024][];
+    private double[][] documentExtents = new double[1024][];
+    private int documentCount = 0;
+    private int[] freeDocuments = new int[16];
+    private int freeDocumentCount = 0;
+    private int size = 0;
+
+    /**
+     * Splits text into lower-case words without accents. Words are the runs of
+     * letters and digits.
+     * @param text the text.
+     * @return the words, in order, including repeated words.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (null == text) {
+            return words;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (0x80 <= text.charAt(i)) {
+                // Split accented letters into the letter and its accents
+                text = Normalizer.normalize(text, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (Character.NON_SPACING_MARK != Character.getType(c) && 0 < word.length()) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (0 < word.length()) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Adds a feature to the index, replacing the feature with the same layer ID
+     * and object ID if there is one.
+     * @param layerId the ID of the feature's layer.
+     * @param objectId the feature's object ID.
+     * @param label the feature's label, normally its display field value, which is
+     *              indexed and returned in hits.
+     * @param values other attribute values to index. Null values are ignored and
+     *               others are indexed as strings.
+     * @param extent the feature's extent, as xmin, ymin, xmax, ymax, or null if
+     *               the feature has no geometry.
+     */
+    public synchronized void put(String layerId, long objectId, String label, Collection<?> values, double[] extent) {
+        Layer layer = layers.get(layerId);
+        if (null == layer) {
+            layer = new Layer();
+            layers.put(layerId, layer);
+        } else {
+            int oldDocument = layer.get(objectId);
+            if (0 <= oldDocument) {
+                removeDocument(oldDocument);
+                freeDocument(oldDocument);
+            }
+        }
+
+        Set<String> words = new LinkedHashSet<>(tokenize(label));
+        if (null != values) {
+            for (Object value : values) {
+                if (null != value) {
+                    words.addAll(tokenize(value.toString()));
+                }
+            }
+        }
+        int document = allocateDocument();
+        documentLayerIds[document] = layerId;
+        documentObjectIds[document] = objectId;
+        documentLabels[document] = label;
+        documentExtents[document] = null == extent ? null : extent.clone();
+        Node[] wordNodes = words.isEmpty() ? NO_WORDS : new Node[words.size()];
+        int i = 0;
+        for (String word : words) {
+            Node node = insert(word);
+            addPosting(node, document);
+            wordNodes[i++] = node;
+        }
+        documentWords[document] = wordNodes;
+        layer.put(objectId, document);
+        if (null != extent) {
+            layer.include(extent);
+        }
+    }
+
+    /**
+     * Removes a feature from the index.
+     * @param layerId the ID of the feature's layer.
+     * @param objectId the feature's object ID.
+     * @return true if the feature was in the index.
+     */
+    public synchronized boolean remove(String layerId, long objectId) {
+        Layer layer = layers.get(layerId);
+        int document = null == layer ? -1 : layer.get(objectId);
+        if (0 > document) {
+            return false;
+        }
+        removeDocument(document);
+        freeDocument(document);
+        layer.remove(objectId);
+        if (0 == layer.size) {
+            layers.remove(layerId);
+        }
+        return true;
+    }
+
+    /**
+     * Removes all of a layer's features from the index, e.g. when the layer is
+     * removed from the map or its features are reloaded. This takes one pass over
+     * the index instead of one per feature.
+     * @param layerId the layer ID.
+     */
+    public synchronized void removeLayer(String layerId) {
+        Layer layer = layers.remove(layerId);
+        if (null == layer) {
+            return;
+        }
+        boolean[] removed = new boolean[documentCount];
+        for (int i = 0; i < layer.documents.length; i++) {
+            if (0 != layer.documents[i]) {
+                removed[layer.documents[i] - 1] = true;
+            }
+        }
+        removePostings(root, removed);
+        for (int document = 0; document < removed.length; document++) {
+            if (removed[document]) {
+                freeDocument(document);
+            }
+        }
+    }
+
+    /**
+     * @return the number of features in the index.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param layerId the layer ID.
+     * @return the number of the layer's features in the index.
+     */
+    public synchronized int size(String layerId) {
+        Layer layer = layers.get(layerId);
+        return null == layer ? 0 : layer.size;
+    }
+
+    /**
+     * Finds the features that match a query with up to DEFAULT_MAX_RESULTS hits.
+     * @param query the words, or beginnings of words, to search for.
+     * @return the hits.
+     */
+    public List<Hit> search(String query) {
+        return search(query, DEFAULT_MAX_RESULTS);
+    }
+
+    /**
+     * Finds the features that have, for every word in a query, a word that starts
+     * with it.
+     * @param query the words, or beginnings of words, to search for.
+     * @param maxResults the maximum number of hits.
+     * @return the hits, or an empty list if the query has no words.
+     */
+    public synchronized List<Hit> search(String query, int maxResults) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (terms.isEmpty() || 0 >= maxResults) {
+            return Collections.emptyList();
+        }
+        // Look up the term with the fewest postings and check the others per feature
+        Node driver = null;
+        String driverTerm = null;
+        for (String term : terms) {
+            Node node = findPrefix(term);
+            if (null == node) {
+                return Collections.emptyList();
+            }
+            if (null == driver || node.count < driver.count) {
+                driver = node;
+                driverTerm = term;
+            }
+        }
+        terms.remove(driverTerm);
+        List<Hit> hits = new ArrayList<>(Math.min(maxResults, driver.count));
+        collect(driver, driverTerm, terms, maxResults, hits);
+        return hits;
+    }
+
+    /**
+     * Returns the extent to zoom to for a hit: the feature's extent, grown to at
+     * least MIN_ZOOM_FRACTION of its layer's extent and expanded by
+     * ExtentMath.ZOOM_MARGIN, so that a point is shown with its surroundings.
+     * @param hit the hit.
+     * @return the extent, as xmin, ymin, xmax, ymax, or null if the feature has no
+     *         geometry.
+     */
+    public synchronized double[] getZoomExtent(Hit hit) {
+        double[] extent = hit.getExtent();
+        if (null == extent) {
+            return null;
+        }
+        Layer layer = layers.get(hit.getLayerId());
+        if (null != layer && !Double.isNaN(layer.extent[0])) {
+            ExtentMath.expandToMinimum(extent, (layer.extent[2] - layer.extent[0]) * MIN_ZOOM_FRACTION,
+                    (layer.extent[3] - layer.extent[1]) * MIN_ZOOM_FRACTION);
+        }
+        return ExtentMath.expand(extent, ExtentMath.ZOOM_MARGIN);
+    }
+
+    /**
+     * @return the number of nodes in the trie, for tests.
+     */
+    synchronized int getNodeCount() {
+        return countNodes(root);
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        for (int i = 0; i < node.childCount; i++) {
+            count += countNodes(node.children[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Adds hits from a node's subtree in depth-first, i.e. alphabetical, order.
+     * @return false when maxResults hits have been found.
+     */
+    private boolean collect(Node node, String driverTerm, List<String> otherTerms, int maxResults, List<Hit> hits) {
+        for (int i = 0; i < node.postingCount; i++) {
+            int document = node.postings[i];
+            if (isFirstMatch(document, node, driverTerm) && matchesAll(document, otherTerms)) {
+                hits.add(new Hit(documentLayerIds[document], documentObjectIds[document],
+                        documentLabels[document], documentExtents[document]));
+                if (hits.size() >= maxResults) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            if (!collect(node.children[i], driverTerm, otherTerms, maxResults, hits)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a node's word is the alphabetically first of a document's
+     * words that start with a term, so that a document with several such words is
+     * returned only once.
+     */
+    private boolean isFirstMatch(int document, Node node, String term) {
+        for (Node wordNode : documentWords[document]) {
+            if (wordNode != node && wordNode.word.startsWith(term) && 0 > wordNode.word.compareTo(node.word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesAll(int document, List<String> terms) {
+        for (String term : terms) {
+            boolean matched = false;
+            for (Node wordNode : documentWords[document]) {
+                if (wordNode.word.startsWith(term)) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the node whose subtree holds exactly the words that start with a
+     * prefix, or null if no word does.
+     */
+    private Node findPrefix(String prefix) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            int index = indexOfChild(node, prefix.charAt(i));
+            if (0 > index) {
+                return null;
+            }
+            Node child = node.children[index];
+            for (int k = 0; k < child.edge.length && i < prefix.length(); k++, i++) {
+                if (child.edge[k] != prefix.charAt(i)) {
+                    return null;
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node of a word, adding nodes to the trie as needed.
+     */
+    private Node insert(String word) {
+        Node node = root;
+        int i = 0;
+        while (i < word.length()) {
+            int index = indexOfChild(node, word.charAt(i));
+            if (0 > index) {
+                Node leaf = new Node(node, word.substring(i).toCharArray());
+                leaf.word = word;
+                insertChild(node, -index - 1, leaf);
+                return leaf;
+            }
+            Node child = node.children[index];
+            int k = 0;
+            while (k < child.edge.length && i + k < word.length() && child.edge[k] == word.charAt(i + k)) {
+                k++;
+            }
+            if (k < child.edge.length) {
+                // The word leaves the edge part way along, so split the edge
+                Node middle = new Node(node, Arrays.copyOf(child.edge, k));
+                middle.count = child.count;
+                middle.children = new Node[] { child };
+                middle.childCount = 1;
+                child.edge = Arrays.copyOfRange(child.edge, k, child.edge.length);
+                child.parent = middle;
+                node.children[index] = middle;
+                child = middle;
+            }
+            node = child;
+            i += k;
+        }
+        if (null == node.word) {
+            node.word = word;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the index of the child whose edge starts with a character, or
+     * -(insertion point) - 1 if there is none.
+     */
+    private static int indexOfChild(Node node, char c) {
+        int low = 0;
+        int high = node.childCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char middleChar = node.children[middle].edge[0];
+            if (middleChar < c) {
+                low = middle + 1;
+            } else if (middleChar > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static void insertChild(Node node, int index, Node child) {
+        if (node.childCount == node.children.length) {
+            node.children = Arrays.copyOf(node.children, Math.max(2, node.childCount * 2));
+        }
+        System.arraycopy(node.children, index, node.children, index + 1, node.childCount - index);
+        node.children[index] = child;
+        node.childCount++;
+    }
+
+    private static void removeChild(Node node, Node child) {
+        int index = indexOfChild(node, child.edge[0]);
+        System.arraycopy(node.children, index + 1, node.children, index, node.childCount - index - 1);
+        node.children[--node.childCount] = null;
+    }
+
+    private static void addPosting(Node node, int document) {
+        if (node.postingCount == node.postings.length) {
+            node.postings = Arrays.copyOf(node.postings, Math.max(2, node.postingCount * 2));
+        }
+        node.postings[node.postingCount++] = document;
+        for (Node n = node; null != n; n = n.parent) {
+            n.count++;
+        }
+    }
+
+    /**
+     * Removes a document's postings from the trie, and nodes left without any
+     * postings in their subtree.
+     */
+    private void removeDocument(int document) {
+        for (Node node : documentWords[document]) {
+            for (int i = 0; i < node.postingCount; i++) {
+                if (node.postings[i] == document) {
+                    System.arraycopy(node.postings, i + 1, node.postings, i, node.postingCount - i - 1);
+                    node.postingCount--;
+                    break;
+                }
+            }
+            for (Node n = node; null != n; n = n.parent) {
+                n.count--;
+                if (0 == n.count && null != n.parent) {
+                    removeChild(n.parent, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the postings of many documents from a subtree in one pass.
+     * @return the number of postings left in the subtree.
+     */
+    private static int removePostings(Node node, boolean[] removed) {
+        int kept = 0;
+        for (int i = 0; i < node.postingCount; i++) {
+            int document = node.postings[i];
+            if (document >= removed.length || !removed[document]) {
+                node.postings[kept++] = document;
+            }
+        }
+        node.postingCount = kept;
+        int count = kept;
+        int keptChildren = 0;
+        for (int i = 0; i < node.childCount; i++) {
+            Node child = node.children[i];
+            int childCount = removePostings(child, removed);
+            if (0 < childCount) {
+                node.children[keptChildren++] = child;
+                count += childCount;
+            }
+        }
+        Arrays.fill(node.children, keptChildren, node.childCount, null);
+        node.childCount = keptChildren;
+        node.count = count;
+        return count;
+    }
+
+    private int allocateDocument() {
+        size++;
+        if (0 < freeDocumentCount) {
+            return freeDocuments[--freeDocumentCount];
+        }
+        if (documentCount == documentLayerIds.length) {
+            int capacity = documentCount * 2;
+            documentLayerIds = Arrays.copyOf(documentLayerIds, capacity);
+            documentObjectIds = Arrays.copyOf(documentObjectIds, capacity);
+            documentLabels = Arrays.copyOf(documentLabels, capacity);
+            documentWords = Arrays.copyOf(documentWords, capacity);
+            documentExtents = Arrays.copyOf(documentExtents, capacity);
+        }
+        return documentCount++;
+    }
+
+    private void freeDocument(int document) {
+        size--;
+        documentLayerIds[document] = null;
+        documentLabels[document] = null;
+        documentWords[document] = null;
+        documentExtents[document] = null;
+        if (freeDocumentCount == freeDocuments.length) {
+            freeDocuments = Arrays.copyOf(freeDocuments, freeDocumentCount * 2);
+        }
+        freeDocuments[freeDocumentCount++] = document;
+    }
+
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns map taps into identify requests so that only the latest tap's result
+ * reaches the UI.
+ *
+ * <p>Taps that arrive within the coalescing window of each other are merged into
+ * one identify request for the last tap. A new tap cancels the identify request
+ * that is in flight, if any, and a result that arrives after a newer tap is
+ * discarded, both on the thread that completed the request and again on the UI
+ * thread.</p>
+ *
+ * <p>A source that identifies several layers, such as MultiLayerIdentifier, may
+ * report partial results as layers answer; they reach a PartialResultListener
+ * on the UI executor as they arrive, followed by the complete result.</p>
+ *
+ * @param <P> the screen point type, e.g. android.graphics.Point.
+ * @param <R> the identify result type, e.g. IdentifyLayerResult.
+ */
+public class IdentifyDispatcher<P, R> {
+
+    /**
+     * Performs an identify operation, such as MapView.identifyLayerAsync.
+     */
+    public interface IdentifySource<P, R> {
+
+        /**
+         * Starts an identify operation at a screen point.
+         * @param screenPoint the screen point to identify.
+         * @param maxResults the maximum number of elements to return.
+         * @param callback the callback to call when the identify completes or fails.
+         * @return a Future that the dispatcher cancels if a newer tap supersedes
+         *         this identify operation.
+         */
+        Future<?> identify(P screenPoint, int maxResults, IdentifyCallback<R> callback);
+
+    }
+
+    /**
+     * Receives the outcome of one identify operation. Methods may be called on
+     * any thread.
+     */
+    public interface IdentifyCallback<R> {
+
+        /**
+         * Called when the identify operation completes.
+         * @param result the identify result.
+         */
+        void identifyCompleted(R result);
+
+        /**
+         * Called when part of the result is ready, before identifyCompleted, by a
+         * source that identifies several layers. Sources that produce their result
+         * all at once never call it.
+         * @param partialResult the result so far.
+         */
+        void identifyProgress(R partialResult);
+
+        /**
+         * Called when the identify operation fails.
+         * @param error the reason for the failure.
+         */
+        void identifyFailed(Throwable error);
+
+    }
+
+    /**
+     * Receives the result of the latest tap on the UI executor.
+     */
+    public interface ResultListener<R> {
+
+        /**
+         * Called with the result for the latest tap.
+         * @param result the identify result.
+         */
+        void identifyResult(R result);
+
+        /**
+         * Called if the identify operation for the latest tap failed.
+         * @param error the reason for the failure.
+         */
+        void identifyFailed(Throwable error);
+
+    }
+
+    /**
+     * A ResultListener that also receives partial results, so that the UI can show
+     * the first layers' results without waiting for the slowest layer.
+     */
+    public interface PartialResultListener<R> extends ResultListener<R> {
+
+        /**
+         * Called with part of the result for the latest tap, before identifyResult.
+         * @param partialResult the result so far.
+         */
+        void identifyPartialResult(R partialResult);
+
+    }
+
+    /**
+     * The default window, in milliseconds, within which taps are coalesced.
+     */
+    public static final long DEFAULT_COALESCE_MILLIS = 50;
+
+    /**
+     * The default maximum number of elements returned for one tap.
+     */
+    public static final int DEFAULT_MAX_RESULTS = 100;
+
+    private final IdentifySource<P, R> source;
+    private final Executor uiExecutor;
+    private final ResultListener<R> listener;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong tapCount = new AtomicLong();
+    private final AtomicLong identifyCount = new AtomicLong();
+    private final AtomicLong cancelCount = new AtomicLong();
+    private final AtomicLong deliverCount = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+
+    private volatile long coalesceMillis = DEFAULT_COALESCE_MILLIS;
+    private volatile int maxResults = DEFAULT_MAX_RESULTS;
+    private volatile LatencyHistogram latencyHistogram = null;
+    private volatile LatencyHistogram firstResultHistogram = null;
+    private volatile AtomicLong failureCounter = null;
+
+    // Guarded by this
+    private ScheduledFuture<?> pendingTap = null;
+    private Future<?> identifyInFlight = null;
+
+    /**
+     * Creates a dispatcher.
+     * @param source the source that performs identify operations.
+     * @param uiExecutor the executor that runs listener methods on the UI thread.
+     * @param listener the listener that receives the latest result.
+     */
+    public IdentifyDispatcher(IdentifySource<P, R> source, Executor uiExecutor, ResultListener<R> listener) {
+        this.source = source;
+        this.uiExecutor = uiExecutor;
+        this.listener = listener;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IdentifyDispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the window within which taps are coalesced into one identify request.
+     * @param coalesceMillis the window in milliseconds, or 0 to identify every tap
+     *                       immediately (superseded requests are still cancelled).
+     */
+    public void setCoalesceMillis(long coalesceMillis) {
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Sets the maximum number of elements returned for one tap.
+     * @param maxResults the maximum number of elements.
+     */
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Records the latency of each identify request, from the time it is sent to
+     * the source until the source completes it and until its first partial or
+     * complete result, and the number of failures.
+     * @param metrics the metrics, or null to record nothing.
+     * @param layerId the ID of the identified layer, used as a label.
+     */
+    public void setMetrics(Metrics metrics, String layerId) {
+        if (null == metrics) {
+            latencyHistogram = null;
+            firstResultHistogram = null;
+            failureCounter = null;
+        } else {
+            latencyHistogram = metrics.histogram("bmq_identify_seconds",
+                    "Time from sending an identify request to its result.", "layer", layerId);
+            firstResultHistogram = metrics.histogram("bmq_identify_first_result_seconds",
+                    "Time from sending an identify request to its first partial or complete result.",
+                    "layer", layerId);
+            failureCounter = metrics.counter("bmq_identify_failures_total",
+                    "Number of identify requests that failed.", "layer", layerId);
+        }
+    }
+
+    /**
+     * Handles a tap. May be called from any thread.
+     * @param screenPoint the tapped screen point.
+     */
+    public void tap(final P screenPoint) {
+        tapCount.incrementAndGet();
+        final long tapGeneration = generation.incrementAndGet();
+        synchronized (this) {
+            if (null != pendingTap) {
+                pendingTap.cancel(false);
+            }
+            cancelInFlight();
+            pendingTap = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(screenPoint, tapGeneration);
+                }
+            }, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dispatch(P screenPoint, final long tapGeneration) {
+        synchronized (this) {
+            if (tapGeneration != generation.get()) {
+                return;
+            }
+            pendingTap = null;
+        }
+        identifyCount.incrementAndGet();
+        final LatencyHistogram histogram = latencyHistogram;
+        final LatencyHistogram firstHistogram = firstResultHistogram;
+        final AtomicLong failures = failureCounter;
+        final long startNanos = System.nanoTime();
+        Future<?> future = source.identify(screenPoint, maxResults, new IdentifyCallback<R>() {
+            private final AtomicBoolean firstResult = new AtomicBoolean(true);
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void identifyProgress(final R partialResult) {
+                if (null != firstHistogram && firstResult.getAndSet(false)) {
+                    firstHistogram.recordSince(startNanos);
+                }
+                if (listener instanceof PartialResultListener && isCurrent(tapGeneration)) {
+                    uiExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isCurrent(tapGeneration)) {
+                                ((PartialResultListener<R>) listener).identifyPartialResult(partialResult);
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void identifyCompleted(final R result) {
+                if (null != histogram) {
+                    histogram.recordSince(startNanos);
+                }
+                if (null != firstHistogram && firstResult.getAndSet(false)) {
+                    firstHistogram.recordSince(startNanos);
+                }
+                if (isCurrent(tapGeneration)) {
+                    uiExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isCurrent(tapGeneration)) {
+                                deliverCount.incrementAndGet();
+                                listener.identifyResult(result);
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void identifyFailed(final Throwable error) {
+                if (null != failures) {
+                    failures.incrementAndGet();
+                }
+                if (isCurrent(tapGeneration)) {
+                    uiExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isCurrent(tapGeneration)) {
+                                listener.identifyFailed(error);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        synchronized (this) {
+            if (tapGeneration == generation.get()) {
+                identifyInFlight = future;
+                return;
+            }
+        }
+        // A newer tap arrived while the request was being started
+        future.cancel(true);
+        cancelCount.incrementAndGet();
+    }
+
+    private boolean isCurrent(long tapGeneration) {
+        if (tapGeneration == generation.get()) {
+            return true;
+        }
+        discardCount.incrementAndGet();
+        return false;
+    }
+
+    private void cancelInFlight() {
+        if (null != identifyInFlight) {
+            if (identifyInFlight.cancel(true)) {
+                cancelCount.incrementAndGet();
+            }
+            identifyInFlight = null;
+        }
+    }
+
+    /**
+     * Cancels any pending or in-flight identify and stops the dispatcher's thread.
+     * The dispatcher cannot be used afterward.
+     */
+    public void shutdown() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            cancelInFlight();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the number of taps received.
+     */
+    public long getTapCount() {
+        return tapCount.get();
+    }
+
+    /**
+     * @return the number of identify requests sent to the source.
+     */
+    public long getIdentifyCount() {
+        return identifyCount.get();
+    }
+
+    /**
+     * @return the number of in-flight identify requests cancelled by newer taps.
+     */
+    public long getCancelCount() {
+        return cancelCount.get();
+    }
+
+    /**
+     * @return the number of results delivered to the listener.
+     */
+    public long getDeliverCount() {
+        return deliverCount.get();
+    }
+
+    /**
+     * @return the number of results discarded because a newer tap arrived.
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+}
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A streaming, pull-style JSON parser that reads one token at a time from a
+ * Reader, so a document is never held in memory as a tree. It is used for files
+ * that both the Java and Android apps read; Android's own JsonReader is not
+ * available on Java SE.
+ *
+ * <p>Call peek to find the type of the next token, then the matching begin, end,
+ * next or skip method. Numbers are returned as doubles or longs.</p>
+ */
+public class JsonReader {
+
+    /**
+     * The types of JSON tokens.
+     */
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private int line = 1;
+
+    /*
+     * The parser state for each open container: whether it is an object or an
+     * array, and whether a name or value is expected next.
+     */
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+    private Token peeked = null;
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Creates a parser.
+     * @param in the Reader from which to read JSON. The caller closes it.
+     */
+    public JsonReader(Reader in) {
+        this.in = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     * @return the type of the next token.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     */
+    public Token peek() throws IOException {
+        if (null != peeked) {
+            return peeked;
+        }
+        int state = stack[stackSize - 1];
+        int c;
+        switch (state) {
+        case EMPTY_ARRAY:
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (']' == c) {
+                return peeked = Token.END_ARRAY;
+            }
+            break;
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (']' == c) {
+                return peeked = Token.END_ARRAY;
+            } else if (',' != c) {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            c = nextNonWhitespace();
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = nextNonWhitespace();
+            if ('}' == c) {
+                return peeked = Token.END_OBJECT;
+            }
+            if (NONEMPTY_OBJECT == state) {
+                if (',' != c) {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+                c = nextNonWhitespace();
+            }
+            if ('"' != c) {
+                throw syntaxError("Expected a name");
+            }
+            stack[stackSize - 1] = DANGLING_NAME;
+            readString();
+            if (':' != nextNonWhitespace()) {
+                throw syntaxError("Expected ':'");
+            }
+            return peeked = Token.NAME;
+        case DANGLING_NAME:
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            c = nextNonWhitespace();
+            break;
+        case EMPTY_DOCUMENT:
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+            c = nextNonWhitespace();
+            break;
+        default:
+            c = nextNonWhitespace();
+            if (-1 != c) {
+                throw syntaxError("Expected end of document");
+            }
+            return peeked = Token.END_DOCUMENT;
+        }
+
+        switch (c) {
+        case '{':
+            return peeked = Token.BEGIN_OBJECT;
+        case '[':
+            return peeked = Token.BEGIN_ARRAY;
+        case '"':
+            readString();
+            return peeked = Token.STRING;
+        case 't':
+            readLiteral("true");
+            return peeked = Token.BOOLEAN;
+        case 'f':
+            readLiteral("false");
+            return peeked = Token.BOOLEAN;
+        case 'n':
+            readLiteral("null");
+            return peeked = Token.NULL;
+        case -1:
+            throw syntaxError("Unexpected end of document");
+        default:
+            if ('-' == c || ('0' <= c && '9' >= c)) {
+                readNumber((char) c);
+                return peeked = Token.NUMBER;
+            }
+            throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * @return true if the current object or array has another element.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return Token.END_OBJECT != token && Token.END_ARRAY != token && Token.END_DOCUMENT != token;
+    }
+
+    /**
+     * Consumes the start of an object.
+     * @throws IOException if the next token is not the start of an object.
+     */
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    /**
+     * Consumes the end of an object.
+     * @throws IOException if the next token is not the end of an object.
+     */
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    /**
+     * Consumes the start of an array.
+     * @throws IOException if the next token is not the start of an array.
+     */
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    /**
+     * Consumes the end of an array.
+     * @throws IOException if the next token is not the end of an array.
+     */
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    /**
+     * Consumes a property name.
+     * @return the name.
+     * @throws IOException if the next token is not a name.
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return text.toString();
+    }
+
+    /**
+     * Consumes a string, number or boolean value and returns it as a string.
+     * @return the value as a string.
+     * @throws IOException if the next token is not a string, number or boolean.
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (Token.STRING != token && Token.NUMBER != token && Token.BOOLEAN != token) {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        peeked = null;
+        return text.toString();
+    }
+
+    /**
+     * Consumes a string value or null.
+     * @return the string, or null if the value is null.
+     * @throws IOException if the next token is not a string or null.
+     */
+    public String nextStringOrNull() throws IOException {
+        if (Token.NULL == peek()) {
+            nextNull();
+            return null;
+        }
+        return nextString();
+    }
+
+    /**
+     * Consumes a boolean value.
+     * @return the value.
+     * @throws IOException if the next token is not a boolean.
+     */
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return "true".contentEquals(text);
+    }
+
+    /**
+     * Consumes a number value.
+     * @return the value.
+     * @throws IOException if the next token is not a number.
+     */
+    public double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        return Double.parseDouble(text.toString());
+    }
+
+    /**
+     * Consumes a number value that has no fractional part.
+     * @return the value.
+     * @throws IOException if the next token is not an integral number.
+     */
+    public long nextLong() throws IOException {
+        double value = nextDouble();
+        long longValue = (long) value;
+        if (longValue != value) {
+            throw syntaxError("Expected an integer but was " + value);
+        }
+        return longValue;
+    }
+
+    /**
+     * Consumes a null value.
+     * @throws IOException if the next token is not null.
+     */
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    /**
+     * Consumes the next value, including all of its nested values.
+     * @throws IOException if the JSON is malformed or cannot be read.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                depth++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                depth++;
+                break;
+            case END_OBJECT:
+                endObject();
+                depth--;
+                break;
+            case END_ARRAY:
+                endArray();
+                depth--;
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("Unexpected end of document");
+            default:
+                peeked = null;
+            }
+        } while (0 != depth);
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (expected != token) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int state) {
+        if (stackSize == stack.length) {
+            int[] newStack = new int[stackSize * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize++] = state;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            pos = 0;
+            if (0 >= limit) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private void unread() {
+        pos--;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+            if ('\n' == c) {
+                line++;
+            }
+        } while (' ' == c || '\t' == c || '\r' == c || '\n' == c);
+        return c;
+    }
+
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (-1 == c) {
+                throw syntaxError("Unterminated string");
+            } else if ('"' == c) {
+                return;
+            } else if ('\\' == c) {
+                c = read();
+                switch (c) {
+                case 'b': text.append('\b'); break;
+                case 'f': text.append('\f'); break;
+                case 'n': text.append('\n'); break;
+                case 'r': text.append('\r'); break;
+                case 't': text.append('\t'); break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (0 > digit) {
+                            throw syntaxError("Invalid escape sequence");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    text.append((char) code);
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    text.append((char) c);
+                    break;
+                default:
+                    throw syntaxError("Invalid escape sequence");
+                }
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        text.setLength(0);
+        text.append(literal.charAt(0));
+        for (int i = 1; i < literal.length(); i++) {
+            if (literal.charAt(i) != read()) {
+                throw syntaxError("Expected " + literal);
+            }
+            text.append(literal.charAt(i));
+        }
+    }
+
+    private void readNumber(char first) throws IOException {
+        text.setLength(0);
+        text.append(first);
+        while (true) {
+            int c = read();
+            if (('0' <= c && '9' >= c) || '.' == c || 'e' == c || 'E' == c || '+' == c || '-' == c) {
+                text.append((char) c);
+            } else {
+                if (-1 != c) {
+                    unread();
+                }
+                break;
+            }
+        }
+        try {
+            Double.parseDouble(text.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + text);
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at line " + line);
+    }
+
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, bucketed like HdrHistogram so that
+ * every recorded value is kept to within 1/64 (about 1.6%) of its size, from one
+ * microsecond to more than a day, in a fixed 17 KB of counts.
+ *
+ * <p>Recording is lock-free and allocation-free: it increments one bucket and
+ * updates the count, sum and maximum with atomic operations, so it may be called
+ * from the UI thread and from any number of threads at once. Percentiles are read
+ * from the buckets without stopping recording, so a percentile read during
+ * recording may not include the latest values.</p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * The largest value that can be recorded, in microseconds (about 38 hours).
+     * Larger values are recorded as this value.
+     */
+    public static final long MAX_VALUE = (1L << 37) - 1;
+
+    // Values below 2 * HALF_BUCKET_COUNT have a bucket each; above that, each power
+    // of two is divided into HALF_BUCKET_COUNT buckets
+    private static final int HALF_BUCKET_BITS = 6;
+    private static final int HALF_BUCKET_COUNT = 1 << HALF_BUCKET_BITS;
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * @param micros the latency in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Another thread recorded a value; compare with it
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start time.
+     * @param startNanos the start time, from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of the values recorded, in microseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return the largest value recorded, in microseconds, or 0 if none has been.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values fall.
+     * @param percentile the percentage, from 0 to 100.
+     * @return the highest value that is equivalent, to within the histogram's
+     *         precision, to the value at the percentile, in microseconds, or 0 if no
+     *         value has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        if (0 == total) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * HALF_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - HALF_BUCKET_BITS;
+        return 2 * HALF_BUCKET_COUNT + (shift - 1) * HALF_BUCKET_COUNT
+                + (int) (value >>> shift) - HALF_BUCKET_COUNT;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * HALF_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - 2 * HALF_BUCKET_COUNT) / HALF_BUCKET_COUNT + 1;
+        long subBucket = (index - 2 * HALF_BUCKET_COUNT) % HALF_BUCKET_COUNT + HALF_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
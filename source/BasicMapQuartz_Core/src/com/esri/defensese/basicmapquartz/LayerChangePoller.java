@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detects changes to a feature service layer by polling the layer's REST
+ * resource for the lastEditDate of its editingInfo, which the server updates
+ * whenever the layer's data is edited. A poll that finds the same last edit date
+ * costs one small request. When the date has changed, the changes are described
+ * by a where clause on the layer's editor tracking date field, so that only the
+ * features edited since the previous poll need to be downloaded.
+ *
+ * <p>Deleted features do not match an edit date query. A poller that tracks
+ * deletions therefore also compares the layer's object IDs with those of the
+ * previous poll, and changes that deleted features have no delta where clause,
+ * meaning that the layer's features should be reloaded. A layer without
+ * editingInfo or editor tracking is reported as changed, in full, on every
+ * poll.</p>
+ */
+public class LayerChangePoller {
+
+    /**
+     * The outcome of a poll.
+     */
+    public static class Changes {
+
+        static final Changes NONE = new Changes(false, null, 0);
+
+        private final boolean changed;
+        private final String deltaWhereClause;
+        private final int deletedCount;
+
+        Changes(boolean changed, String deltaWhereClause, int deletedCount) {
+            this.changed = changed;
+            this.deltaWhereClause = deltaWhereClause;
+            this.deletedCount = deletedCount;
+        }
+
+        /**
+         * @return true if the layer's data changed since the previous poll.
+         */
+        public boolean isChanged() {
+            return changed;
+        }
+
+        /**
+         * @return the where clause for the features added or updated since the
+         *         previous poll, including the poller's own where clause, or null
+         *         if the layer changed and its features should be reloaded.
+         */
+        public String getDeltaWhereClause() {
+            return deltaWhereClause;
+        }
+
+        /**
+         * @return the number of features deleted since the previous poll, or 0 if
+         *         the poller does not track deletions.
+         */
+        public int getDeletedCount() {
+            return deletedCount;
+        }
+
+    }
+
+    private static final Pattern LAST_EDIT_DATE = Pattern.compile("\"lastEditDate\"\\s*:\\s*(\\d+)");
+    private static final Pattern EDIT_DATE_FIELD = Pattern.compile("\"editDateField\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern OBJECT_IDS = Pattern.compile("\"objectIds\"\\s*:\\s*(?:null|\\[([^\\]]*)\\])");
+    private static final Pattern ERROR = Pattern.compile("^\\s*\\{\\s*\"error\"");
+    private static final Pattern ERROR_MESSAGE = Pattern.compile("\"message\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final String layerUrl;
+    private final String whereClause;
+    private final boolean trackDeletions;
+    private volatile String token = null;
+    private boolean polled = false;
+    private long lastEditDate = -1;
+    private long[] objectIds = null;
+
+    /**
+     * Creates a poller. The first poll only records the layer's state.
+     * @param layerUrl the URL of the feature service layer.
+     * @param whereClause the where clause for the features of interest, e.g. the
+     *                    layer's definition expression, or null for all features.
+     * @param trackDeletions true to compare object IDs on each change, for layers
+     *                       whose local features are only updated by delta
+     *                       queries.
+     */
+    public LayerChangePoller(String layerUrl, String whereClause, boolean trackDeletions) {
+        this.layerUrl = layerUrl;
+        this.whereClause = whereClause;
+        this.trackDeletions = trackDeletions;
+    }
+
+    /**
+     * Sets the token to send with each request, for a secured service.
+     * @param token the token, or null to send none.
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Polls the layer for changes since the previous poll. This method blocks.
+     * @return the changes. The first poll reports no changes.
+     * @throws IOException if the layer could not be read.
+     */
+    public synchronized Changes poll() throws IOException {
+        String info = get(layerUrl + "?f=json" + getTokenParameter());
+        Matcher lastEditDateMatcher = LAST_EDIT_DATE.matcher(info);
+        long newLastEditDate = lastEditDateMatcher.find() ? Long.parseLong(lastEditDateMatcher.group(1)) : -1;
+        if (polled && 0 <= newLastEditDate && newLastEditDate == lastEditDate) {
+            return Changes.NONE;
+        }
+        long[] newObjectIds = trackDeletions ? queryObjectIds() : null;
+        int deletedCount = null == objectIds || null == newObjectIds ? 0 : countMissing(objectIds, newObjectIds);
+        boolean first = !polled;
+        long previousLastEditDate = lastEditDate;
+        polled = true;
+        lastEditDate = newLastEditDate;
+        objectIds = newObjectIds;
+        if (first) {
+            return Changes.NONE;
+        }
+
+        Matcher editDateFieldMatcher = EDIT_DATE_FIELD.matcher(info);
+        String deltaWhereClause = null;
+        if (editDateFieldMatcher.find() && 0 <= previousLastEditDate && 0 <= newLastEditDate && 0 == deletedCount) {
+            // Edits in the same second as the previous last edit are downloaded again, which is harmless
+            deltaWhereClause = WhereClause.and(whereClause,
+                    editDateFieldMatcher.group(1) + " >= " + toTimestamp(previousLastEditDate));
+        }
+        return new Changes(true, deltaWhereClause, deletedCount);
+    }
+
+    /**
+     * Reads a URL. Overridden by tests.
+     * @param url the URL.
+     * @return the response body.
+     * @throws IOException if the request fails or the service returns an error.
+     */
+    String get(String url) throws IOException {
+        String response = ArcGISTokenGenerator.get(url);
+        if (ERROR.matcher(response).find()) {
+            Matcher message = ERROR_MESSAGE.matcher(response);
+            throw new IOException(message.find() ? message.group(1) : "Error from " + url);
+        }
+        return response;
+    }
+
+    private long[] queryObjectIds() throws IOException {
+        String response = get(layerUrl + "/query?where="
+                + encode(null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause)
+                + "&returnIdsOnly=true&f=json" + getTokenParameter());
+        Matcher matcher = OBJECT_IDS.matcher(response);
+        if (!matcher.find()) {
+            throw new IOException("No object IDs in query response from " + layerUrl);
+        }
+        String list = null == matcher.group(1) ? "" : matcher.group(1).trim();
+        if (list.isEmpty()) {
+            return new long[0];
+        }
+        String[] values = list.split("\\s*,\\s*");
+        long[] ids = new long[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                ids[i] = Long.parseLong(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid object ID in query response from " + layerUrl, e);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Counts the values of a sorted array that are not in another sorted array.
+     */
+    static int countMissing(long[] before, long[] after) {
+        int missing = 0;
+        int j = 0;
+        for (long id : before) {
+            while (j < after.length && after[j] < id) {
+                j++;
+            }
+            if (j == after.length || after[j] != id) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Formats a time as a standardized SQL timestamp literal, in UTC and
+     * truncated to the second.
+     */
+    static String toTimestamp(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return "TIMESTAMP '" + format.format(new Date(time)) + "'";
+    }
+
+    private String getTokenParameter() throws UnsupportedEncodingException {
+        String currentToken = token;
+        return null == currentToken ? "" : "&token=" + encode(currentToken);
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes layers on a background thread, each at its own interval. Every delay
+ * is spread by a random jitter, so that layers with the same interval, and the
+ * many clients of one service, do not poll in step, and a layer whose refresh
+ * fails is retried after a delay that doubles with each failure, up to
+ * MAX_BACKOFF_MILLIS, so that an unreachable service is not polled at full rate.
+ * A refresh may finish asynchronously; the layer's next refresh is scheduled
+ * when it reports its outcome.
+ */
+public class LayerRefreshScheduler {
+
+    /**
+     * Refreshes one layer.
+     */
+    public interface Refresh {
+
+        /**
+         * Refreshes the layer. Called on the scheduler's thread, which it may
+         * block, e.g. to poll the service.
+         * @param completion the completion to call, on any thread, when the
+         *                   refresh has succeeded or failed.
+         * @throws IOException if the refresh failed. This is the same as calling
+         *                     completion.failed.
+         */
+        void refresh(Completion completion) throws IOException;
+
+    }
+
+    /**
+     * Reports the outcome of one refresh. Only the first call counts.
+     */
+    public final class Completion {
+
+        private final Registration registration;
+        private boolean done = false;
+
+        private Completion(Registration registration) {
+            this.registration = registration;
+        }
+
+        /**
+         * Reports that the refresh succeeded, so that the layer is refreshed again
+         * after its interval.
+         */
+        public void succeeded() {
+            complete(null);
+        }
+
+        /**
+         * Reports that the refresh failed, so that the layer is refreshed again
+         * after a backoff delay.
+         * @param error the reason for the failure.
+         */
+        public void failed(Throwable error) {
+            complete(null == error ? new IOException("Refresh failed") : error);
+        }
+
+        private void complete(Throwable error) {
+            synchronized (LayerRefreshScheduler.this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+            completed(registration, error);
+        }
+
+    }
+
+    private static class Registration {
+
+        final String id;
+        final long intervalMillis;
+        final Refresh refresh;
+        int failures = 0;
+        boolean running = false;
+        ScheduledFuture<?> future = null;
+
+        Registration(String id, long intervalMillis, Refresh refresh) {
+            this.id = id;
+            this.intervalMillis = intervalMillis;
+            this.refresh = refresh;
+        }
+
+    }
+
+    /**
+     * The default jitter, as a fraction of the interval by which each delay may be
+     * shorter or longer.
+     */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    /**
+     * The longest delay after repeated failures, unless the interval is longer.
+     */
+    public static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Logger logger = Logger.getLogger(LayerRefreshScheduler.class.getName());
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LayerRefreshScheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<String, Registration> registrations = new HashMap<>();
+    private final double jitter;
+    private final Random random;
+    private boolean paused = false;
+
+    /**
+     * Creates a scheduler with the default jitter.
+     */
+    public LayerRefreshScheduler() {
+        this(DEFAULT_JITTER, new Random());
+    }
+
+    /**
+     * Creates a scheduler.
+     * @param jitter the fraction of the interval by which each delay may be
+     *               shorter or longer, from 0 to 1.
+     * @param random the source of the jitter.
+     */
+    public LayerRefreshScheduler(double jitter, Random random) {
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * Returns the delay before a layer's next refresh.
+     * @param intervalMillis the layer's refresh interval.
+     * @param failures the number of times in a row the layer's refresh failed.
+     * @param jitter the jitter, as a fraction of the interval.
+     * @param random a random number from 0 to 1.
+     * @return the delay, in milliseconds.
+     */
+    static long getDelayMillis(long intervalMillis, int failures, double jitter, double random) {
+        long maxDelay = Math.max(intervalMillis, MAX_BACKOFF_MILLIS);
+        long delay = intervalMillis;
+        for (int i = 0; i < failures && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return Math.round(Math.min(delay, maxDelay) * (1 - jitter + 2 * jitter * random));
+    }
+
+    /**
+     * Schedules a layer's refreshes, replacing any already scheduled for it. The
+     * first refresh happens within the jitter fraction of the interval.
+     * @param id the layer ID.
+     * @param intervalMillis the time between refreshes.
+     * @param refresh the refresh.
+     */
+    public synchronized void schedule(String id, long intervalMillis, Refresh refresh) {
+        Registration registration = new Registration(id, intervalMillis, refresh);
+        cancel(registrations.put(id, registration));
+        scheduleFirst(registration);
+    }
+
+    /**
+     * Stops refreshing a layer. A refresh in progress is not interrupted.
+     * @param id the layer ID.
+     */
+    public synchronized void cancel(String id) {
+        cancel(registrations.remove(id));
+    }
+
+    /**
+     * Refreshes a layer as soon as possible instead of at its next scheduled time,
+     * e.g. after the app's own edits to it have been synced. Does nothing if the
+     * layer is not scheduled, is being refreshed or the scheduler is paused.
+     * @param id the layer ID.
+     */
+    public synchronized void refreshNow(String id) {
+        Registration registration = registrations.get(id);
+        if (null == registration || registration.running) {
+            return;
+        }
+        cancel(registration);
+        schedule(registration, 0);
+    }
+
+    /**
+     * Returns how many times in a row a layer's refresh has failed.
+     * @param id the layer ID.
+     * @return the number of failures since the last success, or 0 if the layer is
+     *         not scheduled.
+     */
+    public synchronized int getFailureCount(String id) {
+        Registration registration = registrations.get(id);
+        return null == registration ? 0 : registration.failures;
+    }
+
+    /**
+     * Cancels all scheduled refreshes until resume is called, e.g. while the app is
+     * in the background. A refresh in progress finishes but is not rescheduled.
+     */
+    public synchronized void pause() {
+        paused = true;
+        for (Registration registration : registrations.values()) {
+            if (null != registration.future) {
+                registration.future.cancel(false);
+                registration.future = null;
+            }
+        }
+    }
+
+    /**
+     * Schedules refreshes again after pause. Every layer is refreshed within the
+     * jitter fraction of its interval, since it may have missed refreshes.
+     */
+    public synchronized void resume() {
+        if (!paused) {
+            return;
+        }
+        paused = false;
+        for (Registration registration : registrations.values()) {
+            if (!registration.running) {
+                scheduleFirst(registration);
+            }
+        }
+    }
+
+    /**
+     * Cancels all refreshes and stops the background thread.
+     */
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+        registrations.clear();
+    }
+
+    private void scheduleFirst(Registration registration) {
+        schedule(registration, Math.round(registration.intervalMillis * jitter * random.nextDouble()));
+    }
+
+    private void schedule(final Registration registration, long delayMillis) {
+        if (paused || executor.isShutdown() || registration != registrations.get(registration.id)) {
+            return;
+        }
+        registration.future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(registration);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancel(Registration registration) {
+        if (null != registration && null != registration.future) {
+            registration.future.cancel(false);
+        }
+    }
+
+    private void refresh(Registration registration) {
+        synchronized (this) {
+            if (paused || registration != registrations.get(registration.id)) {
+                return;
+            }
+            registration.future = null;
+            registration.running = true;
+        }
+        Completion completion = new Completion(registration);
+        try {
+            registration.refresh.refresh(completion);
+        } catch (IOException | RuntimeException e) {
+            completion.failed(e);
+        }
+    }
+
+    private synchronized void completed(Registration registration, Throwable error) {
+        registration.running = false;
+        if (null == error) {
+            registration.failures = 0;
+        } else {
+            registration.failures++;
+        }
+        long delay = getDelayMillis(registration.intervalMillis, registration.failures, jitter, random.nextDouble());
+        if (null != error) {
+            logger.log(Level.WARNING, "Could not refresh layer " + registration.id + "; retrying in "
+                    + TimeUnit.MILLISECONDS.toSeconds(delay) + " s", error);
+        }
+        schedule(registration, delay);
+    }
+
+}
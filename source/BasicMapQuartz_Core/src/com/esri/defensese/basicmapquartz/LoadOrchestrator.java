@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts asynchronous load tasks, such as loading a map, its basemap and its
+ * operational layers, as soon as the tasks they depend on have finished, so that
+ * independent tasks load concurrently instead of one after another. The
+ * orchestrator records when each task started and finished and tells a listener
+ * when the critical tasks, i.e. those needed for the first useful frame, are done,
+ * without waiting for the other tasks.
+ *
+ * <p>Tasks may be added at any time, e.g. when a layer is created after startup.
+ * A task whose dependency fails fails too, without being started.</p>
+ */
+public class LoadOrchestrator {
+
+    /**
+     * An asynchronous load task.
+     */
+    public interface LoadTask {
+
+        /**
+         * Starts the task, which must call one of the callback's methods exactly
+         * once when it finishes. This method should return quickly.
+         * @param callback the callback.
+         */
+        void start(LoadCallback callback);
+
+    }
+
+    /**
+     * Receives the outcome of a LoadTask.
+     */
+    public interface LoadCallback {
+
+        /**
+         * Called when the task has finished successfully.
+         */
+        void loaded();
+
+        /**
+         * Called when the task has failed.
+         * @param error the reason for the failure.
+         */
+        void failed(Throwable error);
+
+    }
+
+    /**
+     * Receives progress from the orchestrator. Methods are called on the thread
+     * that finished the task.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a task finishes or fails.
+         * @param name the task name.
+         * @param error the reason for the failure, or null if the task succeeded.
+         * @param timing the task's timing.
+         */
+        void taskFinished(String name, Throwable error, Timing timing);
+
+        /**
+         * Called when all critical tasks added so far have finished.
+         * @param elapsedMillis the time since the orchestrator was created.
+         */
+        void criticalTasksFinished(long elapsedMillis);
+
+    }
+
+    /**
+     * When a task started and finished, relative to the creation of the
+     * orchestrator.
+     */
+    public static class Timing {
+
+        private final long startMillis;
+        private final long finishMillis;
+
+        Timing(long startMillis, long finishMillis) {
+            this.startMillis = startMillis;
+            this.finishMillis = finishMillis;
+        }
+
+        /**
+         * @return when the task started, in milliseconds since the orchestrator
+         *         was created, or -1 if it never started.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return when the task finished, in milliseconds since the orchestrator
+         *         was created.
+         */
+        public long getFinishMillis() {
+            return finishMillis;
+        }
+
+        /**
+         * @return how long the task ran, in milliseconds, or 0 if it never started.
+         */
+        public long getLoadMillis() {
+            return 0 > startMillis ? 0 : finishMillis - startMillis;
+        }
+
+    }
+
+    private enum State { WAITING, RUNNING, SUCCEEDED, FAILED }
+
+    private static class Task {
+
+        final String name;
+        final boolean critical;
+        final LoadTask loadTask;
+        final List<String> dependencies;
+        State state = State.WAITING;
+        Throwable error;
+        long startNanos = -1;
+        long finishNanos = -1;
+
+        Task(String name, boolean critical, LoadTask loadTask, List<String> dependencies) {
+            this.name = name;
+            this.critical = critical;
+            this.loadTask = loadTask;
+            this.dependencies = dependencies;
+        }
+
+    }
+
+    private final long createdNanos = System.nanoTime();
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private volatile Listener listener;
+    private boolean criticalTasksFinished = false;
+
+    /**
+     * Sets the listener.
+     * @param listener the listener, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a task, which starts immediately if its dependencies have finished.
+     * @param name the task name, which must be unique.
+     * @param critical true if the task is needed for the first useful frame.
+     * @param loadTask the task.
+     * @param dependencies the names of the tasks that must finish first. They may
+     *                     be added later.
+     */
+    public void add(String name, boolean critical, LoadTask loadTask, String... dependencies) {
+        synchronized (this) {
+            if (tasks.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate load task " + name);
+            }
+            tasks.put(name, new Task(name, critical, loadTask, Arrays.asList(dependencies)));
+            if (critical) {
+                criticalTasksFinished = false;
+            }
+        }
+        advance();
+    }
+
+    /**
+     * Returns a task's timing.
+     * @param name the task name.
+     * @return the timing, or null if the task has not finished.
+     */
+    public synchronized Timing getTiming(String name) {
+        Task task = tasks.get(name);
+        return null == task || 0 > task.finishNanos ? null : timing(task);
+    }
+
+    /**
+     * @return true if every task added so far has finished or failed.
+     */
+    public synchronized boolean isFinished() {
+        for (Task task : tasks.values()) {
+            if (State.WAITING == task.state || State.RUNNING == task.state) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a summary of the finished tasks' timings, e.g. for a log.
+     * @return one line per finished task, in the order the tasks were added.
+     */
+    public synchronized String formatTimings() {
+        StringBuilder sb = new StringBuilder();
+        for (Task task : tasks.values()) {
+            if (0 > task.finishNanos) {
+                continue;
+            }
+            Timing timing = timing(task);
+            sb.append(task.name).append(": ")
+                    .append(State.SUCCEEDED == task.state ? "loaded" : "failed")
+                    .append(" in ").append(timing.getLoadMillis()).append(" ms")
+                    .append(" (started at ").append(timing.getStartMillis())
+                    .append(" ms, finished at ").append(timing.getFinishMillis()).append(" ms)\n");
+        }
+        return sb.toString();
+    }
+
+    private Timing timing(Task task) {
+        return new Timing(0 > task.startNanos ? -1 : toMillis(task.startNanos), toMillis(task.finishNanos));
+    }
+
+    private long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos - createdNanos);
+    }
+
+    /**
+     * Starts the tasks whose dependencies have succeeded and fails those with a
+     * failed dependency, repeating until nothing changes.
+     */
+    private void advance() {
+        List<Task> toStart = new ArrayList<>();
+        List<Task> toFail = new ArrayList<>();
+        boolean notifyCritical = false;
+        synchronized (this) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Task task : tasks.values()) {
+                    if (State.WAITING != task.state) {
+                        continue;
+                    }
+                    Task failedDependency = null;
+                    boolean ready = true;
+                    for (String dependencyName : task.dependencies) {
+                        Task dependency = tasks.get(dependencyName);
+                        if (null == dependency || State.SUCCEEDED != dependency.state) {
+                            ready = false;
+                            if (null != dependency && State.FAILED == dependency.state) {
+                                failedDependency = dependency;
+                            }
+                        }
+                    }
+                    if (null != failedDependency) {
+                        task.state = State.FAILED;
+                        task.finishNanos = System.nanoTime();
+                        task.error = new IllegalStateException(
+                                "Dependency " + failedDependency.name + " failed", failedDependency.error);
+                        toFail.add(task);
+                        changed = true;
+                    } else if (ready) {
+                        task.state = State.RUNNING;
+                        task.startNanos = System.nanoTime();
+                        toStart.add(task);
+                    }
+                }
+            }
+            if (!criticalTasksFinished && allCriticalTasksFinished()) {
+                criticalTasksFinished = true;
+                notifyCritical = true;
+            }
+        }
+
+        Listener currentListener = listener;
+        if (null != currentListener) {
+            for (Task task : toFail) {
+                currentListener.taskFinished(task.name, task.error, getTiming(task.name));
+            }
+            if (notifyCritical) {
+                currentListener.criticalTasksFinished(toMillis(System.nanoTime()));
+            }
+        }
+        for (final Task task : toStart) {
+            try {
+                task.loadTask.start(new LoadCallback() {
+                    @Override
+                    public void loaded() {
+                        finish(task, null);
+                    }
+
+                    @Override
+                    public void failed(Throwable error) {
+                        finish(task, error);
+                    }
+                });
+            } catch (RuntimeException e) {
+                finish(task, e);
+            }
+        }
+    }
+
+    private boolean allCriticalTasksFinished() {
+        boolean hasCriticalTask = false;
+        for (Task task : tasks.values()) {
+            if (task.critical) {
+                hasCriticalTask = true;
+                if (State.WAITING == task.state || State.RUNNING == task.state) {
+                    return false;
+                }
+            }
+        }
+        return hasCriticalTask;
+    }
+
+    private void finish(Task task, Throwable error) {
+        synchronized (this) {
+            if (State.RUNNING != task.state) {
+                return;
+            }
+            task.state = null == error ? State.SUCCEEDED : State.FAILED;
+            task.error = error;
+            task.finishNanos = System.nanoTime();
+        }
+        Listener currentListener = listener;
+        if (null != currentListener) {
+            currentListener.taskFinished(task.name, error, getTiming(task.name));
+        }
+        advance();
+    }
+
+}
@@ -0,0 +1,485 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Serves a TilePackage over HTTP on the loopback interface as a tiled map service
+ * or vector tile service, so that an ArcGISTiledLayer or ArcGISVectorTiledLayer
+ * can draw the package's tiles straight from the memory-mapped bundles. Tiles
+ * that the package does not contain are fetched from an online fallback service
+ * if there is one and are missing otherwise, so a complete package is drawn with
+ * no network calls at all.
+ *
+ * <p>With a TileCache, tiles fetched from the fallback service are cached in
+ * memory and on disk, so panning over an area that has been seen before, even in
+ * an earlier session, needs no network calls either. Without a package, the
+ * server is simply a caching proxy for the fallback service.</p>
+ *
+ * <p>The server understands only the requests that tiled layers make: the service
+ * JSON, tiles, and, for vector tile packages, the files under p12/resources.
+ * Connections are kept alive so that a burst of tile requests does not open a
+ * socket per tile.</p>
+ */
+public class LocalTileServer {
+
+    private static final Logger logger = Logger.getLogger(LocalTileServer.class.getName());
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+    private static final int FALLBACK_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_REQUEST_LINE_LENGTH = 8192;
+    private static final String SERVICE_JSON_KEY = "service.json";
+    private static final Pattern TILE_SERVERS = Pattern.compile(
+            "\"tileServers\"\\s*:\\s*\\[[^\\]]*\\]\\s*,|,\\s*\"tileServers\"\\s*:\\s*\\[[^\\]]*\\]");
+
+    private final TilePackage tilePackage;
+    private final String fallbackServiceUrl;
+    private final TileCache tileCache;
+    private final boolean vector;
+    private final String servicePath;
+    private final AtomicLong packageTileCount = new AtomicLong();
+    private final AtomicLong fallbackTileCount = new AtomicLong();
+    private final AtomicLong missingTileCount = new AtomicLong();
+    private ServerSocket serverSocket = null;
+    private ExecutorService executor = null;
+
+    /**
+     * Creates a server without a tile cache. Nothing is opened until start is
+     * called.
+     * @param tilePackage the tile package to serve.
+     * @param fallbackServiceUrl the URL of the online service from which to fetch
+     *                           tiles that are not in the package, which must use
+     *                           the package's tiling scheme, or null to fetch
+     *                           nothing online.
+     */
+    public LocalTileServer(TilePackage tilePackage, String fallbackServiceUrl) {
+        this(tilePackage, fallbackServiceUrl, null);
+    }
+
+    /**
+     * Creates a server. Nothing is opened until start is called.
+     * @param tilePackage the tile package to serve, or null to serve only the
+     *                    fallback service's tiles.
+     * @param fallbackServiceUrl the URL of the online tiled map service from which
+     *                           to fetch tiles that are not in the package, which
+     *                           must use the package's tiling scheme, or null to
+     *                           fetch nothing online.
+     * @param tileCache the cache for tiles fetched from the fallback service, or
+     *                  null to fetch them every time.
+     * @throws IllegalArgumentException if there is neither a package nor a
+     *                                  fallback service.
+     */
+    public LocalTileServer(TilePackage tilePackage, String fallbackServiceUrl, TileCache tileCache) {
+        if (null == tilePackage && null == fallbackServiceUrl) {
+            throw new IllegalArgumentException("A tile package or a fallback service is required");
+        }
+        this.tilePackage = tilePackage;
+        this.fallbackServiceUrl = null == fallbackServiceUrl || !fallbackServiceUrl.endsWith("/")
+                ? fallbackServiceUrl : fallbackServiceUrl.substring(0, fallbackServiceUrl.length() - 1);
+        this.tileCache = tileCache;
+        this.vector = null != tilePackage && tilePackage.isVector();
+        this.servicePath = "/arcgis/rest/services/" + (null == tilePackage ? "cache" : "package") + "/"
+                + (vector ? "VectorTileServer" : "MapServer");
+    }
+
+    /**
+     * Starts accepting connections on an ephemeral port of the loopback interface.
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (null != serverSocket) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        serverSocket = socket;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LocalTileServer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ExecutorService connectionExecutor = executor;
+        connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        final Socket connection = socket.accept();
+                        connectionExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(connection);
+                            }
+                        });
+                    } catch (SocketException e) {
+                        // The server socket was closed by stop
+                        return;
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Could not accept a tile request", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the server and closes its connections.
+     */
+    public synchronized void stop() {
+        if (null == serverSocket) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not close the tile server socket", e);
+        }
+        executor.shutdownNow();
+        serverSocket = null;
+        executor = null;
+    }
+
+    /**
+     * @return the URL of the service, for creating a tiled layer, or null if the
+     *         server is not started.
+     */
+    public synchronized String getServiceUrl() {
+        return null == serverSocket ? null
+                : "http://127.0.0.1:" + serverSocket.getLocalPort() + servicePath;
+    }
+
+    /**
+     * @return the tile package that the server serves, or null.
+     */
+    public TilePackage getTilePackage() {
+        return tilePackage;
+    }
+
+    /**
+     * @return the cache of tiles fetched from the fallback service, or null.
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * @return the number of tiles served from the package.
+     */
+    public long getPackageTileCount() {
+        return packageTileCount.get();
+    }
+
+    /**
+     * @return the number of tiles fetched from the fallback service, not counting
+     *         those found in the tile cache.
+     */
+    public long getFallbackTileCount() {
+        return fallbackTileCount.get();
+    }
+
+    /**
+     * @return the number of tiles that neither the package nor the fallback
+     *         service had.
+     */
+    public long getMissingTileCount() {
+        return missingTileCount.get();
+    }
+
+    private void serve(Socket connection) {
+        try {
+            connection.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            connection.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (null == requestLine) {
+                    break;
+                }
+                String header;
+                while (null != (header = readLine(in)) && !header.isEmpty()) {
+                    if (header.toLowerCase(Locale.US).replace(" ", "").equals("connection:close")) {
+                        keepAlive = false;
+                    }
+                }
+                if (null == header) {
+                    break;
+                }
+                String[] parts = requestLine.split(" ");
+                if (3 != parts.length || !"GET".equals(parts[0])) {
+                    writeResponse(out, 405, "Method Not Allowed", "text/plain", null, null);
+                } else {
+                    int queryStart = parts[1].indexOf('?');
+                    handle(queryStart < 0 ? parts[1] : parts[1].substring(0, queryStart), out);
+                }
+                out.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            // An idle keep-alive connection
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Tile request failed", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Could not close a tile connection", e);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ('\n' != (c = in.read())) {
+            if (-1 == c) {
+                return 0 == sb.length() ? null : sb.toString();
+            }
+            if (sb.length() == MAX_REQUEST_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            if ('\r' != c) {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void handle(String path, OutputStream out) throws IOException {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.equals(servicePath)) {
+            byte[] serviceJson = getServiceJson();
+            if (null == serviceJson) {
+                writeResponse(out, 502, "Bad Gateway", "text/plain", null, null);
+            } else {
+                writeResponse(out, 200, "OK", "application/json", null, ByteBuffer.wrap(serviceJson));
+            }
+            return;
+        }
+        if (!path.startsWith(servicePath + "/")) {
+            writeResponse(out, 404, "Not Found", "text/plain", null, null);
+            return;
+        }
+        String relativePath = path.substring(servicePath.length() + 1);
+        if (relativePath.startsWith("tile/")) {
+            String[] levelRowColumn = relativePath.substring("tile/".length()).split("/");
+            if (3 == levelRowColumn.length) {
+                try {
+                    String column = levelRowColumn[2];
+                    int dot = column.indexOf('.');
+                    handleTile(Integer.parseInt(levelRowColumn[0]), Integer.parseInt(levelRowColumn[1]),
+                            Integer.parseInt(dot < 0 ? column : column.substring(0, dot)), out);
+                    return;
+                } catch (NumberFormatException e) {
+                    // Not a tile request
+                }
+            }
+        } else if (vector) {
+            File resource = tilePackage.getResource(relativePath);
+            if (null != resource) {
+                writeResponse(out, 200, "OK", getContentType(relativePath), null, ByteBuffer.wrap(readFile(resource)));
+                return;
+            }
+        }
+        writeResponse(out, 404, "Not Found", "text/plain", null, null);
+    }
+
+    /**
+     * Returns the service JSON. A tile package's root.json does not say that the
+     * service is a cached map service, which ArcGISTiledLayer needs to know.
+     * Without a package, the fallback service's JSON is fetched and cached, less
+     * any other servers it names for its tiles, which would bypass this one.
+     * @return the service JSON, or null if it cannot be fetched.
+     */
+    private byte[] getServiceJson() throws IOException {
+        if (null == tilePackage) {
+            byte[] json = null == tileCache ? null : tileCache.get(SERVICE_JSON_KEY);
+            if (null == json) {
+                json = fetch(fallbackServiceUrl + "?f=json");
+                if (null == json) {
+                    return null;
+                }
+                json = TILE_SERVERS.matcher(new String(json, "UTF-8")).replaceAll("").getBytes("UTF-8");
+                if (null != tileCache) {
+                    tileCache.put(SERVICE_JSON_KEY, json);
+                }
+            }
+            return json;
+        }
+        byte[] json = tilePackage.getServiceJson();
+        if (vector) {
+            return json;
+        }
+        int brace = 0;
+        while (brace < json.length && '{' != json[brace]) {
+            brace++;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length + 64);
+        out.write("{\"singleFusedMapCache\":true,\"capabilities\":\"Map,TilesOnly\",".getBytes("UTF-8"));
+        out.write(json, brace + 1, json.length - brace - 1);
+        return out.toByteArray();
+    }
+
+    private void handleTile(int level, int row, int column, OutputStream out) throws IOException {
+        ByteBuffer tile = null;
+        if (null != tilePackage) {
+            try {
+                tile = tilePackage.getTileBuffer(level, row, column);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read tile " + level + "/" + row + "/" + column, e);
+            }
+        }
+        if (null != tile) {
+            packageTileCount.incrementAndGet();
+            writeTile(out, tile);
+            return;
+        }
+        if (null != fallbackServiceUrl) {
+            String key = TileCache.tileKey(level, row, column);
+            byte[] fallbackTile = null == tileCache ? null : tileCache.get(key);
+            if (null == fallbackTile) {
+                fallbackTile = fetch(fallbackServiceUrl + "/tile/" + level + "/" + row + "/" + column
+                        + (vector ? ".pbf" : ""));
+                if (null != fallbackTile) {
+                    fallbackTileCount.incrementAndGet();
+                    if (null != tileCache) {
+                        tileCache.put(key, fallbackTile);
+                    }
+                }
+            }
+            if (null != fallbackTile) {
+                writeTile(out, ByteBuffer.wrap(fallbackTile));
+                return;
+            }
+        }
+        missingTileCount.incrementAndGet();
+        writeResponse(out, 404, "Not Found", "text/plain", null, null);
+    }
+
+    private static byte[] fetch(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(FALLBACK_TIMEOUT_MILLIS);
+            connection.setReadTimeout(FALLBACK_TIMEOUT_MILLIS);
+            // Keep gzipped vector tiles as they are stored in a package
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            try {
+                if (200 != connection.getResponseCode()) {
+                    return null;
+                }
+                return readAll(connection.getInputStream());
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not fetch " + url, e);
+            return null;
+        }
+    }
+
+    private void writeTile(OutputStream out, ByteBuffer tile) throws IOException {
+        int start = tile.position();
+        int remaining = tile.remaining();
+        String contentEncoding = null;
+        String contentType = "application/octet-stream";
+        if (2 <= remaining && 0x1F == (tile.get(start) & 0xFF) && 0x8B == (tile.get(start + 1) & 0xFF)) {
+            contentEncoding = "gzip";
+            contentType = "application/x-protobuf";
+        } else if (vector) {
+            contentType = "application/x-protobuf";
+        } else if (4 <= remaining && 0x89 == (tile.get(start) & 0xFF) && 'P' == tile.get(start + 1)) {
+            contentType = "image/png";
+        } else if (2 <= remaining && 0xFF == (tile.get(start) & 0xFF) && 0xD8 == (tile.get(start + 1) & 0xFF)) {
+            contentType = "image/jpeg";
+        }
+        writeResponse(out, 200, "OK", contentType, contentEncoding, tile);
+    }
+
+    private static void writeResponse(OutputStream out, int status, String reason, String contentType,
+                                      String contentEncoding, ByteBuffer body) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        if (null != contentEncoding) {
+            headers.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        headers.append("Content-Length: ").append(null == body ? 0 : body.remaining()).append("\r\n");
+        headers.append("\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+        if (null != body) {
+            // Writes straight from the mapped bundle without copying the whole tile
+            Channels.newChannel(out).write(body);
+        }
+    }
+
+    private static String getContentType(String path) {
+        if (path.endsWith(".json")) {
+            return "application/json";
+        } else if (path.endsWith(".png")) {
+            return "image/png";
+        } else if (path.endsWith(".pbf")) {
+            return "application/x-protobuf";
+        }
+        return "application/octet-stream";
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readAll(new FileInputStream(file));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while (-1 != (count = in.read(buffer))) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
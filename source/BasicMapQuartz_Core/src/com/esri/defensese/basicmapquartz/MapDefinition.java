@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A description of a map, read from a JSON file so that layers and their
+ * performance settings can change without a new build. For example:
+ *
+ * <pre>
+ * {
+ *   "basemap": "topographic",
+ *   "package": "offline/fieldOps",
+ *   "layers": [
+ *     {
+ *       "id": "sites",
+ *       "url": "https://services1.arcgis.com/.../FeatureServer/0",
+ *       "definitionExpression": "Name LIKE '%Sa%'",
+ *       "filter": "Name LIKE '%Park%'",
+ *       "cachePolicy": "offline",
+ *       "refreshIntervalSeconds": 300,
+ *       "cluster": true,
+ *       "searchFields": ["City", "Code"]
+ *     }
+ *   ]
+ * }
+ * </pre>
+ *
+ * <p>The basemap is the name of a standard basemap, such as "imagery" or
+ * "streets", or the URL of a tiled map service. Unknown properties are ignored so
+ * that newer files can be read by older builds. Map definitions are immutable.</p>
+ *
+ * <p>The optional package is the directory of an offline map package, relative
+ * to the map definition file. Its tiles directory is an extracted .tpkx or .vtpk
+ * tile package, which replaces the basemap, and its data directory holds a
+ * geodatabase named after each layer ID that the package contains. The basemap
+ * is then used only for tiles that are missing from the package, and layers
+ * without a geodatabase in the package use their cache policy as usual.</p>
+ */
+public class MapDefinition {
+
+    /**
+     * How a layer's features are stored.
+     */
+    public enum CachePolicy {
+
+        /**
+         * Features are read from the service as needed.
+         */
+        ONLINE,
+
+        /**
+         * Features are kept in a local geodatabase and synced with the service.
+         */
+        OFFLINE,
+
+        /**
+         * Features are read from the service tile by tile for the visible extent,
+         * with less detail when zoomed out.
+         */
+        VIEWPORT
+
+    }
+
+    /**
+     * A feature layer in a map definition.
+     */
+    public static class LayerDefinition {
+
+        private final String id;
+        private final String url;
+        private final String definitionExpression;
+        private final String filter;
+        private final CachePolicy cachePolicy;
+        private final long refreshIntervalSeconds;
+        private final boolean visible;
+        private final boolean clustered;
+        private final List<String> searchFields;
+
+        /**
+         * Creates a layer definition whose features are searched by their display
+         * field only.
+         * @param id the layer ID, unique within the map definition.
+         * @param url the URL of the feature service layer.
+         * @param definitionExpression the definition expression, or null.
+         * @param filter a where clause applied to the layer's features locally, or
+         *               null.
+         * @param cachePolicy how the layer's features are stored.
+         * @param refreshIntervalSeconds how often to refresh the layer's features,
+         *                               or 0 to never refresh them.
+         * @param visible true if the layer is initially visible.
+         * @param clustered true if the layer's points are drawn as clusters at
+         *                  small scales.
+         */
+        public LayerDefinition(String id, String url, String definitionExpression, String filter,
+                               CachePolicy cachePolicy, long refreshIntervalSeconds, boolean visible,
+                               boolean clustered) {
+            this(id, url, definitionExpression, filter, cachePolicy, refreshIntervalSeconds, visible, clustered,
+                    Collections.<String>emptyList());
+        }
+
+        /**
+         * Creates a layer definition.
+         * @param id the layer ID, unique within the map definition.
+         * @param url the URL of the feature service layer.
+         * @param definitionExpression the definition expression, or null.
+         * @param filter a where clause applied to the layer's features locally, or
+         *               null.
+         * @param cachePolicy how the layer's features are stored.
+         * @param refreshIntervalSeconds how often to refresh the layer's features,
+         *                               or 0 to never refresh them.
+         * @param visible true if the layer is initially visible.
+         * @param clustered true if the layer's points are drawn as clusters at
+         *                  small scales.
+         * @param searchFields the fields, besides the display field, whose values
+         *                     the layer's features can be searched by.
+         */
+        public LayerDefinition(String id, String url, String definitionExpression, String filter,
+                               CachePolicy cachePolicy, long refreshIntervalSeconds, boolean visible,
+                               boolean clustered, List<String> searchFields) {
+            this.id = id;
+            this.url = url;
+            this.definitionExpression = definitionExpression;
+            this.filter = filter;
+            this.cachePolicy = cachePolicy;
+            this.refreshIntervalSeconds = refreshIntervalSeconds;
+            this.visible = visible;
+            this.clustered = clustered;
+            this.searchFields = Collections.unmodifiableList(new ArrayList<>(searchFields));
+        }
+
+        /**
+         * @return the layer ID.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the URL of the feature service layer.
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the definition expression, or null.
+         */
+        public String getDefinitionExpression() {
+            return definitionExpression;
+        }
+
+        /**
+         * @return the where clause applied to the layer's features locally, or
+         *         null. Unlike the definition expression, it can change without
+         *         reloading the layer.
+         */
+        public String getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return how the layer's features are stored.
+         */
+        public CachePolicy getCachePolicy() {
+            return cachePolicy;
+        }
+
+        /**
+         * @return how often to refresh the layer's features, in seconds, or 0.
+         */
+        public long getRefreshIntervalSeconds() {
+            return refreshIntervalSeconds;
+        }
+
+        /**
+         * @return true if the layer is initially visible.
+         */
+        public boolean isVisible() {
+            return visible;
+        }
+
+        /**
+         * @return true if the layer's points are drawn as clusters at small scales.
+         */
+        public boolean isClustered() {
+            return clustered;
+        }
+
+        /**
+         * @return the fields, besides the display field, whose values the layer's
+         *         features can be searched by.
+         */
+        public List<String> getSearchFields() {
+            return searchFields;
+        }
+
+        /**
+         * Returns true if another layer definition describes the same data, i.e. it
+         * has the same URL, definition expression, cache policy and clustering, so
+         * that the layer can be kept when the map definition is reloaded. The filter
+         * and visibility may differ.
+         * @param other the other layer definition.
+         * @return true if the layer's data is the same.
+         */
+        public boolean hasSameData(LayerDefinition other) {
+            return url.equals(other.url) && cachePolicy == other.cachePolicy && clustered == other.clustered
+                    && (null == definitionExpression ? null == other.definitionExpression
+                            : definitionExpression.equals(other.definitionExpression));
+        }
+
+    }
+
+    /**
+     * The basemap used when a map definition does not name one.
+     */
+    public static final String DEFAULT_BASEMAP = "topographic";
+
+    private final String basemap;
+    private final String packagePath;
+    private final List<LayerDefinition> layers;
+
+    /**
+     * Creates a map definition without an offline map package.
+     * @param basemap the basemap name or tiled map service URL.
+     * @param layers the feature layers, from bottom to top.
+     */
+    public MapDefinition(String basemap, List<LayerDefinition> layers) {
+        this(basemap, null, layers);
+    }
+
+    /**
+     * Creates a map definition.
+     * @param basemap the basemap name or tiled map service URL.
+     * @param packagePath the path of the offline map package directory, or null.
+     * @param layers the feature layers, from bottom to top.
+     */
+    public MapDefinition(String basemap, String packagePath, List<LayerDefinition> layers) {
+        this.basemap = basemap;
+        this.packagePath = packagePath;
+        this.layers = Collections.unmodifiableList(new ArrayList<>(layers));
+    }
+
+    /**
+     * @return the basemap name or tiled map service URL.
+     */
+    public String getBasemap() {
+        return basemap;
+    }
+
+    /**
+     * @return the path of the offline map package directory, or null if the map
+     *         uses online and cached sources only.
+     */
+    public String getPackagePath() {
+        return packagePath;
+    }
+
+    /**
+     * Returns this map definition with a relative package path made absolute.
+     * @param baseDirectory the directory against which a relative package path
+     *                      is resolved, normally the map definition file's
+     *                      directory.
+     * @return a map definition whose package path, if any, is absolute.
+     */
+    public MapDefinition resolvePackagePath(File baseDirectory) {
+        if (null == packagePath || new File(packagePath).isAbsolute()) {
+            return this;
+        }
+        return new MapDefinition(basemap, new File(baseDirectory, packagePath).getAbsolutePath(), layers);
+    }
+
+    /**
+     * @return the feature layers, from bottom to top.
+     */
+    public List<LayerDefinition> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Reads a map definition from JSON.
+     * @param in the Reader from which to read JSON. The caller closes it.
+     * @return the map definition.
+     * @throws IOException if the JSON cannot be read or is not a valid map
+     *                     definition.
+     */
+    public static MapDefinition read(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        String basemap = DEFAULT_BASEMAP;
+        String packagePath = null;
+        List<LayerDefinition> layers = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("basemap".equals(name)) {
+                basemap = reader.nextString();
+            } else if ("package".equals(name)) {
+                packagePath = reader.nextStringOrNull();
+            } else if ("layers".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    layers.add(readLayer(reader, layers.size()));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.peek();
+
+        Set<String> ids = new HashSet<>();
+        for (LayerDefinition layer : layers) {
+            if (!ids.add(layer.getId())) {
+                throw new IOException("Duplicate layer ID " + layer.getId());
+            }
+        }
+        return new MapDefinition(basemap, packagePath, layers);
+    }
+
+    private static LayerDefinition readLayer(JsonReader reader, int index) throws IOException {
+        String id = null;
+        String url = null;
+        String definitionExpression = null;
+        String filter = null;
+        CachePolicy cachePolicy = CachePolicy.ONLINE;
+        long refreshIntervalSeconds = 0;
+        boolean visible = true;
+        boolean clustered = false;
+        List<String> searchFields = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                id = reader.nextString();
+            } else if ("url".equals(name)) {
+                url = reader.nextString();
+            } else if ("definitionExpression".equals(name)) {
+                definitionExpression = reader.nextStringOrNull();
+            } else if ("filter".equals(name)) {
+                filter = reader.nextStringOrNull();
+            } else if ("cachePolicy".equals(name)) {
+                String policy = reader.nextString();
+                try {
+                    cachePolicy = CachePolicy.valueOf(policy.toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown cache policy " + policy);
+                }
+            } else if ("refreshIntervalSeconds".equals(name)) {
+                refreshIntervalSeconds = reader.nextLong();
+            } else if ("visible".equals(name)) {
+                visible = reader.nextBoolean();
+            } else if ("cluster".equals(name)) {
+                clustered = reader.nextBoolean();
+            } else if ("searchFields".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    searchFields.add(reader.nextString());
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (null == url) {
+            throw new IOException("Layer " + index + " has no URL");
+        }
+        return new LayerDefinition(null == id ? url : id, url, definitionExpression, filter, cachePolicy,
+                refreshIntervalSeconds, visible, clustered, searchFields);
+    }
+
+}
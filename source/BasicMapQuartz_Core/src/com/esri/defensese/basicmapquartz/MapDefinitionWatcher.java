@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a map definition file and reads it again whenever it changes, so that
+ * the app can apply a new map definition without restarting. The file is checked
+ * on a background thread; a file that cannot be parsed is reported and the last
+ * good map definition stays in effect.
+ */
+public class MapDefinitionWatcher {
+
+    /**
+     * Receives map definitions. Methods are called on the watcher's thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the file has changed and has been read.
+         * @param mapDefinition the new map definition.
+         */
+        void mapDefinitionChanged(MapDefinition mapDefinition);
+
+        /**
+         * Called when the file has changed but could not be read.
+         * @param error the reason for the failure.
+         */
+        void mapDefinitionFailed(IOException error);
+
+    }
+
+    /**
+     * The default time between checks of the file.
+     */
+    public static final long DEFAULT_POLL_MILLIS = 2000;
+
+    /**
+     * The name of the default map definition resource, next to the MapDefinition
+     * class.
+     */
+    public static final String DEFAULT_RESOURCE = "map_definition.json";
+
+    private final File file;
+    private final Listener listener;
+    private ScheduledExecutorService executor = null;
+    private long lastModified = -1;
+    private long lastLength = -1;
+
+    /**
+     * Creates a watcher. Nothing is read until load or start is called.
+     * @param file the map definition file.
+     * @param listener the listener that receives changed map definitions.
+     */
+    public MapDefinitionWatcher(File file, Listener listener) {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the map definition file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the file now, on the calling thread. Later changes are compared with
+     * the file as it was when this method read it.
+     * @return the map definition.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public synchronized MapDefinition load() throws IOException {
+        lastModified = file.lastModified();
+        lastLength = file.length();
+        return read(file);
+    }
+
+    /**
+     * Starts checking the file for changes.
+     * @param pollMillis the time between checks.
+     */
+    public synchronized void start(long pollMillis) {
+        if (null != executor) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MapDefinitionWatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the file for changes.
+     */
+    public synchronized void stop() {
+        if (null != executor) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void check() {
+        MapDefinition mapDefinition;
+        synchronized (this) {
+            long modified = file.lastModified();
+            long length = file.length();
+            if (modified == lastModified && length == lastLength) {
+                return;
+            }
+            lastModified = modified;
+            lastLength = length;
+            try {
+                mapDefinition = read(file);
+            } catch (IOException e) {
+                listener.mapDefinitionFailed(e);
+                return;
+            }
+        }
+        listener.mapDefinitionChanged(mapDefinition);
+    }
+
+    /**
+     * Creates a map definition file from the default map definition bundled with
+     * the app if the file does not exist, so that the user has a file to edit.
+     * @param file the map definition file.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void createIfMissing(File file) throws IOException {
+        if (file.exists()) {
+            return;
+        }
+        File parent = file.getParentFile();
+        if (null != parent && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        InputStream in = MapDefinition.class.getResourceAsStream(DEFAULT_RESOURCE);
+        if (null == in) {
+            throw new IOException("Default map definition " + DEFAULT_RESOURCE + " not found");
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                int count;
+                while (-1 != (count = in.read(buffer))) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a map definition file. A relative package path is resolved against
+     * the file's directory.
+     * @param file the file.
+     * @return the map definition.
+     * @throws IOException if the file cannot be read or parsed.
+     */
+    public static MapDefinition read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return MapDefinition.read(in).resolvePackagePath(file.getAbsoluteFile().getParentFile());
+        } finally {
+            in.close();
+        }
+    }
+
+}
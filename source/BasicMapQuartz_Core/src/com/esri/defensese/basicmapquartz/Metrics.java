@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of the app's counters, gauges and latency histograms, which can be
+ * written as JSON or in the Prometheus text format, e.g. by a MetricsServer.
+ *
+ * <p>Each metric has a name and optional labels, given as name-value pairs, such
+ * as the ID of the layer that a latency was measured for. Looking a metric up
+ * creates it the first time; callers on hot paths should keep the returned
+ * histogram or counter, whose updates are lock-free. Gauges, and counters kept
+ * by other classes such as TileCache, are registered as callbacks that are read
+ * only when the metrics are written.</p>
+ *
+ * <p>Latencies are recorded in microseconds and written in seconds, as Prometheus
+ * summaries with the 50th, 90th, 99th and 99.9th percentiles.</p>
+ */
+public class Metrics {
+
+    /**
+     * A value that is read when the metrics are written.
+     */
+    public interface Gauge {
+
+        /**
+         * @return the current value.
+         */
+        double getValue();
+
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, SUMMARY;
+
+        private String getName() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99", "0.999" };
+    private static final String[] PERCENTILE_KEYS = { "p50", "p90", "p99", "p999" };
+    private static final String LAYER_LOAD_SECONDS = "bmq_layer_load_seconds";
+    private static final String LAYER_STATUS_TIMESTAMP = "bmq_layer_load_status_timestamp_seconds";
+    private static final String LAYER_STATUS_TRANSITIONS = "bmq_layer_load_status_transitions_total";
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Long> loadStartNanos = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a latency histogram, creating it the first time.
+     * @param name the metric name, which should end with "_seconds".
+     * @param help a description of the metric.
+     * @param labels label names and values, alternately.
+     * @return the histogram.
+     * @throws IllegalArgumentException if the name is already used by a metric of
+     *                                  another type.
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY).series(labels, null);
+    }
+
+    /**
+     * Returns a counter, creating it the first time.
+     * @param name the metric name, which should end with "_total".
+     * @param help a description of the metric.
+     * @param labels label names and values, alternately.
+     * @return the counter, which must only be increased.
+     * @throws IllegalArgumentException if the name is already used by a metric of
+     *                                  another type.
+     */
+    public AtomicLong counter(String name, String help, String... labels) {
+        return (AtomicLong) family(name, help, Type.COUNTER).series(labels, null);
+    }
+
+    /**
+     * Registers a counter whose value is kept elsewhere, replacing any counter
+     * registered with the same name and labels.
+     * @param name the metric name, which should end with "_total".
+     * @param help a description of the metric.
+     * @param counter the callback that reads the counter.
+     * @param labels label names and values, alternately.
+     */
+    public void registerCounter(String name, String help, Gauge counter, String... labels) {
+        family(name, help, Type.COUNTER).series(labels, counter);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge registered with the same name and
+     * labels.
+     * @param name the metric name.
+     * @param help a description of the metric.
+     * @param gauge the callback that reads the gauge.
+     * @param labels label names and values, alternately.
+     */
+    public void registerGauge(String name, String help, Gauge gauge, String... labels) {
+        family(name, help, Type.GAUGE).series(labels, gauge);
+    }
+
+    /**
+     * Records a change of a layer's load status: the time of the change, and when
+     * the layer finishes loading, how long it took from the start of loading.
+     * @param layerId the layer's ID.
+     * @param loadStatus the name of the new load status, e.g. LoadStatus.name().
+     */
+    public void recordLoadStatus(String layerId, String loadStatus) {
+        long nanos = System.nanoTime();
+        final long millis = System.currentTimeMillis();
+        registerGauge(LAYER_STATUS_TIMESTAMP, "Time at which a layer last entered a load status.", new Gauge() {
+            @Override
+            public double getValue() {
+                return millis / 1000.0;
+            }
+        }, "layer", layerId, "status", loadStatus);
+        counter(LAYER_STATUS_TRANSITIONS, "Number of times a layer entered a load status.",
+                "layer", layerId, "status", loadStatus).incrementAndGet();
+        if ("LOADING".equals(loadStatus)) {
+            loadStartNanos.put(layerId, nanos);
+        } else {
+            Long startNanos = loadStartNanos.remove(layerId);
+            if (null != startNanos && "LOADED".equals(loadStatus)) {
+                histogram(LAYER_LOAD_SECONDS, "Time taken by a layer to load.", "layer", layerId)
+                        .record(TimeUnit.NANOSECONDS.toMicros(nanos - startNanos));
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format, version 0.0.4.
+     * @return the metrics.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ')
+                    .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.getName()).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object value = series.getValue();
+                if (value instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) value;
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        appendSample(sb, family.name, labels + (labels.isEmpty() ? "" : ",")
+                                + "quantile=\"" + QUANTILE_LABELS[i] + "\"",
+                                toSeconds(histogram.getValueAtPercentile(PERCENTILES[i])));
+                    }
+                    appendSample(sb, family.name + "_sum", labels, toSeconds(histogram.getSum()));
+                    appendSample(sb, family.name + "_count", labels, histogram.getCount());
+                } else {
+                    appendSample(sb, family.name, labels, getValue(value));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the metrics as a JSON object with a "metrics" array, in which each
+     * metric has a name, type, help and an array of series, each with its labels
+     * and either a value or, for latencies, the count, sum, maximum and
+     * percentiles in seconds.
+     * @return the metrics.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis())
+                .append(",\"metrics\":[");
+        boolean firstFamily = true;
+        for (Family family : families.values()) {
+            sb.append(firstFamily ? "" : ",").append("{\"name\":");
+            appendJsonString(sb, family.name);
+            sb.append(",\"type\":\"").append(family.type.getName()).append("\",\"help\":");
+            appendJsonString(sb, family.help);
+            sb.append(",\"series\":[");
+            boolean firstSeries = true;
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                sb.append(firstSeries ? "" : ",").append("{\"labels\":{");
+                String[] labels = family.labels.get(series.getKey());
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    sb.append(0 == i ? "" : ",");
+                    appendJsonString(sb, labels[i]);
+                    sb.append(':');
+                    appendJsonString(sb, String.valueOf(labels[i + 1]));
+                }
+                sb.append('}');
+                Object value = series.getValue();
+                if (value instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) value;
+                    sb.append(",\"count\":").append(histogram.getCount());
+                    sb.append(",\"sum\":").append(toSeconds(histogram.getSum()));
+                    sb.append(",\"max\":").append(toSeconds(histogram.getMax()));
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        sb.append(",\"").append(PERCENTILE_KEYS[i]).append("\":")
+                                .append(toSeconds(histogram.getValueAtPercentile(PERCENTILES[i])));
+                    }
+                } else {
+                    double number = getValue(value);
+                    sb.append(",\"value\":").append(Double.isNaN(number) || Double.isInfinite(number)
+                            ? "null" : String.valueOf(number));
+                }
+                sb.append('}');
+                firstSeries = false;
+            }
+            sb.append("]}");
+            firstFamily = false;
+        }
+        return sb.append("]}").toString();
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.get(name);
+        if (null == family) {
+            Family newFamily = new Family(name, help, type);
+            family = families.putIfAbsent(name, newFamily);
+            if (null == family) {
+                family = newFamily;
+            }
+        }
+        if (type != family.type) {
+            throw new IllegalArgumentException(name + " is a " + family.type.getName() + ", not a " + type.getName());
+        }
+        return family;
+    }
+
+    private static double getValue(Object value) {
+        if (value instanceof AtomicLong) {
+            return ((AtomicLong) value).get();
+        }
+        try {
+            return ((Gauge) value).getValue();
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double toSeconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (Double.isNaN(value)) {
+            sb.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            sb.append(0 < value ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * A metric name with its series, keyed by their labels in Prometheus form.
+     */
+    private static class Family {
+
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+        private final ConcurrentMap<String, String[]> labels = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        /**
+         * Returns a series, creating it the first time, or replaces it with a
+         * callback.
+         */
+        private Object series(String[] labelPairs, Gauge callback) {
+            if (0 != labelPairs.length % 2) {
+                throw new IllegalArgumentException("Labels must be name-value pairs");
+            }
+            String key = formatLabels(labelPairs);
+            labels.putIfAbsent(key, labelPairs.clone());
+            if (null != callback) {
+                series.put(key, callback);
+                return callback;
+            }
+            Object value = series.get(key);
+            if (null == value) {
+                Object newValue = Type.SUMMARY == type ? new LatencyHistogram() : new AtomicLong();
+                value = series.putIfAbsent(key, newValue);
+                if (null == value) {
+                    value = newValue;
+                }
+            }
+            return value;
+        }
+
+        private static String formatLabels(String[] labelPairs) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < labelPairs.length; i += 2) {
+                sb.append(0 == i ? "" : ",").append(labelPairs[i]).append("=\"")
+                        .append(String.valueOf(labelPairs[i + 1]).replace("\\", "\\\\")
+                                .replace("\"", "\\\"").replace("\n", "\\n"))
+                        .append('"');
+            }
+            return sb.toString();
+        }
+
+    }
+
+}
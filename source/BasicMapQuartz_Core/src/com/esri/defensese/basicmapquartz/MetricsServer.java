@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves Metrics over HTTP on the loopback interface: GET /metrics returns them
+ * in the Prometheus text format, for a Prometheus server or agent on the same
+ * machine to scrape, and GET /metrics.json returns them as JSON. On Android,
+ * forward the port with "adb forward tcp:9464 tcp:9464" to scrape the device.
+ *
+ * <p>Each request is answered on the server's one thread and the connection
+ * closed, which is all a scraper needs.</p>
+ */
+public class MetricsServer {
+
+    /**
+     * The default port, which is the one registered for Prometheus exporters of
+     * OpenTelemetry.
+     */
+    public static final int DEFAULT_PORT = 9464;
+
+    private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 10000;
+
+    private final Metrics metrics;
+    private ServerSocket serverSocket = null;
+
+    /**
+     * Creates a server. Nothing is opened until start is called.
+     * @param metrics the metrics to serve.
+     */
+    public MetricsServer(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts accepting connections on a port of the loopback interface.
+     * @param port the port, or 0 for an ephemeral port.
+     * @throws IOException if the port cannot be opened, e.g. because it is in use.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (null != serverSocket) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket(port, 10, InetAddress.getByName("127.0.0.1"));
+        serverSocket = socket;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        serve(socket.accept());
+                    } catch (SocketException e) {
+                        // The server socket was closed by stop
+                        return;
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Could not accept a metrics request", e);
+                    }
+                }
+            }
+        }, "MetricsServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public synchronized void stop() {
+        if (null == serverSocket) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not close the metrics server socket", e);
+        }
+        serverSocket = null;
+    }
+
+    /**
+     * @return the port on which the server listens, or -1 if it is not started.
+     */
+    public synchronized int getPort() {
+        return null == serverSocket ? -1 : serverSocket.getLocalPort();
+    }
+
+    private void serve(Socket connection) {
+        try {
+            connection.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+            String requestLine = in.readLine();
+            String header;
+            while (null != (header = in.readLine()) && !header.isEmpty()) {
+                // Skip the headers
+            }
+            String[] parts = null == requestLine ? new String[0] : requestLine.split(" ");
+            String path = 3 == parts.length ? parts[1] : "";
+            int queryStart = path.indexOf('?');
+            if (0 <= queryStart) {
+                path = path.substring(0, queryStart);
+            }
+            OutputStream out = connection.getOutputStream();
+            if (3 != parts.length || !"GET".equals(parts[0])) {
+                writeResponse(out, "405 Method Not Allowed", "text/plain", "");
+            } else if ("/metrics".equals(path)) {
+                writeResponse(out, "200 OK", "text/plain; version=0.0.4; charset=utf-8", metrics.toPrometheus());
+            } else if ("/metrics.json".equals(path)) {
+                writeResponse(out, "200 OK", "application/json; charset=utf-8", metrics.toJson());
+            } else {
+                writeResponse(out, "404 Not Found", "text/plain", "");
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Metrics request failed", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Could not close a metrics connection", e);
+            }
+        }
+    }
+
+    private static void writeResponse(OutputStream out, String status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.write(bytes);
+        out.flush();
+    }
+
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An identify source that identifies every layer of a map at once and merges
+ * their results, for use with IdentifyDispatcher.
+ *
+ * <p>Each tap is sent to all the layers that the LayerProvider returns, in
+ * parallel, each with the same tolerance and at most maxResultsPerLayer results,
+ * so one dense layer cannot crowd out the others. Every time a layer answers, the
+ * results of the layers that have answered so far are passed on as a partial
+ * result, so the UI can show the fastest layers' results without waiting for the
+ * slowest; the last layer to answer completes the result. A layer that fails
+ * does not fail the others; the identify fails only if every layer does.</p>
+ *
+ * @param <P> the screen point type, e.g. android.graphics.Point.
+ * @param <E> the result type of one layer, e.g. LabeledGeoElements.
+ */
+public class MultiLayerIdentifier<P, E> implements IdentifyDispatcher.IdentifySource<P, MultiLayerIdentifier.Result<E>> {
+
+    /**
+     * Identifies one layer.
+     */
+    public interface LayerIdentifier<P, E> {
+
+        /**
+         * @return the ID of the layer.
+         */
+        String getLayerId();
+
+        /**
+         * Starts identifying the layer. May be called on any thread.
+         * @param screenPoint the screen point to identify.
+         * @param tolerance the tolerance around the screen point, in
+         *                  density-independent pixels.
+         * @param maxResults the maximum number of elements to return.
+         * @param callback the callback to call when the identify completes or fails.
+         * @return a Future that is cancelled if a newer tap supersedes this one.
+         */
+        Future<?> identify(P screenPoint, double tolerance, int maxResults,
+                           IdentifyDispatcher.IdentifyCallback<E> callback);
+
+    }
+
+    /**
+     * Provides the layers to identify.
+     */
+    public interface LayerProvider<P, E> {
+
+        /**
+         * Returns the layers to identify for a tap, in the order in which their
+         * results are listed. Called for every tap on the dispatcher's thread.
+         * @return the layers, e.g. those that are loaded and visible.
+         */
+        List<? extends LayerIdentifier<P, E>> getLayers();
+
+    }
+
+    /**
+     * The result of identifying one layer.
+     */
+    public static class LayerResult<E> {
+
+        private final String layerId;
+        private final E result;
+        private final Throwable error;
+
+        LayerResult(String layerId, E result, Throwable error) {
+            this.layerId = layerId;
+            this.result = result;
+            this.error = error;
+        }
+
+        /**
+         * @return the ID of the layer.
+         */
+        public String getLayerId() {
+            return layerId;
+        }
+
+        /**
+         * @return the layer's result, or null if identifying the layer failed.
+         */
+        public E getResult() {
+            return result;
+        }
+
+        /**
+         * @return the reason that identifying the layer failed, or null.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+    }
+
+    /**
+     * The results of the layers that have answered a tap so far.
+     */
+    public static class Result<E> {
+
+        private final List<LayerResult<E>> layerResults;
+        private final int layerCount;
+
+        Result(List<LayerResult<E>> layerResults, int layerCount) {
+            this.layerResults = Collections.unmodifiableList(layerResults);
+            this.layerCount = layerCount;
+        }
+
+        /**
+         * @return the results of the layers that have answered, in the order of the
+         *         layers given by the LayerProvider.
+         */
+        public List<LayerResult<E>> getLayerResults() {
+            return layerResults;
+        }
+
+        /**
+         * @return the number of layers identified.
+         */
+        public int getLayerCount() {
+            return layerCount;
+        }
+
+        /**
+         * @return true if every layer has answered.
+         */
+        public boolean isComplete() {
+            return layerResults.size() == layerCount;
+        }
+
+    }
+
+    /**
+     * The default tolerance, in density-independent pixels.
+     */
+    public static final double DEFAULT_TOLERANCE = 11.0;
+
+    /**
+     * The default maximum number of results from each layer.
+     */
+    public static final int DEFAULT_MAX_RESULTS_PER_LAYER = 20;
+
+    private static final Logger logger = Logger.getLogger(MultiLayerIdentifier.class.getName());
+
+    private final LayerProvider<P, E> layerProvider;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MultiLayerIdentifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile double tolerance = DEFAULT_TOLERANCE;
+    private volatile int maxResultsPerLayer = DEFAULT_MAX_RESULTS_PER_LAYER;
+
+    /**
+     * Creates an identifier.
+     * @param layerProvider the provider of the layers to identify.
+     */
+    public MultiLayerIdentifier(LayerProvider<P, E> layerProvider) {
+        this.layerProvider = layerProvider;
+    }
+
+    /**
+     * Sets the tolerance around a tap within which elements are identified.
+     * @param tolerance the tolerance in density-independent pixels.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the maximum number of results from each layer.
+     * @param maxResultsPerLayer the maximum number of results.
+     */
+    public void setMaxResultsPerLayer(int maxResultsPerLayer) {
+        this.maxResultsPerLayer = maxResultsPerLayer;
+    }
+
+    /**
+     * Identifies every layer at a screen point.
+     * @param screenPoint the screen point to identify.
+     * @param maxResults the maximum number of elements to return from each layer,
+     *                   if less than maxResultsPerLayer.
+     * @param callback the callback that receives a partial result as each layer
+     *                 answers and the complete result when all have.
+     * @return a Future whose cancellation cancels the identify of every layer.
+     */
+    @Override
+    public Future<?> identify(P screenPoint, int maxResults,
+                              IdentifyDispatcher.IdentifyCallback<Result<E>> callback) {
+        List<? extends LayerIdentifier<P, E>> layers = new ArrayList<>(layerProvider.getLayers());
+        FanOut fanOut = new FanOut(layers, callback);
+        if (layers.isEmpty()) {
+            callback.identifyCompleted(new Result<>(new ArrayList<LayerResult<E>>(), 0));
+            return fanOut;
+        }
+        int layerMaxResults = Math.min(maxResults, maxResultsPerLayer);
+        for (int i = 0; i < layers.size(); i++) {
+            fanOut.start(i, screenPoint, tolerance, layerMaxResults);
+        }
+        return fanOut;
+    }
+
+    /**
+     * Stops the threads on which layers are identified. The identifier cannot be
+     * used afterward.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * One tap's identify of every layer.
+     */
+    private class FanOut implements Future<Object> {
+
+        private final List<? extends LayerIdentifier<P, E>> layers;
+        private final IdentifyDispatcher.IdentifyCallback<Result<E>> callback;
+
+        // Guarded by this
+        private final List<LayerResult<E>> layerResults;
+        private final List<Future<?>> layerFutures = new ArrayList<>();
+        private int answeredCount = 0;
+        private boolean cancelled = false;
+
+        FanOut(List<? extends LayerIdentifier<P, E>> layers, IdentifyDispatcher.IdentifyCallback<Result<E>> callback) {
+            this.layers = layers;
+            this.callback = callback;
+            this.layerResults = new ArrayList<>(Collections.<LayerResult<E>>nCopies(layers.size(), null));
+        }
+
+        void start(final int index, final P screenPoint, final double tolerance, final int maxResults) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FanOut.this) {
+                        if (cancelled) {
+                            return;
+                        }
+                    }
+                    Future<?> future;
+                    try {
+                        future = layers.get(index).identify(screenPoint, tolerance, maxResults,
+                                new IdentifyDispatcher.IdentifyCallback<E>() {
+                                    @Override
+                                    public void identifyCompleted(E result) {
+                                        layerAnswered(index, result, null);
+                                    }
+
+                                    @Override
+                                    public void identifyProgress(E partialResult) {
+                                        // Only a layer's complete result is merged
+                                    }
+
+                                    @Override
+                                    public void identifyFailed(Throwable error) {
+                                        layerAnswered(index, null, error);
+                                    }
+                                });
+                    } catch (RuntimeException e) {
+                        layerAnswered(index, null, e);
+                        return;
+                    }
+                    boolean cancel;
+                    synchronized (FanOut.this) {
+                        cancel = cancelled;
+                        if (!cancel) {
+                            layerFutures.add(future);
+                        }
+                    }
+                    if (cancel) {
+                        future.cancel(true);
+                    }
+                }
+            });
+        }
+
+        private void layerAnswered(int index, E result, Throwable error) {
+            String layerId = layers.get(index).getLayerId();
+            if (null != error) {
+                logger.log(Level.FINE, "Could not identify layer " + layerId, error);
+            }
+            // Callbacks are made while holding the lock so that results are passed on in order
+            synchronized (this) {
+                if (cancelled || null != layerResults.get(index)) {
+                    return;
+                }
+                layerResults.set(index, new LayerResult<>(layerId, result, error));
+                answeredCount++;
+                List<LayerResult<E>> answered = new ArrayList<>(answeredCount);
+                Throwable firstError = null;
+                for (LayerResult<E> layerResult : layerResults) {
+                    if (null != layerResult) {
+                        answered.add(layerResult);
+                        if (null == firstError) {
+                            firstError = layerResult.getError();
+                        }
+                    }
+                }
+                Result<E> merged = new Result<>(answered, layers.size());
+                if (!merged.isComplete()) {
+                    callback.identifyProgress(merged);
+                } else if (allFailed(answered)) {
+                    callback.identifyFailed(firstError);
+                } else {
+                    callback.identifyCompleted(merged);
+                }
+                notifyAll();
+            }
+        }
+
+        private boolean allFailed(List<LayerResult<E>> answered) {
+            for (LayerResult<E> layerResult : answered) {
+                if (null == layerResult.getError()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            List<Future<?>> futures;
+            synchronized (this) {
+                if (cancelled || answeredCount == layers.size()) {
+                    return false;
+                }
+                cancelled = true;
+                futures = new ArrayList<>(layerFutures);
+                notifyAll();
+            }
+            for (Future<?> future : futures) {
+                future.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return cancelled || answeredCount == layers.size();
+        }
+
+        @Override
+        public synchronized Object get() throws InterruptedException, ExecutionException {
+            while (!isDone()) {
+                wait();
+            }
+            return null;
+        }
+
+        @Override
+        public synchronized Object get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isDone()) {
+                long remaining = deadline - System.nanoTime();
+                if (0 >= remaining) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Arrays;
+
+/**
+ * A static, packed R-tree over item envelopes. Items are sorted along a Hilbert
+ * curve and packed into full nodes, and all boxes are stored in one primitive
+ * double array, so building and querying the index allocate no per-item objects.
+ *
+ * <p>Items are identified by their position in the array passed to the
+ * constructor. The index cannot be modified after it is built.</p>
+ */
+public class PackedHilbertRTree {
+
+    /**
+     * Receives the items found by a search.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each item whose envelope intersects the search envelope.
+         * @param itemIndex the index of the item.
+         * @return true to continue searching or false to stop.
+         */
+        boolean visit(int itemIndex);
+
+    }
+
+    /**
+     * The default number of children per node.
+     */
+    public static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+
+    private final int numItems;
+    private final int nodeSize;
+    private final double[] boxes;
+    private final int[] indices;
+    private final int[] levelBounds;
+    private final int[] stack;
+
+    /**
+     * Builds an index with the default node size.
+     * @param itemBoxes the item envelopes, four values per item in the order
+     *                  xmin, ymin, xmax, ymax. The array is not modified.
+     */
+    public PackedHilbertRTree(double[] itemBoxes) {
+        this(itemBoxes, DEFAULT_NODE_SIZE);
+    }
+
+    /**
+     * Builds an index.
+     * @param itemBoxes the item envelopes, four values per item in the order
+     *                  xmin, ymin, xmax, ymax. The array is not modified.
+     * @param nodeSize the number of children per node, at least 2.
+     */
+    public PackedHilbertRTree(double[] itemBoxes, int nodeSize) {
+        if (0 != itemBoxes.length % 4) {
+            throw new IllegalArgumentException("Item boxes must have four values per item");
+        }
+        if (2 > nodeSize) {
+            throw new IllegalArgumentException("Node size must be at least 2");
+        }
+        this.numItems = itemBoxes.length / 4;
+        this.nodeSize = nodeSize;
+
+        // Count the nodes on each level, from the leaves to the root
+        int n = numItems;
+        int numNodes = n;
+        int[] bounds = new int[32];
+        int levels = 0;
+        bounds[levels++] = n * 4;
+        if (0 < n) {
+            do {
+                n = (n + nodeSize - 1) / nodeSize;
+                numNodes += n;
+                bounds[levels++] = numNodes * 4;
+            } while (1 != n);
+        }
+        levelBounds = Arrays.copyOf(bounds, levels);
+        stack = new int[levels * nodeSize];
+
+        boxes = new double[numNodes * 4];
+        indices = new int[numNodes];
+        System.arraycopy(itemBoxes, 0, boxes, 0, itemBoxes.length);
+        if (0 == numItems) {
+            return;
+        }
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numItems; i++) {
+            indices[i] = i;
+            minX = Math.min(minX, boxes[4 * i]);
+            minY = Math.min(minY, boxes[4 * i + 1]);
+            maxX = Math.max(maxX, boxes[4 * i + 2]);
+            maxY = Math.max(maxY, boxes[4 * i + 3]);
+        }
+
+        // Sort the items by the Hilbert value of their centers
+        double width = maxX - minX;
+        double height = maxY - minY;
+        int[] hilbertValues = new int[numItems];
+        for (int i = 0; i < numItems; i++) {
+            int x = 0 == width ? 0
+                    : (int) Math.floor(HILBERT_MAX * ((boxes[4 * i] + boxes[4 * i + 2]) / 2 - minX) / width);
+            int y = 0 == height ? 0
+                    : (int) Math.floor(HILBERT_MAX * ((boxes[4 * i + 1] + boxes[4 * i + 3]) / 2 - minY) / height);
+            // Flip the sign bit so that signed comparison orders the unsigned values
+            hilbertValues[i] = hilbert(x, y) ^ Integer.MIN_VALUE;
+        }
+        sort(hilbertValues, 0, numItems - 1);
+
+        // Pack each level into parent nodes
+        int pos = numItems * 4;
+        int childPos = 0;
+        for (int level = 0; level < levelBounds.length - 1; level++) {
+            int end = levelBounds[level];
+            while (childPos < end) {
+                int firstChildPos = childPos;
+                double nodeMinX = Double.POSITIVE_INFINITY;
+                double nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY;
+                double nodeMaxY = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < nodeSize && childPos < end; j++) {
+                    nodeMinX = Math.min(nodeMinX, boxes[childPos++]);
+                    nodeMinY = Math.min(nodeMinY, boxes[childPos++]);
+                    nodeMaxX = Math.max(nodeMaxX, boxes[childPos++]);
+                    nodeMaxY = Math.max(nodeMaxY, boxes[childPos++]);
+                }
+                indices[pos / 4] = firstChildPos;
+                boxes[pos++] = nodeMinX;
+                boxes[pos++] = nodeMinY;
+                boxes[pos++] = nodeMaxX;
+                boxes[pos++] = nodeMaxY;
+            }
+        }
+    }
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return numItems;
+    }
+
+    /**
+     * Finds the items whose envelopes intersect a search envelope. This method
+     * is not thread-safe; use one index per thread or synchronize externally.
+     * @param minX the minimum x of the search envelope.
+     * @param minY the minimum y of the search envelope.
+     * @param maxX the maximum x of the search envelope.
+     * @param maxY the maximum y of the search envelope.
+     * @param visitor the visitor that receives the items found.
+     * @return the number of items visited.
+     */
+    public int search(double minX, double minY, double maxX, double maxY, Visitor visitor) {
+        if (0 == numItems) {
+            return 0;
+        }
+        int found = 0;
+        int stackSize = 0;
+        int nodePos = boxes.length - 4;
+        while (true) {
+            int end = Math.min(nodePos + nodeSize * 4, upperLevelBound(nodePos));
+            boolean isLeaf = nodePos < numItems * 4;
+            for (int pos = nodePos; pos < end; pos += 4) {
+                if (maxX < boxes[pos] || maxY < boxes[pos + 1] || minX > boxes[pos + 2] || minY > boxes[pos + 3]) {
+                    continue;
+                }
+                if (isLeaf) {
+                    found++;
+                    if (!visitor.visit(indices[pos / 4])) {
+                        return found;
+                    }
+                } else {
+                    stack[stackSize++] = indices[pos / 4];
+                }
+            }
+            if (0 == stackSize) {
+                return found;
+            }
+            nodePos = stack[--stackSize];
+        }
+    }
+
+    private int upperLevelBound(int nodePos) {
+        int lo = 0;
+        int hi = levelBounds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (levelBounds[mid] > nodePos) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return levelBounds[lo];
+    }
+
+    /**
+     * Sorts items by Hilbert value, stopping once each run of nodeSize items is
+     * in place, since the order within a leaf node does not matter.
+     */
+    private void sort(int[] values, int left, int right) {
+        while (left / nodeSize < right / nodeSize) {
+            int pivot = values[(left + right) >>> 1];
+            int i = left - 1;
+            int j = right + 1;
+            while (true) {
+                do {
+                    i++;
+                } while (values[i] < pivot);
+                do {
+                    j--;
+                } while (values[j] > pivot);
+                if (i >= j) {
+                    break;
+                }
+                swap(values, i, j);
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - left < right - j) {
+                sort(values, left, j);
+                left = j + 1;
+            } else {
+                sort(values, j + 1, right);
+                right = j;
+            }
+        }
+    }
+
+    private void swap(int[] values, int i, int j) {
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+
+        for (int k = 0; k < 4; k++) {
+            double box = boxes[4 * i + k];
+            boxes[4 * i + k] = boxes[4 * j + k];
+            boxes[4 * j + k] = box;
+        }
+    }
+
+    /**
+     * Computes the position of a point on a Hilbert curve of order 16, using the
+     * branch-free algorithm from "Fast Hilbert curve generation, sorting, and range
+     * queries" by rawrunprotected.
+     * @param x the x coordinate, from 0 to 65535.
+     * @param y the y coordinate, from 0 to 65535.
+     * @return the Hilbert value, as an unsigned 32-bit integer.
+     */
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int aa = a | (b >> 1);
+        int bb = (a >> 1) ^ a;
+        int cc = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+        int dd = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >> 2)) ^ (b & (b >> 2));
+        bb = (a & (b >> 2)) ^ (b & ((a ^ b) >> 2));
+        cc ^= (a & (c >> 2)) ^ (b & (d >> 2));
+        dd ^= (b & (c >> 2)) ^ ((a ^ b) & (d >> 2));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >> 4)) ^ (b & (b >> 4));
+        bb = (a & (b >> 4)) ^ (b & ((a ^ b) >> 4));
+        cc ^= (a & (c >> 4)) ^ (b & (d >> 4));
+        dd ^= (b & (c >> 4)) ^ ((a ^ b) & (d >> 4));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        cc ^= (a & (c >> 8)) ^ (b & (d >> 8));
+        dd ^= (b & (c >> 8)) ^ ((a ^ b) & (d >> 8));
+
+        a = cc ^ (cc >> 1);
+        b = dd ^ (dd >> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchy of point clusters, computed once for a range of zoom levels so
+ * that the clusters for any scale can be found without clustering again. Level 0
+ * holds the points themselves; each higher level merges the items of the level
+ * below that are within a fixed number of pixels of each other at that level's
+ * scale, greedily and weighted by count, as Supercluster does. Level k is for
+ * scales of about 2 to the power of (minZoom + k - 1) map units per pixel.
+ *
+ * <p>Each level is stored in primitive arrays, with a PackedHilbertRTree for
+ * spatial queries and the children of each cluster in one flat array, so the
+ * index allocates no per-point objects. Items are identified by level and
+ * index. The index cannot be modified after it is built, and searches are not
+ * thread-safe.</p>
+ */
+public class PointClusterIndex {
+
+    /**
+     * Collects the unclustered items within the radius of a point during a search,
+     * reused for every point of a level.
+     */
+    private static class NeighborCollector implements PackedHilbertRTree.Visitor {
+
+        private final double[] x;
+        private final double[] y;
+        private final int[] parents;
+        private final double radiusSquared;
+        double centerX;
+        double centerY;
+        int parent;
+        int[] neighbors = new int[16];
+        int size;
+
+        NeighborCollector(double[] x, double[] y, int[] parents, double radius) {
+            this.x = x;
+            this.y = y;
+            this.parents = parents;
+            this.radiusSquared = radius * radius;
+        }
+
+        @Override
+        public boolean visit(int j) {
+            if (-1 == parents[j]) {
+                double dx = x[j] - centerX;
+                double dy = y[j] - centerY;
+                if (dx * dx + dy * dy <= radiusSquared) {
+                    parents[j] = parent;
+                    if (size == neighbors.length) {
+                        neighbors = Arrays.copyOf(neighbors, size * 2);
+                    }
+                    neighbors[size++] = j;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * The default clustering radius, in pixels.
+     */
+    public static final double DEFAULT_RADIUS_PIXELS = 40;
+
+    private final int minZoom;
+    private final double radiusPixels;
+    private final double[][] xs;
+    private final double[][] ys;
+    private final int[][] counts;
+    private final int[][] childStarts;
+    private final int[][] children;
+    private final PackedHilbertRTree[] indexes;
+
+    /**
+     * Builds an index.
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points, in the same order.
+     * @param minZoom the power of two of the finest clustered scale, in map units
+     *                per pixel; at finer scales the points are not clustered.
+     * @param maxZoom the power of two of the coarsest clustered scale.
+     * @param radiusPixels the clustering radius, in pixels.
+     */
+    public PointClusterIndex(double[] x, double[] y, int minZoom, int maxZoom, double radiusPixels) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("Every point needs an x and a y");
+        }
+        if (maxZoom < minZoom) {
+            throw new IllegalArgumentException("maxZoom must not be less than minZoom");
+        }
+        this.minZoom = minZoom;
+        this.radiusPixels = radiusPixels;
+        int levels = maxZoom - minZoom + 2;
+        xs = new double[levels][];
+        ys = new double[levels][];
+        counts = new int[levels][];
+        childStarts = new int[levels][];
+        children = new int[levels][];
+        indexes = new PackedHilbertRTree[levels];
+
+        xs[0] = x.clone();
+        ys[0] = y.clone();
+        counts[0] = new int[x.length];
+        Arrays.fill(counts[0], 1);
+        indexes[0] = buildIndex(xs[0], ys[0], x.length);
+        for (int level = 1; level < levels; level++) {
+            cluster(level, Math.scalb(radiusPixels, minZoom + level - 1));
+        }
+    }
+
+    private static PackedHilbertRTree buildIndex(double[] x, double[] y, int size) {
+        double[] boxes = new double[size * 4];
+        for (int i = 0; i < size; i++) {
+            boxes[4 * i] = x[i];
+            boxes[4 * i + 1] = y[i];
+            boxes[4 * i + 2] = x[i];
+            boxes[4 * i + 3] = y[i];
+        }
+        return new PackedHilbertRTree(boxes);
+    }
+
+    /**
+     * Clusters the items of the level below into a new level.
+     */
+    private void cluster(int level, double radius) {
+        double[] childX = xs[level - 1];
+        double[] childY = ys[level - 1];
+        int[] childCount = counts[level - 1];
+        int childSize = childX.length;
+        int[] parents = new int[childSize];
+        Arrays.fill(parents, -1);
+        NeighborCollector collector = new NeighborCollector(childX, childY, parents, radius);
+
+        double[] x = new double[childSize];
+        double[] y = new double[childSize];
+        int[] count = new int[childSize];
+        int size = 0;
+        for (int i = 0; i < childSize; i++) {
+            if (-1 != parents[i]) {
+                continue;
+            }
+            double cx = childX[i];
+            double cy = childY[i];
+            collector.centerX = cx;
+            collector.centerY = cy;
+            collector.parent = size;
+            collector.size = 0;
+            indexes[level - 1].search(cx - radius, cy - radius, cx + radius, cy + radius, collector);
+            double weightedX = 0;
+            double weightedY = 0;
+            int total = 0;
+            for (int n = 0; n < collector.size; n++) {
+                int j = collector.neighbors[n];
+                weightedX += childX[j] * childCount[j];
+                weightedY += childY[j] * childCount[j];
+                total += childCount[j];
+            }
+            x[size] = weightedX / total;
+            y[size] = weightedY / total;
+            count[size] = total;
+            size++;
+        }
+
+        xs[level] = Arrays.copyOf(x, size);
+        ys[level] = Arrays.copyOf(y, size);
+        counts[level] = Arrays.copyOf(count, size);
+        indexes[level] = buildIndex(xs[level], ys[level], size);
+
+        // Group the children by parent
+        int[] starts = new int[size + 1];
+        for (int j = 0; j < childSize; j++) {
+            starts[parents[j] + 1]++;
+        }
+        for (int c = 0; c < size; c++) {
+            starts[c + 1] += starts[c];
+        }
+        int[] next = Arrays.copyOf(starts, size);
+        int[] childIndexes = new int[childSize];
+        for (int j = 0; j < childSize; j++) {
+            childIndexes[next[parents[j]]++] = j;
+        }
+        childStarts[level] = starts;
+        children[level] = childIndexes;
+    }
+
+    /**
+     * @return the number of levels, including level 0, which holds the points.
+     */
+    public int getLevelCount() {
+        return xs.length;
+    }
+
+    /**
+     * @return the clustering radius, in pixels.
+     */
+    public double getRadiusPixels() {
+        return radiusPixels;
+    }
+
+    /**
+     * Returns the level to show at a scale.
+     * @param unitsPerPixel the size of one pixel in map units.
+     * @return the level, or 0 if the points should not be clustered at this scale.
+     */
+    public int getLevel(double unitsPerPixel) {
+        if (!(0 < unitsPerPixel)) {
+            return 0;
+        }
+        long zoom = Math.round(Math.log(unitsPerPixel) / Math.log(2));
+        return (int) Math.max(0, Math.min(xs.length - 1, zoom - minZoom + 1));
+    }
+
+    /**
+     * @param level a level.
+     * @return the number of items in the level.
+     */
+    public int size(int level) {
+        return xs[level].length;
+    }
+
+    /**
+     * @param level a level.
+     * @param itemIndex an item in the level.
+     * @return the item's x coordinate, which for a cluster is the mean of its points.
+     */
+    public double getX(int level, int itemIndex) {
+        return xs[level][itemIndex];
+    }
+
+    /**
+     * @param level a level.
+     * @param itemIndex an item in the level.
+     * @return the item's y coordinate, which for a cluster is the mean of its points.
+     */
+    public double getY(int level, int itemIndex) {
+        return ys[level][itemIndex];
+    }
+
+    /**
+     * @param level a level.
+     * @param itemIndex an item in the level.
+     * @return the number of points in the item.
+     */
+    public int getCount(int level, int itemIndex) {
+        return counts[level][itemIndex];
+    }
+
+    /**
+     * Finds the items of a level whose location is in a search envelope.
+     * @param level the level.
+     * @param minX the minimum x of the search envelope.
+     * @param minY the minimum y of the search envelope.
+     * @param maxX the maximum x of the search envelope.
+     * @param maxY the maximum y of the search envelope.
+     * @param visitor the visitor that receives the index of each item found in
+     *                its level.
+     * @return the number of items visited.
+     */
+    public int search(int level, double minX, double minY, double maxX, double maxY,
+                      PackedHilbertRTree.Visitor visitor) {
+        return indexes[level].search(minX, minY, maxX, maxY, visitor);
+    }
+
+    /**
+     * Returns the points in an item.
+     * @param level the item's level.
+     * @param itemIndex the item.
+     * @param maxPoints the maximum number of points to return.
+     * @return the indexes of the points in the arrays passed to the constructor.
+     */
+    public int[] getPoints(int level, int itemIndex, int maxPoints) {
+        int[] points = new int[Math.min(maxPoints, counts[level][itemIndex])];
+        addPoints(level, itemIndex, points, 0);
+        return points;
+    }
+
+    private int addPoints(int level, int itemIndex, int[] points, int size) {
+        if (0 == level) {
+            points[size++] = itemIndex;
+            return size;
+        }
+        int end = childStarts[level][itemIndex + 1];
+        for (int c = childStarts[level][itemIndex]; c < end && size < points.length; c++) {
+            size = addPoints(level - 1, children[level][c], points, size);
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.Locale;
+
+/**
+ * The text that both apps show over the map: the map's spatial reference and the
+ * load status of the layer, and how a load error is classified.
+ */
+public class StatusText {
+
+    private StatusText() {
+    }
+
+    /**
+     * Returns the spatial reference label.
+     * @param wkid the well-known ID of the map's spatial reference, or null if the
+     *             map does not have one yet.
+     * @return the label, e.g. "SR: 3857".
+     */
+    public static String spatialReference(Integer wkid) {
+        return "SR: " + (null == wkid ? "null" : wkid.toString());
+    }
+
+    /**
+     * Returns the layer status label.
+     * @param loadStatus the layer's load status, e.g. LoadStatus.LOADED.
+     * @return the label, e.g. "Layer: LOADED".
+     */
+    public static String layerStatus(Enum<?> loadStatus) {
+        return "Layer: " + loadStatus.name();
+    }
+
+    /**
+     * Tells whether a layer failed to load because the server rejected its token,
+     * in which case the stored credential for the server should be forgotten.
+     * @param loadError the layer's load error, or null.
+     * @return true if the error is about a token.
+     */
+    public static boolean isTokenError(Throwable loadError) {
+        return null != loadError && null != loadError.getMessage()
+                && loadError.getMessage().toLowerCase(Locale.US).contains("token");
+    }
+
+}
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A two-tier cache of tiles fetched from an online service: a least recently used
+ * cache in memory, bounded by the total size of its tiles, in front of a cache on
+ * disk, bounded the same way, whose least recently used tiles are deleted first.
+ * Tiles are kept as they were downloaded, i.e. already compressed as PNG, JPEG or
+ * gzipped vector tiles, and each file on disk carries a CRC-32 of its tile, so a
+ * tile damaged on storage is discarded and fetched again instead of drawn.
+ *
+ * <p>The time a tile on disk was last used is its file's modification time, so
+ * the order of eviction survives a restart. The disk cache's index is built from
+ * the directory listing the first time it is needed, not in the constructor.
+ * Methods are thread-safe; disk I/O happens outside the cache's lock.</p>
+ */
+public class TileCache {
+
+    /**
+     * The default size of the memory cache, in bytes.
+     */
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The default size of the disk cache, in bytes.
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 256L * 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(TileCache.class.getName());
+
+    private static final int MAGIC = 0x424D5154;
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final String SUFFIX = ".tile";
+
+    private final File directory;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes = 0;
+    private LinkedHashMap<String, Long> disk = null;
+    private long diskBytes = 0;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long memoryEvictions = 0;
+    private long diskEvictions = 0;
+    private long corruptTiles = 0;
+
+    /**
+     * Creates a cache.
+     * @param directory the directory of the disk cache, which is created if it does
+     *                  not exist, or null for a cache in memory only.
+     * @param maxMemoryBytes the maximum total size of the tiles in memory.
+     * @param maxDiskBytes the maximum total size of the tile files on disk.
+     */
+    public TileCache(File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Returns the key of a tile.
+     * @param level the level of detail.
+     * @param row the tile row.
+     * @param column the tile column.
+     * @return the key.
+     */
+    public static String tileKey(int level, int row, int column) {
+        return level + "_" + row + "_" + column;
+    }
+
+    /**
+     * Returns an entry, from memory if it is there and from disk otherwise. An entry
+     * read from disk is kept in memory.
+     * @param key the key, such as one returned by tileKey. Keys contain only
+     *            letters, digits, '.', '_' and '-'.
+     * @return the entry, or null if it is not cached.
+     */
+    public byte[] get(String key) {
+        File file;
+        synchronized (this) {
+            byte[] bytes = memory.get(key);
+            if (null != bytes) {
+                memoryHits++;
+                return bytes;
+            }
+            if (null == directory || !getDiskIndex().containsKey(key)) {
+                misses++;
+                return null;
+            }
+            // Marks the tile as the most recently used
+            getDiskIndex().get(key);
+            file = getFile(key);
+        }
+        byte[] bytes = readFile(file);
+        synchronized (this) {
+            if (null == bytes) {
+                Long size = disk.remove(key);
+                if (null != size) {
+                    diskBytes -= size;
+                }
+                misses++;
+                return null;
+            }
+            diskHits++;
+            putInMemory(key, bytes);
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            logger.log(Level.FINE, "Could not record the use of {0}", file);
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds an entry to both tiers, evicting the least recently used entries as
+     * needed.
+     * @param key the key, such as one returned by tileKey.
+     * @param bytes the entry, which the caller must not modify afterwards.
+     */
+    public void put(String key, byte[] bytes) {
+        synchronized (this) {
+            putInMemory(key, bytes);
+            if (null == directory) {
+                return;
+            }
+            getDiskIndex();
+        }
+        File file = getFile(key);
+        if (!writeFile(file, bytes)) {
+            return;
+        }
+        long size = file.length();
+        synchronized (this) {
+            Long oldSize = disk.put(key, size);
+            diskBytes += size - (null == oldSize ? 0 : oldSize);
+            Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(key) && 1 == disk.size()) {
+                    break;
+                }
+                iterator.remove();
+                diskBytes -= eldest.getValue();
+                diskEvictions++;
+                if (!getFile(eldest.getKey()).delete()) {
+                    logger.log(Level.FINE, "Could not delete cached tile {0}", eldest.getKey());
+                }
+            }
+        }
+    }
+
+    private void putInMemory(String key, byte[] bytes) {
+        if (bytes.length > maxMemoryBytes) {
+            return;
+        }
+        byte[] old = memory.put(key, bytes);
+        memoryBytes += bytes.length - (null == old ? 0 : old.length);
+        Iterator<byte[]> iterator = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes) {
+            memoryBytes -= iterator.next().length;
+            iterator.remove();
+            memoryEvictions++;
+        }
+    }
+
+    /**
+     * Empties the memory tier, e.g. when the system is low on memory. The disk
+     * tier is kept.
+     */
+    public synchronized void trimMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private LinkedHashMap<String, Long> getDiskIndex() {
+        if (null == disk) {
+            disk = new LinkedHashMap<>(256, 0.75f, true);
+            if (!directory.exists() && !directory.mkdirs()) {
+                logger.log(Level.WARNING, "Could not create tile cache directory {0}", directory);
+            }
+            File[] files = directory.listFiles();
+            if (null != files) {
+                final long[] lastModified = new long[files.length];
+                Integer[] order = new Integer[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    lastModified[i] = files[i].lastModified();
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Long.compare(lastModified[a], lastModified[b]);
+                    }
+                });
+                for (Integer i : order) {
+                    String name = files[i].getName();
+                    if (name.endsWith(".tmp")) {
+                        // Left behind by a write that was interrupted
+                        if (!files[i].delete()) {
+                            logger.log(Level.FINE, "Could not delete {0}", files[i]);
+                        }
+                    } else if (name.endsWith(SUFFIX)) {
+                        long size = files[i].length();
+                        disk.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                        diskBytes += size;
+                    }
+                }
+            }
+        }
+        return disk;
+    }
+
+    private byte[] readFile(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int length = (int) file.length() - FILE_HEADER_SIZE;
+                if (0 > length || MAGIC != in.readInt() || length != in.readInt()) {
+                    return corrupt(file);
+                }
+                long checksum = in.readLong();
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                return checksum == crc.getValue() ? bytes : corrupt(file);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not read cached tile " + file, e);
+            return null;
+        }
+    }
+
+    private byte[] corrupt(File file) {
+        logger.log(Level.WARNING, "Discarding damaged cached tile {0}", file);
+        synchronized (this) {
+            corruptTiles++;
+        }
+        if (!file.delete()) {
+            logger.log(Level.FINE, "Could not delete damaged tile {0}", file);
+        }
+        return null;
+    }
+
+    /**
+     * Writes a tile to a temporary file and renames it, so that readers never see
+     * a partial tile.
+     */
+    private boolean writeFile(File file, byte[] bytes) {
+        File tempFile = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(bytes.length);
+                out.writeLong(crc.getValue());
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not cache tile " + file, e);
+            if (!tempFile.delete()) {
+                logger.log(Level.FINE, "Could not delete {0}", tempFile);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of entries found in memory.
+     */
+    public synchronized long getMemoryHitCount() {
+        return memoryHits;
+    }
+
+    /**
+     * @return the number of entries found on disk and not in memory.
+     */
+    public synchronized long getDiskHitCount() {
+        return diskHits;
+    }
+
+    /**
+     * @return the number of entries not found in either tier.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries evicted from memory to stay within its size.
+     */
+    public synchronized long getMemoryEvictionCount() {
+        return memoryEvictions;
+    }
+
+    /**
+     * @return the number of entries deleted from disk to stay within its size.
+     */
+    public synchronized long getDiskEvictionCount() {
+        return diskEvictions;
+    }
+
+    /**
+     * @return the number of entries discarded because their checksum was wrong.
+     */
+    public synchronized long getCorruptCount() {
+        return corruptTiles;
+    }
+
+    /**
+     * @return the total size of the entries in memory, in bytes.
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return the total size of the entry files on disk, in bytes.
+     */
+    public synchronized long getDiskBytes() {
+        if (null == directory) {
+            return 0;
+        }
+        getDiskIndex();
+        return diskBytes;
+    }
+
+}
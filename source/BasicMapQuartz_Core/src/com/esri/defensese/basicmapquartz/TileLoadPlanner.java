@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans which tiles of a feature layer to request as the user pans and zooms, so
+ * that only the features in and near the visible extent are loaded. The map is
+ * divided into square tiles whose size is a power of two in map units, chosen so
+ * that a tile covers about TILE_PIXELS on screen; zooming in by less than a
+ * factor of two keeps the same tiles. Each tile carries the level of detail to
+ * request it with: the generalization offset, which is one pixel in map units,
+ * and the maximum number of point features, which limits point density on screen.
+ *
+ * <p>Each call to update returns the tiles that have not been requested yet: the
+ * visible tiles, nearest the center first, and then the tiles just beyond the
+ * visible extent in the direction the map moved, so that they are loaded before
+ * they come into view. This class is not thread-safe.</p>
+ */
+public class TileLoadPlanner {
+
+    /**
+     * A tile: a square of the map at one level of detail.
+     */
+    public static class Tile {
+
+        private final int level;
+        private final long column;
+        private final long row;
+        private final double size;
+        private final boolean prefetch;
+
+        Tile(int level, long column, long row, boolean prefetch) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.size = Math.scalb(1.0, level);
+            this.prefetch = prefetch;
+        }
+
+        /**
+         * @return the tile's level. The tile's size in map units is 2 to the power
+         *         of its level.
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the tile's column; column 0 starts at x = 0.
+         */
+        public long getColumn() {
+            return column;
+        }
+
+        /**
+         * @return the tile's row; row 0 starts at y = 0.
+         */
+        public long getRow() {
+            return row;
+        }
+
+        /**
+         * @return true if the tile is outside the visible extent and is requested
+         *         ahead of a pan.
+         */
+        public boolean isPrefetch() {
+            return prefetch;
+        }
+
+        /**
+         * @return the tile's extent, as xmin, ymin, xmax, ymax.
+         */
+        public double[] getExtent() {
+            return new double[] { column * size, row * size, (column + 1) * size, (row + 1) * size };
+        }
+
+        /**
+         * @return the generalization offset for the tile's geometries: the size of
+         *         one pixel in map units.
+         */
+        public double getMaxAllowableOffset() {
+            return size / TILE_PIXELS;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Tile)) {
+                return false;
+            }
+            Tile other = (Tile) obj;
+            return level == other.level && column == other.column && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) ((level * 31 + column) * 31 + row);
+        }
+
+        @Override
+        public String toString() {
+            return level + "/" + column + "/" + row;
+        }
+
+    }
+
+    /**
+     * The tiles to request after the viewport changed.
+     */
+    public static class Plan {
+
+        private final List<Tile> tiles;
+        private final boolean clearCache;
+
+        Plan(List<Tile> tiles, boolean clearCache) {
+            this.tiles = Collections.unmodifiableList(tiles);
+            this.clearCache = clearCache;
+        }
+
+        /**
+         * @return the tiles to request, in the order to request them.
+         */
+        public List<Tile> getTiles() {
+            return tiles;
+        }
+
+        /**
+         * @return true if the planner has forgotten the tiles it requested before,
+         *         because there were more than its maximum, so the features loaded
+         *         for them should be cleared.
+         */
+        public boolean isClearCache() {
+            return clearCache;
+        }
+
+    }
+
+    /**
+     * The approximate size of a tile on screen, in pixels.
+     */
+    public static final int TILE_PIXELS = 512;
+
+    /**
+     * The default maximum number of point features requested per tile. About 400
+     * points fill a tile with one point per 25-pixel square.
+     */
+    public static final int DEFAULT_MAX_POINTS_PER_TILE = 400;
+
+    /**
+     * The default maximum number of tiles remembered before the planner starts
+     * over.
+     */
+    public static final int DEFAULT_MAX_TILES = 256;
+
+    private final int maxPointsPerTile;
+    private final int maxTiles;
+    private final Set<Tile> requestedTiles = new HashSet<>();
+    private double lastCenterX = Double.NaN;
+    private double lastCenterY = Double.NaN;
+
+    /**
+     * Creates a planner with the default limits.
+     */
+    public TileLoadPlanner() {
+        this(DEFAULT_MAX_POINTS_PER_TILE, DEFAULT_MAX_TILES);
+    }
+
+    /**
+     * Creates a planner.
+     * @param maxPointsPerTile the maximum number of point features per tile.
+     * @param maxTiles the maximum number of tiles to remember.
+     */
+    public TileLoadPlanner(int maxPointsPerTile, int maxTiles) {
+        this.maxPointsPerTile = maxPointsPerTile;
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * @return the maximum number of point features to request per tile.
+     */
+    public int getMaxPointsPerTile() {
+        return maxPointsPerTile;
+    }
+
+    /**
+     * Returns the level whose tiles cover about TILE_PIXELS on screen.
+     * @param unitsPerPixel the size of one pixel in map units.
+     * @return the level.
+     */
+    public static int getLevel(double unitsPerPixel) {
+        return (int) Math.round(Math.log(unitsPerPixel * TILE_PIXELS) / Math.log(2));
+    }
+
+    /**
+     * Plans the tiles to request for a new viewport.
+     * @param visibleExtent the visible extent, as xmin, ymin, xmax, ymax.
+     * @param unitsPerPixel the size of one pixel in map units.
+     * @return the tiles that have not been requested yet.
+     */
+    public Plan update(double[] visibleExtent, double unitsPerPixel) {
+        if (!(0 < unitsPerPixel) || Double.isInfinite(unitsPerPixel)) {
+            return new Plan(Collections.<Tile>emptyList(), false);
+        }
+        int level = getLevel(unitsPerPixel);
+        double size = Math.scalb(1.0, level);
+        long minColumn = (long) Math.floor(visibleExtent[0] / size);
+        long minRow = (long) Math.floor(visibleExtent[1] / size);
+        long maxColumn = (long) Math.floor(visibleExtent[2] / size);
+        long maxRow = (long) Math.floor(visibleExtent[3] / size);
+
+        final double centerX = (visibleExtent[0] + visibleExtent[2]) / 2;
+        final double centerY = (visibleExtent[1] + visibleExtent[3]) / 2;
+        int panX = Double.isNaN(lastCenterX) ? 0 : (int) Math.signum(centerX - lastCenterX);
+        int panY = Double.isNaN(lastCenterY) ? 0 : (int) Math.signum(centerY - lastCenterY);
+        lastCenterX = centerX;
+        lastCenterY = centerY;
+
+        List<Tile> visible = new ArrayList<>();
+        for (long column = minColumn; column <= maxColumn; column++) {
+            for (long row = minRow; row <= maxRow; row++) {
+                visible.add(new Tile(level, column, row, false));
+            }
+        }
+        Collections.sort(visible, new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return Double.compare(distanceSquared(a, centerX, centerY), distanceSquared(b, centerX, centerY));
+            }
+        });
+
+        List<Tile> prefetch = new ArrayList<>();
+        if (0 != panX) {
+            long column = 0 < panX ? maxColumn + 1 : minColumn - 1;
+            for (long row = minRow - Math.abs(panY); row <= maxRow + Math.abs(panY); row++) {
+                prefetch.add(new Tile(level, column, row, true));
+            }
+        }
+        if (0 != panY) {
+            long row = 0 < panY ? maxRow + 1 : minRow - 1;
+            for (long column = minColumn; column <= maxColumn; column++) {
+                prefetch.add(new Tile(level, column, row, true));
+            }
+        }
+
+        boolean clearCache = false;
+        if (maxTiles < requestedTiles.size() + visible.size() + prefetch.size()) {
+            requestedTiles.clear();
+            clearCache = true;
+        }
+        List<Tile> tiles = new ArrayList<>();
+        for (Tile tile : visible) {
+            if (requestedTiles.add(tile)) {
+                tiles.add(tile);
+            }
+        }
+        for (Tile tile : prefetch) {
+            if (requestedTiles.add(tile)) {
+                tiles.add(tile);
+            }
+        }
+        return new Plan(tiles, clearCache);
+    }
+
+    /**
+     * Forgets that a tile was requested, because its request failed or was
+     * cancelled, so that a later update requests it again.
+     * @param tile the tile.
+     */
+    public void tileNotLoaded(Tile tile) {
+        requestedTiles.remove(tile);
+    }
+
+    /**
+     * Forgets every tile requested, e.g. because the table's features are being
+     * reloaded, so that the next update plans every visible tile again.
+     */
+    public void reset() {
+        requestedTiles.clear();
+        lastCenterX = Double.NaN;
+        lastCenterY = Double.NaN;
+    }
+
+    /**
+     * @return the number of tiles requested since the planner last started over.
+     */
+    public int getRequestedTileCount() {
+        return requestedTiles.size();
+    }
+
+    private static double distanceSquared(Tile tile, double x, double y) {
+        double dx = (tile.column + 0.5) * tile.size - x;
+        double dy = (tile.row + 0.5) * tile.size - y;
+        return dx * dx + dy * dy;
+    }
+
+}
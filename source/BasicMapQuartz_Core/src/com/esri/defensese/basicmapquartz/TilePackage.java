@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the tiles of an extracted tile package, i.e. a .tpkx raster tile package
+ * or a .vtpk vector tile package that has been unzipped into a directory. Both
+ * store their tiles in compact cache V2 bundles:
+ *
+ * <pre>
+ * root.json                       the tiled service JSON
+ * tile/L05/R0080C0100.bundle      tiles of level 5, rows 128-255, columns 256-383
+ * </pre>
+ *
+ * <p>A vector tile package has the same layout inside its p12 directory, next to
+ * the styles, sprites and fonts in p12/resources.</p>
+ *
+ * <p>Each bundle is memory-mapped the first time one of its tiles is read, so a
+ * tile is read without a system call or a copy into the Java heap until it is
+ * written out, and only the pages of the bundle that are actually read are loaded
+ * from storage. A bundle holds the tiles of a square of packetSize by packetSize
+ * rows and columns. Its 64-byte header is followed by one 8-byte little-endian
+ * index entry per tile, in row-major order, whose low 40 bits are the offset of
+ * the tile in the bundle and whose high 24 bits are its size. A size of 0 means
+ * the tile is missing. Methods are thread-safe.</p>
+ */
+public class TilePackage {
+
+    /**
+     * The number of rows and columns of tiles in a bundle when root.json does not
+     * say.
+     */
+    public static final int DEFAULT_PACKET_SIZE = 128;
+
+    private static final int BUNDLE_HEADER_SIZE = 64;
+    private static final long OFFSET_MASK = 0xFFFFFFFFFFL;
+
+    /**
+     * A bundle file that does not exist, so that it is looked for only once.
+     */
+    private static final ByteBuffer MISSING_BUNDLE = ByteBuffer.allocate(0);
+
+    private final File directory;
+    private final boolean vector;
+    private final byte[] serviceJson;
+    private final int packetSize;
+    private final Map<String, ByteBuffer> bundles = new HashMap<>();
+
+    /**
+     * Opens an extracted tile package. Only root.json is read; bundles are mapped
+     * as their tiles are needed.
+     * @param packageDirectory the directory into which the package was extracted.
+     * @throws IOException if the directory does not contain a tile package.
+     */
+    public TilePackage(File packageDirectory) throws IOException {
+        File vectorDirectory = new File(packageDirectory, "p12");
+        this.vector = new File(vectorDirectory, "root.json").isFile();
+        this.directory = vector ? vectorDirectory : packageDirectory;
+        File rootFile = new File(directory, "root.json");
+        if (!rootFile.isFile()) {
+            throw new IOException("No tile package in " + packageDirectory);
+        }
+        this.serviceJson = readFile(rootFile);
+        this.packetSize = readPacketSize(serviceJson);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while (-1 != (count = in.read(buffer))) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readPacketSize(byte[] serviceJson) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(serviceJson), "UTF-8"));
+        int packetSize = DEFAULT_PACKET_SIZE;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("storageInfo".equals(reader.nextName())) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("packetSize".equals(reader.nextName())) {
+                        packetSize = (int) reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (0 >= packetSize) {
+            throw new IOException("Invalid packet size " + packetSize);
+        }
+        return packetSize;
+    }
+
+    /**
+     * @return the directory that contains root.json and the tile directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return true for a vector tile package and false for a raster tile package.
+     */
+    public boolean isVector() {
+        return vector;
+    }
+
+    /**
+     * @return the number of rows and columns of tiles in a bundle.
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return the contents of root.json, which describes the package as a tiled
+     *         map service or vector tile service. The caller must not modify it.
+     */
+    public byte[] getServiceJson() {
+        return serviceJson;
+    }
+
+    /**
+     * Returns the name of the bundle file that holds a tile, relative to the
+     * package directory.
+     * @param level the level of detail.
+     * @param row the tile row.
+     * @param column the tile column.
+     * @return the bundle's path, e.g. tile/L05/R0080C0100.bundle.
+     */
+    public String getBundleName(int level, int row, int column) {
+        return String.format(Locale.US, "tile/L%02d/R%04xC%04x.bundle", level,
+                row - row % packetSize, column - column % packetSize);
+    }
+
+    /**
+     * Reads a tile.
+     * @param level the level of detail.
+     * @param row the tile row.
+     * @param column the tile column.
+     * @return the tile's bytes, e.g. a PNG or JPEG image or a gzipped vector tile,
+     *         or null if the package does not contain the tile.
+     * @throws IOException if the tile's bundle cannot be read.
+     */
+    public byte[] getTile(int level, int row, int column) throws IOException {
+        ByteBuffer tile = getTileBuffer(level, row, column);
+        if (null == tile) {
+            return null;
+        }
+        byte[] bytes = new byte[tile.remaining()];
+        tile.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a tile without copying it out of the mapped bundle.
+     * @param level the level of detail.
+     * @param row the tile row.
+     * @param column the tile column.
+     * @return a read-only buffer whose remaining bytes are the tile, or null if
+     *         the package does not contain the tile.
+     * @throws IOException if the tile's bundle cannot be read.
+     */
+    public ByteBuffer getTileBuffer(int level, int row, int column) throws IOException {
+        if (0 > level || 0 > row || 0 > column) {
+            return null;
+        }
+        ByteBuffer bundle = getBundle(getBundleName(level, row, column));
+        if (MISSING_BUNDLE == bundle) {
+            return null;
+        }
+        int indexPosition = BUNDLE_HEADER_SIZE + 8 * ((row % packetSize) * packetSize + column % packetSize);
+        if (indexPosition + 8 > bundle.limit()) {
+            throw new IOException("Truncated bundle " + getBundleName(level, row, column));
+        }
+        long entry = bundle.getLong(indexPosition);
+        long offset = entry & OFFSET_MASK;
+        int size = (int) (entry >>> 40);
+        if (0 == size) {
+            return null;
+        }
+        if (offset + size > bundle.limit()) {
+            throw new IOException("Tile " + level + "/" + row + "/" + column + " is outside its bundle");
+        }
+        ByteBuffer tile = bundle.duplicate();
+        tile.limit((int) offset + size);
+        tile.position((int) offset);
+        return tile.slice();
+    }
+
+    private ByteBuffer getBundle(String name) throws IOException {
+        synchronized (bundles) {
+            ByteBuffer bundle = bundles.get(name);
+            if (null == bundle) {
+                bundle = mapBundle(new File(directory, name));
+                bundles.put(name, bundle);
+            }
+            return bundle;
+        }
+    }
+
+    private static ByteBuffer mapBundle(File file) throws IOException {
+        if (!file.isFile()) {
+            return MISSING_BUNDLE;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns a file of the package other than a tile, such as a vector tile
+     * style, sprite or font.
+     * @param path the file's path relative to the package directory, with forward
+     *             slashes.
+     * @return the file, or null if it does not exist or is outside the package.
+     */
+    public File getResource(String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("..") || path.contains("\\")) {
+            return null;
+        }
+        File file = new File(directory, path);
+        return file.isFile() ? file : null;
+    }
+
+}
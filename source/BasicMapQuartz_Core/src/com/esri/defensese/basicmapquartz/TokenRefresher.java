@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the tokens in an EncryptedCredentialStore fresh by generating a new token
+ * on a background thread shortly before each stored token expires, so that the
+ * app does not have to generate tokens while it starts or loads layers.
+ */
+public class TokenRefresher {
+
+    /**
+     * Generates tokens.
+     */
+    public interface TokenGenerator {
+
+        /**
+         * Generates a token. This method may block.
+         * @param resourceUrl the URL of a secured resource on the server.
+         * @param username the username.
+         * @param password the password.
+         * @return the token.
+         * @throws IOException if the token could not be generated.
+         */
+        Token generateToken(String resourceUrl, String username, String password) throws IOException;
+
+    }
+
+    /**
+     * A generated token.
+     */
+    public static class Token {
+
+        private final String token;
+        private final long expiration;
+
+        /**
+         * Creates a token.
+         * @param token the token string.
+         * @param expiration the expiration time, in milliseconds since the epoch.
+         */
+        public Token(String token, long expiration) {
+            this.token = token;
+            this.expiration = expiration;
+        }
+
+        /**
+         * @return the token string.
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return the expiration time, in milliseconds since the epoch.
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+    }
+
+    /**
+     * The default time before a token's expiration at which it is refreshed.
+     */
+    public static final long DEFAULT_REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * The time to wait before trying again after a refresh fails.
+     */
+    public static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Logger logger = Logger.getLogger(TokenRefresher.class.getName());
+
+    private final EncryptedCredentialStore store;
+    private final TokenGenerator tokenGenerator;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TokenRefresher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<String, ScheduledFuture<?>> scheduledRefreshes = new HashMap<>();
+    private volatile long refreshMarginMillis = DEFAULT_REFRESH_MARGIN_MILLIS;
+    private boolean paused = false;
+
+    /**
+     * Creates a refresher. Call start to schedule refreshes for the stored entries.
+     * @param store the store whose tokens are refreshed.
+     * @param tokenGenerator the generator of new tokens.
+     */
+    public TokenRefresher(EncryptedCredentialStore store, TokenGenerator tokenGenerator) {
+        this.store = store;
+        this.tokenGenerator = tokenGenerator;
+    }
+
+    /**
+     * Sets how long before a token's expiration it is refreshed.
+     * @param refreshMarginMillis the refresh margin.
+     */
+    public void setRefreshMarginMillis(long refreshMarginMillis) {
+        this.refreshMarginMillis = refreshMarginMillis;
+    }
+
+    /**
+     * @return how long before a token's expiration it is refreshed.
+     */
+    public long getRefreshMarginMillis() {
+        return refreshMarginMillis;
+    }
+
+    /**
+     * Schedules a refresh for every realm in the store. Realms whose tokens are
+     * missing or about to expire are refreshed right away.
+     */
+    public void start() {
+        for (String realm : store.getRealms()) {
+            schedule(realm);
+        }
+    }
+
+    /**
+     * Schedules the next refresh for a realm, replacing any refresh already
+     * scheduled for it. Call this method after adding or changing a realm's entry.
+     * @param realm the realm.
+     */
+    public void schedule(String realm) {
+        EncryptedCredentialStore.Entry entry = store.get(realm);
+        long delay = 0;
+        if (null != entry && null != entry.getToken()) {
+            long lifetime = entry.getTokenExpiration() - System.currentTimeMillis();
+            // Wait at least half the remaining lifetime, in case it is shorter than the margin
+            delay = Math.max(lifetime - refreshMarginMillis, lifetime / 2);
+        }
+        schedule(realm, Math.max(0, delay));
+    }
+
+    private synchronized void schedule(final String realm, long delayMillis) {
+        if (executor.isShutdown() || paused) {
+            return;
+        }
+        ScheduledFuture<?> previous = scheduledRefreshes.put(realm, executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(realm);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS));
+        if (null != previous) {
+            previous.cancel(false);
+        }
+    }
+
+    private void refresh(String realm) {
+        EncryptedCredentialStore.Entry entry = store.get(realm);
+        if (null == entry || null == entry.getPassword() || null == entry.getResourceUrl()) {
+            synchronized (this) {
+                scheduledRefreshes.remove(realm);
+            }
+            return;
+        }
+        try {
+            Token token = tokenGenerator.generateToken(entry.getResourceUrl(), entry.getUsername(), entry.getPassword());
+            // Only update the entry if it was not replaced or removed meanwhile
+            synchronized (store) {
+                if (entry == store.get(realm)) {
+                    store.put(realm, entry.withToken(token.getToken(), token.getExpiration()));
+                }
+            }
+            logger.log(Level.FINE, "Refreshed token for {0}", realm);
+            schedule(realm);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not refresh token for " + realm, e);
+            schedule(realm, RETRY_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Cancels all scheduled refreshes until resume is called, e.g. while the app is
+     * in the background. Realms scheduled while paused are refreshed on resume.
+     */
+    public synchronized void pause() {
+        paused = true;
+        for (ScheduledFuture<?> refresh : scheduledRefreshes.values()) {
+            refresh.cancel(false);
+        }
+        scheduledRefreshes.clear();
+    }
+
+    /**
+     * Schedules refreshes again after pause. Tokens that expired or came within
+     * the refresh margin while paused are refreshed right away.
+     */
+    public void resume() {
+        synchronized (this) {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+        }
+        start();
+    }
+
+    /**
+     * Cancels all scheduled refreshes and stops the background thread.
+     */
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+        scheduledRefreshes.clear();
+    }
+
+}
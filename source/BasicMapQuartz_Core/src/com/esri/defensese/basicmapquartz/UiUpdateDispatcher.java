@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces UI updates posted from any thread so that the UI thread runs only the
+ * latest update for each target, all at once, instead of one task per event.
+ *
+ * <p>Each update has a key naming its target, such as a label or a layer. Posting
+ * an update replaces any update for the same key that has not run yet. The first
+ * update posted after a flush schedules the next flush on the UI executor, which
+ * should run it on the UI thread before the next frame, e.g. with Choreographer
+ * on Android or Platform.runLater in JavaFX. The flush runs the pending updates in
+ * the order in which they were posted. So when dozens of layers change state
+ * at once, the UI thread handles one task per frame with one update per layer.</p>
+ */
+public class UiUpdateDispatcher {
+
+    private static final Logger logger = Logger.getLogger(UiUpdateDispatcher.class.getName());
+
+    private final Executor uiExecutor;
+    private final AtomicLong postCount = new AtomicLong();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+
+    // Guarded by this
+    private Map<Object, Runnable> pendingUpdates = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates a dispatcher.
+     * @param uiExecutor the executor that runs flushes on the UI thread.
+     */
+    public UiUpdateDispatcher(Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Posts an update to run on the UI thread, replacing any update for the same
+     * target that has not run yet. May be called from any thread.
+     * @param key the update's target. Keys are compared with equals.
+     * @param update the update.
+     */
+    public void post(Object key, Runnable update) {
+        postCount.incrementAndGet();
+        synchronized (this) {
+            pendingUpdates.remove(key);
+            pendingUpdates.put(key, update);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        uiExecutor.execute(flush);
+    }
+
+    /**
+     * @return the number of updates posted.
+     */
+    public long getPostCount() {
+        return postCount.get();
+    }
+
+    /**
+     * @return the number of updates run, which is fewer than the number posted
+     *         when updates were coalesced.
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return the number of flushes run on the UI thread.
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    private void flush() {
+        Map<Object, Runnable> updates;
+        synchronized (this) {
+            updates = pendingUpdates;
+            pendingUpdates = new LinkedHashMap<>();
+            flushScheduled = false;
+        }
+        flushCount.incrementAndGet();
+        for (Map.Entry<Object, Runnable> update : updates.entrySet()) {
+            updateCount.incrementAndGet();
+            try {
+                update.getValue().run();
+            } catch (RuntimeException e) {
+                // One failed update must not keep the others off the screen
+                logger.log(Level.WARNING, "UI update for " + update.getKey() + " failed", e);
+            }
+        }
+    }
+
+}
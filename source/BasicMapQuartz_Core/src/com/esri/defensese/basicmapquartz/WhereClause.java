@@ -0,0 +1,936 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A where clause, such as a layer's definition expression, compiled into a tree
+ * of predicates that can be evaluated against features held locally. Selecting
+ * with an AttributeIndex uses the index for comparisons, BETWEEN, IN and LIKE
+ * where it can and evaluates the rest of the clause only for the rows that the
+ * index found, so changing a filter does not need a query to the service.
+ *
+ * <p>The clause is the subset of SQL used in definition expressions: AND, OR,
+ * NOT and parentheses; the comparison operators =, &lt;&gt;, !=, &lt;, &lt;=, &gt;
+ * and &gt;=; [NOT] LIKE with % and _; [NOT] IN; [NOT] BETWEEN; IS [NOT] NULL;
+ * field names, quoted or not; string and number literals; and UPPER and LOWER.
+ * As in SQL, a comparison with a null value is neither true nor false, so a row
+ * matches only if the clause is true. As in a SQLite geodatabase, LIKE ignores
+ * case and = does not. Numbers are compared with numbers and strings with
+ * strings; other comparisons, e.g. with dates, are never true. Other syntax
+ * fails to parse.</p>
+ */
+public class WhereClause {
+
+    private enum TokenType {
+        IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, SYMBOL, END
+    }
+
+    private static class Token {
+
+        final TokenType type;
+        final String text;
+        final int position;
+
+        Token(TokenType type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        boolean isKeyword(String keyword) {
+            return TokenType.IDENTIFIER == type && keyword.equalsIgnoreCase(text);
+        }
+
+        boolean isSymbol(String symbol) {
+            return TokenType.SYMBOL == type && symbol.equals(text);
+        }
+
+    }
+
+    /**
+     * A field, possibly in UPPER or LOWER, or a literal.
+     */
+    private static class Operand {
+
+        static final int AS_IS = 0;
+        static final int UPPER = 1;
+        static final int LOWER = 2;
+
+        final String field;
+        final Object literal;
+        final int textCase;
+
+        Operand(String field, Object literal, int textCase) {
+            this.field = field;
+            this.literal = literal;
+            this.textCase = textCase;
+        }
+
+        Object value(Map<String, ?> attributes) {
+            if (null == field) {
+                return literal;
+            }
+            Object value = AttributeIndex.getValue(attributes, field);
+            if (value instanceof String && UPPER == textCase) {
+                return ((String) value).toUpperCase(Locale.US);
+            } else if (value instanceof String && LOWER == textCase) {
+                return ((String) value).toLowerCase(Locale.US);
+            }
+            return value;
+        }
+
+        /**
+         * @return true if this is a field without a function, whose sorted column
+         *         can be searched.
+         */
+        boolean isPlainField() {
+            return null != field && AS_IS == textCase;
+        }
+
+    }
+
+    private abstract static class Node {
+
+        /**
+         * @return TRUE, FALSE, or null if the result is unknown because of a null.
+         */
+        abstract Boolean evaluate(Map<String, ?> attributes);
+
+        /**
+         * @return true if select uses the index rather than evaluating every row.
+         */
+        boolean isIndexed() {
+            return false;
+        }
+
+        BitSet select(AttributeIndex index) {
+            return scan(this, index, null);
+        }
+
+    }
+
+    private static class And extends Node {
+
+        final Node left;
+        final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Boolean a = left.evaluate(attributes);
+            if (Boolean.FALSE.equals(a)) {
+                return false;
+            }
+            Boolean b = right.evaluate(attributes);
+            if (Boolean.FALSE.equals(b)) {
+                return false;
+            }
+            return null == a || null == b ? null : Boolean.TRUE;
+        }
+
+        @Override
+        boolean isIndexed() {
+            return left.isIndexed() || right.isIndexed();
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (left.isIndexed() && right.isIndexed()) {
+                BitSet rows = left.select(index);
+                rows.and(right.select(index));
+                return rows;
+            } else if (left.isIndexed()) {
+                return scan(right, index, left.select(index));
+            } else if (right.isIndexed()) {
+                return scan(left, index, right.select(index));
+            }
+            return super.select(index);
+        }
+
+    }
+
+    private static class Or extends Node {
+
+        final Node left;
+        final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Boolean a = left.evaluate(attributes);
+            if (Boolean.TRUE.equals(a)) {
+                return true;
+            }
+            Boolean b = right.evaluate(attributes);
+            if (Boolean.TRUE.equals(b)) {
+                return true;
+            }
+            return null == a || null == b ? null : Boolean.FALSE;
+        }
+
+        @Override
+        boolean isIndexed() {
+            return left.isIndexed() && right.isIndexed();
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (isIndexed()) {
+                BitSet rows = left.select(index);
+                rows.or(right.select(index));
+                return rows;
+            }
+            return super.select(index);
+        }
+
+    }
+
+    private static class Not extends Node {
+
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Boolean result = operand.evaluate(attributes);
+            return null == result ? null : !result;
+        }
+
+    }
+
+    private static class Comparison extends Node {
+
+        final Operand left;
+        final String operator;
+        final Operand right;
+
+        Comparison(Operand left, String operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Integer result = compare(left.value(attributes), right.value(attributes));
+            if (null == result) {
+                return null;
+            }
+            switch (operator) {
+            case "=":
+                return 0 == result;
+            case "<>":
+            case "!=":
+                return 0 != result;
+            case "<":
+                return result < 0;
+            case "<=":
+                return result <= 0;
+            case ">":
+                return result > 0;
+            default:
+                return result >= 0;
+            }
+        }
+
+        @Override
+        boolean isIndexed() {
+            return (left.isPlainField() && isIndexable(right)) || (right.isPlainField() && isIndexable(left));
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (left.isPlainField() && isIndexable(right)) {
+                return selectRange(index, left.field, operator, right.literal);
+            } else if (right.isPlainField() && isIndexable(left)) {
+                return selectRange(index, right.field, reverse(operator), left.literal);
+            }
+            return super.select(index);
+        }
+
+        private static String reverse(String operator) {
+            switch (operator) {
+            case "<":
+                return ">";
+            case "<=":
+                return ">=";
+            case ">":
+                return "<";
+            case ">=":
+                return "<=";
+            default:
+                return operator;
+            }
+        }
+
+        private static BitSet selectRange(AttributeIndex index, String field, String operator, Object literal) {
+            AttributeIndex.SortedColumn column = index.getSortedColumn(field);
+            BitSet rows = new BitSet(index.size());
+            if (literal instanceof Number) {
+                double value = ((Number) literal).doubleValue();
+                double inf = Double.POSITIVE_INFINITY;
+                switch (operator) {
+                case "=":
+                    column.selectNumbers(value, true, value, true, rows);
+                    break;
+                case "<>":
+                case "!=":
+                    column.selectNumbers(-inf, true, value, false, rows);
+                    column.selectNumbers(value, false, inf, true, rows);
+                    break;
+                case "<":
+                    column.selectNumbers(-inf, true, value, false, rows);
+                    break;
+                case "<=":
+                    column.selectNumbers(-inf, true, value, true, rows);
+                    break;
+                case ">":
+                    column.selectNumbers(value, false, inf, true, rows);
+                    break;
+                default:
+                    column.selectNumbers(value, true, inf, true, rows);
+                }
+            } else {
+                String value = (String) literal;
+                switch (operator) {
+                case "=":
+                    column.selectStrings(value, true, value, true, rows);
+                    break;
+                case "<>":
+                case "!=":
+                    column.selectStrings(null, true, value, false, rows);
+                    column.selectStrings(value, false, null, true, rows);
+                    break;
+                case "<":
+                    column.selectStrings(null, true, value, false, rows);
+                    break;
+                case "<=":
+                    column.selectStrings(null, true, value, true, rows);
+                    break;
+                case ">":
+                    column.selectStrings(value, false, null, true, rows);
+                    break;
+                default:
+                    column.selectStrings(value, true, null, true, rows);
+                }
+            }
+            return rows;
+        }
+
+    }
+
+    private static class Between extends Node {
+
+        final Operand operand;
+        final Operand low;
+        final Operand high;
+        final boolean negated;
+
+        Between(Operand operand, Operand low, Operand high, boolean negated) {
+            this.operand = operand;
+            this.low = low;
+            this.high = high;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Object value = operand.value(attributes);
+            Integer fromLow = compare(value, low.value(attributes));
+            Integer toHigh = compare(value, high.value(attributes));
+            if (null == fromLow || null == toHigh) {
+                return null;
+            }
+            return negated != (0 <= fromLow && 0 >= toHigh);
+        }
+
+        @Override
+        boolean isIndexed() {
+            return !negated && operand.isPlainField() && isIndexable(low) && isIndexable(high)
+                    && (low.literal instanceof Number) == (high.literal instanceof Number);
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (!isIndexed()) {
+                return super.select(index);
+            }
+            AttributeIndex.SortedColumn column = index.getSortedColumn(operand.field);
+            BitSet rows = new BitSet(index.size());
+            if (low.literal instanceof Number) {
+                column.selectNumbers(((Number) low.literal).doubleValue(), true,
+                        ((Number) high.literal).doubleValue(), true, rows);
+            } else if (((String) low.literal).compareTo((String) high.literal) <= 0) {
+                column.selectStrings((String) low.literal, true, (String) high.literal, true, rows);
+            }
+            return rows;
+        }
+
+    }
+
+    private static class In extends Node {
+
+        final Operand operand;
+        final List<Operand> values;
+        final boolean negated;
+
+        In(Operand operand, List<Operand> values, boolean negated) {
+            this.operand = operand;
+            this.values = values;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Object value = operand.value(attributes);
+            if (null == value) {
+                return null;
+            }
+            boolean unknown = false;
+            for (Operand candidate : values) {
+                Integer result = compare(value, candidate.value(attributes));
+                if (null == result) {
+                    unknown = true;
+                } else if (0 == result) {
+                    return !negated;
+                }
+            }
+            return unknown ? null : negated;
+        }
+
+        @Override
+        boolean isIndexed() {
+            if (negated || !operand.isPlainField()) {
+                return false;
+            }
+            for (Operand value : values) {
+                if (!isIndexable(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (!isIndexed()) {
+                return super.select(index);
+            }
+            BitSet rows = new BitSet(index.size());
+            for (Operand value : values) {
+                rows.or(Comparison.selectRange(index, operand.field, "=", value.literal));
+            }
+            return rows;
+        }
+
+    }
+
+    private static class Like extends Node {
+
+        final Operand operand;
+        final String pattern;
+        final boolean negated;
+
+        /**
+         * The longest run of the pattern without wildcards, in lower case, which the
+         * trigram index searches for.
+         */
+        final String literalRun;
+
+        Like(Operand operand, String pattern, boolean negated) {
+            this.operand = operand;
+            this.pattern = pattern.toLowerCase(Locale.US);
+            this.negated = negated;
+            String longest = "";
+            for (String run : this.pattern.split("[%_]")) {
+                if (run.length() > longest.length()) {
+                    longest = run;
+                }
+            }
+            this.literalRun = longest;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            Object value = operand.value(attributes);
+            if (!(value instanceof String || value instanceof Number)) {
+                return null;
+            }
+            return negated != like(value.toString().toLowerCase(Locale.US), pattern);
+        }
+
+        @Override
+        boolean isIndexed() {
+            // LIKE ignores case, so UPPER and LOWER can use the index too
+            return !negated && null != operand.field && 3 <= literalRun.length();
+        }
+
+        @Override
+        BitSet select(AttributeIndex index) {
+            if (!isIndexed()) {
+                return super.select(index);
+            }
+            BitSet rows = new BitSet(index.size());
+            for (int row : index.getTrigramIndex(operand.field).candidates(literalRun)) {
+                if (Boolean.TRUE.equals(evaluate(index.getRow(row)))) {
+                    rows.set(row);
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Matches a value with a pattern, both in lower case, backtracking only to
+         * the most recent %.
+         */
+        private static boolean like(String value, String pattern) {
+            int v = 0;
+            int p = 0;
+            int starP = -1;
+            int starV = 0;
+            while (v < value.length()) {
+                if (p < pattern.length() && ('_' == pattern.charAt(p) || value.charAt(v) == pattern.charAt(p))) {
+                    v++;
+                    p++;
+                } else if (p < pattern.length() && '%' == pattern.charAt(p)) {
+                    starP = p++;
+                    starV = v;
+                } else if (-1 != starP) {
+                    p = starP + 1;
+                    v = ++starV;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && '%' == pattern.charAt(p)) {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+    }
+
+    private static class IsNull extends Node {
+
+        final Operand operand;
+        final boolean negated;
+
+        IsNull(Operand operand, boolean negated) {
+            this.operand = operand;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Map<String, ?> attributes) {
+            return negated != (null == operand.value(attributes));
+        }
+
+    }
+
+    /**
+     * The empty where clause, which matches every row.
+     */
+    public static final WhereClause ALL = new WhereClause("", null);
+
+    private final String expression;
+    private final Node root;
+
+    private WhereClause(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Parses a where clause.
+     * @param expression the where clause. A null or empty clause matches every row.
+     * @return the compiled where clause.
+     * @throws ParseException if the clause is not in the supported subset of SQL.
+     */
+    public static WhereClause parse(String expression) throws ParseException {
+        if (null == expression || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        Parser parser = new Parser(expression);
+        Node root = parser.parseOr();
+        if (TokenType.END != parser.peek().type) {
+            throw parser.syntaxError("Unexpected '" + parser.peek().text + "'");
+        }
+        return new WhereClause(expression, root);
+    }
+
+    /**
+     * Combines two where clauses with AND.
+     * @param first a where clause, or null.
+     * @param second another where clause, or null.
+     * @return the combined where clause, or null if both are null or empty.
+     */
+    public static String and(String first, String second) {
+        boolean hasFirst = null != first && !first.trim().isEmpty();
+        boolean hasSecond = null != second && !second.trim().isEmpty();
+        if (hasFirst && hasSecond) {
+            return "(" + first + ") AND (" + second + ")";
+        }
+        return hasFirst ? first : hasSecond ? second : null;
+    }
+
+    /**
+     * Returns true if a feature's attributes satisfy the clause.
+     * @param attributes the attributes.
+     * @return true if the clause is true for the attributes; false if it is false
+     *         or unknown.
+     */
+    public boolean matches(Map<String, ?> attributes) {
+        return null == root || Boolean.TRUE.equals(root.evaluate(attributes));
+    }
+
+    /**
+     * Returns the rows of an index that satisfy the clause.
+     * @param index the index.
+     * @return the matching row numbers.
+     */
+    public BitSet select(AttributeIndex index) {
+        if (null == root) {
+            BitSet rows = new BitSet(index.size());
+            rows.set(0, index.size());
+            return rows;
+        }
+        return root.select(index);
+    }
+
+    /**
+     * @return the where clause as given to parse.
+     */
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private static boolean isIndexable(Operand operand) {
+        return null == operand.field && (operand.literal instanceof Number || operand.literal instanceof String);
+    }
+
+    /**
+     * Evaluates a node for every row, or only for candidate rows if they are given.
+     */
+    private static BitSet scan(Node node, AttributeIndex index, BitSet candidates) {
+        BitSet rows = new BitSet(index.size());
+        if (null == candidates) {
+            for (int row = 0; row < index.size(); row++) {
+                if (Boolean.TRUE.equals(node.evaluate(index.getRow(row)))) {
+                    rows.set(row);
+                }
+            }
+        } else {
+            for (int row = candidates.nextSetBit(0); row >= 0; row = candidates.nextSetBit(row + 1)) {
+                if (Boolean.TRUE.equals(node.evaluate(index.getRow(row)))) {
+                    rows.set(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Compares two values.
+     * @return the comparison, or null if either value is null or the values are
+     *         not both numbers or both strings.
+     */
+    private static Integer compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        } else if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        return null;
+    }
+
+    /**
+     * A recursive descent parser for where clauses.
+     */
+    private static class Parser {
+
+        private final String expression;
+        private final List<Token> tokens;
+        private int next = 0;
+
+        Parser(String expression) throws ParseException {
+            this.expression = expression;
+            this.tokens = tokenize(expression);
+        }
+
+        Token peek() {
+            return tokens.get(next);
+        }
+
+        ParseException syntaxError(String message) {
+            return new ParseException(message + " at position " + peek().position + " in " + expression,
+                    peek().position);
+        }
+
+        Node parseOr() throws ParseException {
+            Node node = parseAnd();
+            while (peek().isKeyword("OR")) {
+                next++;
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() throws ParseException {
+            Node node = parseNot();
+            while (peek().isKeyword("AND")) {
+                next++;
+                node = new And(node, parseNot());
+            }
+            return node;
+        }
+
+        private Node parseNot() throws ParseException {
+            if (peek().isKeyword("NOT")) {
+                next++;
+                return new Not(parseNot());
+            }
+            return parsePredicate();
+        }
+
+        private Node parsePredicate() throws ParseException {
+            if (peek().isSymbol("(")) {
+                next++;
+                Node node = parseOr();
+                expectSymbol(")");
+                return node;
+            }
+            Operand left = parseOperand();
+            if (peek().isKeyword("IS")) {
+                next++;
+                boolean negated = acceptKeyword("NOT");
+                expectKeyword("NULL");
+                return new IsNull(left, negated);
+            }
+            boolean negated = acceptKeyword("NOT");
+            if (acceptKeyword("LIKE")) {
+                Token pattern = peek();
+                if (TokenType.STRING != pattern.type) {
+                    throw syntaxError("Expected a pattern");
+                }
+                next++;
+                return new Like(left, pattern.text, negated);
+            } else if (acceptKeyword("IN")) {
+                expectSymbol("(");
+                List<Operand> values = new ArrayList<>();
+                do {
+                    values.add(parseLiteral());
+                } while (acceptSymbol(","));
+                expectSymbol(")");
+                return new In(left, values, negated);
+            } else if (acceptKeyword("BETWEEN")) {
+                Operand low = parseLiteral();
+                expectKeyword("AND");
+                return new Between(left, low, parseLiteral(), negated);
+            } else if (negated) {
+                throw syntaxError("Expected LIKE, IN or BETWEEN");
+            }
+            Token operator = peek();
+            if (TokenType.SYMBOL != operator.type || "(),-".contains(operator.text)) {
+                throw syntaxError("Expected a comparison");
+            }
+            next++;
+            return new Comparison(left, operator.text, parseOperand());
+        }
+
+        private Operand parseOperand() throws ParseException {
+            Token token = peek();
+            if (TokenType.QUOTED_IDENTIFIER == token.type) {
+                next++;
+                return new Operand(token.text, null, Operand.AS_IS);
+            } else if (TokenType.IDENTIFIER == token.type && !token.isKeyword("NULL")) {
+                if (isReserved(token)) {
+                    throw syntaxError("Unexpected " + token.text);
+                }
+                next++;
+                if (acceptSymbol("(")) {
+                    int textCase;
+                    if (token.isKeyword("UPPER")) {
+                        textCase = Operand.UPPER;
+                    } else if (token.isKeyword("LOWER")) {
+                        textCase = Operand.LOWER;
+                    } else {
+                        next--;
+                        throw syntaxError("Unsupported function " + token.text);
+                    }
+                    Operand field = parseOperand();
+                    if (null == field.field || Operand.AS_IS != field.textCase) {
+                        throw syntaxError("Expected a field name");
+                    }
+                    expectSymbol(")");
+                    return new Operand(field.field, null, textCase);
+                }
+                return new Operand(token.text, null, Operand.AS_IS);
+            }
+            return parseLiteral();
+        }
+
+        private Operand parseLiteral() throws ParseException {
+            Token token = peek();
+            if (token.isKeyword("NULL")) {
+                next++;
+                return new Operand(null, null, Operand.AS_IS);
+            } else if (TokenType.STRING == token.type) {
+                next++;
+                return new Operand(null, token.text, Operand.AS_IS);
+            }
+            boolean negative = acceptSymbol("-");
+            token = peek();
+            if (TokenType.NUMBER != token.type) {
+                throw syntaxError("Expected a value");
+            }
+            next++;
+            double value = Double.parseDouble(token.text);
+            return new Operand(null, negative ? -value : value, Operand.AS_IS);
+        }
+
+        private boolean isReserved(Token token) {
+            for (String keyword : new String[] { "AND", "OR", "NOT", "LIKE", "IN", "IS", "BETWEEN" }) {
+                if (token.isKeyword(keyword)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (peek().isKeyword(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptSymbol(String symbol) {
+            if (peek().isSymbol(symbol)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(String keyword) throws ParseException {
+            if (!acceptKeyword(keyword)) {
+                throw syntaxError("Expected " + keyword);
+            }
+        }
+
+        private void expectSymbol(String symbol) throws ParseException {
+            if (!acceptSymbol(symbol)) {
+                throw syntaxError("Expected '" + symbol + "'");
+            }
+        }
+
+        private static List<Token> tokenize(String expression) throws ParseException {
+            List<Token> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < expression.length()) {
+                char c = expression.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if ('\'' == c || '"' == c) {
+                    // Quotes are escaped by doubling them
+                    StringBuilder text = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i == expression.length()) {
+                            throw new ParseException("Unterminated " + ('\'' == c ? "string" : "identifier")
+                                    + " at position " + start + " in " + expression, start);
+                        }
+                        char d = expression.charAt(i++);
+                        if (c == d) {
+                            if (i < expression.length() && c == expression.charAt(i)) {
+                                i++;
+                            } else {
+                                break;
+                            }
+                        }
+                        text.append(d);
+                    }
+                    tokens.add(new Token('\'' == c ? TokenType.STRING : TokenType.QUOTED_IDENTIFIER,
+                            text.toString(), start));
+                } else if (Character.isDigit(c) || ('.' == c && i + 1 < expression.length()
+                        && Character.isDigit(expression.charAt(i + 1)))) {
+                    while (i < expression.length() && (Character.isDigit(expression.charAt(i))
+                            || '.' == expression.charAt(i))) {
+                        i++;
+                    }
+                    if (i < expression.length() && ('e' == expression.charAt(i) || 'E' == expression.charAt(i))) {
+                        i++;
+                        if (i < expression.length() && ('+' == expression.charAt(i) || '-' == expression.charAt(i))) {
+                            i++;
+                        }
+                        while (i < expression.length() && Character.isDigit(expression.charAt(i))) {
+                            i++;
+                        }
+                    }
+                    String number = expression.substring(start, i);
+                    try {
+                        Double.parseDouble(number);
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Malformed number " + number + " at position " + start
+                                + " in " + expression, start);
+                    }
+                    tokens.add(new Token(TokenType.NUMBER, number, start));
+                } else if (Character.isLetter(c) || '_' == c) {
+                    while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i))
+                            || '_' == expression.charAt(i) || '.' == expression.charAt(i))) {
+                        i++;
+                    }
+                    tokens.add(new Token(TokenType.IDENTIFIER, expression.substring(start, i), start));
+                } else if (expression.startsWith("<>", i) || expression.startsWith("!=", i)
+                        || expression.startsWith("<=", i) || expression.startsWith(">=", i)) {
+                    i += 2;
+                    tokens.add(new Token(TokenType.SYMBOL, expression.substring(start, i), start));
+                } else if ("=<>(),-".indexOf(c) >= 0) {
+                    i++;
+                    tokens.add(new Token(TokenType.SYMBOL, String.valueOf(c), start));
+                } else {
+                    throw new ParseException("Unexpected character '" + c + "' at position " + start
+                            + " in " + expression, start);
+                }
+            }
+            tokens.add(new Token(TokenType.END, "end of clause", expression.length()));
+            return tokens;
+        }
+
+    }
+
+}
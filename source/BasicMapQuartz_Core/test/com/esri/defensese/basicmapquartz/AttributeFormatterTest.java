@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests AttributeFormatter.
+ */
+public class AttributeFormatterTest {
+
+    @Test
+    public void formatsValues() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        AttributeFormatter formatter = new AttributeFormatter(dateFormat);
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.clear();
+        calendar.set(2016, Calendar.MARCH, 14);
+
+        assertEquals("", formatter.format(null));
+        assertEquals("2016-03-14", formatter.format(calendar));
+        assertEquals("2016-03-14", formatter.format(calendar.getTime()));
+        assertEquals("42", formatter.format(42));
+        assertEquals("text", formatter.format("text"));
+    }
+
+    @Test
+    public void labelsWithDisplayFieldOrFallback() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("Name", "Salem");
+        attributes.put("Empty", null);
+
+        assertEquals("Salem", AttributeFormatter.getLabel(attributes, "Name", "Sites", 7));
+        assertEquals("Sites 7", AttributeFormatter.getLabel(attributes, "Empty", "Sites", 7));
+        assertEquals("Sites 7", AttributeFormatter.getLabel(attributes, "Missing", "Sites", 7));
+        assertEquals("Sites 7", AttributeFormatter.getLabel(attributes, null, "Sites", 7));
+    }
+
+}
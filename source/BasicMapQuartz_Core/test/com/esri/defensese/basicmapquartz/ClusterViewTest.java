@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ClusterView.
+ */
+public class ClusterViewTest {
+
+    /**
+     * Tracks the items that the view reports as shown.
+     */
+    private static class ShownItems implements ClusterView.Listener {
+
+        final Set<Long> shown = new HashSet<>();
+        int added = 0;
+        int removed = 0;
+
+        @Override
+        public void clusterAdded(int level, int itemIndex) {
+            assertTrue(shown.add(ClusterView.key(level, itemIndex)));
+            added++;
+        }
+
+        @Override
+        public void clusterRemoved(int level, int itemIndex) {
+            assertTrue(shown.remove(ClusterView.key(level, itemIndex)));
+            removed++;
+        }
+
+    }
+
+    private static PointClusterIndex gridIndex() {
+        // A 100 x 100 grid of points 10 units apart
+        double[] x = new double[10000];
+        double[] y = new double[10000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = (i % 100) * 10;
+            y[i] = (i / 100) * 10;
+        }
+        return new PointClusterIndex(x, y, 0, 8, 40);
+    }
+
+    private static Set<Long> search(PointClusterIndex index, final int level, double[] extent) {
+        final Set<Long> keys = new HashSet<>();
+        index.search(level, extent[0], extent[1], extent[2], extent[3], new PackedHilbertRTree.Visitor() {
+            @Override
+            public boolean visit(int itemIndex) {
+                keys.add(ClusterView.key(level, itemIndex));
+                return true;
+            }
+        });
+        return keys;
+    }
+
+    @Test
+    public void panAddsAndRemovesOnlyChangedItems() {
+        ClusterView view = new ClusterView(gridIndex());
+        ShownItems items = new ShownItems();
+
+        double[] first = { 0, 0, 400, 400 };
+        int level = view.update(first, 1, items);
+        assertEquals(1, level);
+        Set<Long> firstKeys = search(view.getIndex(), level, first);
+        assertFalse(firstKeys.isEmpty());
+        assertEquals(firstKeys, items.shown);
+        assertEquals(firstKeys.size(), view.size());
+
+        items.added = 0;
+        double[] second = { 200, 0, 600, 400 };
+        view.update(second, 1, items);
+        Set<Long> secondKeys = search(view.getIndex(), level, second);
+        assertEquals(secondKeys, items.shown);
+        Set<Long> kept = new HashSet<>(firstKeys);
+        kept.retainAll(secondKeys);
+        assertFalse(kept.isEmpty());
+        assertEquals(secondKeys.size() - kept.size(), items.added);
+        assertEquals(firstKeys.size() - kept.size(), items.removed);
+
+        items.added = 0;
+        items.removed = 0;
+        view.update(second, 1, items);
+        assertEquals(0, items.added);
+        assertEquals(0, items.removed);
+    }
+
+    @Test
+    public void unclusteredScaleShowsNothing() {
+        ClusterView view = new ClusterView(gridIndex());
+        ShownItems items = new ShownItems();
+        view.update(new double[] { 0, 0, 400, 400 }, 1, items);
+        assertFalse(items.shown.isEmpty());
+
+        // At 0.5 units per pixel the points themselves are drawn
+        assertEquals(0, view.update(new double[] { 0, 0, 200, 200 }, 0.5, items));
+        assertTrue(items.shown.isEmpty());
+        assertEquals(0, view.size());
+    }
+
+    @Test
+    public void zoomReplacesLevel() {
+        ClusterView view = new ClusterView(gridIndex());
+        ShownItems items = new ShownItems();
+        view.update(new double[] { 0, 0, 400, 400 }, 1, items);
+
+        int level = view.update(new double[] { 0, 0, 1000, 1000 }, 4, items);
+        assertTrue(1 < level);
+        assertEquals(level, view.getLevel());
+        for (long key : items.shown) {
+            assertEquals(level, ClusterView.getLevel(key));
+        }
+        int total = 0;
+        for (long key : items.shown) {
+            total += view.getIndex().getCount(level, ClusterView.getItemIndex(key));
+        }
+        assertEquals(10000, total);
+
+        view.clear(items);
+        assertTrue(items.shown.isEmpty());
+        assertEquals(0, view.size());
+    }
+
+    @Test
+    public void keyRoundTrips() {
+        long key = ClusterView.key(7, 123456789);
+        assertEquals(7, ClusterView.getLevel(key));
+        assertEquals(123456789, ClusterView.getItemIndex(key));
+    }
+
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ColumnarAttributeStore.
+ */
+public class ColumnarAttributeStoreTest {
+
+    private static Map<String, Object> feature(long objectId, String name, int visitors, double area) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("OBJECTID", objectId);
+        attributes.put("Name", name);
+        attributes.put("Visitors", visitors);
+        attributes.put("Area", area);
+        attributes.put("Code", (short) (visitors % 7));
+        return attributes;
+    }
+
+    @Test
+    public void rowViewsEqualOriginalAttributes() {
+        List<Map<String, Object>> features = new ArrayList<>();
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder("OBJECTID");
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> attributes = feature(i + 1, "Site " + (i % 10) + " \u00e9", i * 3, i / 4.0);
+            features.add(attributes);
+            assertEquals(i, builder.add(attributes));
+        }
+        ColumnarAttributeStore store = builder.build();
+        assertEquals(1000, store.size());
+        for (int i = 0; i < features.size(); i++) {
+            assertEquals(features.get(i), store.getAttributes(i));
+        }
+        assertEquals("Site 3 \u00e9", store.getAttributes(13).get("name"));
+        assertEquals(Short.valueOf((short) 4), store.getAttributes(6).get("Code"));
+        assertTrue(store.getAttributes(0).containsKey("AREA"));
+        assertNull(store.getAttributes(0).get("Missing"));
+        assertTrue(0 < store.getOffHeapBytes());
+    }
+
+    @Test
+    public void findsRowsByObjectId() {
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder("OBJECTID");
+        long[] objectIds = { 40, 7, 12, 1000, 3 };
+        for (long objectId : objectIds) {
+            builder.add(feature(objectId, "x", 0, 0));
+        }
+        ColumnarAttributeStore store = builder.build();
+        for (int row = 0; row < objectIds.length; row++) {
+            assertEquals(objectIds[row], store.getObjectId(row));
+            assertEquals(row, store.getRow(objectIds[row]));
+        }
+        assertEquals(-1, store.getRow(8));
+
+        ColumnarAttributeStore noIds = new ColumnarAttributeStore.Builder(null).build();
+        assertEquals(-1, noIds.getRow(0));
+    }
+
+    @Test
+    public void missingAndNullValuesAreNull() {
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder(null);
+        Map<String, Object> first = new HashMap<>();
+        first.put("A", 1);
+        Map<String, Object> second = new HashMap<>();
+        second.put("A", null);
+        second.put("B", "b");
+        builder.add(first);
+        builder.add(second);
+        builder.add(new HashMap<String, Object>());
+        ColumnarAttributeStore store = builder.build();
+        assertEquals(Arrays.asList("A", "B"), store.getFieldNames());
+        assertEquals(1, store.getAttributes(0).get("A"));
+        assertNull(store.getAttributes(0).get("B"));
+        assertNull(store.getAttributes(1).get("A"));
+        assertEquals("b", store.getAttributes(1).get("B"));
+        assertNull(store.getAttributes(2).get("A"));
+        assertNull(store.getAttributes(2).get("B"));
+        assertEquals(1, store.getObjectId(1));
+    }
+
+    @Test
+    public void widensMixedTypes() {
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder(null);
+        Object[][] rows = { { 1, "a" }, { 2.5, 3L }, { 4L, new byte[] { 1 } } };
+        for (Object[] values : rows) {
+            Map<String, Object> attributes = new HashMap<>();
+            attributes.put("Number", values[0]);
+            attributes.put("Mixed", values[1]);
+            builder.add(attributes);
+        }
+        ColumnarAttributeStore store = builder.build();
+        assertEquals(1.0, store.getAttributes(0).get("Number"));
+        assertEquals(2.5, store.getAttributes(1).get("Number"));
+        assertEquals(4.0, store.getAttributes(2).get("Number"));
+        assertEquals("a", store.getAttributes(0).get("Mixed"));
+        assertEquals(3L, store.getAttributes(1).get("Mixed"));
+        assertArrayEquals(new byte[] { 1 }, (byte[]) store.getAttributes(2).get("Mixed"));
+    }
+
+    @Test
+    public void storesDates() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(1450000000000L);
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("Created", calendar);
+        attributes.put("Edited", new Date(1460000000000L));
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder(null);
+        builder.add(attributes);
+        ColumnarAttributeStore store = builder.build();
+        assertEquals(1450000000000L, ((Calendar) store.getAttributes(0).get("Created")).getTimeInMillis());
+        assertEquals(new Date(1460000000000L), store.getAttributes(0).get("Edited"));
+    }
+
+    @Test
+    public void indexesRowViews() throws Exception {
+        ColumnarAttributeStore.Builder builder = new ColumnarAttributeStore.Builder("OBJECTID");
+        for (int i = 0; i < 100; i++) {
+            builder.add(feature(i, 0 == i % 10 ? "Santa Fe" : "Taos", i, 0));
+        }
+        ColumnarAttributeStore store = builder.build();
+        AttributeIndex index = new AttributeIndex(store.asRows());
+        assertEquals(10, WhereClause.parse("Name LIKE '%sant%'").select(index).cardinality());
+        assertEquals(50, WhereClause.parse("Visitors >= 50").select(index).cardinality());
+    }
+
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that DeferredFuture starts its operation on the executor and passes on
+ * cancellation before and after the operation starts.
+ */
+public class DeferredFutureTest {
+
+    /**
+     * An executor that runs commands when told to, like a busy UI thread.
+     */
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> commands = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            commands.add(command);
+        }
+
+        void runAll() {
+            for (Runnable command : commands) {
+                command.run();
+            }
+            commands.clear();
+        }
+
+    }
+
+    private final QueueExecutor executor = new QueueExecutor();
+    private final AtomicInteger startCount = new AtomicInteger();
+    private final FutureTask<Object> operationFuture = new FutureTask<>(new Callable<Object>() {
+        @Override
+        public Object call() {
+            return "result";
+        }
+    });
+
+    private final DeferredFuture.Operation operation = new DeferredFuture.Operation() {
+        @Override
+        public Future<?> start() {
+            startCount.incrementAndGet();
+            return operationFuture;
+        }
+    };
+
+    @Test
+    public void operationStartsOnExecutor() throws Exception {
+        DeferredFuture future = DeferredFuture.start(executor, operation);
+        assertEquals(0, startCount.get());
+        assertFalse(future.isDone());
+
+        executor.runAll();
+        assertEquals(1, startCount.get());
+        assertFalse(future.isDone());
+        operationFuture.run();
+        assertTrue(future.isDone());
+        assertEquals("result", future.get());
+    }
+
+    @Test
+    public void cancelBeforeStartKeepsOperationFromStarting() {
+        DeferredFuture future = DeferredFuture.start(executor, operation);
+        assertTrue(future.cancel(true));
+        executor.runAll();
+        assertEquals(0, startCount.get());
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void cancelAfterStartCancelsOperation() throws Exception {
+        DeferredFuture future = DeferredFuture.start(executor, operation);
+        executor.runAll();
+        assertTrue(future.cancel(true));
+        assertTrue(operationFuture.isCancelled());
+        assertFalse(future.cancel(true));
+        try {
+            future.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void failureToStartIsReported() throws Exception {
+        DeferredFuture future = DeferredFuture.start(executor, new DeferredFuture.Operation() {
+            @Override
+            public Future<?> start() {
+                throw new IllegalStateException("Not on the UI thread");
+            }
+        });
+        executor.runAll();
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the rules by which EditCompactor collapses edits to one feature.
+ */
+public class EditCompactorTest {
+
+    private final List<EditJournal.Entry> entries = new ArrayList<>();
+
+    private void edit(FeatureEdit edit) {
+        entries.add(new EditJournal.Entry(entries.size() + 1, edit));
+    }
+
+    private static Map<String, Object> attributes(Object... namesAndValues) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
+
+    @Test
+    public void updatesToOneFeatureCollapse() {
+        edit(FeatureEdit.update("sites", 1, attributes("NAME", "A", "STATUS", "open"), "{\"x\":1,\"y\":1}"));
+        edit(FeatureEdit.update("sites", 2, attributes("NAME", "B"), null));
+        edit(FeatureEdit.update("sites", 1, attributes("NAME", "C"), null));
+        edit(FeatureEdit.update("sites", 1, attributes("UNITS", 4), "{\"x\":2,\"y\":2}"));
+
+        List<EditCompactor.CompactedEdit> compacted = EditCompactor.compact(entries);
+        assertEquals(2, compacted.size());
+        FeatureEdit first = compacted.get(0).getEdit();
+        assertEquals(FeatureEdit.Type.UPDATE, first.getType());
+        assertEquals(1, first.getObjectId());
+        assertEquals(attributes("NAME", "C", "STATUS", "open", "UNITS", 4L), first.getAttributes());
+        assertEquals("{\"x\":2,\"y\":2}", first.getGeometryJson());
+        assertEquals(Arrays.asList(1L, 3L, 4L), compacted.get(0).getSequences());
+        assertEquals(2, compacted.get(1).getEdit().getObjectId());
+    }
+
+    @Test
+    public void addAbsorbsUpdates() {
+        edit(FeatureEdit.add("sites", -1, attributes("NAME", "New"), "{\"x\":1,\"y\":1}"));
+        edit(FeatureEdit.update("sites", -1, attributes("NAME", "Renamed"), null));
+
+        List<EditCompactor.CompactedEdit> compacted = EditCompactor.compact(entries);
+        assertEquals(1, compacted.size());
+        FeatureEdit edit = compacted.get(0).getEdit();
+        assertEquals(FeatureEdit.Type.ADD, edit.getType());
+        assertEquals("Renamed", edit.getAttributes().get("NAME"));
+        assertEquals("{\"x\":1,\"y\":1}", edit.getGeometryJson());
+        assertEquals(Arrays.asList(1L, 2L), compacted.get(0).getSequences());
+    }
+
+    @Test
+    public void addThenDeleteCancelsOut() {
+        edit(FeatureEdit.add("sites", -1, attributes("NAME", "New"), null));
+        edit(FeatureEdit.update("sites", -1, attributes("NAME", "Renamed"), null));
+        edit(FeatureEdit.delete("sites", -1));
+        edit(FeatureEdit.update("sites", -1, attributes("NAME", "Too late"), null));
+
+        List<EditCompactor.CompactedEdit> compacted = EditCompactor.compact(entries);
+        assertEquals(1, compacted.size());
+        assertNull(compacted.get(0).getEdit());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), compacted.get(0).getSequences());
+    }
+
+    @Test
+    public void deleteWins() {
+        edit(FeatureEdit.update("sites", 5, attributes("NAME", "A"), null));
+        edit(FeatureEdit.delete("sites", 5));
+        edit(FeatureEdit.update("sites", 5, attributes("NAME", "B"), null));
+
+        List<EditCompactor.CompactedEdit> compacted = EditCompactor.compact(entries);
+        assertEquals(1, compacted.size());
+        assertEquals(FeatureEdit.Type.DELETE, compacted.get(0).getEdit().getType());
+        assertEquals(3, compacted.get(0).getSequences().size());
+    }
+
+    @Test
+    public void sameObjectIdInOtherLayerIsAnotherFeature() {
+        edit(FeatureEdit.update("sites", 5, attributes("NAME", "A"), null));
+        edit(FeatureEdit.update("roads", 5, attributes("NAME", "B"), null));
+        assertEquals(2, EditCompactor.compact(entries).size());
+        assertTrue(EditCompactor.compact(Collections.<EditJournal.Entry>emptyList()).isEmpty());
+    }
+
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that EditJournal keeps edits across reopening and recovers from a torn
+ * or corrupt last record.
+ */
+public class EditJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, Object> attributes(Object... namesAndValues) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
+
+    @Test
+    public void editsSurviveReopening() throws IOException {
+        File file = new File(folder.getRoot(), "edits/edits.journal");
+        EditJournal journal = new EditJournal(file);
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        date.setTimeInMillis(1456790400000L);
+        long localId = journal.nextLocalId();
+        journal.append(FeatureEdit.add("sites", localId,
+                attributes("NAME", "Fire station \"7\"", "UNITS", 3, "AREA", 12.5f, "OPEN", true, "BUILT", date,
+                        "NOTES", null),
+                "{\"x\":1,\"y\":2}"));
+        journal.append(FeatureEdit.update("sites", 42, attributes("NAME", "Renamed"), null));
+        journal.append(FeatureEdit.delete("roads", 7));
+        journal.close();
+
+        journal = new EditJournal(file);
+        List<EditJournal.Entry> pending = journal.getPending();
+        assertEquals(3, pending.size());
+        FeatureEdit add = pending.get(0).getEdit();
+        assertEquals(FeatureEdit.Type.ADD, add.getType());
+        assertEquals(localId, add.getObjectId());
+        assertEquals("{\"x\":1,\"y\":2}", add.getGeometryJson());
+        assertEquals(attributes("NAME", "Fire station \"7\"", "UNITS", 3L, "AREA", 12.5, "OPEN", true,
+                "BUILT", 1456790400000L, "NOTES", null), add.getAttributes());
+        assertEquals(FeatureEdit.Type.UPDATE, pending.get(1).getEdit().getType());
+        assertNull(pending.get(1).getEdit().getGeometryJson());
+        assertEquals(FeatureEdit.Type.DELETE, pending.get(2).getEdit().getType());
+        assertEquals(7, pending.get(2).getEdit().getObjectId());
+        assertTrue(pending.get(0).getSequence() < pending.get(1).getSequence());
+        // Local IDs are not reused
+        assertTrue(journal.nextLocalId() < localId);
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws IOException {
+        File file = folder.newFile("edits.journal");
+        file.delete();
+        EditJournal journal = new EditJournal(file);
+        journal.append(FeatureEdit.update("sites", 1, attributes("NAME", "One"), null));
+        journal.append(FeatureEdit.update("sites", 2, attributes("NAME", "Two"), null));
+        journal.close();
+
+        // Cut the last record short, as if the app had stopped while writing it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long fullLength = raf.length();
+        raf.setLength(fullLength - 3);
+        raf.close();
+
+        journal = new EditJournal(file);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(1, journal.getPending().get(0).getEdit().getObjectId());
+        journal.append(FeatureEdit.update("sites", 3, attributes("NAME", "Three"), null));
+        journal.close();
+
+        journal = new EditJournal(file);
+        assertEquals(2, journal.getPendingCount());
+        assertEquals(3, journal.getPending().get(1).getEdit().getObjectId());
+        journal.close();
+    }
+
+    @Test
+    public void corruptRecordIsDiscarded() throws IOException {
+        File file = new File(folder.getRoot(), "edits.journal");
+        EditJournal journal = new EditJournal(file);
+        journal.append(FeatureEdit.update("sites", 1, attributes("NAME", "One"), null));
+        long firstLength = file.length();
+        journal.append(FeatureEdit.update("sites", 2, attributes("NAME", "Two"), null));
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(firstLength + 12);
+        raf.write(0x55);
+        raf.close();
+
+        journal = new EditJournal(file);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(firstLength, file.length());
+        journal.close();
+    }
+
+    @Test
+    public void acknowledgedEditsAreRemovedAndJournalShrinks() throws IOException {
+        File file = new File(folder.getRoot(), "edits.journal");
+        EditJournal journal = new EditJournal(file);
+        for (int i = 0; i < 100; i++) {
+            journal.append(FeatureEdit.update("sites", i, attributes("NAME", "Feature " + i), null));
+        }
+        long fullLength = file.length();
+        List<EditJournal.Entry> pending = journal.getPending();
+        Long[] sequences = new Long[90];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = pending.get(i).getSequence();
+        }
+        journal.acknowledge(Arrays.asList(sequences), Collections.<Long, Long>emptyMap());
+        assertEquals(10, journal.getPendingCount());
+        assertTrue(file.length() < fullLength / 5);
+        journal.close();
+
+        journal = new EditJournal(file);
+        assertEquals(10, journal.getPendingCount());
+        assertEquals(90, journal.getPending().get(0).getEdit().getObjectId());
+        journal.close();
+    }
+
+    @Test
+    public void journalIsRecoveredFromInterruptedCheckpoint() throws IOException {
+        File file = new File(folder.getRoot(), "edits.journal");
+        File tempFile = new File(folder.getRoot(), "edits.journal.tmp");
+        EditJournal journal = new EditJournal(file);
+        journal.append(FeatureEdit.update("sites", 1, attributes("NAME", "Kept"), null));
+        journal.close();
+
+        // The app stopped after the journal was removed but before the rewritten
+        // journal took its place
+        assertTrue(file.renameTo(tempFile));
+        journal = new EditJournal(file);
+        assertEquals(1, journal.getPendingCount());
+        assertFalse(tempFile.exists());
+        journal.append(FeatureEdit.delete("sites", 2));
+        journal.close();
+
+        // The app stopped while writing the rewritten journal
+        java.nio.file.Files.write(tempFile.toPath(), new byte[] { 'B', 'M' });
+        journal = new EditJournal(file);
+        assertEquals(2, journal.getPendingCount());
+        assertFalse(tempFile.exists());
+        journal.close();
+    }
+
+    @Test
+    public void assignedObjectIdsReplaceLocalIds() throws IOException {
+        File file = new File(folder.getRoot(), "edits.journal");
+        EditJournal journal = new EditJournal(file);
+        long localId = journal.nextLocalId();
+        EditJournal.Entry add = journal.append(FeatureEdit.add("sites", localId, attributes("NAME", "New"), null));
+        EditJournal.Entry update = journal.append(FeatureEdit.update("sites", localId, attributes("NAME", "Newer"), null));
+        Map<Long, Long> assigned = new HashMap<>();
+        assigned.put(add.getSequence(), 501L);
+        journal.acknowledge(Collections.singletonList(add.getSequence()), assigned);
+
+        assertEquals(501, journal.getObjectId("sites", localId));
+        assertEquals(localId, journal.getObjectId("roads", localId));
+        List<EditJournal.Entry> pending = journal.getPending();
+        assertEquals(1, pending.size());
+        assertEquals(update.getSequence(), pending.get(0).getSequence());
+        assertEquals(501, pending.get(0).getEdit().getObjectId());
+        journal.append(FeatureEdit.delete("sites", localId));
+        journal.close();
+
+        journal = new EditJournal(file);
+        assertEquals(501, journal.getObjectId("sites", localId));
+        assertEquals(501, journal.getPending().get(1).getEdit().getObjectId());
+        assertTrue(journal.nextLocalId() < localId);
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsNotAJournal() throws IOException {
+        File file = folder.newFile("other.txt");
+        java.nio.file.Files.write(file.toPath(), "not a journal".getBytes("UTF-8"));
+        new EditJournal(file);
+    }
+
+}
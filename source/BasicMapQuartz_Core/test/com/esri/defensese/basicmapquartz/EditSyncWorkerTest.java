@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests EditSyncWorker and ApplyEditsClient against an in-memory stand-in for a
+ * feature service layer that parses applyEdits requests as a real service would.
+ */
+public class EditSyncWorkerTest {
+
+    private static final String LAYER_URL = "https://example.com/arcgis/rest/services/Sites/FeatureServer/0";
+
+    /**
+     * A feature service layer that keeps its features in memory.
+     */
+    private static class StandInLayer {
+
+        final Map<Long, Map<String, Object>> features = new LinkedHashMap<>();
+        final List<String> forms = new CopyOnWriteArrayList<>();
+        volatile int failuresToInject = 0;
+        long nextObjectId = 1;
+
+        synchronized long insert(Map<String, Object> attributes) {
+            long objectId = nextObjectId++;
+            attributes.put("OBJECTID", objectId);
+            features.put(objectId, attributes);
+            return objectId;
+        }
+
+        synchronized String applyEdits(String form) throws IOException {
+            forms.add(form);
+            if (0 < failuresToInject) {
+                failuresToInject--;
+                throw new IOException("Connection reset");
+            }
+            Map<String, String> parameters = new HashMap<>();
+            for (String parameter : form.split("&")) {
+                int equals = parameter.indexOf('=');
+                parameters.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+            assertEquals("json", parameters.get("f"));
+            assertEquals("false", parameters.get("rollbackOnFailure"));
+            StringBuilder response = new StringBuilder("{\"addResults\":[");
+            if (parameters.containsKey("adds")) {
+                String separator = "";
+                for (Map<String, Object> attributes : readFeatures(parameters.get("adds"))) {
+                    response.append(separator).append("{\"objectId\":").append(insert(attributes))
+                            .append(",\"success\":true}");
+                    separator = ",";
+                }
+            }
+            response.append("],\"updateResults\":[");
+            if (parameters.containsKey("updates")) {
+                String separator = "";
+                for (Map<String, Object> attributes : readFeatures(parameters.get("updates"))) {
+                    long objectId = (Long) attributes.get("OBJECTID");
+                    response.append(separator);
+                    separator = ",";
+                    if (features.containsKey(objectId)) {
+                        features.get(objectId).putAll(attributes);
+                        response.append("{\"objectId\":").append(objectId).append(",\"success\":true}");
+                    } else {
+                        response.append("{\"objectId\":").append(objectId).append(",\"success\":false,")
+                                .append("\"error\":{\"code\":1019,\"description\":\"Feature does not exist.\"}}");
+                    }
+                }
+            }
+            response.append("],\"deleteResults\":[");
+            if (parameters.containsKey("deletes")) {
+                String separator = "";
+                for (String id : parameters.get("deletes").split(",")) {
+                    long objectId = Long.parseLong(id);
+                    response.append(separator).append("{\"objectId\":").append(objectId)
+                            .append(",\"success\":").append(null != features.remove(objectId)).append('}');
+                    separator = ",";
+                }
+            }
+            return response.append("]}").toString();
+        }
+
+        private static List<Map<String, Object>> readFeatures(String json) throws IOException {
+            List<Map<String, Object>> features = new ArrayList<>();
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Map<String, Object> attributes = new LinkedHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("attributes".equals(reader.nextName())) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            switch (reader.peek()) {
+                            case NUMBER:
+                                attributes.put(name, reader.nextLong());
+                                break;
+                            case NULL:
+                                reader.nextNull();
+                                attributes.put(name, null);
+                                break;
+                            case BOOLEAN:
+                                attributes.put(name, reader.nextBoolean());
+                                break;
+                            default:
+                                attributes.put(name, reader.nextString());
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                features.add(attributes);
+            }
+            reader.endArray();
+            return features;
+        }
+
+    }
+
+    /**
+     * A listener that records what it is told.
+     */
+    private static class RecordingListener implements EditSyncWorker.Listener {
+
+        final List<String> synced = new CopyOnWriteArrayList<>();
+        final List<String> rejected = new CopyOnWriteArrayList<>();
+        final List<Long> retryDelays = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void editsSynced(String layerId, int editCount) {
+            synced.add(layerId + ":" + editCount);
+        }
+
+        @Override
+        public void editRejected(FeatureEdit edit, int errorCode, String description) {
+            rejected.add(edit + " " + errorCode);
+        }
+
+        @Override
+        public void syncFailed(Throwable error, long retryMillis) {
+            retryDelays.add(retryMillis);
+        }
+
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StandInLayer layer = new StandInLayer();
+    private final RecordingListener listener = new RecordingListener();
+    private File journalFile;
+    private EditJournal journal;
+    private EditSyncWorker worker;
+
+    private EditSyncWorker createWorker() {
+        EditSyncWorker newWorker = new EditSyncWorker(journal) {
+            @Override
+            ApplyEditsClient createClient(String layerUrl) {
+                assertEquals(LAYER_URL, layerUrl);
+                return new ApplyEditsClient(layerUrl) {
+                    @Override
+                    String get(String url) {
+                        return "{\"id\":0,\"name\":\"Sites\",\"objectIdField\":\"OBJECTID\"}";
+                    }
+
+                    @Override
+                    String post(String url, String form) throws IOException {
+                        assertEquals(LAYER_URL + "/applyEdits", url);
+                        return layer.applyEdits(form);
+                    }
+                };
+            }
+        };
+        newWorker.setBatchDelayMillis(50);
+        newWorker.setRetryMillis(50);
+        newWorker.addListener(listener);
+        return newWorker;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = new File(folder.getRoot(), "edits.journal");
+        journal = new EditJournal(journalFile);
+        worker = createWorker();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        worker.shutdown();
+        journal.close();
+    }
+
+    private void awaitSynced() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (0 < worker.getPendingCount() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, worker.getPendingCount());
+    }
+
+    /**
+     * Waits for the listener to be told that edits were synced, which happens just
+     * after the worker has acknowledged them in the journal.
+     */
+    private void awaitSyncedNotification() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (listener.synced.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Map<String, Object> attributes(Object... namesAndValues) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
+
+    @Test
+    public void burstOfEditsIsCompactedIntoOneRequest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            layer.insert(attributes("NAME", "Site " + i, "VISITS", 0L));
+        }
+        worker.setLayerUrl("sites", LAYER_URL);
+        // Hold the burst back so that it is sent as one batch however slow the machine is
+        worker.pause();
+        for (int visit = 1; visit <= 20; visit++) {
+            for (long objectId = 1; objectId <= 5; objectId++) {
+                worker.update("sites", objectId, attributes("VISITS", visit), null);
+            }
+        }
+        worker.resume();
+        awaitSynced();
+
+        String summary = String.format("%d edits sent as %d edits in %d requests",
+                worker.getJournaledCount(), worker.getSentCount(), worker.getRequestCount());
+        assertEquals(summary, 100, worker.getJournaledCount());
+        assertEquals(summary, 5, worker.getSentCount());
+        assertEquals(summary, 1, worker.getRequestCount());
+        assertEquals(1, layer.forms.size());
+        for (long objectId = 1; objectId <= 5; objectId++) {
+            assertEquals(20L, layer.features.get(objectId).get("VISITS"));
+        }
+        awaitSyncedNotification();
+        assertEquals(Collections.singletonList("sites:5"), listener.synced);
+    }
+
+    @Test
+    public void editsAreSentInBatches() throws Exception {
+        worker.setMaxBatchSize(10);
+        worker.setLayerUrl("sites", LAYER_URL);
+        worker.pause();
+        for (int i = 0; i < 25; i++) {
+            worker.add("sites", attributes("NAME", "Site " + i), "{\"x\":" + i + ",\"y\":0}");
+        }
+        worker.resume();
+        awaitSynced();
+
+        assertEquals(3, worker.getRequestCount());
+        assertEquals(25, layer.features.size());
+        assertTrue(layer.forms.get(0).contains("adds="));
+        assertTrue(layer.forms.get(0).contains(java.net.URLEncoder.encode("\"geometry\":{\"x\":0,\"y\":0}", "UTF-8")));
+    }
+
+    @Test
+    public void addedFeatureIsEditedWithAssignedObjectId() throws Exception {
+        worker.setLayerUrl("sites", LAYER_URL);
+        long localId = worker.add("sites", attributes("NAME", "New", "VISITS", 1), null);
+        worker.update("sites", localId, attributes("VISITS", 2), null);
+        awaitSynced();
+        long objectId = worker.getObjectId("sites", localId);
+        assertTrue(0 < objectId);
+        assertEquals(1, layer.forms.size());
+        assertEquals(2L, layer.features.get(objectId).get("VISITS"));
+
+        // Later edits with the local ID go to the assigned object ID
+        worker.update("sites", localId, attributes("VISITS", 3), null);
+        awaitSynced();
+        assertEquals(3L, layer.features.get(objectId).get("VISITS"));
+        worker.delete("sites", localId);
+        awaitSynced();
+        assertFalse(layer.features.containsKey(objectId));
+    }
+
+    @Test
+    public void failedSyncIsRetriedWithBackoff() throws Exception {
+        layer.insert(attributes("NAME", "Site"));
+        layer.failuresToInject = 3;
+        worker.setLayerUrl("sites", LAYER_URL);
+        worker.update("sites", 1, attributes("NAME", "Renamed"), null);
+        awaitSynced();
+
+        assertEquals(4, layer.forms.size());
+        assertEquals(3, listener.retryDelays.size());
+        assertTrue(listener.retryDelays.get(2) > listener.retryDelays.get(0));
+        assertEquals("Renamed", layer.features.get(1L).get("NAME"));
+    }
+
+    @Test
+    public void conflictIsReportedAndNotRetried() throws Exception {
+        layer.insert(attributes("NAME", "Site"));
+        worker.setLayerUrl("sites", LAYER_URL);
+        worker.pause();
+        worker.update("sites", 1, attributes("NAME", "Renamed"), null);
+        worker.update("sites", 99, attributes("NAME", "Deleted by someone else"), null);
+        worker.resume();
+        awaitSynced();
+
+        assertEquals(Collections.singletonList("UPDATE sites/99 1019"), listener.rejected);
+        assertEquals(1, worker.getRejectedCount());
+        awaitSyncedNotification();
+        assertEquals(Collections.singletonList("sites:1"), listener.synced);
+        assertEquals("Renamed", layer.features.get(1L).get("NAME"));
+    }
+
+    @Test
+    public void editsWaitForLayerUrlAndSurviveRestart() throws Exception {
+        layer.insert(attributes("NAME", "Site"));
+        worker.update("sites", 1, attributes("NAME", "Offline edit"), null);
+        Thread.sleep(200);
+        assertEquals(0, layer.forms.size());
+        assertEquals(1, worker.getPendingCount());
+
+        // The app restarts
+        worker.shutdown();
+        journal.close();
+        journal = new EditJournal(journalFile);
+        worker = createWorker();
+        worker.setLayerUrl("sites", LAYER_URL);
+        awaitSynced();
+        assertEquals("Offline edit", layer.features.get(1L).get("NAME"));
+    }
+
+    @Test
+    public void addThenDeleteSendsNothing() throws Exception {
+        worker.setLayerUrl("sites", LAYER_URL);
+        worker.pause();
+        long localId = worker.add("sites", attributes("NAME", "Mistake"), null);
+        worker.delete("sites", localId);
+        worker.resume();
+        awaitSynced();
+        assertEquals(0, worker.getRequestCount());
+        assertTrue(layer.features.isEmpty());
+    }
+
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests EncryptedCredentialStore persistence, encryption and eviction.
+ */
+public class EncryptedCredentialStoreTest {
+
+    private static final String REALM_A = "https://a.example.com";
+    private static final String REALM_B = "https://b.example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File storeFile() {
+        return new File(folder.getRoot(), "credentials");
+    }
+
+    private File keyFile() {
+        return new File(folder.getRoot(), "credentials.key");
+    }
+
+    private EncryptedCredentialStore openStore() throws Exception {
+        return new EncryptedCredentialStore(storeFile(), keyFile());
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        EncryptedCredentialStore store = openStore();
+        store.put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", REALM_A + "/arcgis/rest/services",
+                "token-a", 1234567890123L));
+        store.put(REALM_B, new EncryptedCredentialStore.Entry("bob", "hunter2", null, null, 0));
+
+        EncryptedCredentialStore reopened = openStore();
+        assertEquals(2, reopened.getRealms().size());
+        EncryptedCredentialStore.Entry a = reopened.get(REALM_A);
+        assertEquals("alice", a.getUsername());
+        assertEquals("secret", a.getPassword());
+        assertEquals("token-a", a.getToken());
+        assertEquals(1234567890123L, a.getTokenExpiration());
+        EncryptedCredentialStore.Entry b = reopened.get(REALM_B);
+        assertEquals("bob", b.getUsername());
+        assertNull(b.getToken());
+        assertNull(b.getResourceUrl());
+    }
+
+    @Test
+    public void fileDoesNotContainPlainText() throws Exception {
+        openStore().put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", null, "token-a", 1));
+        byte[] bytes = new byte[(int) storeFile().length()];
+        RandomAccessFile file = new RandomAccessFile(storeFile(), "r");
+        try {
+            file.readFully(bytes);
+        } finally {
+            file.close();
+        }
+        String contents = new String(bytes, "ISO-8859-1");
+        assertFalse(contents.contains("alice"));
+        assertFalse(contents.contains("secret"));
+        assertFalse(contents.contains("token-a"));
+    }
+
+    @Test
+    public void filesAreOwnerOnlyAndStaleTempFileIsReplaced() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File tempFile = new File(storeFile().getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        out.write("left by an interrupted save".getBytes("UTF-8"));
+        out.close();
+        Files.setPosixFilePermissions(tempFile.toPath(), EnumSet.allOf(PosixFilePermission.class));
+
+        EncryptedCredentialStore store = openStore();
+        store.put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", null, null, 0));
+        store.put(REALM_B, new EncryptedCredentialStore.Entry("bob", "hunter2", null, null, 0));
+
+        EnumSet<PosixFilePermission> ownerOnly
+                = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(storeFile().toPath()));
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(keyFile().toPath()));
+        assertFalse(tempFile.exists());
+        assertEquals("bob", openStore().get(REALM_B).getUsername());
+    }
+
+    @Test
+    public void storeIsRecoveredFromTempFileOfInterruptedSave() throws Exception {
+        openStore().put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", null, null, 0));
+        // A save that deleted the store and stopped before renaming the new one over it
+        assertTrue(storeFile().renameTo(new File(storeFile().getPath() + ".tmp")));
+
+        assertEquals("alice", openStore().get(REALM_A).getUsername());
+        assertTrue(storeFile().exists());
+    }
+
+    @Test
+    public void tamperedFileIsIgnored() throws Exception {
+        openStore().put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", null, null, 0));
+        RandomAccessFile file = new RandomAccessFile(storeFile(), "rw");
+        try {
+            file.seek(20);
+            int b = file.read();
+            file.seek(20);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        assertTrue(openStore().getRealms().isEmpty());
+    }
+
+    @Test
+    public void removeEvictsOnlyOneRealm() throws Exception {
+        EncryptedCredentialStore store = openStore();
+        store.put(REALM_A, new EncryptedCredentialStore.Entry("alice", "secret", null, null, 0));
+        store.put(REALM_B, new EncryptedCredentialStore.Entry("bob", "hunter2", null, null, 0));
+        assertTrue(store.remove(REALM_A));
+        assertFalse(store.remove(REALM_A));
+
+        EncryptedCredentialStore reopened = openStore();
+        assertNull(reopened.get(REALM_A));
+        assertEquals("bob", reopened.get(REALM_B).getUsername());
+    }
+
+    @Test
+    public void tokenValidityHonorsMargin() {
+        EncryptedCredentialStore.Entry entry = new EncryptedCredentialStore.Entry("alice", "secret", null, "t", 10000);
+        assertTrue(entry.hasValidToken(5000, 1000));
+        assertFalse(entry.hasValidToken(9500, 1000));
+        assertFalse(entry.withToken(null, 0).hasValidToken(0, 0));
+    }
+
+}
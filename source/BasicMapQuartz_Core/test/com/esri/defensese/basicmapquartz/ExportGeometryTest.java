@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that ExportGeometry reads Esri JSON and writes GeoJSON and WKT.
+ */
+public class ExportGeometryTest {
+
+    private static String geoJson(String esriJson) throws IOException {
+        StringBuilder out = new StringBuilder();
+        ExportGeometry.fromEsriJson(esriJson).appendGeoJson(out);
+        return out.toString();
+    }
+
+    private static String wkt(String esriJson) throws IOException {
+        StringBuilder out = new StringBuilder();
+        ExportGeometry.fromEsriJson(esriJson).appendWkt(out);
+        return out.toString();
+    }
+
+    @Test
+    public void readsPoints() throws IOException {
+        String json = "{\"x\":-77.5,\"y\":38,\"z\":12,\"spatialReference\":{\"wkid\":4326}}";
+        assertEquals("{\"type\":\"Point\",\"coordinates\":[-77.5,38]}", geoJson(json));
+        assertEquals("POINT (-77.5 38)", wkt(json));
+        assertEquals("MULTIPOINT ((1 2), (3 4))", wkt("{\"points\":[[1,2],[3,4]]}"));
+        assertNull(ExportGeometry.fromEsriJson("{\"x\":\"NaN\",\"y\":\"NaN\"}"));
+        assertNull(ExportGeometry.fromEsriJson("{\"x\":null}"));
+        assertNull(ExportGeometry.fromEsriJson(null));
+    }
+
+    @Test
+    public void readsPolylines() throws IOException {
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":[[0,0],[1,1]]}",
+                geoJson("{\"paths\":[[[0,0,5],[1,1,5]]],\"hasZ\":true}"));
+        assertEquals("MULTILINESTRING ((0 0, 1 1), (2 2, 3 3))", wkt("{\"paths\":[[[0,0],[1,1]],[[2,2],[3,3]]]}"));
+    }
+
+    @Test
+    public void groupsHolesWithOuterRings() throws IOException {
+        // Clockwise outer ring, counterclockwise hole, then a second clockwise outer ring
+        String json = "{\"rings\":["
+                + "[[0,0],[0,10],[10,10],[10,0],[0,0]],"
+                + "[[2,2],[4,2],[4,4],[2,4],[2,2]],"
+                + "[[20,0],[20,1],[21,1],[21,0],[20,0]]]}";
+        assertEquals("MULTIPOLYGON (((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 4 2, 2 2)), "
+                + "((20 0, 21 0, 21 1, 20 1, 20 0)))", wkt(json));
+        assertTrue(geoJson(json).startsWith("{\"type\":\"MultiPolygon\",\"coordinates\":[[[[0,0],[10,0],"));
+        assertTrue(0 < ExportGeometry.signedArea(new double[] { 0, 0, 0, 1, 1, 1, 1, 0, 0, 0 }));
+    }
+
+    @Test
+    public void readsEnvelopesAsPolygons() throws IOException {
+        assertEquals("POLYGON ((0 0, 2 0, 2 1, 0 1, 0 0))", wkt("{\"xmin\":0,\"ymin\":0,\"xmax\":2,\"ymax\":1}"));
+    }
+
+    @Test
+    public void writesNumbersWithoutExponents() {
+        StringBuilder out = new StringBuilder();
+        ExportGeometry.appendNumber(out, 12345678.9);
+        out.append(' ');
+        ExportGeometry.appendNumber(out, 0.00001);
+        out.append(' ');
+        ExportGeometry.appendNumber(out, Double.NaN);
+        assertEquals("12345678.9 0.00001 0", out.toString());
+    }
+
+}
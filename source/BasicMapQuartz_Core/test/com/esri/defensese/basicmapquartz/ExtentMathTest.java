@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ExtentMath and StatusText.
+ */
+public class ExtentMathTest {
+
+    @Test
+    public void expandAddsMarginOnEachSide() {
+        double[] extent = { 10, 20, 30, 60 };
+        assertSame(extent, ExtentMath.expand(extent, ExtentMath.ZOOM_MARGIN));
+        assertArrayEquals(new double[] { 0, 0, 40, 80 }, extent, 0);
+
+        ExtentMath.expand(extent, -0.25);
+        assertArrayEquals(new double[] { 10, 20, 30, 60 }, extent, 0);
+    }
+
+    @Test
+    public void expandKeepsPointExtents() {
+        double[] extent = { 5, 5, 5, 5 };
+        assertArrayEquals(new double[] { 5, 5, 5, 5 }, ExtentMath.expand(extent, ExtentMath.ZOOM_MARGIN), 0);
+    }
+
+    @Test
+    public void expandToMinimumGrowsSmallExtentsOnly() {
+        double[] extent = { 5, 5, 5, 5 };
+        assertSame(extent, ExtentMath.expandToMinimum(extent, 4, 2));
+        assertArrayEquals(new double[] { 3, 4, 7, 6 }, extent, 0);
+
+        ExtentMath.expandToMinimum(extent, 2, 4);
+        assertArrayEquals(new double[] { 3, 3, 7, 7 }, extent, 0);
+    }
+
+    @Test
+    public void intersectsIncludesTouchingExtents() {
+        double[] extent = { 0, 0, 10, 10 };
+        assertTrue(ExtentMath.intersects(extent, new double[] { 5, 5, 15, 15 }));
+        assertTrue(ExtentMath.intersects(extent, new double[] { 10, 10, 20, 20 }));
+        assertFalse(ExtentMath.intersects(extent, new double[] { 10.5, 0, 20, 10 }));
+    }
+
+    private enum LoadStatus {
+        LOADED
+    }
+
+    @Test
+    public void statusText() {
+        assertEquals("SR: 3857", StatusText.spatialReference(3857));
+        assertEquals("SR: null", StatusText.spatialReference(null));
+        assertEquals("Layer: LOADED", StatusText.layerStatus(LoadStatus.LOADED));
+        assertTrue(StatusText.isTokenError(new Exception("Invalid TOKEN.")));
+        assertFalse(StatusText.isTokenError(new Exception("Service not found")));
+        assertFalse(StatusText.isTokenError(new Exception()));
+        assertFalse(StatusText.isTokenError(null));
+    }
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the cache key, generate-and-rename and sync time of FeatureCacheFiles.
+ */
+public class FeatureCacheFilesTest {
+
+    private static final String LAYER_URL = "https://example.com/arcgis/rest/services/Sites/FeatureServer/0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void cacheKeyDependsOnUrlAndDefinitionExpression() {
+        String key = FeatureCacheFiles.getCacheKey(LAYER_URL, null);
+        assertTrue(key, key.matches("[0-9a-f]{40}"));
+        assertEquals(key, FeatureCacheFiles.getCacheKey(LAYER_URL, null));
+        assertNotEquals(key, FeatureCacheFiles.getCacheKey(LAYER_URL, "STATUS = 1"));
+        assertNotEquals(key, FeatureCacheFiles.getCacheKey(LAYER_URL.replace("/0", "/1"), null));
+        // The separator keeps the URL and expression from running together
+        assertNotEquals(FeatureCacheFiles.getCacheKey("a", "b"), FeatureCacheFiles.getCacheKey("ab", null));
+    }
+
+    @Test
+    public void generatedGeodatabaseIsRenamedIntoPlace() throws IOException {
+        File directory = new File(folder.getRoot(), "featureCache");
+        FeatureCacheFiles files = new FeatureCacheFiles(LAYER_URL, "STATUS = 1", directory);
+        assertTrue(directory.isDirectory());
+        assertFalse(files.exists());
+        assertEquals(0, files.getLastSyncTime());
+
+        File newFile = files.prepareNewGeodatabase();
+        assertNotEquals(files.getGeodatabaseFile(), newFile);
+        write(newFile, "geodatabase");
+        assertFalse("Partial download is not in the cache", files.exists());
+
+        assertTrue(files.commitNewGeodatabase(1234));
+        assertTrue(files.exists());
+        assertFalse(newFile.exists());
+        assertEquals(1234, files.getLastSyncTime());
+        assertEquals(1234, new FeatureCacheFiles(LAYER_URL, "STATUS = 1", directory).getLastSyncTime());
+        assertEquals(0, new FeatureCacheFiles(LAYER_URL, null, directory).getLastSyncTime());
+    }
+
+    @Test
+    public void interruptedDownloadIsDiscarded() throws IOException {
+        FeatureCacheFiles files = new FeatureCacheFiles(LAYER_URL, null, folder.getRoot());
+        File newFile = files.prepareNewGeodatabase();
+        write(newFile, "partial");
+
+        assertEquals(newFile, files.prepareNewGeodatabase());
+        assertFalse(newFile.exists());
+        assertFalse(files.commitNewGeodatabase(1234));
+        assertFalse(files.exists());
+    }
+
+    @Test
+    public void syncTimeIsRecordedAndDeleted() throws IOException {
+        FeatureCacheFiles files = new FeatureCacheFiles(LAYER_URL, null, folder.getRoot());
+        write(files.getGeodatabaseFile(), "geodatabase");
+        assertEquals(0, files.getLastSyncTime());
+        files.recordSync(5678);
+        assertEquals(5678, files.getLastSyncTime());
+
+        files.delete();
+        assertFalse(files.exists());
+        assertEquals(0, files.getLastSyncTime());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests when FeatureCacheUpdater reads a layer from its service or its
+ * geodatabase, and when it generates and syncs the geodatabase, against a stub
+ * service whose steps succeed or fail as each test chooses.
+ */
+public class FeatureCacheUpdaterTest {
+
+    private static final String LAYER_URL = "https://example.com/arcgis/rest/services/Sites/FeatureServer/0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    /**
+     * A service that records each request and answers it at once, except that a
+     * layer read from the service loads when the test calls finishLoading, after
+     * the updater has reported it. The stub writes the geodatabase it generates as
+     * the real service would.
+     */
+    private static class StubService implements FeatureCacheUpdater.Backend {
+
+        final List<String> requests = new ArrayList<>();
+        boolean layerLoads = true;
+        boolean geodatabaseReadable = true;
+        boolean generateSucceeds = true;
+        boolean syncSucceeds = true;
+        private FeatureCacheUpdater.Callback pendingLoad = null;
+
+        private static void answer(FeatureCacheUpdater.Callback callback, boolean succeeds, String step) {
+            if (succeeds) {
+                callback.succeeded();
+            } else {
+                callback.failed(new IOException(step + " failed"));
+            }
+        }
+
+        @Override
+        public void openServiceLayer(FeatureCacheUpdater.Callback loaded) {
+            requests.add("openService");
+            pendingLoad = loaded;
+        }
+
+        void finishLoading() {
+            assertNotNull("No layer is loading", pendingLoad);
+            FeatureCacheUpdater.Callback loaded = pendingLoad;
+            pendingLoad = null;
+            answer(loaded, layerLoads, "load");
+        }
+
+        @Override
+        public void openGeodatabase(File geodatabaseFile, FeatureCacheUpdater.Callback opened) {
+            assertTrue(geodatabaseFile.exists());
+            requests.add("openGeodatabase");
+            answer(opened, geodatabaseReadable, "open");
+        }
+
+        @Override
+        public void generateGeodatabase(File newGeodatabaseFile, FeatureCacheUpdater.Callback generated) {
+            requests.add("generate");
+            if (generateSucceeds) {
+                try {
+                    FileOutputStream out = new FileOutputStream(newGeodatabaseFile);
+                    out.write(new byte[] { 1, 2, 3 });
+                    out.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            answer(generated, generateSucceeds, "generate");
+        }
+
+        @Override
+        public void syncGeodatabase(FeatureCacheUpdater.Callback synced) {
+            requests.add("sync");
+            answer(synced, syncSucceeds, "sync");
+        }
+
+    }
+
+    /**
+     * Records what the updater reports, in order.
+     */
+    private static class RecordingListener implements FeatureCacheUpdater.Listener {
+
+        final List<String> events = new ArrayList<>();
+        long syncTime = 0;
+
+        @Override
+        public void layerOpened(boolean fromCache) {
+            events.add(fromCache ? "fromCache" : "fromService");
+        }
+
+        @Override
+        public void cacheUpdated(long syncTime) {
+            this.syncTime = syncTime;
+            events.add("updated");
+        }
+
+        @Override
+        public void cacheUpdateFailed(Throwable error) {
+            events.add("failed");
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "featureCache");
+    }
+
+    private FeatureCacheFiles files() {
+        return new FeatureCacheFiles(LAYER_URL, "STATUS = 1", directory);
+    }
+
+    private static List<String> list(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    /**
+     * Opens the layer for the first time, generating its geodatabase.
+     */
+    private void fillCache() {
+        StubService service = new StubService();
+        new FeatureCacheUpdater(files(), service).open(new RecordingListener());
+        service.finishLoading();
+        assertTrue(files().exists());
+    }
+
+    @Test
+    public void firstOpenReadsServiceAndGeneratesGeodatabase() {
+        StubService service = new StubService();
+        RecordingListener listener = new RecordingListener();
+        FeatureCacheUpdater updater = new FeatureCacheUpdater(files(), service);
+
+        updater.open(listener);
+        assertEquals(list("fromService"), listener.events);
+        assertFalse(files().exists());
+        service.finishLoading();
+
+        assertEquals(list("openService", "generate"), service.requests);
+        assertEquals(list("fromService", "updated"), listener.events);
+        assertTrue(files().exists());
+        assertEquals(listener.syncTime, files().getLastSyncTime());
+        assertFalse("A layer read from its service is not synced", updater.refresh(listener));
+    }
+
+    @Test
+    public void laterOpenReadsGeodatabaseAndSyncsOnlyEdits() {
+        fillCache();
+        StubService service = new StubService();
+        RecordingListener listener = new RecordingListener();
+        FeatureCacheUpdater updater = new FeatureCacheUpdater(files(), service);
+
+        updater.open(listener);
+        assertEquals(list("openGeodatabase", "sync"), service.requests);
+        assertEquals(list("fromCache", "updated"), listener.events);
+        assertEquals(listener.syncTime, files().getLastSyncTime());
+
+        assertTrue(updater.refresh(listener));
+        assertEquals(list("openGeodatabase", "sync", "sync"), service.requests);
+        assertEquals(list("fromCache", "updated", "updated"), listener.events);
+    }
+
+    @Test
+    public void failedSyncKeepsGeodatabaseAndSyncTime() {
+        fillCache();
+        long lastSyncTime = files().getLastSyncTime();
+        StubService service = new StubService();
+        service.syncSucceeds = false;
+        RecordingListener listener = new RecordingListener();
+
+        new FeatureCacheUpdater(files(), service).open(listener);
+
+        assertEquals(list("fromCache", "failed"), listener.events);
+        assertTrue(files().exists());
+        assertEquals(lastSyncTime, files().getLastSyncTime());
+    }
+
+    @Test
+    public void unreadableGeodatabaseIsDiscardedAndGeneratedAgain() {
+        fillCache();
+        StubService service = new StubService();
+        service.geodatabaseReadable = false;
+        RecordingListener listener = new RecordingListener();
+
+        new FeatureCacheUpdater(files(), service).open(listener);
+        service.finishLoading();
+
+        assertEquals(list("openGeodatabase", "openService", "generate"), service.requests);
+        assertEquals(list("fromService", "updated"), listener.events);
+        assertTrue(files().exists());
+    }
+
+    @Test
+    public void serviceWithoutSyncLeavesNoCache() {
+        StubService service = new StubService();
+        service.generateSucceeds = false;
+        RecordingListener listener = new RecordingListener();
+
+        new FeatureCacheUpdater(files(), service).open(listener);
+        service.finishLoading();
+
+        assertEquals(list("fromService"), listener.events);
+        assertFalse(files().exists());
+        assertEquals(0, files().getLastSyncTime());
+    }
+
+    @Test
+    public void layerThatFailsToLoadIsNotCached() {
+        StubService service = new StubService();
+        service.layerLoads = false;
+        RecordingListener listener = new RecordingListener();
+
+        new FeatureCacheUpdater(files(), service).open(listener);
+        service.finishLoading();
+
+        assertEquals(list("openService"), service.requests);
+        assertEquals(list("fromService"), listener.events);
+        assertFalse(files().exists());
+    }
+
+}
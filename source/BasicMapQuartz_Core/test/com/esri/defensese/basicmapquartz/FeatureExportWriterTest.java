@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the GeoJSON, CSV and binary output of FeatureExportWriter.
+ */
+public class FeatureExportWriterTest {
+
+    private static final List<String> FIELDS = Arrays.asList("OBJECTID", "NAME", "STAFF", "OPENED");
+
+    private static Map<String, Object> attributes(long id, String name, Double staff) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("OBJECTID", id);
+        attributes.put("NAME", name);
+        attributes.put("STAFF", staff);
+        Calendar opened = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        opened.clear();
+        opened.set(2016, Calendar.MARCH, 1);
+        attributes.put("OPENED", opened);
+        attributes.put("IGNORED", "x");
+        return attributes;
+    }
+
+    private static byte[] export(FeatureExportWriter.Format format, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FeatureExportWriter writer = FeatureExportWriter.create(format, Channels.newChannel(bytes), FIELDS);
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.write(attributes(i + 1, 0 == i ? "Station \"1\", Main" : "Station " + (i + 1),
+                        0 == i ? null : 2.5), new ExportGeometry(ExportGeometry.Type.POINT, new double[][] { { i, 2 } }));
+            }
+            assertEquals(count, writer.getFeatureCount());
+        } finally {
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void writesGeoJson() throws IOException {
+        String json = new String(export(FeatureExportWriter.Format.GEOJSON, 2), "UTF-8");
+        assertEquals("{\"type\":\"FeatureCollection\",\"features\":[\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[0,2]},\"properties\":"
+                + "{\"OBJECTID\":1,\"NAME\":\"Station \\\"1\\\", Main\",\"STAFF\":null,"
+                + "\"OPENED\":\"2016-03-01T00:00:00.000Z\"}},\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[1,2]},\"properties\":"
+                + "{\"OBJECTID\":2,\"NAME\":\"Station 2\",\"STAFF\":2.5,\"OPENED\":\"2016-03-01T00:00:00.000Z\"}}\n"
+                + "]}\n", json);
+    }
+
+    @Test
+    public void writesCsv() throws IOException {
+        String csv = new String(export(FeatureExportWriter.Format.CSV, 2), "UTF-8");
+        assertEquals("OBJECTID,NAME,STAFF,OPENED,WKT\r\n"
+                + "1,\"Station \"\"1\"\", Main\",,2016-03-01T00:00:00.000Z,\"POINT (0 2)\"\r\n"
+                + "2,Station 2,2.5,2016-03-01T00:00:00.000Z,\"POINT (1 2)\"\r\n", csv);
+    }
+
+    @Test
+    public void writesBinary() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                export(FeatureExportWriter.Format.BINARY, 2)));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertEquals("BMQF", new String(magic, "US-ASCII"));
+        assertEquals(1, in.readByte());
+        assertEquals(4, in.readInt());
+        for (String field : FIELDS) {
+            byte[] name = new byte[in.readShort()];
+            in.readFully(name);
+            assertEquals(field, new String(name, "UTF-8"));
+        }
+        for (int i = 0; i < 2; i++) {
+            int length = in.readInt();
+            assertEquals(1, in.readByte());
+            assertEquals(i + 1, in.readLong());
+            assertEquals(3, in.readByte());
+            in.skipBytes(in.readInt());
+            if (0 == i) {
+                assertEquals(0, in.readByte());
+            } else {
+                assertEquals(2, in.readByte());
+                assertEquals(2.5, in.readDouble(), 0);
+            }
+            assertEquals(4, in.readByte());
+            in.readLong();
+            assertEquals(ExportGeometry.Type.POINT.getCode(), in.readByte());
+            assertEquals(1, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(i, in.readDouble(), 0);
+            assertEquals(2, in.readDouble(), 0);
+            assertTrue(0 < length);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void streamsMoreThanOneBuffer() throws IOException {
+        int count = 5000;
+        String csv = new String(export(FeatureExportWriter.Format.CSV, count), "UTF-8");
+        assertTrue(csv.length() > FeatureExportWriter.BUFFER_SIZE);
+        assertEquals(count + 1, csv.split("\r\n").length);
+        assertTrue(csv.endsWith("5000,Station 5000,2.5,2016-03-01T00:00:00.000Z,\"POINT (4999 2)\"\r\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWritesAfterClose() throws IOException {
+        FeatureExportWriter writer = FeatureExportWriter.create(FeatureExportWriter.Format.CSV,
+                Channels.newChannel(new ByteArrayOutputStream()), FIELDS);
+        writer.close();
+        writer.write(attributes(1, "a", 1.0), null);
+    }
+
+}
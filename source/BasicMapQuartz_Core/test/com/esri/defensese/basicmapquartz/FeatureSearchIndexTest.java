@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tokenizing, prefix matching and incremental updates of
+ * FeatureSearchIndex.
+ */
+public class FeatureSearchIndexTest {
+
+    private static final List<String> NO_VALUES = Collections.emptyList();
+
+    private static double[] point(double x, double y) {
+        return new double[] { x, y, x, y };
+    }
+
+    private static List<String> labels(List<FeatureSearchIndex.Hit> hits) {
+        List<String> labels = new ArrayList<>();
+        for (FeatureSearchIndex.Hit hit : hits) {
+            labels.add(hit.getLabel());
+        }
+        return labels;
+    }
+
+    private static FeatureSearchIndex createSites() {
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        index.put("sites", 1, "San Diego", Arrays.asList("Harbor", null), point(1, 1));
+        index.put("sites", 2, "Santa Fe", NO_VALUES, point(2, 2));
+        index.put("sites", 3, "Mesa Verde", NO_VALUES, point(3, 3));
+        index.put("sites", 4, "S\u00e3o Paulo", NO_VALUES, point(4, 4));
+        index.put("sites", 5, "Old San Juan", NO_VALUES, point(5, 5));
+        return index;
+    }
+
+    @Test
+    public void tokenizeLowerCasesAndRemovesAccents() {
+        assertEquals(Arrays.asList("sao", "paulo", "sp", "01310"), FeatureSearchIndex.tokenize("S\u00e3o Paulo (SP) 01310"));
+        assertEquals(Arrays.asList("o", "hare", "st", "2"), FeatureSearchIndex.tokenize("O'Hare St. #2"));
+        assertEquals(Collections.emptyList(), FeatureSearchIndex.tokenize(" - "));
+        assertEquals(Collections.emptyList(), FeatureSearchIndex.tokenize(null));
+    }
+
+    @Test
+    public void prefixMatchesStartOfAnyWord() {
+        FeatureSearchIndex index = createSites();
+        assertEquals(Arrays.asList("San Diego", "Old San Juan", "Santa Fe", "S\u00e3o Paulo"),
+                labels(index.search("sa")));
+        assertEquals(Arrays.asList("S\u00e3o Paulo"), labels(index.search("SAO")));
+        assertEquals(Arrays.asList("Mesa Verde"), labels(index.search("ver")));
+        assertEquals(Arrays.asList("San Diego"), labels(index.search("harb")));
+        assertTrue(index.search("esa").isEmpty());
+        assertTrue(index.search("  ").isEmpty());
+    }
+
+    @Test
+    public void everyQueryWordMustMatch() {
+        FeatureSearchIndex index = createSites();
+        assertEquals(Arrays.asList("Old San Juan"), labels(index.search("san j")));
+        assertEquals(Arrays.asList("Old San Juan"), labels(index.search("ju sa")));
+        assertEquals(Arrays.asList("Santa Fe"), labels(index.search("san fe")));
+        assertTrue(index.search("san verde").isEmpty());
+    }
+
+    @Test
+    public void featureMatchingSeveralWordsIsReturnedOnce() {
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        index.put("sites", 1, "Sand Sandy Sands", NO_VALUES, null);
+        assertEquals(1, index.search("sand").size());
+        assertEquals(1, index.search("sand sandy").size());
+    }
+
+    @Test
+    public void resultsAreCapped() {
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        for (int i = 0; i < 100; i++) {
+            index.put("sites", i, "Station " + i, NO_VALUES, null);
+        }
+        assertEquals(FeatureSearchIndex.DEFAULT_MAX_RESULTS, index.search("st").size());
+        assertEquals(3, index.search("st", 3).size());
+        assertEquals(Arrays.asList("Station 42"), labels(index.search("st 42")));
+    }
+
+    @Test
+    public void putReplacesFeatureAndRemoveForgetsIt() {
+        FeatureSearchIndex index = createSites();
+        int nodeCount = index.getNodeCount();
+        index.put("sites", 2, "Santa Cruz", NO_VALUES, point(2, 2));
+        assertEquals(5, index.size());
+        assertTrue(index.search("fe").isEmpty());
+        assertEquals(Arrays.asList("Santa Cruz"), labels(index.search("cruz")));
+
+        index.put("sites", 2, "Santa Fe", NO_VALUES, point(2, 2));
+        assertEquals(nodeCount, index.getNodeCount());
+        assertTrue(index.remove("sites", 2));
+        assertFalse(index.remove("sites", 2));
+        assertTrue(index.search("santa").isEmpty());
+        assertEquals(4, index.size());
+
+        for (long objectId = 1; objectId <= 5; objectId++) {
+            index.remove("sites", objectId);
+        }
+        assertEquals(0, index.size());
+        assertEquals(1, index.getNodeCount());
+    }
+
+    @Test
+    public void sameObjectIdInAnotherLayerIsAnotherFeature() {
+        FeatureSearchIndex index = createSites();
+        index.put("parks", 1, "Sandy Point", NO_VALUES, point(9, 9));
+        assertEquals(6, index.size());
+        assertEquals(1, index.size("parks"));
+        FeatureSearchIndex.Hit hit = index.search("sandy").get(0);
+        assertEquals("parks", hit.getLayerId());
+        assertEquals(1, hit.getObjectId());
+
+        index.removeLayer("sites");
+        assertEquals(1, index.size());
+        assertEquals(0, index.size("sites"));
+        assertEquals(Arrays.asList("Sandy Point"), labels(index.search("sa")));
+        // Freed documents are reused
+        index.put("sites", 7, "Salem", NO_VALUES, null);
+        assertEquals(Arrays.asList("Salem", "Sandy Point"), labels(index.search("sa")));
+    }
+
+    @Test
+    public void manyObjectIdsAreAddedAndRemoved() {
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        for (long objectId = 0; objectId < 10000; objectId++) {
+            index.put("sites", objectId * 7919, "Site " + objectId, NO_VALUES, null);
+        }
+        for (long objectId = 1; objectId < 10000; objectId += 2) {
+            assertTrue(index.remove("sites", objectId * 7919));
+        }
+        assertEquals(5000, index.size("sites"));
+        for (long objectId = 0; objectId < 10000; objectId++) {
+            List<FeatureSearchIndex.Hit> hits = index.search("site " + objectId + " ");
+            if (0 == objectId % 2) {
+                assertEquals(objectId * 7919, hits.get(0).getObjectId());
+            } else {
+                for (FeatureSearchIndex.Hit hit : hits) {
+                    assertNotEquals(objectId * 7919, hit.getObjectId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void zoomExtentShowsSurroundingsOfPoint() {
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        index.put("sites", 1, "West", NO_VALUES, point(0, 0));
+        index.put("sites", 2, "East", NO_VALUES, point(1000, 500));
+        index.put("sites", 3, "Unplaced", NO_VALUES, null);
+
+        double[] extent = index.getZoomExtent(index.search("east").get(0));
+        // 1% of the layer's extent, plus the zoom margin on each side
+        assertArrayEquals(new double[] { 990, 495, 1010, 505 }, extent, 1e-9);
+        assertNull(index.getZoomExtent(index.search("unplaced").get(0)));
+    }
+
+    @Test
+    public void searchOfManyFeaturesIsCappedAndMatchesEveryWord() {
+        String[] prefixes = { "San", "Santa", "Mount", "Lake", "Fort", "Port", "North", "South", "East", "West" };
+        String[] names = { "Rosa", "Maria", "Clara", "Pine", "Oak", "Cedar", "River", "Hill", "Bay", "Creek" };
+        String[] kinds = { "Site", "Station", "Depot", "Camp", "Field", "Park", "Tower", "Bridge" };
+        Random random = new Random(1);
+        FeatureSearchIndex index = new FeatureSearchIndex();
+        int featureCount = 20000;
+        for (int i = 0; i < featureCount; i++) {
+            String name = prefixes[random.nextInt(prefixes.length)] + " " + names[random.nextInt(names.length)]
+                    + " " + kinds[random.nextInt(kinds.length)] + " " + random.nextInt(1000);
+            index.put("sites", i, name, NO_VALUES, point(random.nextDouble(), random.nextDouble()));
+        }
+
+        assertEquals(featureCount, index.size());
+        assertEquals(FeatureSearchIndex.DEFAULT_MAX_RESULTS, index.search("santa r").size());
+        List<FeatureSearchIndex.Hit> hits = index.search("west river tower 12");
+        assertFalse(hits.isEmpty());
+        for (FeatureSearchIndex.Hit hit : hits) {
+            assertTrue(hit.getLabel(), hit.getLabel().startsWith("West River Tower 12"));
+        }
+        assertTrue(index.search("nomatch").isEmpty());
+    }
+
+}
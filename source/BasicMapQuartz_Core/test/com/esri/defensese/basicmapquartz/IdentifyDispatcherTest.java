@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests IdentifyDispatcher against a fake identify source with a fixed latency,
+ * or whose identifies wait for the test to release them.
+ */
+public class IdentifyDispatcherTest {
+
+    private static final long LATENCY_MILLIS = 40;
+
+    /**
+     * An identify that the fake source is running.
+     */
+    private static class Request {
+
+        final Integer screenPoint;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean completed = false;
+
+        Request(Integer screenPoint) {
+            this.screenPoint = screenPoint;
+        }
+
+    }
+
+    /**
+     * An identify source that returns its screen point as the result after a
+     * delay, or, if held, when the test releases the request.
+     */
+    private static class FakeIdentifySource implements IdentifyDispatcher.IdentifySource<Integer, Integer> {
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final BlockingQueue<Request> running = new LinkedBlockingQueue<>();
+        volatile boolean held = false;
+        volatile int lastMaxResults;
+
+        @Override
+        public Future<?> identify(final Integer screenPoint, int maxResults,
+                                  final IdentifyDispatcher.IdentifyCallback<Integer> callback) {
+            started.incrementAndGet();
+            lastMaxResults = maxResults;
+            final boolean hold = held;
+            return executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Request request = new Request(screenPoint);
+                    running.add(request);
+                    try {
+                        if (hold) {
+                            request.release.await();
+                        } else {
+                            Thread.sleep(LATENCY_MILLIS);
+                        }
+                        completed.incrementAndGet();
+                        request.completed = true;
+                        callback.identifyCompleted(screenPoint);
+                    } finally {
+                        request.finished.countDown();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Waits for the source to start identifying a screen point.
+         */
+        Request awaitRunning(Integer screenPoint) throws InterruptedException {
+            while (true) {
+                Request request = running.poll(5, TimeUnit.SECONDS);
+                assertNotNull("No identify of " + screenPoint + " started", request);
+                if (screenPoint.equals(request.screenPoint)) {
+                    return request;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A listener that records the results it receives.
+     */
+    private static class RecordingListener implements IdentifyDispatcher.ResultListener<Integer> {
+
+        final AtomicInteger resultCount = new AtomicInteger();
+        final AtomicReference<Integer> lastResult = new AtomicReference<>();
+        final BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        volatile CountDownLatch latch = new CountDownLatch(1);
+        volatile long resultNanos;
+
+        @Override
+        public void identifyResult(Integer result) {
+            resultCount.incrementAndGet();
+            lastResult.set(result);
+            resultNanos = System.nanoTime();
+            results.add(result);
+            latch.countDown();
+        }
+
+        @Override
+        public void identifyFailed(Throwable error) {
+            fail("Unexpected identify failure: " + error);
+        }
+
+    }
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FakeIdentifySource source;
+    private RecordingListener listener;
+    private IdentifyDispatcher<Integer, Integer> dispatcher;
+
+    @Before
+    public void setUp() {
+        source = new FakeIdentifySource();
+        listener = new RecordingListener();
+        dispatcher = new IdentifyDispatcher<>(source, DIRECT_EXECUTOR, listener);
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+        source.executor.shutdownNow();
+    }
+
+    @Test
+    public void burstOfTapsIsCoalescedIntoOneIdentify() throws Exception {
+        dispatcher.setCoalesceMillis(100);
+        for (int i = 0; i < 50; i++) {
+            dispatcher.tap(i);
+        }
+
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        // Every older tap was cancelled before its identify could start
+        assertEquals(1, source.started.get());
+        assertEquals(1, listener.resultCount.get());
+        assertEquals(Integer.valueOf(49), listener.lastResult.get());
+    }
+
+    @Test
+    public void newerTapCancelsIdentifyInFlight() throws Exception {
+        dispatcher.setCoalesceMillis(0);
+        source.held = true;
+        dispatcher.tap(1);
+        Request first = source.awaitRunning(1);
+        dispatcher.tap(2);
+        Request second = source.awaitRunning(2);
+
+        assertTrue("The first identify was not cancelled", first.finished.await(5, TimeUnit.SECONDS));
+        assertFalse(first.completed);
+        second.release.countDown();
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(second.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, source.started.get());
+        assertEquals(1, source.completed.get());
+        assertEquals(1, dispatcher.getCancelCount());
+        assertEquals(1, listener.resultCount.get());
+        assertEquals(Integer.valueOf(2), listener.lastResult.get());
+    }
+
+    @Test
+    public void maxResultsIsPassedToSource() throws Exception {
+        dispatcher.setCoalesceMillis(0);
+        dispatcher.setMaxResults(25);
+        dispatcher.tap(1);
+
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(25, source.lastMaxResults);
+    }
+
+    @Test
+    public void identifyLatencyIsRecorded() throws Exception {
+        Metrics metrics = new Metrics();
+        dispatcher.setMetrics(metrics, "sites");
+        dispatcher.setCoalesceMillis(0);
+        dispatcher.tap(1);
+
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        LatencyHistogram histogram = metrics.histogram("bmq_identify_seconds", "", "layer", "sites");
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getMax() >= TimeUnit.MILLISECONDS.toMicros(LATENCY_MILLIS));
+    }
+
+    @Test
+    public void partialResultsAreDeliveredBeforeResult() throws Exception {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        IdentifyDispatcher<Integer, Integer> partialDispatcher = new IdentifyDispatcher<>(
+                new IdentifyDispatcher.IdentifySource<Integer, Integer>() {
+                    @Override
+                    public Future<?> identify(final Integer screenPoint, int maxResults,
+                                              final IdentifyDispatcher.IdentifyCallback<Integer> callback) {
+                        return source.executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                callback.identifyProgress(screenPoint);
+                                Thread.sleep(LATENCY_MILLIS);
+                                callback.identifyCompleted(screenPoint * 10);
+                                return null;
+                            }
+                        });
+                    }
+                },
+                DIRECT_EXECUTOR,
+                new IdentifyDispatcher.PartialResultListener<Integer>() {
+                    @Override
+                    public void identifyPartialResult(Integer partialResult) {
+                        delivered.add("partial " + partialResult);
+                    }
+
+                    @Override
+                    public void identifyResult(Integer result) {
+                        delivered.add("result " + result);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void identifyFailed(Throwable error) {
+                        fail("Unexpected identify failure: " + error);
+                    }
+                });
+        try {
+            Metrics metrics = new Metrics();
+            partialDispatcher.setMetrics(metrics, "all");
+            partialDispatcher.setCoalesceMillis(0);
+            partialDispatcher.tap(3);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("partial 3", "result 30"), delivered);
+            LatencyHistogram firstResult = metrics.histogram("bmq_identify_first_result_seconds", "", "layer", "all");
+            LatencyHistogram result = metrics.histogram("bmq_identify_seconds", "", "layer", "all");
+            assertEquals(1, firstResult.getCount());
+            assertTrue(firstResult.getMax() < result.getMax());
+        } finally {
+            partialDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void heavyTappingLatencyAndThroughput() throws Exception {
+        final long coalesceMillis = 20;
+        final int taps = 1000;
+        dispatcher.setCoalesceMillis(coalesceMillis);
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < taps; i++) {
+            dispatcher.tap(i);
+            if (0 == i % 100) {
+                // Pause until the tap is identified, as a user would between bursts
+                source.awaitRunning(i);
+            }
+        }
+        long lastTapNanos = System.nanoTime();
+        while (true) {
+            Integer result = listener.results.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No result for the last tap", result);
+            if (taps - 1 == result) {
+                break;
+            }
+        }
+
+        long tapMillis = TimeUnit.NANOSECONDS.toMillis(lastTapNanos - startNanos);
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(listener.resultNanos - lastTapNanos);
+        String summary = String.format(
+                "%d taps in %d ms: %d identifies started, %d cancelled, %d delivered, %d discarded; "
+                        + "last tap to result %d ms",
+                taps, tapMillis, source.started.get(), dispatcher.getCancelCount(),
+                dispatcher.getDeliverCount(), dispatcher.getDiscardCount(), latencyMillis);
+
+        assertEquals(summary, Integer.valueOf(taps - 1), listener.lastResult.get());
+        assertTrue("Identify work was not coalesced: " + summary, source.started.get() <= taps / 10 + 1);
+        assertTrue("Latency is too high: " + summary, latencyMillis < coalesceMillis + LATENCY_MILLIS + 1000);
+    }
+
+}
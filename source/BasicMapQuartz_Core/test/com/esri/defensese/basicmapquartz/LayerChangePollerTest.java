@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that LayerChangePoller detects edits and deletions from a layer's REST
+ * responses.
+ */
+public class LayerChangePollerTest {
+
+    private static final String LAYER_URL = "https://example.com/arcgis/rest/services/Stations/FeatureServer/0";
+
+    /**
+     * Answers with canned layer and query responses and records the requests.
+     */
+    private static class FakeLayer extends LayerChangePoller {
+
+        final List<String> requests = new ArrayList<>();
+        String layerJson;
+        String objectIds = "[1, 2, 3]";
+
+        FakeLayer(boolean trackDeletions) {
+            super(LAYER_URL, "TYPE = 'Fire'", trackDeletions);
+        }
+
+        void setLastEditDate(long lastEditDate) {
+            layerJson = "{ \"id\": 0, \"editFieldsInfo\": { \"creationDateField\": \"CreationDate\", "
+                    + "\"editDateField\": \"EditDate\" }, \"editingInfo\": { \"lastEditDate\": " + lastEditDate + " } }";
+        }
+
+        @Override
+        String get(String url) throws IOException {
+            requests.add(url);
+            if (url.startsWith(LAYER_URL + "/query?")) {
+                return "{ \"objectIdFieldName\": \"OBJECTID\", \"objectIds\": " + objectIds + " }";
+            }
+            return layerJson;
+        }
+
+    }
+
+    @Test
+    public void unchangedLayerCostsOneRequest() throws IOException {
+        FakeLayer layer = new FakeLayer(true);
+        layer.setLastEditDate(1456790400000L);
+        assertFalse(layer.poll().isChanged());
+        assertEquals(2, layer.requests.size());
+
+        layer.requests.clear();
+        assertFalse(layer.poll().isChanged());
+        assertEquals(1, layer.requests.size());
+        assertEquals(LAYER_URL + "?f=json", layer.requests.get(0));
+    }
+
+    @Test
+    public void editsGiveDeltaWhereClause() throws IOException {
+        FakeLayer layer = new FakeLayer(false);
+        layer.setToken("abc");
+        layer.setLastEditDate(1456790400000L);
+        layer.poll();
+        layer.setLastEditDate(1456790460000L);
+        LayerChangePoller.Changes changes = layer.poll();
+        assertTrue(changes.isChanged());
+        assertEquals("(TYPE = 'Fire') AND (EditDate >= TIMESTAMP '2016-03-01 00:00:00')",
+                changes.getDeltaWhereClause());
+        assertEquals(LAYER_URL + "?f=json&token=abc", layer.requests.get(layer.requests.size() - 1));
+    }
+
+    @Test
+    public void deletionsRequireReload() throws IOException {
+        FakeLayer layer = new FakeLayer(true);
+        layer.setLastEditDate(1000);
+        layer.poll();
+        layer.setLastEditDate(2000);
+        layer.objectIds = "[1, 3, 4]";
+        LayerChangePoller.Changes changes = layer.poll();
+        assertTrue(changes.isChanged());
+        assertEquals(1, changes.getDeletedCount());
+        assertNull(changes.getDeltaWhereClause());
+        assertTrue(layer.requests.get(layer.requests.size() - 1).contains("returnIdsOnly=true"));
+    }
+
+    @Test
+    public void layerWithoutEditingInfoChangesOnEveryPoll() throws IOException {
+        FakeLayer layer = new FakeLayer(false);
+        layer.layerJson = "{ \"id\": 0, \"name\": \"Stations\" }";
+        assertFalse(layer.poll().isChanged());
+        LayerChangePoller.Changes changes = layer.poll();
+        assertTrue(changes.isChanged());
+        assertNull(changes.getDeltaWhereClause());
+    }
+
+    @Test
+    public void countsMissingIds() {
+        assertEquals(0, LayerChangePoller.countMissing(new long[0], new long[] { 1 }));
+        assertEquals(2, LayerChangePoller.countMissing(new long[] { 1, 5, 9 }, new long[] { 2, 5, 10 }));
+        assertEquals(3, LayerChangePoller.countMissing(new long[] { 1, 2, 3 }, new long[0]));
+    }
+
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the jitter, backoff, pausing and immediate refreshes of LayerRefreshScheduler.
+ */
+public class LayerRefreshSchedulerTest {
+
+    @Test
+    public void delayHasJitterAndBacksOff() {
+        assertEquals(90000, LayerRefreshScheduler.getDelayMillis(100000, 0, 0.1, 0));
+        assertEquals(100000, LayerRefreshScheduler.getDelayMillis(100000, 0, 0.1, 0.5));
+        assertEquals(110000, LayerRefreshScheduler.getDelayMillis(100000, 0, 0.1, 1));
+        assertEquals(800000, LayerRefreshScheduler.getDelayMillis(100000, 3, 0, 0));
+        // Backoff stops at the maximum, but never shortens a long interval
+        assertEquals(LayerRefreshScheduler.MAX_BACKOFF_MILLIS,
+                LayerRefreshScheduler.getDelayMillis(100000, 40, 0, 0));
+        assertEquals(TimeUnit.HOURS.toMillis(2),
+                LayerRefreshScheduler.getDelayMillis(TimeUnit.HOURS.toMillis(2), 3, 0, 0));
+    }
+
+    @Test
+    public void refreshesRepeatedlyAndCountsFailures() throws Exception {
+        LayerRefreshScheduler scheduler = new LayerRefreshScheduler(0, new Random(1));
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(3);
+        try {
+            scheduler.schedule("a", 20, new LayerRefreshScheduler.Refresh() {
+                @Override
+                public void refresh(final LayerRefreshScheduler.Completion completion) {
+                    calls.incrementAndGet();
+                    latch.countDown();
+                    // Completes asynchronously, as a layer query would
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            completion.succeeded();
+                        }
+                    }.start();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(0, scheduler.getFailureCount("a"));
+
+            final CountDownLatch failed = new CountDownLatch(2);
+            scheduler.schedule("a", 20, new LayerRefreshScheduler.Refresh() {
+                @Override
+                public void refresh(LayerRefreshScheduler.Completion completion) throws IOException {
+                    failed.countDown();
+                    throw new IOException("Service unavailable");
+                }
+            });
+            // The second failure waits twice the interval
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (2 > scheduler.getFailureCount("a") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(2 <= scheduler.getFailureCount("a"));
+
+            scheduler.cancel("a");
+            assertEquals(0, scheduler.getFailureCount("a"));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void pausedSchedulerWaitsForResume() throws Exception {
+        LayerRefreshScheduler scheduler = new LayerRefreshScheduler(0, new Random(1));
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            scheduler.pause();
+            scheduler.schedule("a", 20, new LayerRefreshScheduler.Refresh() {
+                @Override
+                public void refresh(LayerRefreshScheduler.Completion completion) {
+                    latch.countDown();
+                    completion.succeeded();
+                }
+            });
+            assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+
+            scheduler.resume();
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void refreshNowDoesNotWaitForInterval() throws Exception {
+        LayerRefreshScheduler scheduler = new LayerRefreshScheduler(0, new Random(1));
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            scheduler.schedule("a", TimeUnit.HOURS.toMillis(1), new LayerRefreshScheduler.Refresh() {
+                @Override
+                public void refresh(LayerRefreshScheduler.Completion completion) {
+                    calls.incrementAndGet();
+                    completion.succeeded();
+                }
+            });
+            long deadline = System.currentTimeMillis() + 5000;
+            while (1 > calls.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, calls.get());
+
+            scheduler.refreshNow("a");
+            scheduler.refreshNow("unscheduled");
+            while (2 > calls.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(2, calls.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ordering, failure handling and timings of LoadOrchestrator.
+ */
+public class LoadOrchestratorTest {
+
+    /**
+     * A task that finishes only when the test tells it to.
+     */
+    private static class ManualTask implements LoadOrchestrator.LoadTask {
+
+        LoadOrchestrator.LoadCallback callback;
+
+        @Override
+        public void start(LoadOrchestrator.LoadCallback callback) {
+            this.callback = callback;
+        }
+
+        boolean isStarted() {
+            return null != callback;
+        }
+
+    }
+
+    /**
+     * A listener that records what it is told.
+     */
+    private static class RecordingListener implements LoadOrchestrator.Listener {
+
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        volatile int criticalCount = 0;
+
+        @Override
+        public void taskFinished(String name, Throwable error, LoadOrchestrator.Timing timing) {
+            assertNotNull(timing);
+            (null == error ? finished : failed).add(name);
+        }
+
+        @Override
+        public void criticalTasksFinished(long elapsedMillis) {
+            criticalCount++;
+        }
+
+    }
+
+    @Test
+    public void independentTasksStartTogether() {
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        ManualTask basemap = new ManualTask();
+        ManualTask map = new ManualTask();
+        ManualTask layer = new ManualTask();
+        orchestrator.add("basemap", true, basemap);
+        orchestrator.add("map", true, map);
+        orchestrator.add("layer", false, layer);
+
+        assertTrue(basemap.isStarted());
+        assertTrue(map.isStarted());
+        assertTrue(layer.isStarted());
+    }
+
+    @Test
+    public void dependentTaskWaitsForDependencies() {
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        RecordingListener listener = new RecordingListener();
+        orchestrator.setListener(listener);
+        ManualTask map = new ManualTask();
+        ManualTask layer = new ManualTask();
+        ManualTask viewpoint = new ManualTask();
+        orchestrator.add("viewpoint", false, viewpoint, "layer", "map");
+        orchestrator.add("map", true, map);
+        orchestrator.add("layer", false, layer);
+
+        assertFalse(viewpoint.isStarted());
+        layer.callback.loaded();
+        assertFalse(viewpoint.isStarted());
+        map.callback.loaded();
+        assertTrue(viewpoint.isStarted());
+        assertEquals(1, listener.criticalCount);
+        assertFalse(orchestrator.isFinished());
+
+        viewpoint.callback.loaded();
+        assertTrue(orchestrator.isFinished());
+        assertEquals(3, listener.finished.size());
+        assertNotNull(orchestrator.getTiming("viewpoint"));
+        assertTrue(orchestrator.formatTimings().contains("viewpoint: loaded"));
+    }
+
+    @Test
+    public void criticalTasksFinishBeforeOtherTasks() {
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        RecordingListener listener = new RecordingListener();
+        orchestrator.setListener(listener);
+        ManualTask map = new ManualTask();
+        List<ManualTask> layers = new ArrayList<>();
+        orchestrator.add("map", true, map);
+        for (int i = 0; i < 20; i++) {
+            ManualTask layer = new ManualTask();
+            layers.add(layer);
+            orchestrator.add("layer" + i, false, layer);
+        }
+
+        map.callback.loaded();
+        assertEquals(1, listener.criticalCount);
+        for (ManualTask layer : layers) {
+            layer.callback.loaded();
+        }
+        assertEquals(1, listener.criticalCount);
+        assertTrue(orchestrator.isFinished());
+    }
+
+    @Test
+    public void failureFailsDependents() {
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        RecordingListener listener = new RecordingListener();
+        orchestrator.setListener(listener);
+        ManualTask layer = new ManualTask();
+        ManualTask viewpoint = new ManualTask();
+        ManualTask identify = new ManualTask();
+        orchestrator.add("layer", false, layer);
+        orchestrator.add("viewpoint", false, viewpoint, "layer");
+        orchestrator.add("identify", false, identify, "viewpoint");
+
+        layer.callback.failed(new RuntimeException("Token required"));
+        assertFalse(viewpoint.isStarted());
+        assertFalse(identify.isStarted());
+        assertEquals(3, listener.failed.size());
+        assertTrue(orchestrator.isFinished());
+        assertEquals(-1, orchestrator.getTiming("identify").getStartMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateNamesAreRejected() {
+        LoadOrchestrator orchestrator = new LoadOrchestrator();
+        orchestrator.add("map", true, new ManualTask());
+        orchestrator.add("map", true, new ManualTask());
+    }
+
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reading map definitions with MapDefinition, JsonReader and
+ * MapDefinitionWatcher.
+ */
+public class MapDefinitionTest {
+
+    private static MapDefinition read(String json) throws IOException {
+        return MapDefinition.read(new StringReader(json));
+    }
+
+    private static void write(File file, String json) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void readsLayers() throws IOException {
+        MapDefinition mapDefinition = read("{ \"basemap\": \"streets\", \"layers\": ["
+                + "{ \"id\": \"a\", \"url\": \"http://example.com/0\", \"definitionExpression\": \"Name LIKE '%\\\"S\\u0061%'\","
+                + "  \"cachePolicy\": \"offline\", \"refreshIntervalSeconds\": 60, \"visible\": false,"
+                + "  \"searchFields\": [\"City\", \"Code\"] },"
+                + "{ \"url\": \"http://example.com/1\", \"definitionExpression\": null } ] }");
+        assertEquals("streets", mapDefinition.getBasemap());
+        assertEquals(2, mapDefinition.getLayers().size());
+
+        MapDefinition.LayerDefinition first = mapDefinition.getLayers().get(0);
+        assertEquals("a", first.getId());
+        assertEquals("Name LIKE '%\"Sa%'", first.getDefinitionExpression());
+        assertEquals(MapDefinition.CachePolicy.OFFLINE, first.getCachePolicy());
+        assertEquals(60, first.getRefreshIntervalSeconds());
+        assertFalse(first.isVisible());
+        assertEquals(Arrays.asList("City", "Code"), first.getSearchFields());
+
+        MapDefinition.LayerDefinition second = mapDefinition.getLayers().get(1);
+        assertEquals("http://example.com/1", second.getId());
+        assertNull(second.getDefinitionExpression());
+        assertEquals(MapDefinition.CachePolicy.ONLINE, second.getCachePolicy());
+        assertTrue(second.isVisible());
+        assertTrue(second.getSearchFields().isEmpty());
+    }
+
+    @Test
+    public void skipsUnknownProperties() throws IOException {
+        MapDefinition mapDefinition = read("{ \"title\": { \"text\": [1, 2.5e3, true, null, {\"x\": []}] },"
+                + " \"layers\": [ { \"url\": \"http://example.com/0\", \"renderer\": { \"type\": \"simple\" } } ] }");
+        assertEquals(MapDefinition.DEFAULT_BASEMAP, mapDefinition.getBasemap());
+        assertEquals(1, mapDefinition.getLayers().size());
+    }
+
+    @Test
+    public void sameDataIgnoresVisibilityAndFilter() throws IOException {
+        MapDefinition.LayerDefinition visible = read(
+                "{ \"layers\": [ { \"url\": \"http://example.com/0\" } ] }").getLayers().get(0);
+        MapDefinition.LayerDefinition hidden = read(
+                "{ \"layers\": [ { \"url\": \"http://example.com/0\", \"visible\": false } ] }").getLayers().get(0);
+        MapDefinition.LayerDefinition filtered = read(
+                "{ \"layers\": [ { \"url\": \"http://example.com/0\", \"definitionExpression\": \"1 = 0\" } ] }").getLayers().get(0);
+        MapDefinition.LayerDefinition locallyFiltered = read(
+                "{ \"layers\": [ { \"url\": \"http://example.com/0\", \"filter\": \"1 = 0\" } ] }").getLayers().get(0);
+        assertTrue(visible.hasSameData(hidden));
+        assertFalse(visible.hasSameData(filtered));
+        assertTrue(visible.hasSameData(locallyFiltered));
+        assertEquals("1 = 0", locallyFiltered.getFilter());
+        assertNull(visible.getFilter());
+    }
+
+    @Test
+    public void rejectsInvalidDefinitions() {
+        String[] invalid = {
+                "",
+                "{ \"layers\": [ { \"url\": \"http://example.com/0\" } ] ",
+                "{ \"layers\": [ { \"id\": \"a\" } ] }",
+                "{ \"layers\": [ { \"id\": \"a\", \"url\": \"u\" }, { \"id\": \"a\", \"url\": \"v\" } ] }",
+                "{ \"layers\": [ { \"url\": \"u\", \"cachePolicy\": \"sometimes\" } ] }",
+                "{ \"basemap\": \"streets\" } { }",
+                "{ \"basemap\": streets }",
+        };
+        for (String json : invalid) {
+            try {
+                read(json);
+                fail("Expected an IOException for " + json);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void resolvesPackagePathAgainstDefinitionFile() throws IOException {
+        assertNull(read("{ \"layers\": [] }").getPackagePath());
+
+        File file = File.createTempFile("map_definition", ".json");
+        try {
+            write(file, "{ \"package\": \"offline/fieldOps\" }");
+            assertEquals(new File(file.getAbsoluteFile().getParentFile(), "offline/fieldOps").getAbsolutePath(),
+                    MapDefinitionWatcher.read(file).getPackagePath());
+
+            String absolutePath = new File("/data/fieldOps").getAbsolutePath();
+            write(file, "{ \"package\": \"" + absolutePath.replace("\\", "\\\\") + "\" }");
+            assertEquals(absolutePath, MapDefinitionWatcher.read(file).getPackagePath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void watcherReadsChangedFile() throws Exception {
+        File file = File.createTempFile("map_definition", ".json");
+        final AtomicReference<MapDefinition> changed = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        MapDefinitionWatcher watcher = new MapDefinitionWatcher(file, new MapDefinitionWatcher.Listener() {
+            @Override
+            public void mapDefinitionChanged(MapDefinition mapDefinition) {
+                changed.set(mapDefinition);
+                latch.countDown();
+            }
+
+            @Override
+            public void mapDefinitionFailed(IOException error) {
+                fail("Unexpected failure: " + error);
+            }
+        });
+        try {
+            write(file, "{ \"basemap\": \"streets\" }");
+            assertEquals("streets", watcher.load().getBasemap());
+            watcher.start(10);
+            write(file, "{ \"basemap\": \"oceans\", \"layers\": [] }");
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals("oceans", changed.get().getBasemap());
+        } finally {
+            watcher.stop();
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void defaultMapDefinitionIsValid() throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "map_definition_" + System.nanoTime() + ".json");
+        try {
+            MapDefinitionWatcher.createIfMissing(file);
+            MapDefinition mapDefinition = MapDefinitionWatcher.read(file);
+            assertFalse(mapDefinition.getLayers().isEmpty());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void writesPrometheusText() {
+        Metrics metrics = new Metrics();
+        metrics.counter("bmq_requests_total", "Requests.", "layer", "a \"b\"").addAndGet(3);
+        metrics.registerGauge("bmq_ratio", "Ratio.", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return 0.25;
+            }
+        });
+        LatencyHistogram histogram = metrics.histogram("bmq_identify_seconds", "Identify.", "layer", "sites");
+        histogram.record(2000);
+        histogram.record(4000);
+
+        String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("# TYPE bmq_requests_total counter\n"));
+        assertTrue(text, text.contains("bmq_requests_total{layer=\"a \\\"b\\\"\"} 3\n"));
+        assertTrue(text, text.contains("# TYPE bmq_ratio gauge\nbmq_ratio 0.25\n"));
+        assertTrue(text, text.contains("# TYPE bmq_identify_seconds summary\n"));
+        assertTrue(text, text.contains("bmq_identify_seconds{layer=\"sites\",quantile=\"0.5\"} 0.00"));
+        assertTrue(text, text.contains("bmq_identify_seconds_sum{layer=\"sites\"} 0.006\n"));
+        assertTrue(text, text.contains("bmq_identify_seconds_count{layer=\"sites\"} 2\n"));
+    }
+
+    @Test
+    public void writesJson() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("bmq_requests_total", "Requests.", "layer", "sites").incrementAndGet();
+        metrics.histogram("bmq_identify_seconds", "Identify.").record(1000000);
+
+        String text = metrics.toJson();
+        // The JSON is well formed
+        JsonReader reader = new JsonReader(new StringReader(text));
+        reader.skipValue();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+        assertTrue(text, text.contains("{\"labels\":{\"layer\":\"sites\"},\"value\":1.0}"));
+        assertTrue(text, text.contains("\"count\":1,\"sum\":1.0,\"max\":1.0,\"p50\":1.0"));
+    }
+
+    @Test
+    public void sameNameAndLabelsReturnSameMetric() {
+        Metrics metrics = new Metrics();
+        assertSame(metrics.histogram("bmq_x_seconds", "X.", "layer", "a"),
+                metrics.histogram("bmq_x_seconds", "X.", "layer", "a"));
+        assertNotSame(metrics.histogram("bmq_x_seconds", "X.", "layer", "a"),
+                metrics.histogram("bmq_x_seconds", "X.", "layer", "b"));
+        try {
+            metrics.counter("bmq_x_seconds", "X.");
+            fail("A summary was returned as a counter");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void recordsLayerLoadTime() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.recordLoadStatus("sites", "NOT_LOADED");
+        metrics.recordLoadStatus("sites", "LOADING");
+        Thread.sleep(20);
+        metrics.recordLoadStatus("sites", "LOADED");
+
+        LatencyHistogram loadTime = metrics.histogram("bmq_layer_load_seconds", "", "layer", "sites");
+        assertEquals(1, loadTime.getCount());
+        assertTrue(loadTime.getMax() >= 20000);
+        String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("bmq_layer_load_status_transitions_total{layer=\"sites\",status=\"LOADED\"} 1\n"));
+        assertTrue(text, text.contains("bmq_layer_load_status_timestamp_seconds{layer=\"sites\",status=\"LOADING\"} "));
+    }
+
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests MultiLayerIdentifier against fake layers with fixed latencies.
+ */
+public class MultiLayerIdentifierTest {
+
+    /**
+     * A layer that returns its ID and the maximum results it was given after a
+     * delay, or fails if its latency is negative.
+     */
+    private class FakeLayer implements MultiLayerIdentifier.LayerIdentifier<Integer, String> {
+
+        final String id;
+        final long latencyMillis;
+        final AtomicInteger cancelled = new AtomicInteger();
+        volatile long startNanos;
+
+        FakeLayer(String id, long latencyMillis) {
+            this.id = id;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public String getLayerId() {
+            return id;
+        }
+
+        @Override
+        public Future<?> identify(Integer screenPoint, double tolerance, final int maxResults,
+                                  final IdentifyDispatcher.IdentifyCallback<String> callback) {
+            startNanos = System.nanoTime();
+            return executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        Thread.sleep(Math.max(latencyMillis, 1));
+                    } catch (InterruptedException e) {
+                        cancelled.incrementAndGet();
+                        throw e;
+                    }
+                    if (0 > latencyMillis) {
+                        callback.identifyFailed(new IOException(id + " failed"));
+                    } else {
+                        callback.identifyCompleted(id + ":" + maxResults);
+                    }
+                    return null;
+                }
+            });
+        }
+
+    }
+
+    /**
+     * A callback that records the results it receives.
+     */
+    private static class RecordingCallback implements IdentifyDispatcher.IdentifyCallback<MultiLayerIdentifier.Result<String>> {
+
+        final List<MultiLayerIdentifier.Result<String>> partialResults = new CopyOnWriteArrayList<>();
+        final AtomicReference<MultiLayerIdentifier.Result<String>> result = new AtomicReference<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void identifyCompleted(MultiLayerIdentifier.Result<String> result) {
+            this.result.set(result);
+            done.countDown();
+        }
+
+        @Override
+        public void identifyProgress(MultiLayerIdentifier.Result<String> partialResult) {
+            partialResults.add(partialResult);
+        }
+
+        @Override
+        public void identifyFailed(Throwable error) {
+            this.error.set(error);
+            done.countDown();
+        }
+
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<FakeLayer> layers = new ArrayList<>();
+    private MultiLayerIdentifier<Integer, String> identifier;
+
+    @Before
+    public void setUp() {
+        identifier = new MultiLayerIdentifier<>(new MultiLayerIdentifier.LayerProvider<Integer, String>() {
+            @Override
+            public List<FakeLayer> getLayers() {
+                return layers;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        identifier.shutdown();
+        executor.shutdownNow();
+    }
+
+    private static List<String> layerIds(MultiLayerIdentifier.Result<String> result) {
+        List<String> ids = new ArrayList<>();
+        for (MultiLayerIdentifier.LayerResult<String> layerResult : result.getLayerResults()) {
+            ids.add(layerResult.getLayerId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void layersAreIdentifiedInParallel() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            layers.add(new FakeLayer("layer" + i, 200));
+        }
+        RecordingCallback callback = new RecordingCallback();
+        long startNanos = System.nanoTime();
+        identifier.identify(0, 100, callback);
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 600);
+        MultiLayerIdentifier.Result<String> result = callback.result.get();
+        assertTrue(result.isComplete());
+        assertEquals(Arrays.asList("layer0", "layer1", "layer2", "layer3"), layerIds(result));
+    }
+
+    @Test
+    public void fastLayersAreReportedBeforeSlowLayerAnswers() throws Exception {
+        layers.add(new FakeLayer("slow", 500));
+        layers.add(new FakeLayer("fast", 10));
+        RecordingCallback callback = new RecordingCallback();
+        identifier.identify(0, 100, callback);
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, callback.partialResults.size());
+        MultiLayerIdentifier.Result<String> partialResult = callback.partialResults.get(0);
+        assertFalse(partialResult.isComplete());
+        assertEquals(2, partialResult.getLayerCount());
+        assertEquals(Arrays.asList("fast"), layerIds(partialResult));
+        // The complete result lists the layers in the provider's order
+        assertEquals(Arrays.asList("slow", "fast"), layerIds(callback.result.get()));
+    }
+
+    @Test
+    public void resultsPerLayerAreCapped() throws Exception {
+        layers.add(new FakeLayer("layer", 10));
+        identifier.setMaxResultsPerLayer(5);
+        RecordingCallback callback = new RecordingCallback();
+        identifier.identify(0, 100, callback);
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals("layer:5", callback.result.get().getLayerResults().get(0).getResult());
+
+        callback = new RecordingCallback();
+        identifier.identify(0, 3, callback);
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals("layer:3", callback.result.get().getLayerResults().get(0).getResult());
+    }
+
+    @Test
+    public void failedLayerDoesNotFailOthers() throws Exception {
+        layers.add(new FakeLayer("broken", -1));
+        layers.add(new FakeLayer("working", 10));
+        RecordingCallback callback = new RecordingCallback();
+        identifier.identify(0, 100, callback);
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertNull(callback.error.get());
+        List<MultiLayerIdentifier.LayerResult<String>> layerResults = callback.result.get().getLayerResults();
+        assertNull(layerResults.get(0).getResult());
+        assertTrue(layerResults.get(0).getError() instanceof IOException);
+        assertEquals("working:" + MultiLayerIdentifier.DEFAULT_MAX_RESULTS_PER_LAYER, layerResults.get(1).getResult());
+    }
+
+    @Test
+    public void identifyFailsWhenEveryLayerFails() throws Exception {
+        layers.add(new FakeLayer("broken1", -1));
+        layers.add(new FakeLayer("broken2", -1));
+        RecordingCallback callback = new RecordingCallback();
+        identifier.identify(0, 100, callback);
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertNull(callback.result.get());
+        assertTrue(callback.error.get() instanceof IOException);
+    }
+
+    @Test
+    public void noLayersCompletesAtOnce() {
+        RecordingCallback callback = new RecordingCallback();
+        Future<?> future = identifier.identify(0, 100, callback);
+        assertTrue(future.isDone());
+        assertEquals(0, callback.result.get().getLayerCount());
+        assertTrue(callback.result.get().isComplete());
+    }
+
+    @Test
+    public void cancelCancelsEveryLayer() throws Exception {
+        FakeLayer layer1 = new FakeLayer("layer1", 2000);
+        FakeLayer layer2 = new FakeLayer("layer2", 2000);
+        layers.add(layer1);
+        layers.add(layer2);
+        RecordingCallback callback = new RecordingCallback();
+        Future<?> future = identifier.identify(0, 100, callback);
+        // Wait until both layers have started
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((0 == layer1.startNanos || 0 == layer2.startNanos) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((0 == layer1.cancelled.get() || 0 == layer2.cancelled.get()) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, layer1.cancelled.get());
+        assertEquals(1, layer2.cancelled.get());
+        assertFalse(callback.done.await(100, TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests PackedHilbertRTree against a linear scan.
+ */
+public class PackedHilbertRTreeTest {
+
+    private static double[] randomBoxes(int count, Random random) {
+        double[] boxes = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            double x = random.nextDouble() * 1000;
+            double y = random.nextDouble() * 1000;
+            double size = random.nextDouble() < 0.5 ? 0 : random.nextDouble() * 5;
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x + size;
+            boxes[4 * i + 3] = y + size;
+        }
+        return boxes;
+    }
+
+    private static List<Integer> search(PackedHilbertRTree index, double minX, double minY, double maxX, double maxY) {
+        final List<Integer> found = new ArrayList<>();
+        index.search(minX, minY, maxX, maxY, new PackedHilbertRTree.Visitor() {
+            @Override
+            public boolean visit(int itemIndex) {
+                found.add(itemIndex);
+                return true;
+            }
+        });
+        Collections.sort(found);
+        return found;
+    }
+
+    private static List<Integer> linearScan(double[] boxes, double minX, double minY, double maxX, double maxY) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < boxes.length / 4; i++) {
+            if (!(maxX < boxes[4 * i] || maxY < boxes[4 * i + 1] || minX > boxes[4 * i + 2] || minY > boxes[4 * i + 3])) {
+                found.add(i);
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void searchMatchesLinearScan() {
+        Random random = new Random(42);
+        for (int count : new int[] { 1, 7, 16, 17, 1000, 20000 }) {
+            double[] boxes = randomBoxes(count, random);
+            PackedHilbertRTree index = new PackedHilbertRTree(boxes);
+            assertEquals(count, index.size());
+            for (int q = 0; q < 100; q++) {
+                double x = random.nextDouble() * 1000;
+                double y = random.nextDouble() * 1000;
+                double size = random.nextDouble() * 50;
+                assertEquals(linearScan(boxes, x, y, x + size, y + size), search(index, x, y, x + size, y + size));
+            }
+        }
+    }
+
+    @Test
+    public void emptyIndexFindsNothing() {
+        PackedHilbertRTree index = new PackedHilbertRTree(new double[0]);
+        assertEquals(0, index.size());
+        assertTrue(search(index, -1e9, -1e9, 1e9, 1e9).isEmpty());
+    }
+
+    @Test
+    public void identicalPointsAreAllFound() {
+        double[] boxes = new double[100 * 4];
+        PackedHilbertRTree index = new PackedHilbertRTree(boxes);
+        assertEquals(100, search(index, -1, -1, 1, 1).size());
+    }
+
+    @Test
+    public void visitorCanStopSearch() {
+        double[] boxes = randomBoxes(1000, new Random(1));
+        PackedHilbertRTree index = new PackedHilbertRTree(boxes);
+        final int[] visits = new int[1];
+        int found = index.search(0, 0, 1000, 1000, new PackedHilbertRTree.Visitor() {
+            @Override
+            public boolean visit(int itemIndex) {
+                return ++visits[0] < 10;
+            }
+        });
+        assertEquals(10, found);
+        assertEquals(10, visits[0]);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests PointClusterIndex.
+ */
+public class PointClusterIndexTest {
+
+    private static PointClusterIndex randomIndex(int count) {
+        Random random = new Random(42);
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = random.nextDouble() * 100000;
+            y[i] = random.nextDouble() * 100000;
+        }
+        return new PointClusterIndex(x, y, 4, 12, PointClusterIndex.DEFAULT_RADIUS_PIXELS);
+    }
+
+    @Test
+    public void everyLevelCountsEveryPoint() {
+        PointClusterIndex index = randomIndex(5000);
+        assertEquals(10, index.getLevelCount());
+        assertEquals(5000, index.size(0));
+        int previousSize = index.size(0);
+        for (int level = 0; level < index.getLevelCount(); level++) {
+            int total = 0;
+            for (int i = 0; i < index.size(level); i++) {
+                total += index.getCount(level, i);
+            }
+            assertEquals(5000, total);
+            assertTrue(index.size(level) <= previousSize);
+            previousSize = index.size(level);
+        }
+        // At 4096 units per pixel, the whole extent is within one radius
+        assertEquals(1, index.size(index.getLevelCount() - 1));
+    }
+
+    @Test
+    public void getPointsReturnsEachPointOnce() {
+        PointClusterIndex index = randomIndex(2000);
+        int level = 5;
+        boolean[] seen = new boolean[2000];
+        for (int i = 0; i < index.size(level); i++) {
+            int[] points = index.getPoints(level, i, Integer.MAX_VALUE);
+            assertEquals(index.getCount(level, i), points.length);
+            for (int point : points) {
+                assertFalse(seen[point]);
+                seen[point] = true;
+            }
+        }
+        for (boolean pointSeen : seen) {
+            assertTrue(pointSeen);
+        }
+        for (int i = 0; i < index.size(level); i++) {
+            assertEquals(Math.min(3, index.getCount(level, i)), index.getPoints(level, i, 3).length);
+        }
+    }
+
+    @Test
+    public void nearbyPointsMergeIntoWeightedCenter() {
+        double[] x = { 0, 10, 20, 100000 };
+        double[] y = { 0, 0, 30, 100000 };
+        PointClusterIndex index = new PointClusterIndex(x, y, 0, 4, 40);
+
+        // At 1 unit per pixel the radius is 40 units, enough to merge the first three
+        int level = index.getLevel(1);
+        assertEquals(1, level);
+        assertEquals(2, index.size(level));
+        for (int i = 0; i < index.size(level); i++) {
+            if (3 == index.getCount(level, i)) {
+                assertEquals(10, index.getX(level, i), 1e-9);
+                assertEquals(10, index.getY(level, i), 1e-9);
+                int[] points = index.getPoints(level, i, 10);
+                Arrays.sort(points);
+                assertArrayEquals(new int[] { 0, 1, 2 }, points);
+            } else {
+                assertEquals(1, index.getCount(level, i));
+                assertArrayEquals(new int[] { 3 }, index.getPoints(level, i, 10));
+            }
+        }
+    }
+
+    @Test
+    public void levelFollowsScale() {
+        PointClusterIndex index = randomIndex(10);
+        assertEquals(0, index.getLevel(1));
+        assertEquals(0, index.getLevel(Double.NaN));
+        assertEquals(1, index.getLevel(16));
+        assertEquals(2, index.getLevel(32));
+        assertEquals(index.getLevelCount() - 1, index.getLevel(1e9));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the memory and disk tiers of TileCache.
+ */
+public class TileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] tile(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void memoryEvictsLeastRecentlyUsed() {
+        TileCache cache = new TileCache(null, 300, 0);
+        cache.put("a", tile(100, 1));
+        cache.put("b", tile(100, 2));
+        cache.put("c", tile(100, 3));
+        assertArrayEquals(tile(100, 1), cache.get("a"));
+        cache.put("d", tile(100, 4));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(1, cache.getMemoryEvictionCount());
+        assertEquals(300, cache.getMemoryBytes());
+        assertEquals(4, cache.getMemoryHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void diskTierSurvivesNewCache() throws IOException {
+        File directory = folder.newFolder("tiles");
+        TileCache cache = new TileCache(directory, 1000, 10000);
+        cache.put(TileCache.tileKey(5, 17, 33), tile(100, 1));
+        cache.put("service.json", tile(10, 2));
+
+        TileCache reopened = new TileCache(directory, 1000, 10000);
+        assertArrayEquals(tile(100, 1), reopened.get(TileCache.tileKey(5, 17, 33)));
+        assertArrayEquals(tile(100, 1), reopened.get(TileCache.tileKey(5, 17, 33)));
+        assertArrayEquals(tile(10, 2), reopened.get("service.json"));
+        assertNull(reopened.get(TileCache.tileKey(5, 17, 34)));
+        assertEquals(2, reopened.getDiskHitCount());
+        assertEquals(1, reopened.getMemoryHitCount());
+        assertEquals(1, reopened.getMissCount());
+    }
+
+    @Test
+    public void diskEvictsLeastRecentlyUsed() throws IOException {
+        File directory = folder.newFolder("tiles");
+        // Each file is a 16-byte header and a 100-byte tile
+        TileCache cache = new TileCache(directory, 0, 3 * 116);
+        cache.put("a", tile(100, 1));
+        cache.put("b", tile(100, 2));
+        cache.put("c", tile(100, 3));
+        assertNotNull(cache.get("a"));
+        cache.put("d", tile(100, 4));
+
+        assertEquals(1, cache.getDiskEvictionCount());
+        assertEquals(3 * 116, cache.getDiskBytes());
+        assertFalse(new File(directory, "b.tile").exists());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void damagedTilesAreDiscarded() throws IOException {
+        File directory = folder.newFolder("tiles");
+        new TileCache(directory, 1000, 10000).put("a", tile(100, 1));
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "a.tile"), "rw");
+        try {
+            file.seek(50);
+            file.write(0xFF);
+        } finally {
+            file.close();
+        }
+
+        TileCache reopened = new TileCache(directory, 1000, 10000);
+        assertNull(reopened.get("a"));
+        assertEquals(1, reopened.getCorruptCount());
+        assertEquals(1, reopened.getMissCount());
+        assertFalse(new File(directory, "a.tile").exists());
+    }
+
+    @Test
+    public void trimMemoryKeepsDisk() throws IOException {
+        TileCache cache = new TileCache(folder.newFolder("tiles"), 1000, 10000);
+        cache.put("a", tile(100, 1));
+        cache.trimMemory();
+        assertEquals(0, cache.getMemoryBytes());
+        assertArrayEquals(tile(100, 1), cache.get("a"));
+        assertEquals(1, cache.getDiskHitCount());
+    }
+
+}
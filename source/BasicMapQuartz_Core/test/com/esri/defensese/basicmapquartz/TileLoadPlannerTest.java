@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests TileLoadPlanner.
+ */
+public class TileLoadPlannerTest {
+
+    /**
+     * One pixel is 2 map units, so tiles are 1024 map units wide (level 10).
+     */
+    private static final double UNITS_PER_PIXEL = 2;
+
+    private static double[] viewport(double x, double y) {
+        // A 1000 x 800 pixel viewport
+        return new double[] { x, y, x + 1000 * UNITS_PER_PIXEL, y + 800 * UNITS_PER_PIXEL };
+    }
+
+    @Test
+    public void visibleTilesCoverViewportOnce() {
+        TileLoadPlanner planner = new TileLoadPlanner();
+        double[] extent = viewport(100, 100);
+        List<TileLoadPlanner.Tile> tiles = planner.update(extent, UNITS_PER_PIXEL).getTiles();
+
+        // Columns 0-2 and rows 0-1
+        assertEquals(6, tiles.size());
+        for (TileLoadPlanner.Tile tile : tiles) {
+            assertEquals(10, tile.getLevel());
+            assertFalse(tile.isPrefetch());
+            assertTrue(ExtentMath.intersects(extent, tile.getExtent()));
+            assertEquals(2, tile.getMaxAllowableOffset(), 0);
+        }
+        // The tile under the center comes first
+        assertEquals(1, tiles.get(0).getColumn());
+        assertEquals(0, tiles.get(0).getRow());
+
+        assertTrue(planner.update(extent, UNITS_PER_PIXEL).getTiles().isEmpty());
+    }
+
+    @Test
+    public void panPrefetchesTilesAhead() {
+        TileLoadPlanner planner = new TileLoadPlanner();
+        planner.update(viewport(100, 100), UNITS_PER_PIXEL);
+        List<TileLoadPlanner.Tile> tiles = planner.update(viewport(200, 100), UNITS_PER_PIXEL).getTiles();
+
+        // The visible tiles are already requested, so only the next column is new
+        assertEquals(2, tiles.size());
+        for (TileLoadPlanner.Tile tile : tiles) {
+            assertTrue(tile.isPrefetch());
+            assertEquals(3, tile.getColumn());
+        }
+    }
+
+    @Test
+    public void zoomingChangesLevelOnlyPastAFactorOfTwo() {
+        assertEquals(10, TileLoadPlanner.getLevel(2));
+        assertEquals(10, TileLoadPlanner.getLevel(2.5));
+        assertEquals(11, TileLoadPlanner.getLevel(3));
+        assertEquals(9, TileLoadPlanner.getLevel(1));
+
+        TileLoadPlanner planner = new TileLoadPlanner();
+        planner.update(viewport(100, 100), UNITS_PER_PIXEL);
+        List<TileLoadPlanner.Tile> tiles = planner.update(viewport(100, 100), UNITS_PER_PIXEL / 4).getTiles();
+        assertFalse(tiles.isEmpty());
+        for (TileLoadPlanner.Tile tile : tiles) {
+            assertEquals(8, tile.getLevel());
+            assertEquals(0.5, tile.getMaxAllowableOffset(), 0);
+        }
+    }
+
+    @Test
+    public void failedTilesAreRequestedAgain() {
+        TileLoadPlanner planner = new TileLoadPlanner();
+        List<TileLoadPlanner.Tile> tiles = planner.update(viewport(100, 100), UNITS_PER_PIXEL).getTiles();
+        planner.tileNotLoaded(tiles.get(0));
+        List<TileLoadPlanner.Tile> retried = planner.update(viewport(100, 100), UNITS_PER_PIXEL).getTiles();
+        assertEquals(1, retried.size());
+        assertEquals(tiles.get(0), retried.get(0));
+    }
+
+    @Test
+    public void startsOverAfterMaxTiles() {
+        TileLoadPlanner planner = new TileLoadPlanner(100, 20);
+        Set<TileLoadPlanner.Tile> seen = new HashSet<>();
+        boolean cleared = false;
+        for (int i = 0; i < 10; i++) {
+            TileLoadPlanner.Plan plan = planner.update(viewport(i * 5000, 0), UNITS_PER_PIXEL);
+            cleared |= plan.isClearCache();
+            seen.addAll(plan.getTiles());
+            assertTrue(planner.getRequestedTileCount() <= 20);
+        }
+        assertTrue(cleared);
+        assertTrue(seen.size() > 20);
+    }
+
+    @Test
+    public void invalidResolutionPlansNothing() {
+        TileLoadPlanner planner = new TileLoadPlanner();
+        assertTrue(planner.update(viewport(0, 0), 0).getTiles().isEmpty());
+        assertTrue(planner.update(viewport(0, 0), Double.NaN).getTiles().isEmpty());
+    }
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reading extracted tile packages with TilePackage and serving them with
+ * LocalTileServer.
+ */
+public class TilePackageTest {
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] tile(int level, int row, int column) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PNG_SIGNATURE);
+        out.write((level + "/" + row + "/" + column).getBytes("US-ASCII"));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a compact cache V2 bundle that holds the given tiles, each given as
+     * level, row and column.
+     */
+    private static void writeBundle(File file, int packetSize, int[]... tiles) throws IOException {
+        file.getParentFile().mkdirs();
+        RandomAccessFile bundle = new RandomAccessFile(file, "rw");
+        try {
+            long offset = 64 + 8L * packetSize * packetSize;
+            bundle.setLength(offset);
+            for (int[] levelRowColumn : tiles) {
+                byte[] tile = tile(levelRowColumn[0], levelRowColumn[1], levelRowColumn[2]);
+                // Like ArcGIS, precede each tile with its size
+                bundle.seek(offset);
+                bundle.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(tile.length).array());
+                bundle.write(tile);
+                long entry = ((long) tile.length << 40) | (offset + 4);
+                bundle.seek(64 + 8 * ((levelRowColumn[1] % packetSize) * packetSize + levelRowColumn[2] % packetSize));
+                bundle.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(entry).array());
+                offset += 4 + tile.length;
+            }
+        } finally {
+            bundle.close();
+        }
+    }
+
+    private File createRasterPackage() throws IOException {
+        File directory = folder.newFolder("raster");
+        write(new File(directory, "root.json"), ("{ \"name\": \"Test\", \"storageInfo\": "
+                + "{ \"storageFormat\": \"esriMapCacheStorageModeCompactV2\", \"packetSize\": 16 }, "
+                + "\"tileInfo\": { \"rows\": 256, \"cols\": 256 } }").getBytes("UTF-8"));
+        writeBundle(new File(directory, "tile/L00/R0000C0000.bundle"), 16, new int[] { 0, 0, 0 });
+        writeBundle(new File(directory, "tile/L05/R0010C0020.bundle"), 16,
+                new int[] { 5, 17, 33 }, new int[] { 5, 31, 47 });
+        return directory;
+    }
+
+    private static Response get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            response.contentType = connection.getContentType();
+            InputStream in = 400 > response.status ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (null != in) {
+                byte[] buffer = new byte[1024];
+                int count;
+                while (-1 != (count = in.read(buffer))) {
+                    out.write(buffer, 0, count);
+                }
+                in.close();
+            }
+            response.body = out.toByteArray();
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static class Response {
+        int status;
+        String contentType;
+        byte[] body;
+    }
+
+    @Test
+    public void readsTilesFromBundles() throws IOException {
+        TilePackage tilePackage = new TilePackage(createRasterPackage());
+        assertFalse(tilePackage.isVector());
+        assertEquals(16, tilePackage.getPacketSize());
+        assertEquals("tile/L05/R0010C0020.bundle", tilePackage.getBundleName(5, 17, 33));
+        assertArrayEquals(tile(0, 0, 0), tilePackage.getTile(0, 0, 0));
+        assertArrayEquals(tile(5, 17, 33), tilePackage.getTile(5, 17, 33));
+        assertArrayEquals(tile(5, 31, 47), tilePackage.getTile(5, 31, 47));
+        assertEquals(tile(5, 31, 47).length, tilePackage.getTileBuffer(5, 31, 47).remaining());
+    }
+
+    @Test
+    public void missingTilesAreNull() throws IOException {
+        TilePackage tilePackage = new TilePackage(createRasterPackage());
+        assertNull(tilePackage.getTile(5, 17, 34));
+        assertNull(tilePackage.getTile(5, 0, 0));
+        assertNull(tilePackage.getTile(12, 100, 100));
+        assertNull(tilePackage.getTile(-1, 0, 0));
+    }
+
+    @Test
+    public void detectsVectorTilePackages() throws IOException {
+        File directory = folder.newFolder("vector");
+        write(new File(directory, "p12/root.json"), "{ \"tiles\": [ \"tile/{z}/{y}/{x}.pbf\" ] }".getBytes("UTF-8"));
+        write(new File(directory, "p12/resources/styles/root.json"), "{}".getBytes("UTF-8"));
+        TilePackage tilePackage = new TilePackage(directory);
+        assertTrue(tilePackage.isVector());
+        assertEquals(TilePackage.DEFAULT_PACKET_SIZE, tilePackage.getPacketSize());
+        assertNotNull(tilePackage.getResource("resources/styles/root.json"));
+        assertNull(tilePackage.getResource("../p12/root.json"));
+        assertNull(tilePackage.getResource("resources/missing.json"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDirectoryWithoutPackage() throws IOException {
+        new TilePackage(folder.newFolder("empty"));
+    }
+
+    @Test
+    public void servesTilesAndServiceJson() throws IOException {
+        LocalTileServer server = new LocalTileServer(new TilePackage(createRasterPackage()), null);
+        server.start();
+        try {
+            String serviceUrl = server.getServiceUrl();
+            assertTrue(serviceUrl, serviceUrl.startsWith("http://127.0.0.1:"));
+            assertTrue(serviceUrl, serviceUrl.endsWith("/MapServer"));
+
+            Response service = get(serviceUrl + "?f=json");
+            assertEquals(200, service.status);
+            String json = new String(service.body, "UTF-8");
+            assertTrue(json, json.startsWith("{\"singleFusedMapCache\":true,"));
+            assertTrue(json, json.contains("\"packetSize\": 16"));
+
+            Response tile = get(serviceUrl + "/tile/5/17/33");
+            assertEquals(200, tile.status);
+            assertEquals("image/png", tile.contentType);
+            assertArrayEquals(tile(5, 17, 33), tile.body);
+
+            assertEquals(404, get(serviceUrl + "/tile/5/17/34").status);
+            assertEquals(404, get(serviceUrl + "/other").status);
+            assertEquals(1, server.getPackageTileCount());
+            assertEquals(1, server.getMissingTileCount());
+            assertEquals(0, server.getFallbackTileCount());
+        } finally {
+            server.stop();
+        }
+        assertNull(server.getServiceUrl());
+    }
+
+    @Test
+    public void fetchesMissingTilesFromFallback() throws IOException {
+        File onlineDirectory = folder.newFolder("online");
+        write(new File(onlineDirectory, "root.json"), "{}".getBytes("UTF-8"));
+        writeBundle(new File(onlineDirectory, "tile/L05/R0080C0000.bundle"), 128, new int[] { 5, 200, 3 });
+        LocalTileServer online = new LocalTileServer(new TilePackage(onlineDirectory), null);
+        online.start();
+        try {
+            LocalTileServer server = new LocalTileServer(new TilePackage(createRasterPackage()),
+                    online.getServiceUrl() + "/");
+            server.start();
+            try {
+                assertArrayEquals(tile(5, 17, 33), get(server.getServiceUrl() + "/tile/5/17/33").body);
+                assertArrayEquals(tile(5, 200, 3), get(server.getServiceUrl() + "/tile/5/200/3").body);
+                assertEquals(404, get(server.getServiceUrl() + "/tile/5/200/4").status);
+                assertEquals(1, server.getPackageTileCount());
+                assertEquals(1, server.getFallbackTileCount());
+                assertEquals(1, server.getMissingTileCount());
+                assertEquals(1, online.getPackageTileCount());
+            } finally {
+                server.stop();
+            }
+        } finally {
+            online.stop();
+        }
+    }
+
+    @Test
+    public void cachesFallbackTiles() throws IOException {
+        File onlineDirectory = folder.newFolder("online");
+        write(new File(onlineDirectory, "root.json"), "{ \"tileServers\": [ \"http://example.com\" ], \"name\": \"Online\" }"
+                .getBytes("UTF-8"));
+        writeBundle(new File(onlineDirectory, "tile/L05/R0080C0000.bundle"), 128, new int[] { 5, 200, 3 });
+        LocalTileServer online = new LocalTileServer(new TilePackage(onlineDirectory), null);
+        online.start();
+        try {
+            File cacheDirectory = folder.newFolder("cache");
+            for (int session = 0; session < 2; session++) {
+                TileCache tileCache = new TileCache(cacheDirectory, TileCache.DEFAULT_MAX_MEMORY_BYTES,
+                        TileCache.DEFAULT_MAX_DISK_BYTES);
+                LocalTileServer server = new LocalTileServer(null, online.getServiceUrl(), tileCache);
+                server.start();
+                try {
+                    String json = new String(get(server.getServiceUrl()).body, "UTF-8");
+                    assertFalse(json, json.contains("tileServers"));
+                    assertTrue(json, json.contains("\"name\": \"Online\""));
+                    for (int pan = 0; pan < 3; pan++) {
+                        assertArrayEquals(tile(5, 200, 3), get(server.getServiceUrl() + "/tile/5/200/3").body);
+                    }
+                    assertEquals(0 == session ? 1 : 0, server.getFallbackTileCount());
+                    // The second session reads the service JSON and the tile from disk
+                    assertEquals(0 == session ? 0 : 2, tileCache.getDiskHitCount());
+                    assertEquals(2, tileCache.getMemoryHitCount());
+                } finally {
+                    server.stop();
+                }
+            }
+            assertEquals(1, online.getPackageTileCount());
+        } finally {
+            online.stop();
+        }
+    }
+
+}
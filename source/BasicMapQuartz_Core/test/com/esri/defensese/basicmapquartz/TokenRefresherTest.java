@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that TokenRefresher refreshes stored tokens before they expire.
+ */
+public class TokenRefresherTest {
+
+    private static final String REALM = "https://a.example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void expiringTokenIsRefreshed() throws Exception {
+        final EncryptedCredentialStore store = new EncryptedCredentialStore(
+                new File(folder.getRoot(), "credentials"), new File(folder.getRoot(), "credentials.key"));
+        store.put(REALM, new EncryptedCredentialStore.Entry("alice", "secret", REALM + "/arcgis/rest/services",
+                "old", System.currentTimeMillis() + 200));
+
+        final AtomicInteger generated = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        TokenRefresher refresher = new TokenRefresher(store, new TokenRefresher.TokenGenerator() {
+            @Override
+            public TokenRefresher.Token generateToken(String resourceUrl, String username, String password)
+                    throws IOException {
+                assertEquals("alice", username);
+                assertEquals("secret", password);
+                generated.incrementAndGet();
+                latch.countDown();
+                return new TokenRefresher.Token("new", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+            }
+        });
+        refresher.setRefreshMarginMillis(150);
+        try {
+            refresher.start();
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"new".equals(store.get(REALM).getToken()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("new", store.get(REALM).getToken());
+
+            // The new token lasts an hour, so no other refresh happens soon
+            Thread.sleep(300);
+            assertEquals(1, generated.get());
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    public void pausedRefresherWaitsForResume() throws Exception {
+        EncryptedCredentialStore store = new EncryptedCredentialStore(
+                new File(folder.getRoot(), "credentials"), new File(folder.getRoot(), "credentials.key"));
+        store.put(REALM, new EncryptedCredentialStore.Entry("alice", "secret", REALM + "/arcgis/rest/services",
+                "old", System.currentTimeMillis() + 200));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        TokenRefresher refresher = new TokenRefresher(store, new TokenRefresher.TokenGenerator() {
+            @Override
+            public TokenRefresher.Token generateToken(String resourceUrl, String username, String password) {
+                latch.countDown();
+                return new TokenRefresher.Token("new", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+            }
+        });
+        refresher.setRefreshMarginMillis(150);
+        try {
+            refresher.pause();
+            refresher.start();
+            assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+
+            // The token is now overdue, so it is refreshed as soon as the refresher resumes
+            refresher.resume();
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests UiUpdateDispatcher with a UI executor that queues flushes until the test
+ * runs them, like a UI thread that is busy until the next frame.
+ */
+public class UiUpdateDispatcherTest {
+
+    /**
+     * A UI executor whose tasks run when the test calls runAll.
+     */
+    private static class QueuedExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        synchronized void runAll() {
+            List<Runnable> toRun = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : toRun) {
+                task.run();
+            }
+        }
+
+    }
+
+    private static Runnable append(final List<String> log, final String entry) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(entry);
+            }
+        };
+    }
+
+    @Test
+    public void latestUpdatePerKeyWins() {
+        QueuedExecutor ui = new QueuedExecutor();
+        UiUpdateDispatcher dispatcher = new UiUpdateDispatcher(ui);
+        List<String> log = new ArrayList<>();
+
+        dispatcher.post("a", append(log, "a1"));
+        dispatcher.post("b", append(log, "b1"));
+        dispatcher.post("a", append(log, "a2"));
+        assertEquals(1, ui.tasks.size());
+        ui.runAll();
+
+        assertEquals(2, log.size());
+        assertEquals("b1", log.get(0));
+        assertEquals("a2", log.get(1));
+        assertEquals(3, dispatcher.getPostCount());
+        assertEquals(2, dispatcher.getUpdateCount());
+        assertEquals(1, dispatcher.getFlushCount());
+    }
+
+    @Test
+    public void postAfterFlushSchedulesAnotherFlush() {
+        QueuedExecutor ui = new QueuedExecutor();
+        UiUpdateDispatcher dispatcher = new UiUpdateDispatcher(ui);
+        List<String> log = new ArrayList<>();
+
+        dispatcher.post("a", append(log, "a1"));
+        ui.runAll();
+        dispatcher.post("a", append(log, "a2"));
+        assertEquals(1, ui.tasks.size());
+        ui.runAll();
+
+        assertEquals(2, log.size());
+        assertEquals("a2", log.get(1));
+    }
+
+    @Test
+    public void failedUpdateDoesNotStopOthers() {
+        QueuedExecutor ui = new QueuedExecutor();
+        UiUpdateDispatcher dispatcher = new UiUpdateDispatcher(ui);
+        List<String> log = new ArrayList<>();
+
+        dispatcher.post("a", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Label disposed");
+            }
+        });
+        dispatcher.post("b", append(log, "b1"));
+        ui.runAll();
+
+        assertEquals(1, log.size());
+        assertEquals("b1", log.get(0));
+    }
+
+    @Test
+    public void manyThreadsFloodingFewKeys() throws Exception {
+        final QueuedExecutor ui = new QueuedExecutor();
+        final UiUpdateDispatcher dispatcher = new UiUpdateDispatcher(ui);
+        final int threadCount = 8;
+        final int postsPerThread = 10000;
+        final int layerCount = 50;
+        final int[] lastValues = new int[layerCount];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < postsPerThread; i++) {
+                        final int layer = i % layerCount;
+                        final int value = i;
+                        dispatcher.post(layer, new Runnable() {
+                            @Override
+                            public void run() {
+                                lastValues[layer] = value;
+                            }
+                        });
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ui.runAll();
+
+        assertEquals(threadCount * postsPerThread, dispatcher.getPostCount());
+        assertEquals(1, dispatcher.getFlushCount());
+        assertEquals(layerCount, dispatcher.getUpdateCount());
+        for (int layer = 0; layer < layerCount; layer++) {
+            assertEquals(postsPerThread - layerCount + layer, lastValues[layer]);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests WhereClause.
+ */
+public class WhereClauseTest {
+
+    private static Map<String, Object> site(String name, Integer visitors) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("Name", name);
+        attributes.put("Visitors", visitors);
+        return attributes;
+    }
+
+    private static boolean matches(String expression, Map<String, Object> attributes) throws ParseException {
+        return WhereClause.parse(expression).matches(attributes);
+    }
+
+    @Test
+    public void evaluatesComparisons() throws ParseException {
+        Map<String, Object> site = site("Santa Fe", 120);
+        assertTrue(matches("Visitors = 120", site));
+        assertTrue(matches("visitors >= 100 AND visitors < 200", site));
+        assertTrue(matches("Name = 'Santa Fe'", site));
+        assertFalse(matches("Name = 'santa fe'", site));
+        assertTrue(matches("Name <> 'Taos' AND 100 < Visitors", site));
+        assertTrue(matches("Visitors BETWEEN 100 AND 120", site));
+        assertTrue(matches("Visitors NOT BETWEEN 121 AND 200", site));
+        assertTrue(matches("Name IN ('Taos', 'Santa Fe')", site));
+        assertTrue(matches("Visitors NOT IN (1, 2, -3.5)", site));
+        assertTrue(matches("1 = 1", site));
+        assertTrue(matches("\"Name\" IS NOT NULL", site));
+    }
+
+    @Test
+    public void likeIgnoresCase() throws ParseException {
+        Map<String, Object> site = site("Santa Fe", 120);
+        assertTrue(matches("Name LIKE '%Sa%'", site));
+        assertTrue(matches("Name LIKE 'sant_ %'", site));
+        assertTrue(matches("UPPER(Name) LIKE '%FE'", site));
+        assertFalse(matches("Name LIKE '%Sa'", site));
+        assertTrue(matches("Name NOT LIKE 'Taos%'", site));
+        assertTrue(matches("Visitors LIKE '12%'", site));
+        assertTrue(matches("LOWER(Name) = 'santa fe'", site));
+    }
+
+    @Test
+    public void nullsAreNeitherTrueNorFalse() throws ParseException {
+        Map<String, Object> site = site(null, null);
+        assertFalse(matches("Visitors > 0", site));
+        assertFalse(matches("NOT Visitors > 0", site));
+        assertFalse(matches("Name LIKE '%'", site));
+        assertTrue(matches("Visitors > 0 OR 1 = 1", site));
+        assertTrue(matches("Name IS NULL AND Visitors IS NULL", site));
+        assertTrue(matches("Missing IS NULL", site));
+    }
+
+    @Test
+    public void operatorPrecedence() throws ParseException {
+        Map<String, Object> site = site("Taos", 5);
+        assertTrue(matches("Name = 'Taos' OR Visitors > 10 AND Visitors < 20", site));
+        assertFalse(matches("(Name = 'Taos' OR Visitors > 10) AND Visitors < 2", site));
+        assertTrue(matches("NOT Name = 'Santa Fe' AND NOT (Visitors = 6)", site));
+    }
+
+    @Test
+    public void emptyClauseMatchesEverything() throws ParseException {
+        assertTrue(WhereClause.parse(null).matches(site("Taos", 5)));
+        assertTrue(WhereClause.parse(" ").matches(site(null, null)));
+    }
+
+    @Test
+    public void rejectsUnsupportedSyntax() {
+        String[] invalid = { "Name", "Name = ", "Name LIKE Other", "Visitors > 1 AND", "(Visitors > 1",
+                "Name = 'unterminated", "DATE_DIFF(Name) > 1", "Name NOT = 'x'", "Visitors - 1 > 0",
+                "Name = 'x' extra", "Name # 'x'" };
+        for (String expression : invalid) {
+            try {
+                WhereClause.parse(expression);
+                fail("Parsed " + expression);
+            } catch (ParseException e) {
+                assertTrue(e.getErrorOffset() >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void andCombinesClauses() {
+        assertEquals("(a = 1) AND (b = 2)", WhereClause.and("a = 1", "b = 2"));
+        assertEquals("a = 1", WhereClause.and("a = 1", null));
+        assertEquals("b = 2", WhereClause.and("", "b = 2"));
+        assertNull(WhereClause.and(null, " "));
+    }
+
+    @Test
+    public void indexSelectionMatchesEvaluation() throws ParseException {
+        Random random = new Random(42);
+        String[] words = { "Santa", "Fe", "Taos", "Sandia", "Salinas", "Gila", "Aztec", "Pecos" };
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String name = 0 == i % 50 ? null
+                    : words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+            Integer visitors = 0 == i % 37 ? null : random.nextInt(1000);
+            Map<String, Object> row = site(name, visitors);
+            if (0 == i % 101) {
+                // A field of mixed types
+                row.put("Visitors", "unknown");
+            }
+            rows.add(row);
+        }
+        AttributeIndex index = new AttributeIndex(rows);
+        String[] expressions = {
+            "Name LIKE '%Sa%'", "Name LIKE '%san%'", "UPPER(Name) LIKE '%TAOS%'", "Name LIKE 'Gila%'",
+            "Visitors = 500", "Visitors <> 500", "Visitors < 10", "10 >= Visitors", "Visitors > 990",
+            "Visitors BETWEEN 100 AND 200", "Visitors BETWEEN 200 AND 100", "Name BETWEEN 'P' AND 'T'",
+            "Visitors IN (1, 2, 3, 500)", "Name IN ('Taos Fe', 'Fe Fe')", "Name = 'Santa Fe'", "Name >= 'S'",
+            "Name LIKE '%ec%' AND Visitors > 500", "Name LIKE '%ec%' OR Visitors < 50",
+            "Visitors < 50 AND NOT Name LIKE '%a%'", "NOT Visitors > 500", "Name IS NULL OR Visitors IS NULL",
+            "Visitors = 'unknown'", "Name LIKE '%zz%'", "1 = 1"
+        };
+        for (String expression : expressions) {
+            WhereClause clause = WhereClause.parse(expression);
+            BitSet expected = new BitSet();
+            for (int i = 0; i < rows.size(); i++) {
+                if (clause.matches(rows.get(i))) {
+                    expected.set(i);
+                }
+            }
+            assertEquals(expression, expected, clause.select(index));
+        }
+    }
+
+}
@@ -15,16 +15,19 @@
  ******************************************************************************/
 package com.esri.defensese.basicmapquartz;
 
-import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
-import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
 import com.esri.arcgisruntime.geometry.Envelope;
-import com.esri.arcgisruntime.geometry.EnvelopeBuilder;
+import com.esri.arcgisruntime.geometry.Polygon;
 import com.esri.arcgisruntime.layers.FeatureLayer;
 import com.esri.arcgisruntime.loadable.LoadStatus;
 import com.esri.arcgisruntime.loadable.LoadStatusChangedEvent;
 import com.esri.arcgisruntime.loadable.LoadStatusChangedListener;
 import com.esri.arcgisruntime.mapping.Basemap;
+import com.esri.arcgisruntime.mapping.GeoElement;
 import com.esri.arcgisruntime.mapping.Map;
+import com.esri.arcgisruntime.mapping.view.GraphicsOverlay;
+import com.esri.arcgisruntime.mapping.view.IdentifyLayerResult;
 import com.esri.arcgisruntime.mapping.view.MapView;
 import com.esri.arcgisruntime.security.AuthenticationChallenge;
 import com.esri.arcgisruntime.security.AuthenticationChallengeAction;
@@ -32,22 +35,37 @@ import com.esri.arcgisruntime.security.AuthenticationChallengeHandler;
 import com.esri.arcgisruntime.security.AuthenticationChallengeResponse;
 import com.esri.arcgisruntime.security.AuthenticationManager;
 import com.esri.arcgisruntime.security.UserCredential;
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import java.util.logging.Logger;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.DialogPane;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.MenuButton;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextField;
 import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 /**
@@ -58,63 +76,92 @@ public class AppFXMain extends Application {
 
     private static final Logger logger = Logger.getLogger(AppFXMain.class.getName());
 
+    private static final String BASEMAP_TASK = "basemap";
+    private static final String MAP_TASK = "map";
+    private static final String VIEWPOINT_TASK = "viewpoint";
+
     private final MapView mapView;
     private final Map map;
     private final Label layerStatusLabel = new Label();
     private final Label srLabel = new Label();
+    // Label updates from Runtime threads are coalesced so that each label is set once per pulse
+    private final UiUpdateDispatcher uiUpdates = new UiUpdateDispatcher(Platform::runLater);
     
-    private CountDownLatch loginLatch = null;
-    private UserCredential credential = null;
+    private final CredentialPromptBroker credentialPromptBroker;
+    private TokenRefresher tokenRefresher = null;
+    private final LoadOrchestrator loadOrchestrator = new LoadOrchestrator();
+    private final MapDefinitionApplier mapDefinitionApplier;
+    private final MapDefinitionWatcher mapDefinitionWatcher;
+    private final FeatureExporter featureExporter = new FeatureExporter();
+    private EditJournal editJournal = null;
+    private EditSyncWorker editSyncWorker = null;
+    private final Metrics metrics = new Metrics();
+    private final MetricsServer metricsServer = new MetricsServer(metrics);
+    private final FrameTimer frameTimer;
+    private final GeoElementLabeler geoElementLabeler = new GeoElementLabeler();
+    private final ListView<String> identifyResultsList = new ListView<>();
+    private final FeatureSearch featureSearch = new FeatureSearch();
+    private final TextField searchField = new TextField();
+    private final ListView<String> searchResultsList = new ListView<>();
+    private List<FeatureSearchIndex.Hit> searchHits = Collections.emptyList();
+    private final MultiLayerIdentifier<Point2D, LabeledGeoElements> layerIdentifier;
+    private final IdentifyDispatcher<Point2D, MultiLayerIdentifier.Result<LabeledGeoElements>> identifyDispatcher;
+    private volatile String primaryLayerId = null;
+    private int layerTaskCount = 0;
+    private boolean zoomedToLayer = false;
     
     /**
      * Instantiates the app and creates and displays the map.
      */
     public AppFXMain() {
-        //Unsecured feature service
-        String featureServiceUrl = "http://services.arcgis.com/hRUr1F8lE8Jq2uJo/arcgis/rest/services/KFSD_Fire_Stations/FeatureServer/0";
-        String definitionExpression = "1 = 1";
+        File appDirectory = new File(System.getProperty("user.home"), ".basicmapquartz");
 
         /**
          * *********************************************************************
          * 4. Centralized handling of authentication
          */
-        //Secured feature service
-        featureServiceUrl = "https://services1.arcgis.com/63cSRCcqLtJKDSR2/arcgis/rest/services/nhsvc_sites/FeatureServer/0";
-        definitionExpression = "Name LIKE '%Sa%'";
-        AuthenticationManager.setAuthenticationChallengeHandler(new AuthenticationChallengeHandler() {
+        credentialPromptBroker = new CredentialPromptBroker((realm, result) -> Platform.runLater(() -> {
+            try {
+                FXMLLoader loginDialogLoader = new FXMLLoader(AppFXMain.this.getClass().getResource("LoginDialog.fxml"));
+                DialogPane dialogPane = loginDialogLoader.load();
+                Dialog<ButtonType> loginDialog = new Dialog<>();
+                loginDialog.setDialogPane(dialogPane);
+                loginDialog.setHeaderText("Sign in to " + realm);
+                loginDialog.setOnHidden(event -> {
+                    if (ButtonType.OK.equals(loginDialog.getResult())) {
+                        LoginDialogController controller = loginDialogLoader.getController();
+                        result.complete(controller.getUserCredential());
+                    } else {
+                        result.complete(null);
+                    }
+                });
+                // Close the dialog if the wait times out or is cancelled
+                result.whenComplete((credential, error) -> Platform.runLater(loginDialog::close));
+                loginDialog.show();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+                result.complete(null);
+            }
+        }));
+        AuthenticationChallengeHandler promptingHandler = new AuthenticationChallengeHandler() {
 
             @Override
             public AuthenticationChallengeResponse handleChallenge(AuthenticationChallenge challenge) {
                 AuthenticationChallengeResponse response = null;
                 switch (challenge.getType()) {
                     case USER_CREDENTIAL_CHALLENGE:
-                        loginLatch = new CountDownLatch(1);
-                        credential = null;
-                        Platform.runLater(() -> {
-                            try {
-                                FXMLLoader loginDialogLoader = new FXMLLoader(AppFXMain.this.getClass().getResource("LoginDialog.fxml"));
-                                DialogPane dialogPane = loginDialogLoader.load();
-                                Dialog<ButtonType> loginDialog = new Dialog<>();
-                                loginDialog.setDialogPane(dialogPane);
-                                ButtonType buttonType  = loginDialog.showAndWait().get();
-                                if (ButtonType.OK.equals(buttonType)) {
-                                    LoginDialogController controller = loginDialogLoader.getController();
-                                    credential = controller.getUserCredential();
-                                }
-                            } catch (IOException ex) {
-                                Logger.getLogger(AppFXMain.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-                            loginLatch.countDown();
-                        });
                         try {
-                            loginLatch.await();
+                            // Concurrent challenges for the same server share one prompt
+                            UserCredential credential = credentialPromptBroker.getCredential(
+                                    StoredCredentialChallengeHandler.getRealm(challenge));
                             if (null != credential) {
                                 response = new AuthenticationChallengeResponse(AuthenticationChallengeAction.CONTINUE_WITH_CREDENTIAL, credential);
                             } else {
                                 response = new AuthenticationChallengeResponse(AuthenticationChallengeAction.CANCEL, "No credentials entered by user");
                             }
                         } catch (InterruptedException ex) {
-                            Logger.getLogger(AppFXMain.class.getName()).log(Level.SEVERE, null, ex);
+                            Thread.currentThread().interrupt();
+                            response = new AuthenticationChallengeResponse(AuthenticationChallengeAction.CANCEL, "Interrupted while waiting for credentials");
                         }
                         break;
 
@@ -128,7 +175,22 @@ public class AppFXMain extends Application {
                 }
                 return response;
             }
-        });
+        };
+        AuthenticationChallengeHandler challengeHandler = promptingHandler;
+        EncryptedCredentialStore credentialStore = null;
+        try {
+            // Remember credentials and tokens across launches
+            credentialStore = new EncryptedCredentialStore(
+                    new File(appDirectory, "credentials"), new File(appDirectory, "credentials.key"));
+            ArcGISTokenGenerator tokenGenerator = new ArcGISTokenGenerator();
+            tokenRefresher = new TokenRefresher(credentialStore, tokenGenerator);
+            tokenRefresher.start();
+            challengeHandler = new StoredCredentialChallengeHandler(
+                    credentialStore, tokenRefresher, tokenGenerator.getReferer(), promptingHandler);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not open credential store", ex);
+        }
+        AuthenticationManager.setAuthenticationChallengeHandler(challengeHandler);
 
         /**
          * *********************************************************************
@@ -138,63 +200,378 @@ public class AppFXMain extends Application {
         mapView = new MapView();
 
         this.map = new Map();
-        map.setBasemap(Basemap.createTopographic());
 
-        ArcGISFeatureTable featureTable = new ServiceFeatureTable(featureServiceUrl);
-        final FeatureLayer featureLayer = new FeatureLayer(featureTable);
-        featureLayer.setDefinitionExpression(definitionExpression);
-        map.getOperationalLayers().add(featureLayer);
+        /**
+         * *********************************************************************
+         * 6. Take layers offline
+         * The map comes from a map definition file; see the README.
+         */
+        GraphicsOverlay clusterOverlay = new GraphicsOverlay();
+        mapView.getGraphicsOverlays().add(clusterOverlay);
+        mapDefinitionApplier = new MapDefinitionApplier(new File(appDirectory, "featureCache"),
+                new File(appDirectory, "tileCache"), new MapDefinitionApplier.Listener() {
+                    @Override
+                    public void basemapChanged(Basemap basemap) {
+                        Platform.runLater(() -> {
+                            if (map.getBasemap() != basemap) {
+                                map.setBasemap(basemap);
+                            }
+                            mapDefinitionApplier.basemapShown(basemap);
+                        });
+                    }
+
+                    @Override
+                    public void layerAdded(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer, boolean fromCache) {
+                        logger.log(Level.INFO, "Feature layer {0} created from {1}",
+                                new Object[] { layerDefinition.getId(), fromCache ? "local cache" : "feature service" });
+                        Platform.runLater(() -> addFeatureLayer(layerDefinition, featureLayer));
+                    }
+
+                    @Override
+                    public void layerRemoved(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer) {
+                        Platform.runLater(() -> map.getOperationalLayers().remove(featureLayer));
+                    }
+
+                    @Override
+                    public void featuresChanged(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer) {
+                        // Clusters and the search index are rebuilt by the applier
+                    }
+                }, clusterOverlay);
+        mapDefinitionApplier.setCredentialStore(credentialStore);
+        mapDefinitionApplier.setFeatureSearch(featureSearch);
+        try {
+            editJournal = new EditJournal(new File(appDirectory, "edits.journal"));
+            editSyncWorker = new EditSyncWorker(editJournal);
+            mapDefinitionApplier.setEditSyncWorker(editSyncWorker);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not open edit journal", ex);
+        }
 
         /**
          * *********************************************************************
-         * 3. Loadable pattern
+         * 8. Metrics
+         * Layer load times, identify and feature download latencies, tile cache
+         * hits and frame times are served for Prometheus at
+         * http://127.0.0.1:9464/metrics and as JSON at /metrics.json.
          */
-        layerStatusLabel.setText("Layer: " + LoadStatus.NOT_LOADED);
-        featureLayer.addLoadStatusChangedListener(new LoadStatusChangedListener() {
-            @Override
-            public void loadStatusChanged(LoadStatusChangedEvent evt) {
-                LoadStatus newLoadStatus = evt.getNewLoadStatus();
-                Platform.runLater(() -> {
-                    layerStatusLabel.setText("Layer: " + newLoadStatus.toString());
+        mapDefinitionApplier.setMetrics(metrics);
+        if (null != editSyncWorker) {
+            editSyncWorker.setMetrics(metrics);
+        }
+        try {
+            metricsServer.start(Integer.getInteger("basicmapquartz.metricsPort", MetricsServer.DEFAULT_PORT));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not start the metrics server", ex);
+        }
+        LatencyHistogram frameHistogram = metrics.histogram("bmq_frame_seconds",
+                "Time between frames drawn by the JavaFX application thread.");
+        frameTimer = new FrameTimer(frameHistogram);
+        mapDefinitionWatcher = new MapDefinitionWatcher(new File(appDirectory, "map_definition.json"),
+                new MapDefinitionWatcher.Listener() {
+                    @Override
+                    public void mapDefinitionChanged(MapDefinition mapDefinition) {
+                        logger.info("Map definition changed; applying it");
+                        applyMapDefinition(mapDefinition);
+                    }
+
+                    @Override
+                    public void mapDefinitionFailed(IOException error) {
+                        logger.log(Level.WARNING, "Could not read map definition; keeping the current map", error);
+                    }
                 });
-                if (LoadStatus.LOADED.equals(newLoadStatus)) {
-                    Envelope fullExtent = featureLayer.getFullExtent();
-                    
-                    /**
-                     * *********************************************************
-                     * 5. Geometry objects
-                     */
-                    EnvelopeBuilder envBuilder = new EnvelopeBuilder(fullExtent);
-                    double halfWidth = envBuilder.getWidth() / 2.0;
-                    double halfHeight = envBuilder.getHeight() / 2.0;
-                    envBuilder.setXMin(envBuilder.getXMin() - halfWidth);
-                    envBuilder.setXMax(envBuilder.getXMax() + halfWidth);
-                    envBuilder.setYMin(envBuilder.getYMin() - halfHeight);
-                    envBuilder.setYMax(envBuilder.getYMax() + halfHeight);
-                    fullExtent = envBuilder.toGeometry();
-                    logger.log(Level.INFO,
-                            "By the way, the spatial reference of this geometry is "
-                                    + fullExtent.getSpatialReference().getWKText()
-                                    + ". Try doing THAT with ArcGIS Runtime 10.2.x!");
-
-                    mapView.setViewpointGeometryAsync(fullExtent);
+        try {
+            MapDefinitionWatcher.createIfMissing(mapDefinitionWatcher.getFile());
+            applyMapDefinition(mapDefinitionWatcher.load());
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not read map definition " + mapDefinitionWatcher.getFile(), ex);
+        }
+        mapDefinitionWatcher.start(MapDefinitionWatcher.DEFAULT_POLL_MILLIS);
+        // Give the map the map definition's basemap, not one that is replaced at once
+        Basemap basemap = mapDefinitionApplier.getBasemap();
+        if (null == basemap) {
+            basemap = MapDefinitionApplier.createBasemap(MapDefinition.DEFAULT_BASEMAP);
+        }
+        map.setBasemap(basemap);
+        mapView.addViewpointChangedListener(event -> {
+            frameTimer.mapActive();
+            // Load the visible tiles of layers whose cache policy is viewport and update clusters
+            Polygon visibleArea = mapView.getVisibleArea();
+            if (null != visibleArea && 0 < mapView.getWidth()) {
+                Envelope visibleExtent = visibleArea.getExtent();
+                mapDefinitionApplier.viewpointChanged(visibleExtent, visibleExtent.getWidth() / mapView.getWidth());
+            }
+        });
+
+        /**
+         * *********************************************************************
+         * 9. Identify and select features in every layer
+         * A click identifies all loaded, visible layers at once, off the JavaFX
+         * application thread. The results of each layer are listed and selected as
+         * soon as that layer answers, and a newer click cancels an older one.
+         */
+        layerIdentifier = new MultiLayerIdentifier<>(() -> {
+            List<MultiLayerIdentifier.LayerIdentifier<Point2D, LabeledGeoElements>> layers = new ArrayList<>();
+            mapDefinitionApplier.getFeatureLayers().forEach((layerId, featureLayer) -> {
+                if (LoadStatus.LOADED == featureLayer.getLoadStatus() && featureLayer.isVisible()) {
+                    layers.add(new FeatureLayerIdentifier(layerId, featureLayer));
                 }
+            });
+            return layers;
+        });
+        identifyDispatcher = new IdentifyDispatcher<>(layerIdentifier, Platform::runLater,
+                new IdentifyDispatcher.PartialResultListener<MultiLayerIdentifier.Result<LabeledGeoElements>>() {
+                    @Override
+                    public void identifyPartialResult(MultiLayerIdentifier.Result<LabeledGeoElements> partialResult) {
+                        showIdentifyResult(partialResult);
+                    }
+
+                    @Override
+                    public void identifyResult(MultiLayerIdentifier.Result<LabeledGeoElements> result) {
+                        showIdentifyResult(result);
+                    }
+
+                    @Override
+                    public void identifyFailed(Throwable error) {
+                        logger.log(Level.WARNING, "Could not get identify result", error);
+                    }
+                });
+        identifyDispatcher.setMetrics(metrics, "all");
+        mapView.setOnMouseClicked(event -> {
+            if (event.isStillSincePress()) {
+                frameTimer.mapActive();
+                clearSelection();
+                identifyDispatcher.tap(new Point2D(event.getX(), event.getY()));
             }
         });
-        srLabel.setText("SR: " + getSpatialReferenceString(map));
+
+        srLabel.setText(StatusText.spatialReference(getWkid(map)));
         map.addDoneLoadingListener(new Runnable() {
             public void run() {
-                Platform.runLater(() -> {
-                    srLabel.setText("SR: " + getSpatialReferenceString(map));
+                uiUpdates.post(srLabel, () -> {
+                    srLabel.setText(StatusText.spatialReference(getWkid(map)));
                 });
             }
         });
 
+        /**
+         * *********************************************************************
+         * 7. Load the map, basemap and layers concurrently
+         */
+        loadOrchestrator.setListener(new LoadOrchestrator.Listener() {
+            @Override
+            public void taskFinished(String name, Throwable error, LoadOrchestrator.Timing timing) {
+                if (BASEMAP_TASK.equals(name) || MAP_TASK.equals(name)) {
+                    metrics.histogram("bmq_startup_task_seconds", "Time taken by the map and basemap to load.",
+                            "task", name).record(TimeUnit.MILLISECONDS.toMicros(timing.getLoadMillis()));
+                }
+                if (null == error) {
+                    logger.log(Level.INFO, "Loaded {0} in {1} ms, {2} ms after startup",
+                            new Object[] { name, timing.getLoadMillis(), timing.getFinishMillis() });
+                } else {
+                    logger.log(Level.WARNING, "Could not load " + name, error);
+                }
+            }
+
+            @Override
+            public void criticalTasksFinished(long elapsedMillis) {
+                logger.log(Level.INFO, "Map ready {0} ms after startup", elapsedMillis);
+            }
+        });
+        loadOrchestrator.add(BASEMAP_TASK, true, new LoadableLoadTask(basemap));
+        loadOrchestrator.add(MAP_TASK, true, new LoadableLoadTask(map));
+
         mapView.setMap(map);
     }
 
-    private static String getSpatialReferenceString(Map map) {
-        return (null == map.getSpatialReference() ? "null" : Integer.toString(map.getSpatialReference().getWKID()));
+    /**
+     * Applies a map definition. The first layer in the map definition is the
+     * primary layer, whose load status is shown in the layer status label.
+     * @param mapDefinition the map definition.
+     */
+    private void applyMapDefinition(MapDefinition mapDefinition) {
+        List<MapDefinition.LayerDefinition> layers = mapDefinition.getLayers();
+        primaryLayerId = layers.isEmpty() ? null : layers.get(0).getId();
+        mapDefinitionApplier.apply(mapDefinition);
+    }
+
+    /**
+     * Adds a feature layer to the map and loads it, then zooms to the primary layer,
+     * whichever layer is created first, when it and the map have loaded. Called on
+     * the FX application thread.
+     * @param layerDefinition the layer's definition.
+     * @param featureLayer the FeatureLayer to add.
+     */
+    private void addFeatureLayer(MapDefinition.LayerDefinition layerDefinition, final FeatureLayer featureLayer) {
+        map.getOperationalLayers().add(featureLayer);
+        String layerId = layerDefinition.getId();
+        metrics.recordLoadStatus(layerId, featureLayer.getLoadStatus().name());
+        featureLayer.addLoadStatusChangedListener(
+                evt -> metrics.recordLoadStatus(layerId, evt.getNewLoadStatus().name()));
+
+        /**
+         * *********************************************************************
+         * 3. Loadable pattern
+         */
+        if (layerId.equals(primaryLayerId)) {
+            uiUpdates.post(layerStatusLabel, () -> {
+                layerStatusLabel.setText(StatusText.layerStatus(LoadStatus.NOT_LOADED));
+            });
+            featureLayer.addLoadStatusChangedListener(new LoadStatusChangedListener() {
+                @Override
+                public void loadStatusChanged(LoadStatusChangedEvent evt) {
+                    LoadStatus newLoadStatus = evt.getNewLoadStatus();
+                    uiUpdates.post(layerStatusLabel, () -> {
+                        layerStatusLabel.setText(StatusText.layerStatus(newLoadStatus));
+                    });
+                }
+            });
+        }
+
+        // A layer can be added again when the map definition changes, so name each load
+        String layerTask = "layer " + layerDefinition.getId() + " #" + (++layerTaskCount);
+        loadOrchestrator.add(layerTask, false, new LoadableLoadTask(featureLayer));
+        if (!zoomedToLayer && layerDefinition.getId().equals(primaryLayerId)) {
+            zoomedToLayer = true;
+            loadOrchestrator.add(VIEWPOINT_TASK, false, callback -> Platform.runLater(() -> {
+                zoomToLayer(featureLayer);
+                callback.loaded();
+            }), layerTask, MAP_TASK);
+        }
+    }
+
+    /**
+     * Zooms to a loaded layer's full extent, expanded so that the layer fills the
+     * middle of the map. Called on the FX application thread.
+     * @param featureLayer the loaded FeatureLayer.
+     */
+    private void zoomToLayer(FeatureLayer featureLayer) {
+        Envelope fullExtent = featureLayer.getFullExtent();
+
+        /**
+         * *********************************************************
+         * 5. Geometry objects
+         */
+        fullExtent = Envelopes.expand(fullExtent, ExtentMath.ZOOM_MARGIN);
+        logger.log(Level.INFO,
+                "By the way, the spatial reference of this geometry is "
+                        + fullExtent.getSpatialReference().getWKText()
+                        + ". Try doing THAT with ArcGIS Runtime 10.2.x!");
+
+        mapView.setViewpointGeometryAsync(fullExtent);
+    }
+
+    /**
+     * Identifies one FeatureLayer with the MapView. The identify is started on the
+     * FX application thread, since the MapView may only be used there.
+     */
+    private class FeatureLayerIdentifier implements MultiLayerIdentifier.LayerIdentifier<Point2D, LabeledGeoElements> {
+
+        private final String layerId;
+        private final FeatureLayer featureLayer;
+
+        FeatureLayerIdentifier(String layerId, FeatureLayer featureLayer) {
+            this.layerId = layerId;
+            this.featureLayer = featureLayer;
+        }
+
+        @Override
+        public String getLayerId() {
+            return layerId;
+        }
+
+        @Override
+        public Future<?> identify(Point2D screenPoint, double tolerance, int maxResults,
+                IdentifyDispatcher.IdentifyCallback<LabeledGeoElements> callback) {
+            return DeferredFuture.start(Platform::runLater, () -> {
+                ListenableFuture<IdentifyLayerResult> future;
+                try {
+                    future = mapView.identifyLayerAsync(featureLayer, screenPoint, tolerance, maxResults);
+                } catch (RuntimeException ex) {
+                    callback.identifyFailed(ex);
+                    throw ex;
+                }
+                future.addDoneListener(() -> {
+                    try {
+                        callback.identifyCompleted(geoElementLabeler.label(
+                                future.get().getIdentifiedElements(), featureLayer.getName()));
+                    } catch (CancellationException ex) {
+                        // Superseded by a newer click
+                    } catch (InterruptedException | ExecutionException ex) {
+                        callback.identifyFailed(ex);
+                    }
+                });
+                return future;
+            });
+        }
+
+    }
+
+    /**
+     * Lists the features identified in the layers that have answered a click and
+     * selects them in their layers.
+     * @param result the layers' results.
+     */
+    private void showIdentifyResult(MultiLayerIdentifier.Result<LabeledGeoElements> result) {
+        List<String> rows = new ArrayList<>();
+        for (MultiLayerIdentifier.LayerResult<LabeledGeoElements> layerResult : result.getLayerResults()) {
+            LabeledGeoElements elements = layerResult.getResult();
+            FeatureLayer featureLayer = mapDefinitionApplier.getFeatureLayer(layerResult.getLayerId());
+            if (null == elements || null == featureLayer) {
+                continue;
+            }
+            for (int i = 0; i < elements.size(); i++) {
+                rows.add(elements.getLayerName(i) + ": " + elements.getLabel(i));
+                GeoElement geoElement = elements.getGeoElement(i);
+                if (geoElement instanceof Feature) {
+                    featureLayer.selectFeature((Feature) geoElement);
+                }
+            }
+        }
+        identifyResultsList.getItems().setAll(rows);
+        identifyResultsList.setVisible(!rows.isEmpty());
+    }
+
+    /**
+     * Searches the features indexed on the device as the user types and lists the
+     * hits under the search field. No request is sent to the services, so this
+     * runs on the JavaFX application thread.
+     * @param query the text typed so far.
+     */
+    private void showSearchHits(String query) {
+        searchHits = featureSearch.search(query);
+        List<String> rows = new ArrayList<>(searchHits.size());
+        searchHits.forEach(hit -> rows.add(hit.getLabel()));
+        searchResultsList.getItems().setAll(rows);
+        searchResultsList.setVisible(!rows.isEmpty());
+    }
+
+    /**
+     * Zooms to a feature found by searching and hides the hits.
+     * @param index the index of the hit in the list.
+     */
+    private void zoomToSearchHit(int index) {
+        if (0 > index || index >= searchHits.size()) {
+            return;
+        }
+        FeatureSearchIndex.Hit hit = searchHits.get(index);
+        Envelope envelope = featureSearch.getZoomEnvelope(hit);
+        if (null == envelope) {
+            layerStatusLabel.setText(hit.getLabel() + " has no location");
+        } else {
+            mapView.setViewpointGeometryAsync(envelope);
+        }
+        searchResultsList.setVisible(false);
+    }
+
+    /**
+     * Clears the selection of every layer.
+     */
+    private void clearSelection() {
+        mapDefinitionApplier.getFeatureLayers().values().forEach(FeatureLayer::clearSelection);
+    }
+
+    private static Integer getWkid(Map map) {
+        return null == map.getSpatialReference() ? null : map.getSpatialReference().getWKID();
     }
 
     /**
@@ -211,6 +588,30 @@ public class AppFXMain extends Application {
         StackPane.setAlignment(layerStatusLabel, Pos.TOP_LEFT);
         root.getChildren().add(srLabel);
         StackPane.setAlignment(srLabel, Pos.BOTTOM_LEFT);
+        MenuButton exportButton = new MenuButton("Export");
+        for (FeatureExportWriter.Format format : FeatureExportWriter.Format.values()) {
+            MenuItem exportItem = new MenuItem(format.name());
+            exportItem.setOnAction(event -> exportPrimaryLayer(primaryStage, format));
+            exportButton.getItems().add(exportItem);
+        }
+        root.getChildren().add(exportButton);
+        StackPane.setAlignment(exportButton, Pos.TOP_RIGHT);
+        identifyResultsList.setMaxSize(300, 240);
+        identifyResultsList.setVisible(false);
+        root.getChildren().add(identifyResultsList);
+        StackPane.setAlignment(identifyResultsList, Pos.CENTER_RIGHT);
+        searchField.setPromptText("Search features");
+        searchField.textProperty().addListener((observable, oldText, newText) -> showSearchHits(newText));
+        searchField.setOnAction(event -> zoomToSearchHit(0));
+        searchResultsList.setMaxHeight(240);
+        searchResultsList.setVisible(false);
+        searchResultsList.setOnMouseClicked(
+                event -> zoomToSearchHit(searchResultsList.getSelectionModel().getSelectedIndex()));
+        VBox searchBox = new VBox(searchField, searchResultsList);
+        searchBox.setMaxWidth(300);
+        searchBox.setPickOnBounds(false);
+        root.getChildren().add(searchBox);
+        StackPane.setAlignment(searchBox, Pos.TOP_CENTER);
 
         Scene scene = new Scene(root, 600, 400);
         scene.getStylesheets().add(AppFXMain.class.getResource("styles.css").toExternalForm());
@@ -222,15 +623,128 @@ public class AppFXMain extends Application {
     }
 
     /**
-     * Disposes the Map and MapView, then ends the app by calling System.exit(0).
+     * Asks where to export the primary layer and exports it in the background,
+     * showing the progress and outcome in the layer status label.
+     * @param owner the window that owns the file chooser.
+     * @param format the format.
+     */
+    private void exportPrimaryLayer(Stage owner, FeatureExportWriter.Format format) {
+        String layerId = primaryLayerId;
+        FeatureLayer featureLayer = null == layerId ? null : mapDefinitionApplier.getFeatureLayer(layerId);
+        if (null == featureLayer || LoadStatus.LOADED != featureLayer.getLoadStatus()) {
+            layerStatusLabel.setText("The layer has not loaded yet");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export " + featureLayer.getName());
+        fileChooser.setInitialFileName(layerId + "." + format.getExtension());
+        File file = fileChooser.showSaveDialog(owner);
+        if (null == file) {
+            return;
+        }
+        featureExporter.exportAsync(featureLayer, format, file, new FeatureExporter.Listener() {
+            @Override
+            public void exportProgress(long featureCount) {
+                uiUpdates.post(layerStatusLabel,
+                        () -> layerStatusLabel.setText("Exported " + featureCount + " features..."));
+            }
+
+            @Override
+            public void exportCompleted(File file, long featureCount) {
+                uiUpdates.post(layerStatusLabel,
+                        () -> layerStatusLabel.setText(featureCount + " features exported to " + file));
+            }
+
+            @Override
+            public void exportFailed(Throwable error) {
+                uiUpdates.post(layerStatusLabel,
+                        () -> layerStatusLabel.setText("Export failed: " + error.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Stops the app's background work, disposes the Map and MapView, then ends
+     * the app by calling System.exit(0).
      */
     @Override
     public void stop() {
+        credentialPromptBroker.cancelAll();
+        mapDefinitionWatcher.stop();
+        mapDefinitionApplier.close();
+        identifyDispatcher.shutdown();
+        layerIdentifier.shutdown();
+        featureExporter.shutdown();
+        frameTimer.stop();
+        metricsServer.stop();
+        if (null != tokenRefresher) {
+            tokenRefresher.shutdown();
+        }
+        if (null != editSyncWorker) {
+            editSyncWorker.shutdown();
+        }
+        if (null != editJournal) {
+            try {
+                editJournal.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not close edit journal", ex);
+            }
+        }
         map.dispose();
         mapView.dispose();
         System.exit(0);
     }
 
+    /**
+     * Records the time between frames of the JavaFX application thread while the
+     * map is in use, i.e. from a call to mapActive until IDLE_FRAMES frames have
+     * passed without another, so that an idle app is not woken for every frame.
+     * Called on the FX application thread.
+     */
+    private static class FrameTimer extends AnimationTimer {
+
+        private static final int IDLE_FRAMES = 30;
+
+        private final LatencyHistogram histogram;
+        private boolean sampling = false;
+        private int idleFrames = 0;
+        private long lastFrameNanos = 0;
+
+        FrameTimer(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * Records frames until the map has been idle for IDLE_FRAMES frames.
+         */
+        void mapActive() {
+            idleFrames = 0;
+            if (!sampling) {
+                sampling = true;
+                lastFrameNanos = 0;
+                start();
+            }
+        }
+
+        @Override
+        public void stop() {
+            sampling = false;
+            super.stop();
+        }
+
+        @Override
+        public void handle(long now) {
+            if (0 != lastFrameNanos) {
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(now - lastFrameNanos));
+            }
+            lastFrameNanos = now;
+            if (++idleFrames > IDLE_FRAMES) {
+                stop();
+            }
+        }
+
+    }
+
     /**
      * @param args the command line arguments (not used in this app).
      */
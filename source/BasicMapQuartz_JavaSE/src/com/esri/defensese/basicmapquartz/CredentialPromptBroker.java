@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.security.UserCredential;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares one credential prompt among concurrent authentication challenges for
+ * the same realm, e.g. when a dozen secured layers from one server load at once.
+ * The first challenge for a realm starts a prompt, and every challenge for that
+ * realm waits on the prompt's CompletableFuture, for no longer than a timeout.
+ */
+public class CredentialPromptBroker {
+
+    /**
+     * Shows a credential prompt without blocking the calling thread.
+     */
+    @FunctionalInterface
+    public interface Prompter {
+
+        /**
+         * Starts a prompt for a realm. The prompter completes the result with the
+         * credential, or with null if the user cancels. If the result is cancelled,
+         * e.g. because the wait timed out, the prompter should close its prompt.
+         * @param realm the realm that needs a credential.
+         * @param result the future to complete.
+         */
+        void prompt(String realm, CompletableFuture<UserCredential> result);
+
+    }
+
+    /**
+     * The default time to wait for the user to enter a credential.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final ConcurrentMap<String, CompletableFuture<UserCredential>> prompts = new ConcurrentHashMap<>();
+    private final Prompter prompter;
+    private final long timeoutMillis;
+
+    /**
+     * Creates a broker with the default timeout.
+     * @param prompter the prompter that asks the user for a credential.
+     */
+    public CredentialPromptBroker(Prompter prompter) {
+        this(prompter, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a broker.
+     * @param prompter the prompter that asks the user for a credential.
+     * @param timeoutMillis the time to wait for the user to enter a credential.
+     */
+    public CredentialPromptBroker(Prompter prompter, long timeoutMillis) {
+        this.prompter = prompter;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns a future for a realm's credential, starting a prompt if none is in
+     * progress for the realm.
+     * @param realm the realm.
+     * @return the future, which completes with null if the user cancels.
+     */
+    public CompletableFuture<UserCredential> getCredentialAsync(String realm) {
+        CompletableFuture<UserCredential> prompt = new CompletableFuture<>();
+        CompletableFuture<UserCredential> existing = prompts.putIfAbsent(realm, prompt);
+        if (null != existing) {
+            return existing;
+        }
+        prompt.whenComplete((credential, error) -> prompts.remove(realm, prompt));
+        try {
+            prompter.prompt(realm, prompt);
+        } catch (RuntimeException e) {
+            prompt.completeExceptionally(e);
+        }
+        return prompt;
+    }
+
+    /**
+     * Waits for a realm's credential, starting a prompt if none is in progress for
+     * the realm. If the timeout passes, the prompt is cancelled for every waiter.
+     * @param realm the realm.
+     * @return the credential, or null if the user cancelled, the prompt failed, or
+     *         the timeout passed.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public UserCredential getCredential(String realm) throws InterruptedException {
+        CompletableFuture<UserCredential> prompt = getCredentialAsync(realm);
+        try {
+            return prompt.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            prompt.cancel(false);
+            return null;
+        } catch (CancellationException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Cancels every prompt in progress, releasing all waiting threads.
+     */
+    public void cancelAll() {
+        prompts.values().forEach(prompt -> prompt.cancel(false));
+    }
+
+}
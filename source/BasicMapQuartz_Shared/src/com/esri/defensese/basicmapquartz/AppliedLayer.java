@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+
+import java.io.File;
+
+/**
+ * A layer that MapDefinitionApplier has created, or is creating, for a layer
+ * definition. The definition, FeatureLayer, filter and flags are read by the
+ * applier's collaborators on their own threads, so they are volatile; the
+ * service table, viewport loader and feature cache are set once, before the
+ * FeatureLayer is created.
+ */
+class AppliedLayer {
+
+    volatile MapDefinition.LayerDefinition definition;
+    volatile FeatureLayer featureLayer = null;
+    volatile WhereClause filter = WhereClause.ALL;
+    volatile boolean searchable = false;
+    volatile boolean removed = false;
+    volatile File packageGeodatabase = null;
+    ServiceFeatureTable serviceTable = null;
+    ViewportFeatureLoader viewportLoader = null;
+    OfflineFeatureCache featureCache = null;
+
+    AppliedLayer(MapDefinition.LayerDefinition definition) {
+        this.definition = definition;
+    }
+
+    /**
+     * @return the layer's ID.
+     */
+    String getId() {
+        return definition.getId();
+    }
+
+}
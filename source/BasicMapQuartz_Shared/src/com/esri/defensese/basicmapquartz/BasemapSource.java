@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.layers.ArcGISTiledLayer;
+import com.esri.arcgisruntime.layers.ArcGISVectorTiledLayer;
+import com.esri.arcgisruntime.mapping.Basemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the basemap of a map definition. If the map definition names an
+ * offline map package, the basemap is drawn from the package's memory-mapped
+ * tiles by a LocalTileServer, which fetches only missing tiles from the online
+ * basemap. Given a tile cache directory, a tiled basemap, and the tiles missing
+ * from a package, are drawn through a TileCache, so areas seen before are drawn
+ * from memory or disk.
+ *
+ * <p>The tile server of the basemap being replaced keeps serving until
+ * basemapShown is called with its replacement, so that the map never draws from
+ * a server that has stopped.</p>
+ */
+class BasemapSource {
+
+    private static final Logger logger = Logger.getLogger(BasemapSource.class.getName());
+
+    /**
+     * The tiled map services of the standard basemaps, used for tiles that are
+     * missing from an offline map package.
+     */
+    private static final Map<String, String> BASEMAP_SERVICE_URLS;
+
+    static {
+        String services = "https://services.arcgisonline.com/ArcGIS/rest/services/";
+        Map<String, String> urls = new HashMap<>();
+        urls.put("imagery", services + "World_Imagery/MapServer");
+        urls.put("imageryWithLabels", services + "World_Imagery/MapServer");
+        urls.put("streets", services + "World_Street_Map/MapServer");
+        urls.put("lightGrayCanvas", services + "Canvas/World_Light_Gray_Base/MapServer");
+        urls.put("darkGrayCanvas", services + "Canvas/World_Dark_Gray_Base/MapServer");
+        urls.put("nationalGeographic", services + "NatGeo_World_Map/MapServer");
+        urls.put("oceans", services + "Ocean/World_Ocean_Base/MapServer");
+        urls.put(MapDefinition.DEFAULT_BASEMAP, services + "World_Topo_Map/MapServer");
+        BASEMAP_SERVICE_URLS = Collections.unmodifiableMap(urls);
+    }
+
+    private final File tileCacheDirectory;
+    private final List<LocalTileServer> retiredServers = new ArrayList<>();
+    private LocalTileServer tileServer = null;
+    private Basemap basemap = null;
+
+    /**
+     * @param tileCacheDirectory the directory for basemap tile caches, or null to
+     *                           draw basemaps without a tile cache.
+     */
+    BasemapSource(File tileCacheDirectory) {
+        this.tileCacheDirectory = tileCacheDirectory;
+    }
+
+    /**
+     * Creates the basemap of a map definition, from its offline map package if it
+     * has one and the package contains tiles, and through a tile cache if the
+     * basemap is a single tiled map service.
+     */
+    synchronized Basemap create(MapDefinition newDefinition) {
+        if (null != tileServer) {
+            retiredServers.add(tileServer);
+            tileServer = null;
+        }
+        basemap = createFromDefinition(newDefinition);
+        return basemap;
+    }
+
+    private Basemap createFromDefinition(MapDefinition newDefinition) {
+        String basemap = newDefinition.getBasemap();
+        String fallbackUrl = basemap.startsWith("http://") || basemap.startsWith("https://")
+                ? basemap : BASEMAP_SERVICE_URLS.get(basemap);
+        if (null != newDefinition.getPackagePath()) {
+            File tilesDirectory = new File(newDefinition.getPackagePath(), "tiles");
+            try {
+                TilePackage tilePackage = new TilePackage(tilesDirectory);
+                String packageFallbackUrl = tilePackage.isVector() ? null : fallbackUrl;
+                return startTileServer(new LocalTileServer(tilePackage, packageFallbackUrl,
+                        createTileCache(packageFallbackUrl)), tilePackage.isVector());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not open the tiles of offline map package "
+                        + newDefinition.getPackagePath() + "; using the online basemap", e);
+            }
+        }
+        // The labels of imagery with labels are a second layer, which is not cached
+        if (null != tileCacheDirectory && null != fallbackUrl && !"imageryWithLabels".equals(basemap)) {
+            try {
+                return startTileServer(new LocalTileServer(null, fallbackUrl, createTileCache(fallbackUrl)), false);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not start the tile cache for " + fallbackUrl, e);
+            }
+        }
+        return createBasemap(basemap);
+    }
+
+    private Basemap startTileServer(LocalTileServer server, boolean vector) throws IOException {
+        server.start();
+        tileServer = server;
+        logger.log(Level.INFO, "Serving basemap tiles at {0}", server.getServiceUrl());
+        return new Basemap(vector ? new ArcGISVectorTiledLayer(server.getServiceUrl())
+                : new ArcGISTiledLayer(server.getServiceUrl()));
+    }
+
+    /**
+     * Stops the tile servers of the basemaps that a basemap replaced, once the map
+     * shows it.
+     * @param shownBasemap the basemap that the map now shows.
+     */
+    synchronized void basemapShown(Basemap shownBasemap) {
+        if (shownBasemap != basemap) {
+            // A newer basemap has been created and is about to be shown
+            return;
+        }
+        stopRetiredServers();
+    }
+
+    private void stopRetiredServers() {
+        for (LocalTileServer server : retiredServers) {
+            server.stop();
+        }
+        retiredServers.clear();
+    }
+
+    /**
+     * Creates the tile cache for a tiled map service, in a directory of its own.
+     * @return the tile cache, or null if there is no tile cache directory or no
+     *         service.
+     */
+    private TileCache createTileCache(String serviceUrl) {
+        if (null == tileCacheDirectory || null == serviceUrl) {
+            return null;
+        }
+        return new TileCache(new File(tileCacheDirectory, FeatureCacheFiles.getCacheKey(serviceUrl, null)),
+                TileCache.DEFAULT_MAX_MEMORY_BYTES, TileCache.DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * @return the cache of the current basemap's tiles, or null if the basemap is
+     *         not cached.
+     */
+    synchronized TileCache getTileCache() {
+        return null == tileServer ? null : tileServer.getTileCache();
+    }
+
+    /**
+     * Empties the memory tier of the basemap's tile cache.
+     */
+    synchronized void trimMemory() {
+        TileCache tileCache = getTileCache();
+        if (null != tileCache) {
+            tileCache.trimMemory();
+        }
+    }
+
+    /**
+     * Publishes the hit counts and sizes of the basemap's tile cache.
+     * @param metrics the metrics.
+     */
+    void registerMetrics(Metrics metrics) {
+        String[] results = { "memory", "disk", "miss" };
+        for (final String result : results) {
+            metrics.registerCounter("bmq_tile_cache_requests_total",
+                    "Number of basemap tiles requested from the tile cache, by where they were found.",
+                    new Metrics.Gauge() {
+                        @Override
+                        public double getValue() {
+                            TileCache tileCache = getTileCache();
+                            if (null == tileCache) {
+                                return 0;
+                            }
+                            return "memory".equals(result) ? tileCache.getMemoryHitCount()
+                                    : "disk".equals(result) ? tileCache.getDiskHitCount() : tileCache.getMissCount();
+                        }
+                    }, "result", result);
+        }
+        metrics.registerGauge("bmq_tile_cache_hit_ratio",
+                "Fraction of basemap tiles requested from the tile cache that were found in memory or on disk.",
+                new Metrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        TileCache tileCache = getTileCache();
+                        if (null == tileCache) {
+                            return Double.NaN;
+                        }
+                        double hits = tileCache.getMemoryHitCount() + tileCache.getDiskHitCount();
+                        double requests = hits + tileCache.getMissCount();
+                        return 0 == requests ? Double.NaN : hits / requests;
+                    }
+                });
+        String[] tiers = { "memory", "disk" };
+        for (final String tier : tiers) {
+            metrics.registerGauge("bmq_tile_cache_bytes", "Size of the basemap tiles cached in each tier.",
+                    new Metrics.Gauge() {
+                        @Override
+                        public double getValue() {
+                            TileCache tileCache = getTileCache();
+                            if (null == tileCache) {
+                                return 0;
+                            }
+                            return "memory".equals(tier) ? tileCache.getMemoryBytes() : tileCache.getDiskBytes();
+                        }
+                    }, "tier", tier);
+        }
+    }
+
+    /**
+     * Stops the tile server of the basemap, if there is one, and those of the
+     * basemaps it replaced.
+     */
+    synchronized void close() {
+        stopRetiredServers();
+        if (null != tileServer) {
+            tileServer.stop();
+            tileServer = null;
+        }
+    }
+
+    /**
+     * Creates a basemap from a name or URL.
+     * @param basemap the name of a standard basemap, such as "topographic",
+     *                "imagery" or "streets", or the URL of a tiled map service.
+     * @return the basemap. An unknown name gives the topographic basemap.
+     */
+    static Basemap createBasemap(String basemap) {
+        if (basemap.startsWith("http://") || basemap.startsWith("https://")) {
+            return new Basemap(new ArcGISTiledLayer(basemap));
+        }
+        switch (basemap) {
+        case "imagery":
+            return Basemap.createImagery();
+        case "imageryWithLabels":
+            return Basemap.createImageryWithLabels();
+        case "streets":
+            return Basemap.createStreets();
+        case "lightGrayCanvas":
+            return Basemap.createLightGrayCanvas();
+        case "darkGrayCanvas":
+            return Basemap.createDarkGrayCanvas();
+        case "nationalGeographic":
+            return Basemap.createNationalGeographic();
+        case "oceans":
+            return Basemap.createOceans();
+        case MapDefinition.DEFAULT_BASEMAP:
+            return Basemap.createTopographic();
+        default:
+            logger.log(Level.WARNING, "Unknown basemap {0}; using {1}", new Object[] { basemap, MapDefinition.DEFAULT_BASEMAP });
+            return Basemap.createTopographic();
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import java.util.Map;
+
+/**
+ * A GeoElement whose attributes are a row of a ColumnarAttributeStore. It is
+ * created when a feature is identified, so that features held locally do not
+ * each need a Feature and a Map of boxed attribute values.
+ */
+public class ColumnarFeature implements GeoElement {
+
+    private final ColumnarAttributeStore store;
+    private final int row;
+    private final Geometry geometry;
+    private final String displayFieldName;
+
+    /**
+     * Creates a feature.
+     * @param store the attribute store.
+     * @param row the feature's row in the store.
+     * @param geometry the feature's geometry.
+     * @param displayFieldName the display field of the feature's layer, or null.
+     */
+    public ColumnarFeature(ColumnarAttributeStore store, int row, Geometry geometry, String displayFieldName) {
+        this.store = store;
+        this.row = row;
+        this.geometry = geometry;
+        this.displayFieldName = displayFieldName;
+    }
+
+    /**
+     * @return a read-only view of the feature's attributes.
+     */
+    @Override
+    public Map<String, Object> getAttributes() {
+        return store.getAttributes(row);
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return the feature's object ID.
+     */
+    public long getObjectId() {
+        return store.getObjectId(row);
+    }
+
+    /**
+     * @return the display field of the feature's layer, or null.
+     */
+    public String getDisplayFieldName() {
+        return displayFieldName;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ColumnarFeature && store == ((ColumnarFeature) other).store
+                && row == ((ColumnarFeature) other).row;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) getObjectId();
+    }
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.EnvelopeBuilder;
+
+/**
+ * Applies the extent arithmetic in ExtentMath to Envelopes.
+ */
+public class Envelopes {
+
+    private Envelopes() {
+    }
+
+    /**
+     * Expands an envelope by a fraction of its width and height on each side.
+     * @param envelope the envelope.
+     * @param margin the fraction of the width and height to add on each side.
+     * @return a new envelope in the same spatial reference.
+     */
+    public static Envelope expand(Envelope envelope, double margin) {
+        double[] extent = ExtentMath.expand(new double[] {
+                envelope.getXMin(), envelope.getYMin(), envelope.getXMax(), envelope.getYMax() }, margin);
+        EnvelopeBuilder envBuilder = new EnvelopeBuilder(envelope);
+        envBuilder.setXMin(extent[0]);
+        envBuilder.setYMin(extent[1]);
+        envBuilder.setXMax(extent[2]);
+        envBuilder.setYMax(extent[3]);
+        return envBuilder.toGeometry();
+    }
+
+}
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.mapping.GeoElement;
+import com.esri.arcgisruntime.mapping.view.Graphic;
+import com.esri.arcgisruntime.mapping.view.GraphicsOverlay;
+import com.esri.arcgisruntime.symbology.CompositeSymbol;
+import com.esri.arcgisruntime.symbology.SimpleMarkerSymbol;
+import com.esri.arcgisruntime.symbology.TextSymbol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Draws a point feature layer as clusters at small scales. The features'
+ * locations are read once into a PointClusterIndex; as the viewpoint changes, a
+ * ClusterView adds graphics for the clusters that came into view to a graphics
+ * overlay and removes those that left it. While clusters are shown the feature
+ * layer is hidden, and when the map is zoomed in past the clustered scales the
+ * layer is shown again. A filter can be applied to the clusters locally with
+ * setFilter, which clusters only the matching points again. The features
+ * themselves are not kept: their attributes are kept in a
+ * ColumnarAttributeStore and their locations in arrays of coordinates.
+ *
+ * <p>The default zoom range suits spatial references in meters, such as Web
+ * Mercator: points are clustered from about 16 to about 130,000 meters per
+ * pixel.</p>
+ */
+public class FeatureClusterer {
+
+    /**
+     * Receives a FeatureClusterer built by buildAsync.
+     */
+    public interface BuildListener {
+
+        /**
+         * Called when the clusterer has been built.
+         * @param clusterer the new clusterer.
+         */
+        void clustererBuilt(FeatureClusterer clusterer);
+
+        /**
+         * Called if the features could not be queried.
+         * @param error the reason for the failure.
+         */
+        void buildFailed(Throwable error);
+
+    }
+
+    /**
+     * The power of two of the finest clustered scale, in map units per pixel.
+     */
+    public static final int DEFAULT_MIN_ZOOM = 4;
+
+    /**
+     * The power of two of the coarsest clustered scale, in map units per pixel.
+     */
+    public static final int DEFAULT_MAX_ZOOM = 17;
+
+    private static final int CLUSTER_COLOR = 0xCC1565C0;
+    private static final int POINT_COLOR = 0xFF1565C0;
+    private static final int TEXT_COLOR = 0xFFFFFFFF;
+    private static final float POINT_SIZE = 10;
+
+    private final FeatureLayer featureLayer;
+    private final ColumnarAttributeStore attributes;
+    private final String displayFieldName;
+    private final double[] x;
+    private final double[] y;
+    private final SpatialReference spatialReference;
+    private ClusterView clusterView;
+    private final GraphicsOverlay graphicsOverlay;
+    private final Map<Long, Graphic> graphics = new HashMap<>();
+    private final SimpleMarkerSymbol pointSymbol = new SimpleMarkerSymbol(
+            SimpleMarkerSymbol.Style.CIRCLE, POINT_COLOR, POINT_SIZE);
+    private final ClusterView.Listener graphicsUpdater = new ClusterView.Listener() {
+        @Override
+        public void clusterAdded(int level, int itemIndex) {
+            PointClusterIndex index = clusterView.getIndex();
+            Graphic graphic = new Graphic(
+                    new Point(index.getX(level, itemIndex), index.getY(level, itemIndex), spatialReference),
+                    createSymbol(index.getCount(level, itemIndex)));
+            graphics.put(ClusterView.key(level, itemIndex), graphic);
+            graphicsOverlay.getGraphics().add(graphic);
+        }
+
+        @Override
+        public void clusterRemoved(int level, int itemIndex) {
+            Graphic graphic = graphics.remove(ClusterView.key(level, itemIndex));
+            if (null != graphic) {
+                graphicsOverlay.getGraphics().remove(graphic);
+            }
+        }
+    };
+    private boolean layerVisible = true;
+    private Envelope visibleExtent = null;
+    private double unitsPerPixel = Double.NaN;
+    private AttributeIndex attributeIndex = null;
+
+    /**
+     * The feature of each point in the cluster index, or null if every feature is
+     * clustered.
+     */
+    private int[] filteredFeatures = null;
+
+    private FeatureClusterer(FeatureLayer featureLayer, ColumnarAttributeStore attributes, String displayFieldName,
+                             double[] x, double[] y, SpatialReference spatialReference,
+                             GraphicsOverlay graphicsOverlay) {
+        this.featureLayer = featureLayer;
+        this.attributes = attributes;
+        this.displayFieldName = displayFieldName;
+        this.x = x;
+        this.y = y;
+        this.spatialReference = spatialReference;
+        this.clusterView = new ClusterView(createIndex(x, y));
+        this.graphicsOverlay = graphicsOverlay;
+        this.layerVisible = featureLayer.isVisible();
+    }
+
+    /**
+     * Queries the point features of a loaded feature layer and builds a clusterer
+     * for them on the thread that completes the query.
+     * @param featureLayer the loaded feature layer.
+     * @param whereClause the where clause, e.g. the layer's definition expression
+     *                    without any filter, or null for all features.
+     * @param graphicsOverlay the overlay to draw clusters in.
+     * @param listener the listener that receives the clusterer.
+     */
+    public static void buildAsync(final FeatureLayer featureLayer, String whereClause,
+                                  final GraphicsOverlay graphicsOverlay, final BuildListener listener) {
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setWhereClause(null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause);
+        final ListenableFuture<FeatureQueryResult> future
+                = featureLayer.getFeatureTable().queryFeaturesAsync(queryParameters);
+        final ArcGISFeatureTable arcGISFeatureTable = featureLayer.getFeatureTable() instanceof ArcGISFeatureTable
+                ? (ArcGISFeatureTable) featureLayer.getFeatureTable() : null;
+        future.addDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                ColumnarAttributeStore.Builder attributes = new ColumnarAttributeStore.Builder(
+                        null == arcGISFeatureTable ? null : arcGISFeatureTable.getObjectIdField());
+                double[] x = new double[1024];
+                double[] y = new double[1024];
+                SpatialReference sr = null;
+                try {
+                    for (Feature feature : future.get()) {
+                        Geometry geometry = feature.getGeometry();
+                        if (!(geometry instanceof Point)) {
+                            continue;
+                        }
+                        if (null == sr) {
+                            sr = geometry.getSpatialReference();
+                        }
+                        int i = attributes.size();
+                        if (i == x.length) {
+                            x = Arrays.copyOf(x, i * 2);
+                            y = Arrays.copyOf(y, i * 2);
+                        }
+                        x[i] = ((Point) geometry).getX();
+                        y[i] = ((Point) geometry).getY();
+                        attributes.add(feature.getAttributes());
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    listener.buildFailed(e);
+                    return;
+                }
+                int count = attributes.size();
+                listener.clustererBuilt(new FeatureClusterer(featureLayer, attributes.build(),
+                        null == arcGISFeatureTable ? null : arcGISFeatureTable.getLayerInfo().getDisplayFieldName(),
+                        Arrays.copyOf(x, count), Arrays.copyOf(y, count), sr, graphicsOverlay));
+            }
+        });
+    }
+
+    /**
+     * @return the clustered feature layer.
+     */
+    public FeatureLayer getFeatureLayer() {
+        return featureLayer;
+    }
+
+    /**
+     * Shows or hides the layer, as either clusters or features depending on the
+     * scale.
+     * @param visible true to show the layer.
+     */
+    public synchronized void setLayerVisible(boolean visible) {
+        layerVisible = visible;
+        if (!visible) {
+            clusterView.clear(graphicsUpdater);
+        }
+        featureLayer.setVisible(visible && 0 == clusterView.getLevel());
+    }
+
+    /**
+     * Updates the clusters for a new viewpoint.
+     * @param visibleExtent the map's visible extent.
+     * @param unitsPerPixel the size of one pixel in map units.
+     */
+    public synchronized void viewpointChanged(Envelope visibleExtent, double unitsPerPixel) {
+        this.visibleExtent = visibleExtent;
+        this.unitsPerPixel = unitsPerPixel;
+        if (!layerVisible) {
+            return;
+        }
+        Envelope extent = project(visibleExtent);
+        clusterView.update(new double[] { extent.getXMin(), extent.getYMin(), extent.getXMax(), extent.getYMax() },
+                unitsPerPixel, graphicsUpdater);
+        featureLayer.setVisible(0 == clusterView.getLevel());
+    }
+
+    /**
+     * Clusters only the features that match a filter, which is evaluated locally
+     * with an AttributeIndex, and redraws the clusters in view.
+     * @param filter the filter.
+     */
+    public synchronized void setFilter(WhereClause filter) {
+        if (null == attributeIndex) {
+            attributeIndex = new AttributeIndex(attributes.asRows());
+        }
+        BitSet matches = filter.select(attributeIndex);
+        int[] selected = new int[matches.cardinality()];
+        double[] selectedX = new double[selected.length];
+        double[] selectedY = new double[selected.length];
+        int count = 0;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            selected[count] = i;
+            selectedX[count] = x[i];
+            selectedY[count] = y[i];
+            count++;
+        }
+        clusterView.clear(graphicsUpdater);
+        clusterView = new ClusterView(createIndex(selectedX, selectedY));
+        filteredFeatures = selected.length == attributes.size() ? null : selected;
+        if (null != visibleExtent) {
+            viewpointChanged(visibleExtent, unitsPerPixel);
+        }
+    }
+
+    /**
+     * Removes the clusters from the graphics overlay.
+     */
+    public synchronized void clear() {
+        clusterView.clear(graphicsUpdater);
+    }
+
+    /**
+     * Identifies the features in the clusters under a tap, so that tapping a
+     * cluster lists the features it contains.
+     * @param searchArea the search area around the tap.
+     * @param maxResults the maximum number of features to return.
+     * @return the features, or null if clusters are not shown at the current
+     *         scale and the feature layer should be identified instead.
+     */
+    public synchronized List<GeoElement> identify(Envelope searchArea, int maxResults) {
+        final int level = clusterView.getLevel();
+        if (0 == level || !layerVisible) {
+            return null;
+        }
+        Envelope area = project(searchArea);
+        // Clusters are drawn larger than their location, so search out to the symbol's edge
+        double margin = unitsPerPixel * PointClusterIndex.DEFAULT_RADIUS_PIXELS / 2;
+        final PointClusterIndex index = clusterView.getIndex();
+        final List<Integer> clusters = new ArrayList<>();
+        index.search(level, area.getXMin() - margin, area.getYMin() - margin,
+                area.getXMax() + margin, area.getYMax() + margin, new PackedHilbertRTree.Visitor() {
+                    @Override
+                    public boolean visit(int itemIndex) {
+                        clusters.add(itemIndex);
+                        return true;
+                    }
+                });
+        List<GeoElement> results = new ArrayList<>();
+        for (int i = 0; i < clusters.size() && results.size() < maxResults; i++) {
+            for (int point : index.getPoints(level, clusters.get(i), maxResults - results.size())) {
+                int row = null == filteredFeatures ? point : filteredFeatures[point];
+                results.add(new ColumnarFeature(attributes, row, new Point(x[row], y[row], spatialReference),
+                        displayFieldName));
+            }
+        }
+        return results;
+    }
+
+    private static PointClusterIndex createIndex(double[] x, double[] y) {
+        return new PointClusterIndex(x, y, DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM, PointClusterIndex.DEFAULT_RADIUS_PIXELS);
+    }
+
+    private Envelope project(Envelope envelope) {
+        if (null != spatialReference && null != envelope.getSpatialReference()
+                && !spatialReference.equals(envelope.getSpatialReference())) {
+            return GeometryEngine.project(envelope, spatialReference).getExtent();
+        }
+        return envelope;
+    }
+
+    private CompositeSymbol createSymbol(int count) {
+        CompositeSymbol symbol = new CompositeSymbol();
+        if (1 == count) {
+            symbol.getSymbols().add(pointSymbol);
+        } else {
+            // Grow the symbol with the number of digits in the count
+            float size = (float) (PointClusterIndex.DEFAULT_RADIUS_PIXELS / 2 + 6 * Math.log10(count));
+            symbol.getSymbols().add(new SimpleMarkerSymbol(SimpleMarkerSymbol.Style.CIRCLE, CLUSTER_COLOR, size));
+            symbol.getSymbols().add(new TextSymbol(12, Integer.toString(count), TEXT_COLOR,
+                    TextSymbol.HorizontalAlignment.CENTER, TextSymbol.VerticalAlignment.MIDDLE));
+        }
+        return symbol;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeature;
+import com.esri.arcgisruntime.geometry.Geometry;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Queues edits of Runtime features in an EditSyncWorker, which journals them and
+ * syncs them to the layer's feature service in the background. Features are
+ * identified by the ID of their layer in the map definition and their object ID,
+ * or the local ID that addFeature returned if they have not been synced yet.
+ *
+ * <p>Each method blocks until its edit is journaled, so on Android call it off
+ * the UI thread.</p>
+ */
+public class FeatureEditor {
+
+    private final EditSyncWorker worker;
+
+    /**
+     * Creates an editor.
+     * @param worker the worker that journals and syncs the edits.
+     */
+    public FeatureEditor(EditSyncWorker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Adds a feature to a layer.
+     * @param layerId the layer ID.
+     * @param attributes the feature's attributes.
+     * @param geometry the feature's geometry, or null.
+     * @return the feature's local ID, which can be used to edit the feature before
+     *         it is synced and to look up its object ID afterward.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public long addFeature(String layerId, Map<String, ?> attributes, Geometry geometry) throws IOException {
+        return worker.add(layerId, attributes, null == geometry ? null : geometry.toJson());
+    }
+
+    /**
+     * Saves a feature's current attributes and geometry.
+     * @param layerId the ID of the feature's layer.
+     * @param feature the feature.
+     * @throws IOException if the edit could not be journaled.
+     * @throws IllegalArgumentException if the feature has no object ID.
+     */
+    public void updateFeature(String layerId, ArcGISFeature feature) throws IOException {
+        updateFeature(layerId, getObjectId(feature), feature.getAttributes(), feature.getGeometry());
+    }
+
+    /**
+     * Changes some of a feature's attributes and, optionally, its geometry.
+     * @param layerId the ID of the feature's layer.
+     * @param objectId the feature's object ID or local ID.
+     * @param attributes the attributes to change.
+     * @param geometry the new geometry, or null to keep the geometry.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public void updateFeature(String layerId, long objectId, Map<String, ?> attributes, Geometry geometry)
+            throws IOException {
+        worker.update(layerId, objectId, attributes, null == geometry ? null : geometry.toJson());
+    }
+
+    /**
+     * Deletes a feature.
+     * @param layerId the ID of the feature's layer.
+     * @param feature the feature.
+     * @throws IOException if the edit could not be journaled.
+     * @throws IllegalArgumentException if the feature has no object ID.
+     */
+    public void deleteFeature(String layerId, ArcGISFeature feature) throws IOException {
+        deleteFeature(layerId, getObjectId(feature));
+    }
+
+    /**
+     * Deletes a feature.
+     * @param layerId the ID of the feature's layer.
+     * @param objectId the feature's object ID or local ID.
+     * @throws IOException if the edit could not be journaled.
+     */
+    public void deleteFeature(String layerId, long objectId) throws IOException {
+        worker.delete(layerId, objectId);
+    }
+
+    /**
+     * Returns the object ID that the feature service assigned to an added feature.
+     * @param layerId the layer ID.
+     * @param localId the local ID returned by addFeature.
+     * @return the object ID, or the local ID if the feature has not been synced.
+     */
+    public long getObjectId(String layerId, long localId) {
+        return worker.getObjectId(layerId, localId);
+    }
+
+    private static long getObjectId(ArcGISFeature feature) {
+        Object objectId = feature.getAttributes().get(feature.getFeatureTable().getObjectIdField());
+        if (!(objectId instanceof Number)) {
+            throw new IllegalArgumentException("Feature has no object ID");
+        }
+        return ((Number) objectId).longValue();
+    }
+
+}
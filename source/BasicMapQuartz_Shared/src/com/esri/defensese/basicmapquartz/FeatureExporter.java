@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.FeatureTable;
+import com.esri.arcgisruntime.datasource.Field;
+import com.esri.arcgisruntime.datasource.OrderBy;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.geometry.SpatialReferences;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports the features of a feature layer to a file with a FeatureExportWriter,
+ * on a background thread, one page of features at a time. Pages are queried in
+ * object ID order, each starting after the last object ID of the page before,
+ * so every query is cheap however many features the layer has, and only one
+ * page is held in memory at once. The layer's definition expression, which
+ * includes its filter, selects the features to export.
+ *
+ * <p>A service feature table is queried on the service, so the export includes
+ * features that the layer has not drawn. GeoJSON geometries are projected to
+ * WGS 1984. The file is written under a temporary name and renamed when
+ * complete, so a failed export never leaves a partial file behind.</p>
+ */
+public class FeatureExporter {
+
+    /**
+     * Receives the progress and outcome of an export. Methods are called on the
+     * exporter's thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after each page of features has been written.
+         * @param featureCount the number of features written so far.
+         */
+        void exportProgress(long featureCount);
+
+        /**
+         * Called when the export is complete.
+         * @param file the exported file.
+         * @param featureCount the number of features exported.
+         */
+        void exportCompleted(File file, long featureCount);
+
+        /**
+         * Called if the export failed or was cancelled.
+         * @param error the reason for the failure.
+         */
+        void exportFailed(Throwable error);
+
+    }
+
+    /**
+     * The default number of features queried at once.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final Logger logger = Logger.getLogger(FeatureExporter.class.getName());
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FeatureExporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final int pageSize;
+
+    /**
+     * Creates an exporter with the default page size.
+     */
+    public FeatureExporter() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Creates an exporter.
+     * @param pageSize the number of features queried at once.
+     */
+    public FeatureExporter(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Exports a layer's features in the background. Exports run one at a time.
+     * @param featureLayer the layer, which must be loaded.
+     * @param format the format.
+     * @param file the file to write. An existing file is replaced.
+     * @param listener the listener that receives the progress and outcome.
+     * @return a future whose cancellation cancels the export.
+     */
+    public Future<?> exportAsync(final FeatureLayer featureLayer, final FeatureExportWriter.Format format,
+                                 final File file, final Listener listener) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long featureCount = export(featureLayer, format, file, listener);
+                    logger.log(Level.INFO, "Exported {0} features to {1}", new Object[] { featureCount, file });
+                    listener.exportCompleted(file, featureCount);
+                } catch (InterruptedException e) {
+                    listener.exportFailed(e);
+                    Thread.currentThread().interrupt();
+                } catch (IOException | ExecutionException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Could not export to " + file, e);
+                    listener.exportFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the background thread, cancelling any export in progress.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private long export(FeatureLayer featureLayer, FeatureExportWriter.Format format, File file, Listener listener)
+            throws IOException, InterruptedException, ExecutionException {
+        FeatureTable featureTable = featureLayer.getFeatureTable();
+        if (LoadStatus.LOADED != featureTable.getLoadStatus() || !(featureTable instanceof ArcGISFeatureTable)) {
+            throw new IOException("Only a loaded layer with object IDs can be exported");
+        }
+        String objectIdField = ((ArcGISFeatureTable) featureTable).getObjectIdField();
+        List<String> fieldNames = new ArrayList<>();
+        for (Field field : featureTable.getFields()) {
+            switch (field.getFieldType()) {
+            case GEOMETRY:
+            case BLOB:
+            case RASTER:
+            case XML:
+                break;
+            default:
+                fieldNames.add(field.getName());
+            }
+        }
+        SpatialReference outSpatialReference
+                = FeatureExportWriter.Format.GEOJSON == format ? SpatialReferences.getWgs84() : null;
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FeatureExportWriter writer = FeatureExportWriter.create(format,
+                new FileOutputStream(tempFile).getChannel(), fieldNames);
+        boolean complete = false;
+        try {
+            long lastObjectId = Long.MIN_VALUE;
+            int pageCount;
+            do {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                QueryParameters queryParameters = new QueryParameters();
+                String whereClause = WhereClause.and(featureLayer.getDefinitionExpression(),
+                        Long.MIN_VALUE == lastObjectId ? null : objectIdField + " > " + lastObjectId);
+                queryParameters.setWhereClause(null == whereClause ? "1 = 1" : whereClause);
+                queryParameters.getOrderByFields().add(new OrderBy(objectIdField, OrderBy.SortOrder.ASCENDING));
+                queryParameters.setMaxFeatures(pageSize);
+                if (null != outSpatialReference) {
+                    queryParameters.setOutSpatialReference(outSpatialReference);
+                }
+                pageCount = 0;
+                long previousObjectId = lastObjectId;
+                for (Feature feature : query(featureTable, queryParameters).get()) {
+                    Map<String, Object> attributes = feature.getAttributes();
+                    Object objectId = attributes.get(objectIdField);
+                    if (objectId instanceof Number) {
+                        lastObjectId = Math.max(lastObjectId, ((Number) objectId).longValue());
+                    }
+                    writer.write(attributes, toExportGeometry(feature.getGeometry(), outSpatialReference));
+                    pageCount++;
+                }
+                if (0 < pageCount && previousObjectId == lastObjectId) {
+                    throw new IOException("Features of " + featureTable.getTableName() + " have no object IDs");
+                }
+                listener.exportProgress(writer.getFeatureCount());
+                // A service may return fewer features than requested, so stop only at an empty page
+            } while (0 < pageCount);
+            writer.close();
+            if ((file.exists() && !file.delete()) || !tempFile.renameTo(file)) {
+                throw new IOException("Could not move " + tempFile + " to " + file);
+            }
+            complete = true;
+            return writer.getFeatureCount();
+        } finally {
+            if (!complete) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Could not close " + tempFile, e);
+                }
+                if (tempFile.exists() && !tempFile.delete()) {
+                    logger.log(Level.WARNING, "Could not delete {0}", tempFile);
+                }
+            }
+        }
+    }
+
+    private static ListenableFuture<FeatureQueryResult> query(FeatureTable featureTable,
+                                                             QueryParameters queryParameters) {
+        if (featureTable instanceof ServiceFeatureTable) {
+            return ((ServiceFeatureTable) featureTable).queryFeaturesAsync(queryParameters,
+                    ServiceFeatureTable.QueryFeatureFields.LOAD_ALL);
+        }
+        return featureTable.queryFeaturesAsync(queryParameters);
+    }
+
+    private static ExportGeometry toExportGeometry(Geometry geometry, SpatialReference outSpatialReference)
+            throws IOException {
+        if (null == geometry || geometry.isEmpty()) {
+            return null;
+        }
+        // Local tables may ignore the query's output spatial reference
+        if (null != outSpatialReference && null != geometry.getSpatialReference()
+                && !outSpatialReference.equals(geometry.getSpatialReference())) {
+            geometry = GeometryEngine.project(geometry, outSpatialReference);
+        }
+        return ExportGeometry.fromEsriJson(geometry.toJson());
+    }
+
+}
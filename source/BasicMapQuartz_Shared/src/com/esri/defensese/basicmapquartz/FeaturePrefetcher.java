@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeature;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the full attributes of identified features in one query per identify,
+ * instead of one loadAsync round trip per feature, and keeps the loaded
+ * features in a bounded least-recently-used cache. Call prefetch as soon as an
+ * identify returns and getFeatureAsync when the user selects a feature.
+ */
+public class FeaturePrefetcher {
+
+    /**
+     * Receives a feature from getFeatureAsync.
+     */
+    public interface FeatureCallback {
+
+        /**
+         * Called when the feature is ready to show. If its attributes could not
+         * be loaded, the feature passed to getFeatureAsync is passed back.
+         * @param feature the loaded feature.
+         */
+        void featureReady(ArcGISFeature feature);
+
+    }
+
+    /**
+     * The default number of features to cache.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Logger logger = Logger.getLogger(FeaturePrefetcher.class.getName());
+
+    private final ArcGISFeatureTable featureTable;
+    private final Map<Long, ArcGISFeature> cache;
+    private final Map<Long, ListenableFuture<FeatureQueryResult>> pendingQueries = new HashMap<>();
+
+    /**
+     * Creates a prefetcher with the default capacity.
+     * @param featureTable the table whose features are prefetched.
+     */
+    public FeaturePrefetcher(ArcGISFeatureTable featureTable) {
+        this(featureTable, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a prefetcher.
+     * @param featureTable the table whose features are prefetched.
+     * @param capacity the maximum number of features to cache.
+     */
+    public FeaturePrefetcher(ArcGISFeatureTable featureTable, final int capacity) {
+        this.featureTable = featureTable;
+        this.cache = new LinkedHashMap<Long, ArcGISFeature>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ArcGISFeature> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Starts loading the full attributes of the features in a list of identified
+     * GeoElements that are not already loaded, cached or being loaded. The
+     * features are queried by object ID in one request.
+     * @param geoElements the identified GeoElements. Elements that are not
+     *                    features of this prefetcher's table are ignored.
+     */
+    public void prefetch(List<? extends GeoElement> geoElements) {
+        final List<Long> objectIds = new ArrayList<>();
+        synchronized (this) {
+            for (GeoElement geoElement : geoElements) {
+                Long objectId = getObjectId(geoElement);
+                if (null == objectId) {
+                    continue;
+                }
+                ArcGISFeature feature = (ArcGISFeature) geoElement;
+                if (LoadStatus.LOADED == feature.getLoadStatus()) {
+                    cache.put(objectId, feature);
+                } else if (!cache.containsKey(objectId) && !pendingQueries.containsKey(objectId)
+                        && !objectIds.contains(objectId)) {
+                    objectIds.add(objectId);
+                }
+            }
+        }
+        if (objectIds.isEmpty()) {
+            return;
+        }
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.getObjectIds().addAll(objectIds);
+        final ListenableFuture<FeatureQueryResult> future = featureTable instanceof ServiceFeatureTable
+                ? ((ServiceFeatureTable) featureTable).queryFeaturesAsync(
+                        queryParameters, ServiceFeatureTable.QueryFeatureFields.LOAD_ALL)
+                : featureTable.queryFeaturesAsync(queryParameters);
+        synchronized (this) {
+            for (Long objectId : objectIds) {
+                pendingQueries.put(objectId, future);
+            }
+        }
+        future.addDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Feature feature : future.get()) {
+                        Long objectId = getObjectId(feature);
+                        if (null != objectId) {
+                            synchronized (FeaturePrefetcher.this) {
+                                cache.put(objectId, (ArcGISFeature) feature);
+                            }
+                        }
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    logger.log(Level.FINE, "Could not prefetch " + objectIds.size() + " features", e);
+                } finally {
+                    synchronized (FeaturePrefetcher.this) {
+                        for (Long objectId : objectIds) {
+                            if (future == pendingQueries.get(objectId)) {
+                                pendingQueries.remove(objectId);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets a feature with its full attributes. A cached feature is passed to the
+     * callback immediately on the calling thread. If the feature is being
+     * prefetched, the callback waits for the prefetch query. Otherwise, the
+     * feature is loaded by itself. In the last two cases, the callback is called
+     * on the thread that completes the query or load.
+     * @param feature an identified feature. A feature of another table is loaded by
+     *                itself and not cached.
+     * @param callback the callback that receives the loaded feature.
+     */
+    public void getFeatureAsync(final ArcGISFeature feature, final FeatureCallback callback) {
+        final Long objectId = getObjectId(feature);
+        ArcGISFeature cached = null;
+        ListenableFuture<FeatureQueryResult> pendingQuery = null;
+        if (null != objectId) {
+            synchronized (this) {
+                cached = cache.get(objectId);
+                pendingQuery = pendingQueries.get(objectId);
+            }
+        }
+        if (null != cached) {
+            callback.featureReady(cached);
+        } else if (null != pendingQuery) {
+            pendingQuery.addDoneListener(new Runnable() {
+                @Override
+                public void run() {
+                    ArcGISFeature prefetched;
+                    synchronized (FeaturePrefetcher.this) {
+                        prefetched = cache.get(objectId);
+                    }
+                    if (null != prefetched) {
+                        callback.featureReady(prefetched);
+                    } else {
+                        load(objectId, feature, callback);
+                    }
+                }
+            });
+        } else {
+            load(objectId, feature, callback);
+        }
+    }
+
+    private void load(final Long objectId, final ArcGISFeature feature, final FeatureCallback callback) {
+        feature.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                feature.removeDoneLoadingListener(this);
+                if (null != objectId && LoadStatus.LOADED == feature.getLoadStatus()) {
+                    synchronized (FeaturePrefetcher.this) {
+                        cache.put(objectId, feature);
+                    }
+                }
+                callback.featureReady(feature);
+            }
+        });
+        feature.loadAsync();
+    }
+
+    /**
+     * Empties the cache, e.g. when the system is low on memory. Features being
+     * loaded are still cached when they finish.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of cached features.
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the object ID of a feature of this prefetcher's table.
+     * @return the object ID, or null if the element is not a feature of the table,
+     *         e.g. because another layer identified it.
+     */
+    private Long getObjectId(GeoElement geoElement) {
+        if (!(geoElement instanceof ArcGISFeature) || ((ArcGISFeature) geoElement).getFeatureTable() != featureTable) {
+            return null;
+        }
+        Object objectId = geoElement.getAttributes().get(featureTable.getObjectIdField());
+        return objectId instanceof Number ? ((Number) objectId).longValue() : null;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.FeatureTable;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeature;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Indexes the features of Runtime layers in a FeatureSearchIndex as they load, so
+ * that they can be found by their display field and search fields with no request
+ * to the service, and gives the envelope to zoom to for each hit.
+ */
+public class FeatureSearch {
+
+    private static final Logger logger = Logger.getLogger(FeatureSearch.class.getName());
+
+    private final FeatureSearchIndex index = new FeatureSearchIndex();
+    private final GeoElementLabeler labeler = new GeoElementLabeler();
+    private final Map<String, SpatialReference> spatialReferences = new ConcurrentHashMap<>();
+
+    /**
+     * @return the index, e.g. for its size.
+     */
+    public FeatureSearchIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Adds or replaces the features of a layer in the index. Features that are not
+     * ArcGISFeatures, or have no object ID, are skipped. Call this method off the
+     * UI thread.
+     * @param layerDefinition the layer's definition, for its ID and search fields.
+     * @param features the features, e.g. the result of a query or of populating a
+     *                 ServiceFeatureTable.
+     * @param replace true to remove the layer's other features from the index.
+     * @return the number of features indexed.
+     */
+    public int index(MapDefinition.LayerDefinition layerDefinition, Iterable<? extends Feature> features,
+                     boolean replace) {
+        String layerId = layerDefinition.getId();
+        List<String> searchFields = layerDefinition.getSearchFields();
+        if (replace) {
+            index.removeLayer(layerId);
+        }
+        ArcGISFeatureTable featureTable = null;
+        String objectIdField = null;
+        String displayFieldName = null;
+        int count = 0;
+        for (Feature feature : features) {
+            if (!(feature instanceof ArcGISFeature)) {
+                continue;
+            }
+            if (null == featureTable) {
+                featureTable = ((ArcGISFeature) feature).getFeatureTable();
+                objectIdField = featureTable.getObjectIdField();
+                displayFieldName = labeler.getDisplayFieldName(featureTable);
+            }
+            Map<String, Object> attributes = feature.getAttributes();
+            Object objectId = attributes.get(objectIdField);
+            if (!(objectId instanceof Number)) {
+                continue;
+            }
+            List<Object> values = new ArrayList<>(searchFields.size());
+            for (String searchField : searchFields) {
+                values.add(attributes.get(searchField));
+            }
+            Geometry geometry = feature.getGeometry();
+            double[] extent = null;
+            if (null != geometry && !geometry.isEmpty()) {
+                Envelope envelope = geometry.getExtent();
+                extent = new double[] { envelope.getXMin(), envelope.getYMin(), envelope.getXMax(), envelope.getYMax() };
+                if (!spatialReferences.containsKey(layerId) && null != geometry.getSpatialReference()) {
+                    spatialReferences.put(layerId, geometry.getSpatialReference());
+                }
+            }
+            index.put(layerId, ((Number) objectId).longValue(),
+                    AttributeFormatter.getLabel(attributes, displayFieldName, layerId, ((Number) objectId).intValue()),
+                    values, extent);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Queries the features of a feature table and replaces the layer's features in
+     * the index with them on the thread that completes the query.
+     * @param layerDefinition the layer's definition. Its definition expression
+     *                        selects the features.
+     * @param featureTable the feature table, which should be local, e.g. a
+     *                     GeodatabaseFeatureTable or a manually populated
+     *                     ServiceFeatureTable, so that no request is sent.
+     * @return the query.
+     */
+    public ListenableFuture<FeatureQueryResult> indexTableAsync(final MapDefinition.LayerDefinition layerDefinition,
+                                                               FeatureTable featureTable) {
+        String whereClause = layerDefinition.getDefinitionExpression();
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setWhereClause(null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause);
+        final ListenableFuture<FeatureQueryResult> future = featureTable.queryFeaturesAsync(queryParameters);
+        future.addDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = index(layerDefinition, future.get(), true);
+                    logger.log(Level.FINE, "Indexed {0} features of {1}", new Object[] { count, layerDefinition.getId() });
+                } catch (CancellationException | InterruptedException | ExecutionException e) {
+                    logger.log(Level.WARNING, "Could not index the features of " + layerDefinition.getId(), e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Removes a layer's features from the index.
+     * @param layerId the layer ID.
+     */
+    public void removeLayer(String layerId) {
+        index.removeLayer(layerId);
+        spatialReferences.remove(layerId);
+    }
+
+    /**
+     * Searches the indexed features. This is fast enough to call on the UI thread
+     * as the user types.
+     * @param query the words that the features' words must start with.
+     * @return the hits, at most FeatureSearchIndex.DEFAULT_MAX_RESULTS.
+     */
+    public List<FeatureSearchIndex.Hit> search(String query) {
+        return index.search(query);
+    }
+
+    /**
+     * Returns the envelope to zoom to for a hit, e.g. with
+     * MapView.setViewpointGeometryAsync.
+     * @param hit the hit.
+     * @return the envelope, or null if the feature has no geometry.
+     */
+    public Envelope getZoomEnvelope(FeatureSearchIndex.Hit hit) {
+        double[] extent = index.getZoomExtent(hit);
+        return null == extent ? null
+                : new Envelope(extent[0], extent[1], extent[2], extent[3], spatialReferences.get(hit.getLayerId()));
+    }
+
+}
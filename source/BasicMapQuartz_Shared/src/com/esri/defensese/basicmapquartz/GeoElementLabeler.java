@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeature;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Computes the labels shown for identified GeoElements: the value of the feature
+ * table's display field, or the layer name and a hash code if there is none. The
+ * display field name of each feature table is looked up once and cached.
+ */
+public class GeoElementLabeler {
+
+    private final Map<ArcGISFeatureTable, String> displayFieldNames
+            = Collections.synchronizedMap(new WeakHashMap<ArcGISFeatureTable, String>());
+
+    /**
+     * Returns the display field name of a feature table.
+     * @param featureTable the feature table.
+     * @return the display field name, or null if the table has none.
+     */
+    public String getDisplayFieldName(ArcGISFeatureTable featureTable) {
+        String displayFieldName = displayFieldNames.get(featureTable);
+        if (null == displayFieldName && !displayFieldNames.containsKey(featureTable)) {
+            displayFieldName = featureTable.getLayerInfo().getDisplayFieldName();
+            displayFieldNames.put(featureTable, displayFieldName);
+        }
+        return displayFieldName;
+    }
+
+    /**
+     * Returns the label for a GeoElement.
+     * @param geoElement the GeoElement.
+     * @param layerName the name of the layer that contains the GeoElement.
+     * @return the label.
+     */
+    public String getLabel(GeoElement geoElement, String layerName) {
+        String displayFieldName = null;
+        if (geoElement instanceof ArcGISFeature) {
+            displayFieldName = getDisplayFieldName(((ArcGISFeature) geoElement).getFeatureTable());
+        } else if (geoElement instanceof ColumnarFeature) {
+            displayFieldName = ((ColumnarFeature) geoElement).getDisplayFieldName();
+        }
+        return AttributeFormatter.getLabel(geoElement.getAttributes(), displayFieldName, layerName, geoElement.hashCode());
+    }
+
+    /**
+     * Labels a list of identified GeoElements. Call this method off the UI thread.
+     * @param geoElements the GeoElements.
+     * @param layerName the name of the layer that contains the GeoElements.
+     * @return the GeoElements and their labels.
+     */
+    public LabeledGeoElements label(List<GeoElement> geoElements, String layerName) {
+        String[] labels = new String[geoElements.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = getLabel(geoElements.get(i), layerName);
+        }
+        return new LabeledGeoElements(geoElements, labels, layerName);
+    }
+
+}
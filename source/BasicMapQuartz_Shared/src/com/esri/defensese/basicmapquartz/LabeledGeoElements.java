@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable list of identified GeoElements together with the label of each
+ * element, so that list rows can be displayed without computing labels. The
+ * elements may come from several layers; see concat.
+ */
+public class LabeledGeoElements {
+
+    /**
+     * An empty list.
+     */
+    public static final LabeledGeoElements EMPTY
+            = new LabeledGeoElements(Collections.<GeoElement>emptyList(), new String[0], (String) null);
+
+    private final List<GeoElement> geoElements;
+    private final String[] labels;
+    private final String[] layerNames;
+
+    /**
+     * Creates a list.
+     * @param geoElements the GeoElements.
+     * @param labels the label of each GeoElement, in the same order.
+     * @param layerName the name of the layer that contains the GeoElements.
+     */
+    public LabeledGeoElements(List<GeoElement> geoElements, String[] labels, String layerName) {
+        this(geoElements, labels, fill(labels.length, layerName));
+    }
+
+    private LabeledGeoElements(List<GeoElement> geoElements, String[] labels, String[] layerNames) {
+        if (geoElements.size() != labels.length) {
+            throw new IllegalArgumentException("Every GeoElement needs one label");
+        }
+        this.geoElements = geoElements;
+        this.labels = labels;
+        this.layerNames = layerNames;
+    }
+
+    private static String[] fill(int length, String layerName) {
+        String[] layerNames = new String[length];
+        Arrays.fill(layerNames, layerName);
+        return layerNames;
+    }
+
+    /**
+     * Joins lists, for example the results of identifying several layers, keeping
+     * the layer name of each GeoElement.
+     * @param lists the lists, in the order in which to join them.
+     * @return a list of the GeoElements of all the lists.
+     */
+    public static LabeledGeoElements concat(List<LabeledGeoElements> lists) {
+        if (1 == lists.size()) {
+            return lists.get(0);
+        }
+        int size = 0;
+        for (LabeledGeoElements list : lists) {
+            size += list.size();
+        }
+        List<GeoElement> geoElements = new ArrayList<>(size);
+        String[] labels = new String[size];
+        String[] layerNames = new String[size];
+        int position = 0;
+        for (LabeledGeoElements list : lists) {
+            geoElements.addAll(list.geoElements);
+            System.arraycopy(list.labels, 0, labels, position, list.size());
+            System.arraycopy(list.layerNames, 0, layerNames, position, list.size());
+            position += list.size();
+        }
+        return new LabeledGeoElements(geoElements, labels, layerNames);
+    }
+
+    /**
+     * @return the number of GeoElements.
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * @param position the position of a GeoElement.
+     * @return the GeoElement at the position.
+     */
+    public GeoElement getGeoElement(int position) {
+        return geoElements.get(position);
+    }
+
+    /**
+     * @param position the position of a GeoElement.
+     * @return the label of the GeoElement at the position.
+     */
+    public String getLabel(int position) {
+        return labels[position];
+    }
+
+    /**
+     * @param position the position of a GeoElement.
+     * @return the name of the layer that contains the GeoElement at the position.
+     */
+    public String getLayerName(int position) {
+        return layerNames[position];
+    }
+
+    /**
+     * @return the name of the layer that contains the first GeoElement, or null
+     *         if the list is empty.
+     */
+    public String getLayerName() {
+        return 0 == layerNames.length ? null : layerNames[0];
+    }
+
+}
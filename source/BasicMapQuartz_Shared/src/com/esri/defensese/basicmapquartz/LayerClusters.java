@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.mapping.GeoElement;
+import com.esri.arcgisruntime.mapping.view.GraphicsOverlay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Draws the layers marked for clustering with a FeatureClusterer each, in one
+ * graphics overlay, and keeps their visibility, filters and viewpoint up to date.
+ * A layer's visibility and filter may be set before its clusterer has been built,
+ * and are applied when it is. A layer is clustered again when its features
+ * change, and the old clusters are removed once the new ones are built.
+ */
+class LayerClusters {
+
+    /**
+     * The clustering of one layer.
+     */
+    private static class ClusteredLayer {
+
+        final FeatureLayer featureLayer;
+        boolean visible;
+        WhereClause filter;
+        FeatureClusterer clusterer = null;
+
+        ClusteredLayer(FeatureLayer featureLayer, boolean visible, WhereClause filter) {
+            this.featureLayer = featureLayer;
+            this.visible = visible;
+            this.filter = filter;
+        }
+
+    }
+
+    private static final Logger logger = Logger.getLogger(LayerClusters.class.getName());
+
+    private final GraphicsOverlay overlay;
+    private final Map<String, ClusteredLayer> layers = new HashMap<>();
+    private Envelope visibleExtent = null;
+    private double unitsPerPixel = Double.NaN;
+
+    /**
+     * @param overlay the graphics overlay in which clusters are drawn.
+     */
+    LayerClusters(GraphicsOverlay overlay) {
+        this.overlay = overlay;
+    }
+
+    /**
+     * Clusters a layer once it has loaded, or clusters it again after its
+     * features have changed.
+     * @param id the layer ID.
+     * @param featureLayer the layer.
+     * @param definitionExpression the layer's definition expression, or null.
+     * @param visible true if the layer is visible.
+     * @param filter the layer's filter.
+     */
+    void cluster(final String id, final FeatureLayer featureLayer, final String definitionExpression,
+                 boolean visible, WhereClause filter) {
+        synchronized (this) {
+            ClusteredLayer clusteredLayer = layers.get(id);
+            if (null == clusteredLayer || featureLayer != clusteredLayer.featureLayer) {
+                if (null != clusteredLayer && null != clusteredLayer.clusterer) {
+                    clusteredLayer.clusterer.clear();
+                }
+                layers.put(id, new ClusteredLayer(featureLayer, visible, filter));
+            }
+        }
+        featureLayer.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                if (LoadStatus.LOADED != featureLayer.getLoadStatus()) {
+                    return;
+                }
+                FeatureClusterer.buildAsync(featureLayer, definitionExpression, overlay,
+                        new FeatureClusterer.BuildListener() {
+                    @Override
+                    public void clustererBuilt(FeatureClusterer clusterer) {
+                        installClusterer(id, featureLayer, clusterer);
+                    }
+
+                    @Override
+                    public void buildFailed(Throwable error) {
+                        logger.log(Level.WARNING, "Could not cluster " + id, error);
+                    }
+                });
+            }
+        });
+    }
+
+    private void installClusterer(String id, FeatureLayer featureLayer, FeatureClusterer clusterer) {
+        FeatureClusterer previous;
+        Envelope extent;
+        double resolution;
+        synchronized (this) {
+            ClusteredLayer clusteredLayer = layers.get(id);
+            if (null == clusteredLayer || featureLayer != clusteredLayer.featureLayer) {
+                // The layer was removed or replaced while it was being clustered
+                clusterer.clear();
+                return;
+            }
+            previous = clusteredLayer.clusterer;
+            clusteredLayer.clusterer = clusterer;
+            clusterer.setLayerVisible(clusteredLayer.visible);
+            if (WhereClause.ALL != clusteredLayer.filter) {
+                clusterer.setFilter(clusteredLayer.filter);
+            }
+            extent = visibleExtent;
+            resolution = unitsPerPixel;
+        }
+        if (null != previous) {
+            // Built again after the layer's features changed
+            previous.clear();
+        }
+        if (null != extent) {
+            clusterer.viewpointChanged(extent, resolution);
+        }
+    }
+
+    /**
+     * Stops clustering a layer and removes its clusters.
+     * @param id the layer ID.
+     */
+    void remove(String id) {
+        ClusteredLayer clusteredLayer;
+        synchronized (this) {
+            clusteredLayer = layers.remove(id);
+        }
+        if (null != clusteredLayer && null != clusteredLayer.clusterer) {
+            clusteredLayer.clusterer.clear();
+        }
+    }
+
+    /**
+     * Shows or hides a layer's clusters.
+     * @param id the layer ID.
+     * @param visible true to show the layer.
+     * @return true if the layer is clustered, in which case its clusters show
+     *         the layer, or false if the FeatureLayer itself should be shown or
+     *         hidden.
+     */
+    boolean setLayerVisible(String id, boolean visible) {
+        FeatureClusterer clusterer;
+        synchronized (this) {
+            ClusteredLayer clusteredLayer = layers.get(id);
+            if (null == clusteredLayer) {
+                return false;
+            }
+            clusteredLayer.visible = visible;
+            clusterer = clusteredLayer.clusterer;
+        }
+        if (null != clusterer) {
+            clusterer.setLayerVisible(visible);
+        }
+        return true;
+    }
+
+    /**
+     * Shows only the features of a layer that match a filter in its clusters.
+     * @param id the layer ID.
+     * @param filter the filter.
+     */
+    void setFilter(String id, WhereClause filter) {
+        FeatureClusterer clusterer;
+        synchronized (this) {
+            ClusteredLayer clusteredLayer = layers.get(id);
+            if (null == clusteredLayer) {
+                return;
+            }
+            clusteredLayer.filter = filter;
+            clusterer = clusteredLayer.clusterer;
+        }
+        if (null != clusterer) {
+            clusterer.setFilter(filter);
+        }
+    }
+
+    /**
+     * Updates the clusters for a new viewpoint.
+     * @param visibleExtent the map's visible extent.
+     * @param unitsPerPixel the size of one pixel in map units.
+     */
+    void viewpointChanged(Envelope visibleExtent, double unitsPerPixel) {
+        List<FeatureClusterer> clusterers = new ArrayList<>();
+        synchronized (this) {
+            this.visibleExtent = visibleExtent;
+            this.unitsPerPixel = unitsPerPixel;
+            for (ClusteredLayer clusteredLayer : layers.values()) {
+                if (null != clusteredLayer.clusterer) {
+                    clusterers.add(clusteredLayer.clusterer);
+                }
+            }
+        }
+        for (FeatureClusterer clusterer : clusterers) {
+            clusterer.viewpointChanged(visibleExtent, unitsPerPixel);
+        }
+    }
+
+    /**
+     * Identifies the features in the clusters under a tap on a layer.
+     * @param id the layer ID.
+     * @param searchArea the search area around the tap.
+     * @param maxResults the maximum number of features to return.
+     * @return the features, or null if the layer is not clustered at the current
+     *         scale, in which case the layer itself should be identified.
+     */
+    List<GeoElement> identify(String id, Envelope searchArea, int maxResults) {
+        FeatureClusterer clusterer;
+        synchronized (this) {
+            ClusteredLayer clusteredLayer = layers.get(id);
+            clusterer = null == clusteredLayer ? null : clusteredLayer.clusterer;
+        }
+        return null == clusterer ? null : clusterer.identify(searchArea, maxResults);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells an EditSyncWorker the URL of each layer of the map definition, so that
+ * edits made with a layer's ID are synced to its service with the stored token,
+ * and has a layer refreshed as soon as edits to it have been synced.
+ */
+class LayerEditSync {
+
+    private final EditSyncWorker.TokenProvider tokenProvider;
+    private final LayerRefresher refresher;
+    private final Set<String> layerIds = new HashSet<>();
+    private EditSyncWorker worker = null;
+
+    private final EditSyncWorker.Listener syncListener = new EditSyncWorker.Listener() {
+        @Override
+        public void editsSynced(String layerId, int editCount) {
+            refresher.refreshNow(layerId);
+        }
+
+        @Override
+        public void editRejected(FeatureEdit edit, int errorCode, String description) {
+            // EditSyncWorker logs conflicts
+        }
+
+        @Override
+        public void syncFailed(Throwable error, long retryMillis) {
+            // EditSyncWorker logs the failure and retries
+        }
+    };
+
+    /**
+     * @param tokenProvider the tokens to send with edits.
+     * @param refresher the refresher of layers whose edits have been synced.
+     */
+    LayerEditSync(EditSyncWorker.TokenProvider tokenProvider, LayerRefresher refresher) {
+        this.tokenProvider = tokenProvider;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Syncs edits with a worker, and detaches the previous worker.
+     * @param newWorker the worker, or null to stop syncing edits to the layers.
+     * @param layerUrls the URL of each layer, keyed by layer ID.
+     */
+    void setWorker(EditSyncWorker newWorker, Map<String, String> layerUrls) {
+        EditSyncWorker oldWorker;
+        List<String> oldLayerIds;
+        synchronized (this) {
+            oldWorker = worker;
+            oldLayerIds = new ArrayList<>(layerIds);
+            worker = newWorker;
+            layerIds.clear();
+        }
+        if (null != oldWorker) {
+            oldWorker.removeListener(syncListener);
+            oldWorker.setTokenProvider(null);
+            for (String id : oldLayerIds) {
+                oldWorker.setLayerUrl(id, null);
+            }
+        }
+        if (null != newWorker) {
+            newWorker.setTokenProvider(tokenProvider);
+            newWorker.addListener(syncListener);
+            setLayers(layerUrls);
+        }
+    }
+
+    /**
+     * Gives the worker, if there is one, the URL of each layer, and takes away the
+     * URLs of layers that were removed.
+     * @param layerUrls the URL of each layer, keyed by layer ID.
+     */
+    void setLayers(Map<String, String> layerUrls) {
+        EditSyncWorker currentWorker;
+        List<String> removedIds = new ArrayList<>();
+        synchronized (this) {
+            currentWorker = worker;
+            if (null == currentWorker) {
+                return;
+            }
+            for (String id : layerIds) {
+                if (!layerUrls.containsKey(id)) {
+                    removedIds.add(id);
+                }
+            }
+            layerIds.clear();
+            layerIds.addAll(layerUrls.keySet());
+        }
+        for (String id : removedIds) {
+            currentWorker.setLayerUrl(id, null);
+        }
+        for (Map.Entry<String, String> layerUrl : layerUrls.entrySet()) {
+            currentWorker.setLayerUrl(layerUrl.getKey(), layerUrl.getValue());
+        }
+    }
+
+}
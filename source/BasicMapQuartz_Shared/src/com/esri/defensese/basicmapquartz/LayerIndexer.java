@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+
+/**
+ * Indexes the features that each layer keeps on the device in a FeatureSearch as
+ * they load and refresh: those of layers read from a geodatabase, and those
+ * downloaded into the manual cache of ONLINE and VIEWPORT layers. ONLINE layers
+ * without a refresh interval keep no features of their own on the device, so
+ * they are not searchable.
+ */
+class LayerIndexer {
+
+    private volatile FeatureSearch featureSearch = null;
+
+    /**
+     * @param search the search, or null to stop indexing.
+     */
+    void setFeatureSearch(FeatureSearch search) {
+        featureSearch = search;
+    }
+
+    /**
+     * Indexes all the features of a searchable layer once it has loaded, replacing
+     * those indexed before.
+     * @param appliedLayer the layer.
+     */
+    void indexLayer(final AppliedLayer appliedLayer) {
+        final FeatureLayer featureLayer = appliedLayer.featureLayer;
+        if (null == featureSearch || appliedLayer.removed || !appliedLayer.searchable || null == featureLayer) {
+            return;
+        }
+        featureLayer.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                FeatureSearch search = featureSearch;
+                if (null == search || appliedLayer.removed || LoadStatus.LOADED != featureLayer.getLoadStatus()) {
+                    return;
+                }
+                search.indexTableAsync(appliedLayer.definition, featureLayer.getFeatureTable());
+            }
+        });
+    }
+
+    /**
+     * Indexes features that a layer has just downloaded.
+     * @param appliedLayer the layer.
+     * @param features the features.
+     * @param replace true if the features replace all of the layer's features.
+     */
+    void indexFeatures(AppliedLayer appliedLayer, FeatureQueryResult features, boolean replace) {
+        FeatureSearch search = featureSearch;
+        if (null == search || appliedLayer.removed) {
+            return;
+        }
+        search.index(appliedLayer.definition, features, replace);
+    }
+
+    /**
+     * Removes a layer's features from the index.
+     * @param id the layer ID.
+     */
+    void removeLayer(String id) {
+        FeatureSearch search = featureSearch;
+        if (null != search) {
+            search.removeLayer(id);
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls layers with a refresh interval for edits with a LayerRefreshScheduler.
+ * Only a layer whose edit date changed is refreshed: an OFFLINE layer syncs its
+ * geodatabase, and ONLINE and VIEWPORT layers, whose tables then use manual
+ * caching, download just the features edited since the last poll, so the layer
+ * is neither reloaded nor redrawn in full. Deleted features, or a service without
+ * editor tracking, still require a reload.
+ */
+class LayerRefresher {
+
+    /**
+     * Receives the features of refreshed layers. Methods are called on the
+     * threads that complete the refreshes.
+     */
+    interface Listener {
+
+        /**
+         * Called when an OFFLINE layer's geodatabase has been synced.
+         * @param appliedLayer the layer.
+         */
+        void cacheSynced(AppliedLayer appliedLayer);
+
+        /**
+         * Called when features have been downloaded into a layer's manual cache.
+         * @param appliedLayer the layer.
+         * @param features the features.
+         * @param reload true if the features replace all of the layer's features,
+         *               and false if they are only those edited since the last poll.
+         */
+        void featuresRefreshed(AppliedLayer appliedLayer, FeatureQueryResult features, boolean reload);
+
+    }
+
+    private static final Logger logger = Logger.getLogger(LayerRefresher.class.getName());
+
+    private final LayerRefreshScheduler scheduler = new LayerRefreshScheduler();
+    private final EditSyncWorker.TokenProvider tokenProvider;
+    private final Listener listener;
+    private volatile Metrics metrics = null;
+
+    /**
+     * @param tokenProvider the tokens to send when polling secured layers, or
+     *                      null to poll without tokens.
+     * @param listener the listener that receives the features of refreshed layers.
+     */
+    LayerRefresher(EditSyncWorker.TokenProvider tokenProvider, Listener listener) {
+        this.tokenProvider = tokenProvider;
+        this.listener = listener;
+    }
+
+    /**
+     * Records how long refreshes take to download features.
+     * @param metrics the metrics.
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Schedules a layer's refreshes if it has a refresh interval, and cancels them
+     * otherwise. Layers from an offline map package are never refreshed.
+     * @param appliedLayer the layer.
+     */
+    void schedule(final AppliedLayer appliedLayer) {
+        if (appliedLayer.removed) {
+            return;
+        }
+        MapDefinition.LayerDefinition layerDefinition = appliedLayer.definition;
+        if (0 >= layerDefinition.getRefreshIntervalSeconds() || null != appliedLayer.packageGeodatabase) {
+            scheduler.cancel(layerDefinition.getId());
+            return;
+        }
+        final LayerChangePoller poller = new LayerChangePoller(layerDefinition.getUrl(),
+                layerDefinition.getDefinitionExpression(), null != appliedLayer.serviceTable);
+        scheduler.schedule(layerDefinition.getId(),
+                TimeUnit.SECONDS.toMillis(layerDefinition.getRefreshIntervalSeconds()),
+                new LayerRefreshScheduler.Refresh() {
+                    @Override
+                    public void refresh(LayerRefreshScheduler.Completion completion) throws IOException {
+                        refreshLayer(appliedLayer, poller, completion);
+                    }
+                });
+    }
+
+    /**
+     * Stops refreshing a layer.
+     * @param id the layer ID.
+     */
+    void cancel(String id) {
+        scheduler.cancel(id);
+    }
+
+    /**
+     * Refreshes a layer now, e.g. because edits to it have been synced.
+     * @param id the layer ID.
+     */
+    void refreshNow(String id) {
+        scheduler.refreshNow(id);
+    }
+
+    /**
+     * Stops polling layers for edits, e.g. while the app is in the background.
+     */
+    void pause() {
+        scheduler.pause();
+    }
+
+    /**
+     * Starts polling layers for edits again after pause.
+     */
+    void resume() {
+        scheduler.resume();
+    }
+
+    /**
+     * Stops all refreshes for good.
+     */
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Polls a layer for edits and, if there are any, applies them: an OFFLINE
+     * layer syncs its geodatabase, and a layer with a manual cache downloads the
+     * edited features, or reloads its features if some were deleted.
+     */
+    private void refreshLayer(final AppliedLayer appliedLayer, LayerChangePoller poller,
+                              final LayerRefreshScheduler.Completion completion) throws IOException {
+        if (appliedLayer.removed) {
+            completion.succeeded();
+            return;
+        }
+        final String id = appliedLayer.getId();
+        String url = appliedLayer.definition.getUrl();
+        String definitionExpression = appliedLayer.definition.getDefinitionExpression();
+        ServiceFeatureTable serviceTable = appliedLayer.serviceTable;
+        ViewportFeatureLoader viewportLoader = appliedLayer.viewportLoader;
+        OfflineFeatureCache featureCache = appliedLayer.featureCache;
+        if (null != tokenProvider) {
+            poller.setToken(tokenProvider.getToken(url));
+        }
+        LayerChangePoller.Changes changes = poller.poll();
+        if (!changes.isChanged()) {
+            completion.succeeded();
+            return;
+        }
+
+        if (null != featureCache) {
+            boolean syncing = featureCache.refresh(new OfflineFeatureCache.Listener() {
+                @Override
+                public void featureLayerCreated(FeatureLayer featureLayer, boolean fromCache) {
+                    // Not called by refresh
+                }
+
+                @Override
+                public void cacheUpdated(long syncTime) {
+                    logger.log(Level.INFO, "Feature cache for {0} refreshed at {1}", new Object[] { id, new Date(syncTime) });
+                    listener.cacheSynced(appliedLayer);
+                    completion.succeeded();
+                }
+
+                @Override
+                public void cacheUpdateFailed(Throwable error) {
+                    completion.failed(error);
+                }
+            });
+            if (!syncing) {
+                // The layer reads from the service until the geodatabase is used at the next launch
+                completion.succeeded();
+            }
+            return;
+        }
+        if (null == serviceTable) {
+            completion.succeeded();
+            return;
+        }
+        final ListenableFuture<FeatureQueryResult> future;
+        final LatencyHistogram histogram;
+        final boolean reload = null == changes.getDeltaWhereClause();
+        final long startNanos = System.nanoTime();
+        if (!reload) {
+            logger.log(Level.FINE, "Refreshing {0} with {1}", new Object[] { id, changes.getDeltaWhereClause() });
+            histogram = getFeatureLoadHistogram(metrics, id, "edits");
+            future = populate(serviceTable, changes.getDeltaWhereClause(), false);
+        } else if (null != viewportLoader) {
+            logger.log(Level.FINE, "Reloading the visible features of {0}", id);
+            viewportLoader.reload();
+            completion.succeeded();
+            return;
+        } else {
+            logger.log(Level.FINE, "Reloading the features of {0}", id);
+            histogram = getFeatureLoadHistogram(metrics, id, "all");
+            future = populate(serviceTable, definitionExpression, true);
+        }
+        future.addDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FeatureQueryResult features = future.get();
+                    if (null != histogram) {
+                        histogram.recordSince(startNanos);
+                    }
+                    listener.featuresRefreshed(appliedLayer, features, reload);
+                    completion.succeeded();
+                } catch (CancellationException | InterruptedException | ExecutionException e) {
+                    completion.failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads the features of a service table with a manual cache.
+     * @param whereClause the features to download, or null for all of them.
+     * @param clearCache true to replace the features in the cache.
+     */
+    static ListenableFuture<FeatureQueryResult> populate(ServiceFeatureTable featureTable,
+                                                         String whereClause, boolean clearCache) {
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setWhereClause(null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause);
+        return featureTable.populateFromServiceAsync(queryParameters, clearCache,
+                Collections.singletonList("*"));
+    }
+
+    /**
+     * Returns the histogram of the times taken to download a layer's features.
+     * @param kind "all" for all the features, "edits" for those edited since the
+     *             last refresh, or "tile" for the features in one tile.
+     * @return the histogram, or null if there are no metrics.
+     */
+    static LatencyHistogram getFeatureLoadHistogram(Metrics metrics, String id, String kind) {
+        return null == metrics ? null : metrics.histogram("bmq_feature_load_seconds",
+                "Time taken to download a layer's features.", "layer", id, "kind", kind);
+    }
+
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.loadable.Loadable;
+
+/**
+ * A LoadOrchestrator task that loads a Loadable, such as a Map, a Basemap or a
+ * Layer.
+ */
+public class LoadableLoadTask implements LoadOrchestrator.LoadTask {
+
+    private final Loadable loadable;
+
+    /**
+     * Creates a task.
+     * @param loadable the Loadable to load.
+     */
+    public LoadableLoadTask(Loadable loadable) {
+        this.loadable = loadable;
+    }
+
+    @Override
+    public void start(final LoadOrchestrator.LoadCallback callback) {
+        loadable.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                loadable.removeDoneLoadingListener(this);
+                if (LoadStatus.LOADED == loadable.getLoadStatus()) {
+                    callback.loaded();
+                } else {
+                    callback.failed(null == loadable.getLoadError()
+                            ? new IllegalStateException("Load status is " + loadable.getLoadStatus())
+                            : loadable.getLoadError());
+                }
+            }
+        });
+        loadable.loadAsync();
+    }
+
+}
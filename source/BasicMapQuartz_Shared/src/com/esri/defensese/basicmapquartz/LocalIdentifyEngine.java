@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.Feature;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.FeatureTable;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ArcGISFeatureTable;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.mapping.GeoElement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Identifies features that are already held locally, such as the features of a
+ * geodatabase feature table, without calling MapView.identifyLayerAsync. The
+ * features' envelopes are indexed in a PackedHilbertRTree, and the identify
+ * result has the same shape as IdentifyLayerResult.getIdentifiedElements().
+ *
+ * <p>The engine does not keep the features themselves. Their attributes are
+ * kept in a ColumnarAttributeStore, points are kept as coordinates, and each
+ * identified feature is returned as a ColumnarFeature.</p>
+ */
+public class LocalIdentifyEngine {
+
+    /**
+     * Receives a LocalIdentifyEngine built by buildAsync.
+     */
+    public interface BuildListener {
+
+        /**
+         * Called when the engine has been built.
+         * @param engine the new engine.
+         */
+        void engineBuilt(LocalIdentifyEngine engine);
+
+        /**
+         * Called if the features could not be queried.
+         * @param error the reason for the failure.
+         */
+        void buildFailed(Throwable error);
+
+    }
+
+    /**
+     * Collects the envelopes, geometries and attributes of GeoElements one at a
+     * time.
+     */
+    private static class Collector {
+
+        final ColumnarAttributeStore.Builder attributes;
+        double[] boxes = new double[64];
+        Geometry[] geometries = new Geometry[16];
+        int size = 0;
+        SpatialReference spatialReference = null;
+
+        Collector(String objectIdField) {
+            this.attributes = new ColumnarAttributeStore.Builder(objectIdField);
+        }
+
+        void add(GeoElement geoElement) {
+            Geometry geometry = geoElement.getGeometry();
+            if (null == geometry || geometry.isEmpty()) {
+                return;
+            }
+            if (null == spatialReference) {
+                spatialReference = geometry.getSpatialReference();
+            }
+            if (size == geometries.length) {
+                geometries = Arrays.copyOf(geometries, size * 2);
+                boxes = Arrays.copyOf(boxes, size * 8);
+            }
+            int pos = size * 4;
+            if (geometry instanceof Point) {
+                // Points are created again from their coordinates when identified
+                Point point = (Point) geometry;
+                boxes[pos] = point.getX();
+                boxes[pos + 1] = point.getY();
+                boxes[pos + 2] = point.getX();
+                boxes[pos + 3] = point.getY();
+            } else {
+                Envelope extent = geometry.getExtent();
+                boxes[pos] = extent.getXMin();
+                boxes[pos + 1] = extent.getYMin();
+                boxes[pos + 2] = extent.getXMax();
+                boxes[pos + 3] = extent.getYMax();
+                geometries[size] = geometry;
+            }
+            attributes.add(geoElement.getAttributes());
+            size++;
+        }
+
+    }
+
+    private final ColumnarAttributeStore attributes;
+    private final double[] boxes;
+    private final Geometry[] geometries;
+    private final PackedHilbertRTree index;
+    private final SpatialReference spatialReference;
+    private final String displayFieldName;
+
+    /**
+     * Creates an engine for a list of GeoElements.
+     * @param geoElements the GeoElements to identify. Elements without geometry
+     *                    are ignored.
+     */
+    public LocalIdentifyEngine(List<? extends GeoElement> geoElements) {
+        this(collect(geoElements), null);
+    }
+
+    private LocalIdentifyEngine(Collector collector, String displayFieldName) {
+        this.attributes = collector.attributes.build();
+        this.boxes = Arrays.copyOf(collector.boxes, collector.size * 4);
+        this.geometries = Arrays.copyOf(collector.geometries, collector.size);
+        this.spatialReference = collector.spatialReference;
+        this.displayFieldName = displayFieldName;
+        this.index = new PackedHilbertRTree(boxes);
+    }
+
+    private static Collector collect(List<? extends GeoElement> geoElements) {
+        Collector collector = new Collector(null);
+        for (GeoElement geoElement : geoElements) {
+            collector.add(geoElement);
+        }
+        return collector;
+    }
+
+    /**
+     * Queries the features of a feature table and builds an engine for them on
+     * the thread that completes the query. Each feature is released as soon as it
+     * has been read.
+     * @param featureTable the feature table, which should be local, e.g. a
+     *                     GeodatabaseFeatureTable.
+     * @param whereClause the where clause, e.g. the layer's definition expression,
+     *                    or null for all features.
+     * @param listener the listener that receives the engine.
+     */
+    public static void buildAsync(FeatureTable featureTable, String whereClause, final BuildListener listener) {
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setWhereClause(null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause);
+        final ListenableFuture<FeatureQueryResult> future = featureTable.queryFeaturesAsync(queryParameters);
+        final ArcGISFeatureTable arcGISFeatureTable
+                = featureTable instanceof ArcGISFeatureTable ? (ArcGISFeatureTable) featureTable : null;
+        future.addDoneListener(new Runnable() {
+            @Override
+            public void run() {
+                Collector collector = new Collector(
+                        null == arcGISFeatureTable ? null : arcGISFeatureTable.getObjectIdField());
+                try {
+                    for (Feature feature : future.get()) {
+                        collector.add(feature);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    listener.buildFailed(e);
+                    return;
+                }
+                listener.engineBuilt(new LocalIdentifyEngine(collector, null == arcGISFeatureTable ? null
+                        : arcGISFeatureTable.getLayerInfo().getDisplayFieldName()));
+            }
+        });
+    }
+
+    /**
+     * @return the number of GeoElements that can be identified.
+     */
+    public int size() {
+        return attributes.size();
+    }
+
+    /**
+     * @return the attributes of the GeoElements, in the order they were added.
+     */
+    public ColumnarAttributeStore getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Identifies the GeoElements that intersect a search area, typically a square
+     * around a tapped location whose size is the identify tolerance. This method
+     * is synchronized because the index reuses its search stack.
+     * @param searchArea the search area, in any spatial reference.
+     * @param maxResults the maximum number of GeoElements to return.
+     * @return the identified GeoElements, in no particular order.
+     */
+    public List<GeoElement> identify(Envelope searchArea, int maxResults) {
+        return identify(searchArea, maxResults, null);
+    }
+
+    /**
+     * Identifies the GeoElements that intersect a search area and match a filter,
+     * such as the filter applied to the layer locally.
+     * @param searchArea the search area, in any spatial reference.
+     * @param maxResults the maximum number of GeoElements to return.
+     * @param filter the filter, or null to identify every GeoElement.
+     * @return the identified GeoElements, in no particular order.
+     */
+    public synchronized List<GeoElement> identify(Envelope searchArea, final int maxResults,
+                                                  final WhereClause filter) {
+        final List<GeoElement> results = new ArrayList<>();
+        if (0 == attributes.size() || 0 >= maxResults) {
+            return results;
+        }
+        if (null != spatialReference && null != searchArea.getSpatialReference()
+                && !spatialReference.equals(searchArea.getSpatialReference())) {
+            searchArea = GeometryEngine.project(searchArea, spatialReference).getExtent();
+        }
+        final Envelope area = searchArea;
+        index.search(area.getXMin(), area.getYMin(), area.getXMax(), area.getYMax(),
+                new PackedHilbertRTree.Visitor() {
+                    @Override
+                    public boolean visit(int itemIndex) {
+                        Geometry geometry = geometries[itemIndex];
+                        // Points are exact matches; other envelopes need a geometry test
+                        if ((null == filter || filter.matches(attributes.getAttributes(itemIndex)))
+                                && (null == geometry || GeometryEngine.intersects(geometry, area))) {
+                            if (null == geometry) {
+                                geometry = new Point(boxes[itemIndex * 4], boxes[itemIndex * 4 + 1], spatialReference);
+                            }
+                            results.add(new ColumnarFeature(attributes, itemIndex, geometry, displayFieldName));
+                        }
+                        return results.size() < maxResults;
+                    }
+                });
+        return results;
+    }
+
+}
@@ -0,0 +1,702 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.arcgis.Geodatabase;
+import com.esri.arcgisruntime.datasource.arcgis.GeodatabaseFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.mapping.Basemap;
+import com.esri.arcgisruntime.mapping.GeoElement;
+import com.esri.arcgisruntime.mapping.view.GraphicsOverlay;
+
+import java.io.File;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the basemap and feature layers described by a MapDefinition and, when a
+ * new map definition is applied, changes only what differs: layers that were
+ * removed or whose data changed are removed, new layers are created, and layers
+ * whose data is the same are kept, so reloading a map definition does not reload
+ * the whole map. Layers whose cache policy is OFFLINE are created with an
+ * OfflineFeatureCache, and layers whose cache policy is VIEWPORT are loaded by a
+ * ViewportFeatureLoader, which needs viewpointChanged to be called whenever the
+ * map's viewpoint changes. Call close when the applier is no longer needed.
+ *
+ * <p>The basemap's tile server, clustering, refreshes, search indexing and edit
+ * sync are handled by BasemapSource, LayerClusters, LayerRefresher, LayerIndexer
+ * and LayerEditSync.</p>
+ *
+ * <p>The applier does not change the Map itself. It gives the basemap and layers
+ * to a Listener, which adds them to the map on the appropriate thread.</p>
+ */
+public class MapDefinitionApplier {
+
+    /**
+     * Receives the basemap and layers to add to or remove from the map. Methods
+     * may be called on any thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the map definition names a different basemap. Call
+         * basemapShown once the map shows it.
+         * @param basemap the new basemap.
+         */
+        void basemapChanged(Basemap basemap);
+
+        /**
+         * Called when a layer has been created and should be added to the map.
+         * @param layerDefinition the layer's definition.
+         * @param featureLayer the new FeatureLayer.
+         * @param fromCache true if the layer reads from a local geodatabase.
+         */
+        void layerAdded(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer, boolean fromCache);
+
+        /**
+         * Called when a layer should be removed from the map.
+         * @param layerDefinition the layer's definition.
+         * @param featureLayer the FeatureLayer to remove.
+         */
+        void layerRemoved(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer);
+
+        /**
+         * Called when a layer's geodatabase has been synced, or its cached features
+         * refreshed, so that anything built from its features should be rebuilt.
+         * The layer's clusters and search index are rebuilt by the applier.
+         * @param layerDefinition the layer's definition.
+         * @param featureLayer the FeatureLayer whose features changed.
+         */
+        void featuresChanged(MapDefinition.LayerDefinition layerDefinition, FeatureLayer featureLayer);
+
+    }
+
+    private static final Logger logger = Logger.getLogger(MapDefinitionApplier.class.getName());
+
+    private final File cacheDirectory;
+    private final Listener listener;
+    private final Map<String, AppliedLayer> appliedLayers = new LinkedHashMap<>();
+    private final BasemapSource basemapSource;
+    private final LayerClusters clusters;
+    private final LayerIndexer indexer = new LayerIndexer();
+    private final LayerRefresher refresher;
+    private final LayerEditSync editSync;
+    private volatile EncryptedCredentialStore credentialStore = null;
+    private volatile Metrics metrics = null;
+    private MapDefinition mapDefinition = null;
+    private Basemap basemap = null;
+    private Envelope visibleExtent = null;
+    private double unitsPerPixel = Double.NaN;
+
+    /**
+     * Creates an applier.
+     * @param cacheDirectory the directory for OfflineFeatureCache geodatabases.
+     * @param tileCacheDirectory the directory for basemap tile caches, or null to
+     *                           draw basemaps without a tile cache.
+     * @param listener the listener that adds layers to and removes them from the map.
+     * @param clusterOverlay the graphics overlay in which clustered layers are
+     *                       drawn. The caller adds it to the map view.
+     */
+    public MapDefinitionApplier(File cacheDirectory, File tileCacheDirectory, Listener listener,
+                                GraphicsOverlay clusterOverlay) {
+        this.cacheDirectory = cacheDirectory;
+        this.listener = listener;
+        basemapSource = new BasemapSource(tileCacheDirectory);
+        clusters = new LayerClusters(clusterOverlay);
+        EditSyncWorker.TokenProvider tokenProvider = new EditSyncWorker.TokenProvider() {
+            @Override
+            public String getToken(String layerUrl) {
+                return MapDefinitionApplier.this.getToken(layerUrl);
+            }
+        };
+        refresher = new LayerRefresher(tokenProvider, new LayerRefresher.Listener() {
+            @Override
+            public void cacheSynced(AppliedLayer appliedLayer) {
+                MapDefinitionApplier.this.cacheSynced(appliedLayer);
+            }
+
+            @Override
+            public void featuresRefreshed(AppliedLayer appliedLayer, FeatureQueryResult features, boolean reload) {
+                indexer.indexFeatures(appliedLayer, features, reload);
+                featuresChanged(appliedLayer);
+            }
+        });
+        editSync = new LayerEditSync(tokenProvider, refresher);
+    }
+
+    /**
+     * Sets the store whose tokens are sent when polling secured layers for edits.
+     * @param credentialStore the credential store, or null to poll without tokens.
+     */
+    public void setCredentialStore(EncryptedCredentialStore credentialStore) {
+        this.credentialStore = credentialStore;
+    }
+
+    /**
+     * Syncs the edits made with a worker to the layers of the map definition. The
+     * caller still owns the worker and shuts it down.
+     * @param worker the worker, or null to stop syncing edits to the layers.
+     */
+    public void setEditSyncWorker(EditSyncWorker worker) {
+        editSync.setWorker(worker, getLayerUrls());
+    }
+
+    /**
+     * @return the URL of each layer in the map definition, keyed by layer ID.
+     */
+    private synchronized Map<String, String> getLayerUrls() {
+        Map<String, String> layerUrls = new LinkedHashMap<>();
+        for (AppliedLayer appliedLayer : appliedLayers.values()) {
+            layerUrls.put(appliedLayer.getId(), appliedLayer.definition.getUrl());
+        }
+        return layerUrls;
+    }
+
+    /**
+     * Indexes the features of the searchable layers for a search, including those
+     * of layers already created.
+     * @param search the search, or null to stop indexing.
+     */
+    public void setFeatureSearch(FeatureSearch search) {
+        List<AppliedLayer> searchableLayers = new ArrayList<>();
+        synchronized (this) {
+            indexer.setFeatureSearch(search);
+            for (AppliedLayer appliedLayer : appliedLayers.values()) {
+                if (appliedLayer.searchable) {
+                    searchableLayers.add(appliedLayer);
+                }
+            }
+        }
+        for (AppliedLayer appliedLayer : searchableLayers) {
+            indexer.indexLayer(appliedLayer);
+        }
+    }
+
+    /**
+     * Re-indexes a layer and rebuilds what is made from its features after its
+     * geodatabase has been generated or synced.
+     */
+    private void cacheSynced(AppliedLayer appliedLayer) {
+        indexer.indexLayer(appliedLayer);
+        featuresChanged(appliedLayer);
+    }
+
+    /**
+     * Rebuilds a layer's clusters after its features have been synced or
+     * refreshed, and tells the listener, so that nothing built from the layer's
+     * features is left out of date.
+     */
+    private void featuresChanged(AppliedLayer appliedLayer) {
+        MapDefinition.LayerDefinition layerDefinition = appliedLayer.definition;
+        FeatureLayer featureLayer = appliedLayer.featureLayer;
+        if (appliedLayer.removed || null == featureLayer) {
+            return;
+        }
+        if (layerDefinition.isClustered()) {
+            clusters.cluster(layerDefinition.getId(), featureLayer, layerDefinition.getDefinitionExpression(),
+                    layerDefinition.isVisible(), appliedLayer.filter);
+        }
+        listener.featuresChanged(layerDefinition, featureLayer);
+    }
+
+    /**
+     * Returns the stored token for a layer's service, if it is still valid.
+     * @param url the layer's URL.
+     * @return the token, or null to send no token.
+     */
+    private String getToken(String url) {
+        EncryptedCredentialStore store = credentialStore;
+        if (null == store) {
+            return null;
+        }
+        EncryptedCredentialStore.Entry entry = store.get(StoredCredentialChallengeHandler.getRealm(url));
+        return null != entry && entry.hasValidToken(System.currentTimeMillis(), 0) ? entry.getToken() : null;
+    }
+
+    /**
+     * Records how long layers take to download their features, and publishes the
+     * hit counts and sizes of the basemap's tile cache. Layers created before this
+     * is called are not recorded.
+     * @param metrics the metrics.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        refresher.setMetrics(metrics);
+        basemapSource.registerMetrics(metrics);
+    }
+
+    /**
+     * @return the map definition applied most recently, or null.
+     */
+    public synchronized MapDefinition getMapDefinition() {
+        return mapDefinition;
+    }
+
+    /**
+     * Returns the basemap of the map definition applied most recently, so that the
+     * map can be created with it instead of with a basemap that is replaced at once.
+     * @return the basemap, or null if no map definition has been applied.
+     */
+    public synchronized Basemap getBasemap() {
+        return basemap;
+    }
+
+    /**
+     * Stops the tile servers of the basemaps that a basemap replaced. Call this
+     * once the map shows a basemap passed to basemapChanged, and not before, so
+     * that the map never draws from a tile server that has stopped.
+     * @param basemap the basemap that the map now shows.
+     */
+    public void basemapShown(Basemap basemap) {
+        basemapSource.basemapShown(basemap);
+    }
+
+    /**
+     * Applies a map definition. Layers are created asynchronously, and each one is
+     * passed to the listener when it has been created.
+     * @param newDefinition the map definition.
+     */
+    public void apply(MapDefinition newDefinition) {
+        Basemap basemap = null;
+        List<AppliedLayer> removedLayers = new ArrayList<>();
+        List<AppliedLayer> addedLayers = new ArrayList<>();
+        List<AppliedLayer> shownLayers = new ArrayList<>();
+        List<AppliedLayer> filteredLayers = new ArrayList<>();
+        List<AppliedLayer> rescheduledLayers = new ArrayList<>();
+        List<AppliedLayer> reindexedLayers = new ArrayList<>();
+        synchronized (this) {
+            boolean packageChanged = null == mapDefinition ? null != newDefinition.getPackagePath()
+                    : !(null == newDefinition.getPackagePath() ? null == mapDefinition.getPackagePath()
+                            : newDefinition.getPackagePath().equals(mapDefinition.getPackagePath()));
+            if (null == mapDefinition || packageChanged
+                    || !mapDefinition.getBasemap().equals(newDefinition.getBasemap())) {
+                basemap = basemapSource.create(newDefinition);
+                this.basemap = basemap;
+            }
+
+            Map<String, MapDefinition.LayerDefinition> newLayers = new LinkedHashMap<>();
+            for (MapDefinition.LayerDefinition layerDefinition : newDefinition.getLayers()) {
+                newLayers.put(layerDefinition.getId(), layerDefinition);
+            }
+            Iterator<AppliedLayer> iterator = appliedLayers.values().iterator();
+            while (iterator.hasNext()) {
+                AppliedLayer appliedLayer = iterator.next();
+                MapDefinition.LayerDefinition newLayer = newLayers.get(appliedLayer.getId());
+                if (null == newLayer || packageChanged || !newLayer.hasSameData(appliedLayer.definition)
+                        || isManualCache(newLayer) != isManualCache(appliedLayer.definition)) {
+                    appliedLayer.removed = true;
+                    iterator.remove();
+                    if (null != appliedLayer.featureLayer) {
+                        removedLayers.add(appliedLayer);
+                    }
+                } else {
+                    if (null != appliedLayer.featureLayer && newLayer.isVisible() != appliedLayer.definition.isVisible()) {
+                        shownLayers.add(appliedLayer);
+                    }
+                    if (!(null == newLayer.getFilter() ? null == appliedLayer.definition.getFilter()
+                            : newLayer.getFilter().equals(appliedLayer.definition.getFilter()))) {
+                        filteredLayers.add(appliedLayer);
+                    }
+                    if (null != appliedLayer.featureLayer
+                            && newLayer.getRefreshIntervalSeconds() != appliedLayer.definition.getRefreshIntervalSeconds()) {
+                        rescheduledLayers.add(appliedLayer);
+                    }
+                    if (appliedLayer.searchable
+                            && !newLayer.getSearchFields().equals(appliedLayer.definition.getSearchFields())) {
+                        reindexedLayers.add(appliedLayer);
+                    }
+                    appliedLayer.definition = newLayer;
+                }
+            }
+            for (MapDefinition.LayerDefinition layerDefinition : newDefinition.getLayers()) {
+                if (!appliedLayers.containsKey(layerDefinition.getId())) {
+                    AppliedLayer appliedLayer = new AppliedLayer(layerDefinition);
+                    appliedLayer.packageGeodatabase = getPackageGeodatabase(newDefinition, layerDefinition);
+                    appliedLayers.put(layerDefinition.getId(), appliedLayer);
+                    addedLayers.add(appliedLayer);
+                }
+            }
+            mapDefinition = newDefinition;
+        }
+
+        if (null != basemap) {
+            listener.basemapChanged(basemap);
+        }
+        for (AppliedLayer appliedLayer : removedLayers) {
+            refresher.cancel(appliedLayer.getId());
+            clusters.remove(appliedLayer.getId());
+            listener.layerRemoved(appliedLayer.definition, appliedLayer.featureLayer);
+            indexer.removeLayer(appliedLayer.getId());
+        }
+        for (AppliedLayer appliedLayer : shownLayers) {
+            boolean visible = appliedLayer.definition.isVisible();
+            if (!clusters.setLayerVisible(appliedLayer.getId(), visible)) {
+                appliedLayer.featureLayer.setVisible(visible);
+            }
+        }
+        for (AppliedLayer appliedLayer : filteredLayers) {
+            applyFilter(appliedLayer);
+        }
+        for (AppliedLayer appliedLayer : rescheduledLayers) {
+            refresher.schedule(appliedLayer);
+        }
+        for (AppliedLayer appliedLayer : reindexedLayers) {
+            indexer.indexLayer(appliedLayer);
+        }
+        for (AppliedLayer appliedLayer : addedLayers) {
+            createLayer(appliedLayer);
+        }
+        editSync.setLayers(getLayerUrls());
+    }
+
+    /**
+     * Loads the features that a new viewpoint shows in the layers whose cache
+     * policy is VIEWPORT and updates the clusters of clustered layers.
+     * @param visibleExtent the map's visible extent.
+     * @param unitsPerPixel the size of one pixel in map units.
+     */
+    public void viewpointChanged(Envelope visibleExtent, double unitsPerPixel) {
+        List<ViewportFeatureLoader> loaders = new ArrayList<>();
+        synchronized (this) {
+            this.visibleExtent = visibleExtent;
+            this.unitsPerPixel = unitsPerPixel;
+            for (AppliedLayer appliedLayer : appliedLayers.values()) {
+                if (null != appliedLayer.viewportLoader) {
+                    loaders.add(appliedLayer.viewportLoader);
+                }
+            }
+        }
+        for (ViewportFeatureLoader loader : loaders) {
+            loader.viewpointChanged(visibleExtent, unitsPerPixel);
+        }
+        clusters.viewpointChanged(visibleExtent, unitsPerPixel);
+    }
+
+    /**
+     * Returns the filter applied to a layer, for evaluating it locally, e.g. to
+     * identify only the features that the layer shows.
+     * @param id the layer ID.
+     * @return the filter, which is WhereClause.ALL if the layer has none.
+     */
+    public synchronized WhereClause getFilter(String id) {
+        AppliedLayer appliedLayer = appliedLayers.get(id);
+        return null == appliedLayer ? WhereClause.ALL : appliedLayer.filter;
+    }
+
+    /**
+     * Identifies the features in the clusters under a tap on a clustered layer.
+     * @param id the layer ID.
+     * @param searchArea the search area around the tap.
+     * @param maxResults the maximum number of features to return.
+     * @return the features, or null if the layer is not clustered at the current
+     *         scale, in which case the layer itself should be identified.
+     */
+    public List<GeoElement> identifyClusters(String id, Envelope searchArea, int maxResults) {
+        return clusters.identify(id, searchArea, maxResults);
+    }
+
+    /**
+     * Returns the FeatureLayer created for a layer definition.
+     * @param id the layer ID.
+     * @return the FeatureLayer, or null if it has not been created.
+     */
+    public synchronized FeatureLayer getFeatureLayer(String id) {
+        AppliedLayer appliedLayer = appliedLayers.get(id);
+        return null == appliedLayer ? null : appliedLayer.featureLayer;
+    }
+
+    /**
+     * Returns the FeatureLayers that have been created, in the order in which their
+     * layer definitions were first applied.
+     * @return a copy of the FeatureLayers, keyed by layer ID.
+     */
+    public synchronized Map<String, FeatureLayer> getFeatureLayers() {
+        Map<String, FeatureLayer> featureLayers = new LinkedHashMap<>();
+        for (Map.Entry<String, AppliedLayer> entry : appliedLayers.entrySet()) {
+            if (null != entry.getValue().featureLayer) {
+                featureLayers.put(entry.getKey(), entry.getValue().featureLayer);
+            }
+        }
+        return featureLayers;
+    }
+
+    private void createLayer(final AppliedLayer appliedLayer) {
+        MapDefinition.LayerDefinition layerDefinition = appliedLayer.definition;
+        if (null != appliedLayer.packageGeodatabase) {
+            createPackageLayer(appliedLayer);
+        } else if (MapDefinition.CachePolicy.OFFLINE == layerDefinition.getCachePolicy()) {
+            final String id = layerDefinition.getId();
+            OfflineFeatureCache featureCache = new OfflineFeatureCache(
+                    layerDefinition.getUrl(), layerDefinition.getDefinitionExpression(), cacheDirectory);
+            appliedLayer.featureCache = featureCache;
+            featureCache.openFeatureLayer(new OfflineFeatureCache.Listener() {
+                @Override
+                public void featureLayerCreated(FeatureLayer featureLayer, boolean fromCache) {
+                    layerCreated(appliedLayer, featureLayer, fromCache);
+                }
+
+                @Override
+                public void cacheUpdated(long syncTime) {
+                    logger.log(Level.INFO, "Feature cache for {0} updated at {1}", new Object[] { id, new Date(syncTime) });
+                    cacheSynced(appliedLayer);
+                }
+
+                @Override
+                public void cacheUpdateFailed(Throwable error) {
+                    // OfflineFeatureCache logs the failure, and the layer keeps its features
+                }
+            });
+        } else {
+            createServiceLayer(appliedLayer);
+        }
+    }
+
+    private void createServiceLayer(final AppliedLayer appliedLayer) {
+        MapDefinition.LayerDefinition layerDefinition = appliedLayer.definition;
+        final ServiceFeatureTable featureTable = new ServiceFeatureTable(layerDefinition.getUrl());
+        appliedLayer.serviceTable = featureTable;
+        final String id = layerDefinition.getId();
+        if (MapDefinition.CachePolicy.VIEWPORT == layerDefinition.getCachePolicy()) {
+            appliedLayer.viewportLoader
+                    = new ViewportFeatureLoader(featureTable, layerDefinition.getDefinitionExpression());
+            appliedLayer.viewportLoader.setLoadHistogram(LayerRefresher.getFeatureLoadHistogram(metrics, id, "tile"));
+            appliedLayer.viewportLoader.setListener(new ViewportFeatureLoader.Listener() {
+                @Override
+                public void featuresLoaded(FeatureQueryResult features, boolean cacheCleared) {
+                    indexer.indexFeatures(appliedLayer, features, cacheCleared);
+                }
+            });
+        } else if (isManualCache(layerDefinition)) {
+            // The layer's features are downloaded once and then updated by refreshes
+            featureTable.setFeatureRequestMode(ServiceFeatureTable.FeatureRequestMode.MANUAL_CACHE);
+            final LatencyHistogram histogram = LayerRefresher.getFeatureLoadHistogram(metrics, id, "all");
+            final long startNanos = System.nanoTime();
+            final ListenableFuture<FeatureQueryResult> future
+                    = LayerRefresher.populate(featureTable, layerDefinition.getDefinitionExpression(), true);
+            future.addDoneListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FeatureQueryResult features = future.get();
+                        if (null != histogram) {
+                            histogram.recordSince(startNanos);
+                        }
+                        indexer.indexFeatures(appliedLayer, features, true);
+                    } catch (CancellationException | InterruptedException | ExecutionException e) {
+                        logger.log(Level.WARNING, "Could not load the features of " + id, e);
+                    }
+                }
+            });
+        }
+        FeatureLayer featureLayer = new FeatureLayer(featureTable);
+        if (null != layerDefinition.getDefinitionExpression()) {
+            featureLayer.setDefinitionExpression(layerDefinition.getDefinitionExpression());
+        }
+        layerCreated(appliedLayer, featureLayer, false);
+    }
+
+    /**
+     * Returns true if a layer read from its service keeps its features in a
+     * manually populated cache, so that refreshes can update them.
+     */
+    private static boolean isManualCache(MapDefinition.LayerDefinition layerDefinition) {
+        return MapDefinition.CachePolicy.VIEWPORT == layerDefinition.getCachePolicy()
+                || (MapDefinition.CachePolicy.ONLINE == layerDefinition.getCachePolicy()
+                        && 0 < layerDefinition.getRefreshIntervalSeconds());
+    }
+
+    /**
+     * Returns the geodatabase of an offline map package that holds a layer.
+     * @return the geodatabase file, or null if the map definition has no package
+     *         or the package does not contain the layer.
+     */
+    private static File getPackageGeodatabase(MapDefinition mapDefinition, MapDefinition.LayerDefinition layerDefinition) {
+        if (null == mapDefinition.getPackagePath()) {
+            return null;
+        }
+        File geodatabaseFile = new File(new File(mapDefinition.getPackagePath(), "data"),
+                layerDefinition.getId() + ".geodatabase");
+        return geodatabaseFile.isFile() ? geodatabaseFile : null;
+    }
+
+    /**
+     * Creates a layer from the geodatabase of an offline map package. The package
+     * geodatabase is read-only as far as the app is concerned, so it is never
+     * synced. If it does not contain the layer, the layer's cache policy applies.
+     */
+    private void createPackageLayer(final AppliedLayer appliedLayer) {
+        final String url = appliedLayer.definition.getUrl();
+        final Geodatabase geodatabase = new Geodatabase(appliedLayer.packageGeodatabase.getAbsolutePath());
+        geodatabase.addDoneLoadingListener(new Runnable() {
+            @Override
+            public void run() {
+                GeodatabaseFeatureTable featureTable = null;
+                if (LoadStatus.LOADED.equals(geodatabase.getLoadStatus())) {
+                    try {
+                        featureTable = geodatabase.getGeodatabaseFeatureTableByServiceLayerId(
+                                Long.parseLong(url.substring(url.lastIndexOf('/') + 1)));
+                    } catch (NumberFormatException e) {
+                        featureTable = null;
+                    }
+                }
+                if (null == featureTable) {
+                    logger.log(Level.WARNING, "Package geodatabase " + appliedLayer.packageGeodatabase
+                            + " does not contain " + url, geodatabase.getLoadError());
+                    appliedLayer.packageGeodatabase = null;
+                    createLayer(appliedLayer);
+                    return;
+                }
+                FeatureLayer featureLayer = new FeatureLayer(featureTable);
+                if (null != appliedLayer.definition.getDefinitionExpression()) {
+                    featureLayer.setDefinitionExpression(appliedLayer.definition.getDefinitionExpression());
+                }
+                layerCreated(appliedLayer, featureLayer, true);
+            }
+        });
+        geodatabase.loadAsync();
+    }
+
+    private void layerCreated(AppliedLayer appliedLayer, FeatureLayer featureLayer, boolean fromCache) {
+        MapDefinition.LayerDefinition layerDefinition;
+        Envelope extent;
+        double resolution;
+        synchronized (this) {
+            if (appliedLayer.removed) {
+                // A newer map definition removed the layer while it was being created
+                return;
+            }
+            appliedLayer.featureLayer = featureLayer;
+            appliedLayer.searchable = fromCache
+                    || (null != appliedLayer.serviceTable && isManualCache(appliedLayer.definition));
+            layerDefinition = appliedLayer.definition;
+            extent = visibleExtent;
+            resolution = unitsPerPixel;
+        }
+        featureLayer.setVisible(layerDefinition.isVisible());
+        if (null != layerDefinition.getFilter()) {
+            applyFilter(appliedLayer);
+        }
+        listener.layerAdded(layerDefinition, featureLayer, fromCache);
+        refresher.schedule(appliedLayer);
+        if (null != appliedLayer.viewportLoader && null != extent) {
+            appliedLayer.viewportLoader.viewpointChanged(extent, resolution);
+        }
+        if (layerDefinition.isClustered()) {
+            clusters.cluster(layerDefinition.getId(), featureLayer, layerDefinition.getDefinitionExpression(),
+                    layerDefinition.isVisible(), appliedLayer.filter);
+        }
+        if (fromCache) {
+            indexer.indexLayer(appliedLayer);
+        }
+    }
+
+    /**
+     * Applies a layer's filter to its FeatureLayer and clusters. A filter that does
+     * not parse is ignored, and the previous filter is kept. The filter is combined
+     * with the layer's definition expression, so a new filter takes effect without
+     * recreating the layer.
+     */
+    private void applyFilter(AppliedLayer appliedLayer) {
+        MapDefinition.LayerDefinition layerDefinition;
+        FeatureLayer featureLayer;
+        WhereClause filter;
+        synchronized (this) {
+            layerDefinition = appliedLayer.definition;
+            featureLayer = appliedLayer.featureLayer;
+            if (appliedLayer.removed || null == featureLayer) {
+                return;
+            }
+            try {
+                filter = WhereClause.parse(layerDefinition.getFilter());
+            } catch (ParseException e) {
+                logger.log(Level.WARNING, "Ignoring the filter of layer {0}: {1}",
+                        new Object[] { layerDefinition.getId(), e.getMessage() });
+                return;
+            }
+            appliedLayer.filter = filter;
+        }
+        String definitionExpression = WhereClause.and(layerDefinition.getDefinitionExpression(), filter.toString());
+        featureLayer.setDefinitionExpression(null == definitionExpression ? "" : definitionExpression);
+        clusters.setFilter(layerDefinition.getId(), filter);
+    }
+
+    /**
+     * @return the cache of the current basemap's tiles, for its hit, miss and
+     *         eviction counts, or null if the basemap is not cached.
+     */
+    public TileCache getTileCache() {
+        return basemapSource.getTileCache();
+    }
+
+    /**
+     * Empties the memory tier of the basemap's tile cache, e.g. when the system is
+     * low on memory. Tiles are read from the disk tier again as needed.
+     */
+    public void trimMemory() {
+        basemapSource.trimMemory();
+    }
+
+    /**
+     * Stops polling layers for edits, e.g. while the app is in the background.
+     */
+    public void pauseRefresh() {
+        refresher.pause();
+    }
+
+    /**
+     * Starts polling layers for edits again after pauseRefresh. Each layer is
+     * polled soon, since it may have missed a refresh.
+     */
+    public void resumeRefresh() {
+        refresher.resume();
+    }
+
+    /**
+     * Stops the tile server of the basemap, if there is one, and all layer
+     * refreshes, and detaches the edit sync worker. Layers that have been created
+     * are not removed.
+     */
+    public void close() {
+        setEditSyncWorker(null);
+        basemapSource.close();
+        refresher.shutdown();
+    }
+
+    /**
+     * Creates a basemap from a name or URL.
+     * @param basemap the name of a standard basemap, such as "topographic",
+     *                "imagery" or "streets", or the URL of a tiled map service.
+     * @return the basemap. An unknown name gives the topographic basemap.
+     */
+    public static Basemap createBasemap(String basemap) {
+        return BasemapSource.createBasemap(basemap);
+    }
+
+}
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.Job;
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.FeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.Geodatabase;
+import com.esri.arcgisruntime.datasource.arcgis.GeodatabaseFeatureTable;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.tasks.geodatabase.GenerateGeodatabaseJob;
+import com.esri.arcgisruntime.tasks.geodatabase.GenerateGeodatabaseParameters;
+import com.esri.arcgisruntime.tasks.geodatabase.GenerateLayerOption;
+import com.esri.arcgisruntime.tasks.geodatabase.GeodatabaseSyncTask;
+import com.esri.arcgisruntime.tasks.geodatabase.SyncDirection;
+import com.esri.arcgisruntime.tasks.geodatabase.SyncGeodatabaseJob;
+import com.esri.arcgisruntime.tasks.geodatabase.SyncGeodatabaseParameters;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A persistent, on-disk cache of one feature service layer, kept in a mobile
+ * geodatabase whose file name is derived from the service URL and definition
+ * expression. The cache's files are managed by FeatureCacheFiles, and when it is
+ * opened, generated and synced is decided by FeatureCacheUpdater, for which this
+ * class creates the layer and runs the Runtime jobs.
+ *
+ * <p>If a geodatabase for the layer already exists, the FeatureLayer is created
+ * from it immediately and only the edits made on the server since the last sync
+ * are downloaded in the background. Otherwise, the layer is created from a
+ * ServiceFeatureTable as before, and the geodatabase is generated in the background
+ * for the next launch. Generating and syncing require a sync-enabled feature
+ * service; if the service does not support sync, the cache simply stays empty and
+ * the app keeps using the service.</p>
+ */
+public class OfflineFeatureCache {
+
+    /**
+     * Receives the FeatureLayer created by the cache and the outcome of background
+     * cache updates. Methods may be called on any thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called once, when the FeatureLayer has been created.
+         * @param featureLayer the new FeatureLayer, not yet added to a map.
+         * @param fromCache true if the layer reads from the local geodatabase and
+         *                  false if it reads from the feature service.
+         */
+        void featureLayerCreated(FeatureLayer featureLayer, boolean fromCache);
+
+        /**
+         * Called when the local geodatabase has been generated or synced.
+         * @param syncTime the time of the sync, in milliseconds since the epoch.
+         */
+        void cacheUpdated(long syncTime);
+
+        /**
+         * Called when the local geodatabase could not be synced. The layer keeps
+         * reading the features it has.
+         * @param error the reason for the failure.
+         */
+        void cacheUpdateFailed(Throwable error);
+
+    }
+
+    private final String featureServerUrl;
+    private final long layerId;
+    private final String definitionExpression;
+    private final FeatureCacheFiles files;
+    private final FeatureCacheUpdater updater;
+    private volatile Geodatabase geodatabase = null;
+    private volatile FeatureLayer featureLayer = null;
+
+    /**
+     * Creates a cache for a feature service layer. Nothing is read or downloaded
+     * until openFeatureLayer is called.
+     * @param featureLayerUrl the URL of the feature service layer, ending in
+     *                        FeatureServer/&lt;layer ID&gt;.
+     * @param definitionExpression the definition expression for the layer, or null.
+     * @param cacheDirectory the directory in which to store the geodatabase. It is
+     *                       created if it does not exist.
+     */
+    public OfflineFeatureCache(String featureLayerUrl, String definitionExpression, File cacheDirectory) {
+        int lastSlash = featureLayerUrl.lastIndexOf('/');
+        this.featureServerUrl = featureLayerUrl.substring(0, lastSlash);
+        this.layerId = Long.parseLong(featureLayerUrl.substring(lastSlash + 1));
+        this.definitionExpression = definitionExpression;
+        files = new FeatureCacheFiles(featureLayerUrl, definitionExpression, cacheDirectory);
+        updater = new FeatureCacheUpdater(files, new RuntimeBackend());
+    }
+
+    /**
+     * Returns the time of the last successful generate or sync, or 0 if the cache
+     * has never been filled.
+     * @return the time of the last sync, in milliseconds since the epoch.
+     */
+    public long getLastSyncTime() {
+        return files.getLastSyncTime();
+    }
+
+    /**
+     * Creates the FeatureLayer, from the local geodatabase if there is one and from
+     * the feature service otherwise, and then starts updating the local geodatabase
+     * in the background.
+     * @param listener the listener that receives the FeatureLayer and cache updates.
+     */
+    public void openFeatureLayer(final Listener listener) {
+        updater.open(new FeatureCacheUpdater.Listener() {
+            @Override
+            public void layerOpened(boolean fromCache) {
+                listener.featureLayerCreated(featureLayer, fromCache);
+            }
+
+            @Override
+            public void cacheUpdated(long syncTime) {
+                listener.cacheUpdated(syncTime);
+            }
+
+            @Override
+            public void cacheUpdateFailed(Throwable error) {
+                listener.cacheUpdateFailed(error);
+            }
+        });
+    }
+
+    /**
+     * Downloads the edits made on the server since the last sync, e.g. when the
+     * layer is refreshed. The layer must have been opened from the local
+     * geodatabase; a layer read from the feature service is not refreshed here.
+     * @param listener the listener whose cacheUpdated or cacheUpdateFailed is
+     *                 called when the sync is done.
+     * @return true if a sync was started, or false if the layer does not read
+     *         from the local geodatabase.
+     */
+    public boolean refresh(final Listener listener) {
+        return updater.refresh(new FeatureCacheUpdater.Listener() {
+            @Override
+            public void layerOpened(boolean fromCache) {
+                // Only called by open
+            }
+
+            @Override
+            public void cacheUpdated(long syncTime) {
+                listener.cacheUpdated(syncTime);
+            }
+
+            @Override
+            public void cacheUpdateFailed(Throwable error) {
+                listener.cacheUpdateFailed(error);
+            }
+        });
+    }
+
+    private FeatureLayer createFeatureLayer(FeatureTable featureTable) {
+        FeatureLayer featureLayer = new FeatureLayer(featureTable);
+        if (null != definitionExpression) {
+            featureLayer.setDefinitionExpression(definitionExpression);
+        }
+        return featureLayer;
+    }
+
+    /**
+     * Creates the layer and runs the generate and sync jobs with ArcGIS Runtime.
+     */
+    private class RuntimeBackend implements FeatureCacheUpdater.Backend {
+
+        @Override
+        public void openServiceLayer(final FeatureCacheUpdater.Callback loaded) {
+            final FeatureLayer serviceLayer
+                    = createFeatureLayer(new ServiceFeatureTable(featureServerUrl + "/" + layerId));
+            serviceLayer.addDoneLoadingListener(new Runnable() {
+                @Override
+                public void run() {
+                    serviceLayer.removeDoneLoadingListener(this);
+                    if (LoadStatus.LOADED.equals(serviceLayer.getLoadStatus())) {
+                        loaded.succeeded();
+                    } else {
+                        loaded.failed(serviceLayer.getLoadError());
+                    }
+                }
+            });
+            featureLayer = serviceLayer;
+        }
+
+        @Override
+        public void openGeodatabase(File geodatabaseFile, final FeatureCacheUpdater.Callback opened) {
+            final Geodatabase openingGeodatabase = new Geodatabase(geodatabaseFile.getAbsolutePath());
+            openingGeodatabase.addDoneLoadingListener(new Runnable() {
+                @Override
+                public void run() {
+                    GeodatabaseFeatureTable featureTable = LoadStatus.LOADED.equals(openingGeodatabase.getLoadStatus())
+                            ? openingGeodatabase.getGeodatabaseFeatureTableByServiceLayerId(layerId) : null;
+                    if (null == featureTable) {
+                        openingGeodatabase.close();
+                        opened.failed(openingGeodatabase.getLoadError());
+                        return;
+                    }
+                    geodatabase = openingGeodatabase;
+                    featureLayer = createFeatureLayer(featureTable);
+                    opened.succeeded();
+                }
+            });
+            openingGeodatabase.loadAsync();
+        }
+
+        /**
+         * Downloads the layer's features, and no attachments, into a new
+         * geodatabase.
+         */
+        @Override
+        public void generateGeodatabase(final File newGeodatabaseFile, final FeatureCacheUpdater.Callback generated) {
+            final GeodatabaseSyncTask syncTask = new GeodatabaseSyncTask(featureServerUrl);
+            final ListenableFuture<GenerateGeodatabaseParameters> paramsFuture
+                    = syncTask.createDefaultGenerateGeodatabaseParametersAsync(featureLayer.getFullExtent());
+            paramsFuture.addDoneListener(new Runnable() {
+                @Override
+                public void run() {
+                    GenerateGeodatabaseParameters params;
+                    try {
+                        params = paramsFuture.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        generated.failed(e);
+                        return;
+                    }
+                    params.setReturnAttachments(false);
+                    params.getLayerOptions().clear();
+                    GenerateLayerOption layerOption = new GenerateLayerOption(layerId);
+                    if (null != definitionExpression) {
+                        layerOption.setWhereClause(definitionExpression);
+                    }
+                    params.getLayerOptions().add(layerOption);
+
+                    final GenerateGeodatabaseJob job
+                            = syncTask.generateGeodatabaseAsync(params, newGeodatabaseFile.getAbsolutePath());
+                    job.addJobDoneListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (Job.Status.SUCCEEDED.equals(job.getStatus())) {
+                                job.getResult().close();
+                                generated.succeeded();
+                            } else {
+                                generated.failed(job.getError());
+                            }
+                        }
+                    });
+                    job.start();
+                }
+            });
+        }
+
+        /**
+         * Downloads the server's edits into the open geodatabase, which tracks its
+         * own sync state, so only newer edits are transferred.
+         */
+        @Override
+        public void syncGeodatabase(final FeatureCacheUpdater.Callback synced) {
+            final Geodatabase openGeodatabase = geodatabase;
+            final GeodatabaseSyncTask syncTask = new GeodatabaseSyncTask(featureServerUrl);
+            final ListenableFuture<SyncGeodatabaseParameters> paramsFuture
+                    = syncTask.createDefaultSyncGeodatabaseParametersAsync(openGeodatabase);
+            paramsFuture.addDoneListener(new Runnable() {
+                @Override
+                public void run() {
+                    SyncGeodatabaseParameters params;
+                    try {
+                        params = paramsFuture.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        synced.failed(e);
+                        return;
+                    }
+                    params.setGeodatabaseSyncDirection(SyncDirection.DOWNLOAD);
+                    final SyncGeodatabaseJob job = syncTask.syncGeodatabaseAsync(params, openGeodatabase);
+                    job.addJobDoneListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (Job.Status.SUCCEEDED.equals(job.getStatus())) {
+                                synced.succeeded();
+                            } else {
+                                synced.failed(job.getError());
+                            }
+                        }
+                    });
+                    job.start();
+                }
+            });
+        }
+
+    }
+
+}
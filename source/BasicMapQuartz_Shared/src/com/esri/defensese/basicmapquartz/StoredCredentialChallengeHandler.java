@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.io.RemoteResource;
+import com.esri.arcgisruntime.security.AuthenticationChallenge;
+import com.esri.arcgisruntime.security.AuthenticationChallengeAction;
+import com.esri.arcgisruntime.security.AuthenticationChallengeHandler;
+import com.esri.arcgisruntime.security.AuthenticationChallengeResponse;
+import com.esri.arcgisruntime.security.UserCredential;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers user credential challenges from an EncryptedCredentialStore, so that
+ * the user signs in to each server once rather than once per launch. A stored
+ * token that is still valid is used as is, which avoids generating a token while
+ * the app starts; otherwise the stored username and password are used. Other
+ * challenges, and realms with nothing stored, go to a delegate handler, and the
+ * credentials it returns are stored.
+ */
+public class StoredCredentialChallengeHandler implements AuthenticationChallengeHandler {
+
+    private static final Logger logger = Logger.getLogger(StoredCredentialChallengeHandler.class.getName());
+
+    private final EncryptedCredentialStore store;
+    private final TokenRefresher tokenRefresher;
+    private final String referer;
+    private final AuthenticationChallengeHandler delegate;
+
+    /**
+     * Creates a handler.
+     * @param store the credential store.
+     * @param tokenRefresher the refresher that keeps the stored tokens fresh.
+     * @param referer the referer for which the stored tokens were generated.
+     * @param delegate the handler for challenges that the store cannot answer,
+     *                 typically one that prompts the user.
+     */
+    public StoredCredentialChallengeHandler(EncryptedCredentialStore store, TokenRefresher tokenRefresher,
+                                            String referer, AuthenticationChallengeHandler delegate) {
+        this.store = store;
+        this.tokenRefresher = tokenRefresher;
+        this.referer = referer;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public AuthenticationChallengeResponse handleChallenge(AuthenticationChallenge challenge) {
+        if (AuthenticationChallenge.Type.USER_CREDENTIAL_CHALLENGE != challenge.getType()) {
+            return delegate.handleChallenge(challenge);
+        }
+        String realm = getRealm(challenge);
+        EncryptedCredentialStore.Entry entry = store.get(realm);
+        if (null != entry) {
+            if (0 == challenge.getFailureCount()) {
+                UserCredential credential = entry.hasValidToken(System.currentTimeMillis(), 0)
+                        ? UserCredential.createFromToken(entry.getToken(), referer)
+                        : new UserCredential(entry.getUsername(), entry.getPassword());
+                return new AuthenticationChallengeResponse(AuthenticationChallengeAction.CONTINUE_WITH_CREDENTIAL, credential);
+            }
+            // The server rejected the stored credential, so forget it for this server only
+            logger.log(Level.INFO, "Stored credential for {0} was rejected", realm);
+            evict(realm);
+        }
+
+        AuthenticationChallengeResponse response = delegate.handleChallenge(challenge);
+        if (null != response && AuthenticationChallengeAction.CONTINUE_WITH_CREDENTIAL == response.getAction()
+                && response.getParameter() instanceof UserCredential) {
+            UserCredential credential = (UserCredential) response.getParameter();
+            if (null != credential.getUsername() && null != credential.getPassword()) {
+                RemoteResource resource = challenge.getRemoteResource();
+                store.put(realm, new EncryptedCredentialStore.Entry(credential.getUsername(), credential.getPassword(),
+                        null == resource ? null : resource.getUri(), null, 0));
+                tokenRefresher.schedule(realm);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Removes the stored credential for one realm, e.g. when a layer on that server
+     * fails to load because of a token error.
+     * @param realm the realm.
+     */
+    public void evict(String realm) {
+        store.remove(realm);
+    }
+
+    /**
+     * Returns the realm of a challenge, which is the scheme and authority of the
+     * challenged resource's URI, so that all services on one server share a realm.
+     * @param challenge the challenge.
+     * @return the realm.
+     */
+    public static String getRealm(AuthenticationChallenge challenge) {
+        RemoteResource resource = challenge.getRemoteResource();
+        return getRealm(null == resource ? null : resource.getUri());
+    }
+
+    /**
+     * Returns the realm of a URL, which is its scheme and authority.
+     * @param url the URL.
+     * @return the realm.
+     */
+    public static String getRealm(String url) {
+        if (null == url) {
+            return "";
+        }
+        try {
+            URI parsed = new URI(url);
+            return null == parsed.getAuthority() ? url : parsed.getScheme() + "://" + parsed.getAuthority();
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+}
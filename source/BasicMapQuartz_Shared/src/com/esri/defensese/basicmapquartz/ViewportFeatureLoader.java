@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2015-2016 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.defensese.basicmapquartz;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.datasource.FeatureQueryResult;
+import com.esri.arcgisruntime.datasource.QueryParameters;
+import com.esri.arcgisruntime.datasource.arcgis.ServiceFeatureTable;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.GeometryType;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads a service feature table's features tile by tile for the visible part of
+ * the map, instead of letting the table request every feature in the extent the
+ * map shows. The table is switched to manual caching, and each tile planned by a
+ * TileLoadPlanner is requested with populateFromServiceAsync, with geometries
+ * generalized to one pixel and point features limited per tile for the current
+ * zoom level. Call viewpointChanged whenever the map's viewpoint changes.
+ *
+ * <p>The generalization offset is in the map's units, so the service should use
+ * the map's spatial reference or one with the same units.</p>
+ */
+public class ViewportFeatureLoader {
+
+    /**
+     * Receives the features of each tile as it loads, e.g. to index them for
+     * search. Called on the thread that completes the tile's request.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a tile's features have been loaded into the table.
+         * @param features the tile's features.
+         * @param cacheCleared true if the table's features were replaced by the
+         *                     tile's, so that features loaded before are gone.
+         */
+        void featuresLoaded(FeatureQueryResult features, boolean cacheCleared);
+
+    }
+
+    /**
+     * The maximum number of tile requests in flight at once.
+     */
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    private static final Logger logger = Logger.getLogger(ViewportFeatureLoader.class.getName());
+    private static final List<String> OUT_FIELDS = Collections.singletonList("*");
+
+    private final ServiceFeatureTable featureTable;
+    private final String whereClause;
+    private final TileLoadPlanner planner;
+    private final ArrayDeque<TileLoadPlanner.Tile> pendingTiles = new ArrayDeque<>();
+    private Envelope visibleExtent = null;
+    private double unitsPerPixel = Double.NaN;
+    private int requestsInFlight = 0;
+    private boolean clearCache = false;
+    private volatile LatencyHistogram loadHistogram = null;
+    private volatile Listener listener = null;
+
+    /**
+     * Creates a loader with a default TileLoadPlanner.
+     * @param featureTable the table, which is switched to manual caching.
+     * @param whereClause the where clause for the features to load, e.g. the
+     *                    layer's definition expression, or null for all features.
+     */
+    public ViewportFeatureLoader(ServiceFeatureTable featureTable, String whereClause) {
+        this(featureTable, whereClause, new TileLoadPlanner());
+    }
+
+    /**
+     * Creates a loader.
+     * @param featureTable the table, which is switched to manual caching.
+     * @param whereClause the where clause for the features to load, e.g. the
+     *                    layer's definition expression, or null for all features.
+     * @param planner the planner that chooses the tiles to load.
+     */
+    public ViewportFeatureLoader(ServiceFeatureTable featureTable, String whereClause, TileLoadPlanner planner) {
+        this.featureTable = featureTable;
+        this.whereClause = null == whereClause || whereClause.isEmpty() ? "1 = 1" : whereClause;
+        this.planner = planner;
+        featureTable.setFeatureRequestMode(ServiceFeatureTable.FeatureRequestMode.MANUAL_CACHE);
+    }
+
+    /**
+     * Records how long each tile of features takes to load.
+     * @param loadHistogram the histogram, or null to record nothing.
+     */
+    public void setLoadHistogram(LatencyHistogram loadHistogram) {
+        this.loadHistogram = loadHistogram;
+    }
+
+    /**
+     * Sets the listener that receives the features of each tile as it loads.
+     * @param listener the listener, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Requests the tiles needed for a new viewpoint. Tiles that were planned for an
+     * earlier viewpoint but not requested yet are dropped.
+     * @param visibleExtent the map's visible extent.
+     * @param unitsPerPixel the size of one pixel in map units.
+     */
+    public synchronized void viewpointChanged(Envelope visibleExtent, double unitsPerPixel) {
+        this.visibleExtent = visibleExtent;
+        this.unitsPerPixel = unitsPerPixel;
+        for (TileLoadPlanner.Tile tile : pendingTiles) {
+            planner.tileNotLoaded(tile);
+        }
+        pendingTiles.clear();
+        TileLoadPlanner.Plan plan = planner.update(new double[] {
+                visibleExtent.getXMin(), visibleExtent.getYMin(), visibleExtent.getXMax(), visibleExtent.getYMax() },
+                unitsPerPixel);
+        if (plan.isClearCache()) {
+            clearCache = true;
+        }
+        pendingTiles.addAll(plan.getTiles());
+        requestTiles();
+    }
+
+    /**
+     * Clears the table and requests the visible tiles again, e.g. because features
+     * were deleted on the server.
+     */
+    public synchronized void reload() {
+        pendingTiles.clear();
+        planner.reset();
+        clearCache = true;
+        if (null != visibleExtent) {
+            viewpointChanged(visibleExtent, unitsPerPixel);
+        }
+    }
+
+    /**
+     * @return the number of tiles requested since the loader last cleared the
+     *         table's cache.
+     */
+    public synchronized int getRequestedTileCount() {
+        return planner.getRequestedTileCount();
+    }
+
+    private void requestTiles() {
+        while (MAX_CONCURRENT_REQUESTS > requestsInFlight && !pendingTiles.isEmpty()) {
+            final TileLoadPlanner.Tile tile = pendingTiles.poll();
+            double[] extent = tile.getExtent();
+            QueryParameters queryParameters = new QueryParameters();
+            queryParameters.setWhereClause(whereClause);
+            queryParameters.setGeometry(new Envelope(extent[0], extent[1], extent[2], extent[3],
+                    visibleExtent.getSpatialReference()));
+            queryParameters.setMaxAllowableOffset(tile.getMaxAllowableOffset());
+            GeometryType geometryType = featureTable.getGeometryType();
+            if (GeometryType.POINT == geometryType || GeometryType.MULTIPOINT == geometryType) {
+                queryParameters.setMaxFeatures(planner.getMaxPointsPerTile());
+            }
+            final boolean cacheCleared = clearCache;
+            final ListenableFuture<FeatureQueryResult> future
+                    = featureTable.populateFromServiceAsync(queryParameters, clearCache, OUT_FIELDS);
+            clearCache = false;
+            requestsInFlight++;
+            final long startNanos = System.nanoTime();
+            future.addDoneListener(new Runnable() {
+                @Override
+                public void run() {
+                    FeatureQueryResult features = null;
+                    synchronized (ViewportFeatureLoader.this) {
+                        requestsInFlight--;
+                        try {
+                            features = future.get();
+                            LatencyHistogram histogram = loadHistogram;
+                            if (null != histogram) {
+                                histogram.recordSince(startNanos);
+                            }
+                        } catch (CancellationException | InterruptedException | ExecutionException e) {
+                            logger.log(Level.FINE, "Could not load tile " + tile, e);
+                            planner.tileNotLoaded(tile);
+                        }
+                        requestTiles();
+                    }
+                    Listener currentListener = listener;
+                    if (null != features && null != currentListener) {
+                        currentListener.featuresLoaded(features, cacheCleared);
+                    }
+                }
+            });
+        }
+    }
+
+}